@@ -28,10 +28,12 @@ import com.google.common.collect.Streams;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.elasticsearch.ElasticMapping.MappingProperties;
 import com.google.gerrit.elasticsearch.builders.QueryBuilder;
 import com.google.gerrit.elasticsearch.builders.SearchSourceBuilder;
+import com.google.gerrit.elasticsearch.bulk.BulkRequest;
 import com.google.gerrit.elasticsearch.bulk.DeleteRequest;
 import com.google.gerrit.entities.converter.ProtoConverter;
 import com.google.gerrit.exceptions.StorageException;
@@ -49,6 +51,7 @@ import com.google.gerrit.index.query.ResultSet;
 import com.google.gerrit.proto.Protos;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.index.IndexUtils;
+import com.google.gerrit.server.logging.LoggingContextAwareExecutorService;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
@@ -68,6 +71,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
@@ -135,11 +140,15 @@ abstract class AbstractElasticIndex<K, V> implements Index<K, V> {
   protected final Gson gson;
   protected final ElasticQueryBuilder queryBuilder;
 
+  private final ExecutorService bulkExecutor;
+  private final BulkAccumulator bulk;
+
   AbstractElasticIndex(
       ElasticConfiguration config,
       SitePaths sitePaths,
       Schema<V> schema,
       ElasticRestClientProvider client,
+      ElasticIndexMetrics metrics,
       String indexName) {
     this.config = config;
     this.sitePaths = sitePaths;
@@ -149,6 +158,14 @@ abstract class AbstractElasticIndex<K, V> implements Index<K, V> {
     this.indexName = config.getIndexName(indexName, schema.getVersion());
     this.indexNameRaw = indexName;
     this.client = client;
+    this.bulkExecutor =
+        new LoggingContextAwareExecutorService(
+            Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat(this.indexName + " Bulk-%d")
+                    .setDaemon(true)
+                    .build()));
+    this.bulk = new BulkAccumulator(this.indexName, bulkExecutor, this::sendBulk, metrics, config);
   }
 
   @Override
@@ -158,7 +175,9 @@ abstract class AbstractElasticIndex<K, V> implements Index<K, V> {
 
   @Override
   public void close() {
-    // Do nothing. Client is closed by the provider.
+    // Client is closed by the provider.
+    bulk.close();
+    bulkExecutor.shutdown();
   }
 
   @Override
@@ -168,12 +187,34 @@ abstract class AbstractElasticIndex<K, V> implements Index<K, V> {
 
   @Override
   public void delete(K id) {
-    String uri = getURI(BULK);
-    Response response = postRequest(uri, getDeleteActions(id), getRefreshParam());
+    try {
+      bulk.execute(getDeleteActions(id));
+    } catch (StorageException e) {
+      throw new StorageException(
+          String.format("Failed to delete %s from index %s", id, indexName), e);
+    }
+  }
+
+  /**
+   * Applies a bulk request together with the requests of concurrent writers to this index.
+   *
+   * @throws StorageException if the request failed.
+   */
+  protected void executeBulk(BulkRequest request) {
+    bulk.execute(request.toString());
+  }
+
+  private String sendBulk(String payload) {
+    Response response = postRequest(getURI(BULK), payload, getRefreshParam());
     int statusCode = response.getStatusLine().getStatusCode();
     if (statusCode != HttpStatus.SC_OK) {
       throw new StorageException(
-          String.format("Failed to delete %s from index %s: %s", id, indexName, statusCode));
+          String.format("Failed bulk request to index %s: %s", indexName, statusCode));
+    }
+    try {
+      return getContent(response);
+    } catch (IOException e) {
+      throw new StorageException(e);
     }
   }
 
@@ -0,0 +1,238 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.elasticsearch;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.http.HttpStatus;
+
+/**
+ * Combines the bulk actions of concurrent writers to one index into few {@code _bulk} requests.
+ *
+ * <p>Writers block until their action was applied, so that {@code replace()} and {@code delete()}
+ * keep their synchronous semantics. Actions are queued and sent on the given executor, in requests
+ * of up to {@code elasticsearch.bulkMaxActions} actions. If {@code elasticsearch.bulkMaxDelay} is
+ * set, the sender waits up to that long for a request to fill up. When {@code
+ * elasticsearch.bulkQueueCapacity} actions are queued, further writers block until there is room
+ * again.
+ *
+ * <p>When the index is closed, the actions which are still queued are sent, and further actions are
+ * refused.
+ *
+ * <p>Elasticsearch reports the result of every action separately. Actions which were rejected
+ * because Elasticsearch is overloaded are sent again, up to {@code elasticsearch.bulkMaxRetries}
+ * times; all other failures are reported to the writer of the action.
+ */
+class BulkAccumulator {
+  /** Sends a {@code _bulk} request and returns the response body. */
+  @FunctionalInterface
+  interface Sender {
+    String send(String payload);
+  }
+
+  private static final long RETRY_BACKOFF_MS = 100;
+
+  private final String indexName;
+  private final Executor executor;
+  private final Sender sender;
+  private final ElasticIndexMetrics metrics;
+  private final int maxActions;
+  private final long maxDelayNanos;
+  private final int maxRetries;
+  private final BlockingQueue<Action> queue;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile boolean closed;
+
+  BulkAccumulator(
+      String indexName,
+      Executor executor,
+      Sender sender,
+      ElasticIndexMetrics metrics,
+      ElasticConfiguration cfg) {
+    this.indexName = indexName;
+    this.executor = executor;
+    this.sender = sender;
+    this.metrics = metrics;
+    this.maxActions = Math.max(1, cfg.bulkMaxActions);
+    this.maxDelayNanos = MILLISECONDS.toNanos(cfg.bulkMaxDelayMs);
+    this.maxRetries = Math.max(0, cfg.bulkMaxRetries);
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, cfg.bulkQueueCapacity));
+  }
+
+  /**
+   * Applies one bulk action, consisting of the action line and, for index actions, the document.
+   *
+   * @throws StorageException if the action failed.
+   */
+  void execute(String action) {
+    if (closed) {
+      throw new StorageException("Index " + indexName + " is closed");
+    }
+    Action a = new Action(action);
+    try {
+      queue.put(a);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StorageException("Interrupted waiting for room in bulk queue of " + indexName, e);
+    }
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::sendQueued);
+      } catch (RejectedExecutionException e) {
+        // The index was closed after this action was queued.
+        scheduled.set(false);
+        StorageException err = new StorageException("Index " + indexName + " is closed", e);
+        List<Action> rejected = new ArrayList<>();
+        queue.drainTo(rejected);
+        rejected.forEach(r -> r.result.setException(err));
+      }
+    }
+    try {
+      Uninterruptibles.getUninterruptibly(a.result);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new StorageException(e.getCause());
+    }
+  }
+
+  /**
+   * Refuses further actions and sends the queued ones, so that writers waiting for them don't
+   * block after the executor was shut down. If the executor is still sending, this waits until it
+   * is done.
+   */
+  void close() {
+    closed = true;
+    sendQueued();
+  }
+
+  // Synchronized, so that the final flush of close() doesn't send concurrently with the executor,
+  // which could apply actions on the same document out of order.
+  private synchronized void sendQueued() {
+    scheduled.set(false);
+    for (List<Action> batch = nextBatch(); !batch.isEmpty(); batch = nextBatch()) {
+      send(batch);
+    }
+  }
+
+  private List<Action> nextBatch() {
+    List<Action> batch = new ArrayList<>();
+    queue.drainTo(batch, maxActions);
+    if (batch.isEmpty() || maxDelayNanos <= 0) {
+      return batch;
+    }
+    long deadline = batch.get(0).submitted + maxDelayNanos;
+    try {
+      while (batch.size() < maxActions) {
+        long remaining = deadline - System.nanoTime();
+        Action next = remaining > 0 ? queue.poll(remaining, NANOSECONDS) : null;
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+        queue.drainTo(batch, maxActions - batch.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return batch;
+  }
+
+  private void send(List<Action> batch) {
+    for (int attempt = 0; !batch.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        metrics.recordRetry(indexName, batch.size());
+        Uninterruptibles.sleepUninterruptibly(attempt * RETRY_BACKOFF_MS, MILLISECONDS);
+      }
+      List<Action> retry = new ArrayList<>();
+      try {
+        StringBuilder payload = new StringBuilder();
+        batch.forEach(a -> payload.append(a.action));
+        long start = System.nanoTime();
+        String response = sender.send(payload.toString());
+        metrics.recordBulk(indexName, batch.size(), System.nanoTime() - start);
+        JsonArray items =
+            new JsonParser().parse(response).getAsJsonObject().getAsJsonArray("items");
+        if (items == null || items.size() != batch.size()) {
+          throw new StorageException(
+              String.format(
+                  "Unexpected bulk response from index %s for %d actions: %s",
+                  indexName, batch.size(), response));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          Action a = batch.get(i);
+          JsonObject item = itemResult(items.get(i));
+          int status = item.get("status").getAsInt();
+          if (!item.has("error")) {
+            a.result.set(null);
+          } else if (isRetryable(status) && attempt < maxRetries) {
+            retry.add(a);
+          } else {
+            metrics.recordRejected(indexName, 1);
+            a.result.setException(
+                new StorageException(
+                    String.format(
+                        "Failed to write to index %s: %s %s",
+                        indexName, status, item.get("error"))));
+          }
+        }
+      } catch (RuntimeException e) {
+        metrics.recordRejected(indexName, batch.size());
+        batch.forEach(a -> a.result.setException(e));
+        retry.clear();
+      }
+      batch = retry;
+    }
+  }
+
+  private static JsonObject itemResult(JsonElement item) {
+    // Each item has a single key, the type of the action, e.g. "index" or "delete".
+    for (Map.Entry<String, JsonElement> e : item.getAsJsonObject().entrySet()) {
+      return e.getValue().getAsJsonObject();
+    }
+    throw new StorageException("Empty item in bulk response: " + item);
+  }
+
+  private static boolean isRetryable(int status) {
+    return status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE;
+  }
+
+  private static class Action {
+    final String action;
+    final long submitted = System.nanoTime();
+    final SettableFuture<Void> result = SettableFuture.create();
+
+    Action(String action) {
+      this.action = action;
+    }
+  }
+}
@@ -44,9 +44,7 @@ import com.google.gson.JsonObject;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.util.Set;
-import org.apache.http.HttpStatus;
 import org.eclipse.jgit.lib.Config;
-import org.elasticsearch.client.Response;
 
 /** Secondary index implementation using Elasticsearch. */
 class ElasticChangeIndex extends AbstractElasticIndex<Change.Id, ChangeData>
@@ -78,9 +76,10 @@ class ElasticChangeIndex extends AbstractElasticIndex<Change.Id, ChangeData>
       ChangeData.Factory changeDataFactory,
       SitePaths sitePaths,
       ElasticRestClientProvider clientBuilder,
+      ElasticIndexMetrics metrics,
       @GerritServerConfig Config gerritConfig,
       @Assisted Schema<ChangeData> schema) {
-    super(cfg, sitePaths, schema, clientBuilder, CHANGES);
+    super(cfg, sitePaths, schema, clientBuilder, metrics, CHANGES);
     this.changeDataFactory = changeDataFactory;
     this.schema = schema;
     this.mapping = new ChangeMapping(schema, client.adapter());
@@ -97,13 +96,11 @@ class ElasticChangeIndex extends AbstractElasticIndex<Change.Id, ChangeData>
     BulkRequest bulk =
         new IndexRequest(getId(cd), indexName).add(new UpdateRequest<>(schema, cd, skipFields));
 
-    String uri = getURI(BULK);
-    Response response = postRequest(uri, bulk, getRefreshParam());
-    int statusCode = response.getStatusLine().getStatusCode();
-    if (statusCode != HttpStatus.SC_OK) {
+    try {
+      executeBulk(bulk);
+    } catch (StorageException e) {
       throw new StorageException(
-          String.format(
-              "Failed to replace change %s in index %s: %s", cd.getId(), indexName, statusCode));
+          String.format("Failed to replace change %s in index %s", cd.getId(), indexName), e);
     }
   }
 
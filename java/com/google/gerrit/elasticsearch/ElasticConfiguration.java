@@ -45,6 +45,10 @@ class ElasticConfiguration {
   static final String KEY_MAX_RESULT_WINDOW = "maxResultWindow";
   static final String KEY_CONNECT_TIMEOUT = "connectTimeout";
   static final String KEY_SOCKET_TIMEOUT = "socketTimeout";
+  static final String KEY_BULK_MAX_ACTIONS = "bulkMaxActions";
+  static final String KEY_BULK_MAX_DELAY = "bulkMaxDelay";
+  static final String KEY_BULK_QUEUE_CAPACITY = "bulkQueueCapacity";
+  static final String KEY_BULK_MAX_RETRIES = "bulkMaxRetries";
 
   static final String DEFAULT_PORT = "9200";
   static final String DEFAULT_USERNAME = "elastic";
@@ -53,6 +57,9 @@ class ElasticConfiguration {
   static final int DEFAULT_MAX_RESULT_WINDOW = 10000;
   static final int DEFAULT_CONNECT_TIMEOUT = RestClientBuilder.DEFAULT_CONNECT_TIMEOUT_MILLIS;
   static final int DEFAULT_SOCKET_TIMEOUT = RestClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+  static final int DEFAULT_BULK_MAX_ACTIONS = 100;
+  static final int DEFAULT_BULK_QUEUE_CAPACITY = 1000;
+  static final int DEFAULT_BULK_MAX_RETRIES = 3;
 
   private final Config cfg;
   private final List<HttpHost> hosts;
@@ -64,6 +71,10 @@ class ElasticConfiguration {
   final int maxResultWindow;
   final int connectTimeout;
   final int socketTimeout;
+  final int bulkMaxActions;
+  final long bulkMaxDelayMs;
+  final int bulkQueueCapacity;
+  final int bulkMaxRetries;
   final String prefix;
 
   @Inject
@@ -98,6 +109,15 @@ class ElasticConfiguration {
                 KEY_SOCKET_TIMEOUT,
                 DEFAULT_SOCKET_TIMEOUT,
                 TimeUnit.MILLISECONDS);
+    this.bulkMaxActions =
+        cfg.getInt(SECTION_ELASTICSEARCH, null, KEY_BULK_MAX_ACTIONS, DEFAULT_BULK_MAX_ACTIONS);
+    this.bulkMaxDelayMs =
+        cfg.getTimeUnit(SECTION_ELASTICSEARCH, null, KEY_BULK_MAX_DELAY, 0, TimeUnit.MILLISECONDS);
+    this.bulkQueueCapacity =
+        cfg.getInt(
+            SECTION_ELASTICSEARCH, null, KEY_BULK_QUEUE_CAPACITY, DEFAULT_BULK_QUEUE_CAPACITY);
+    this.bulkMaxRetries =
+        cfg.getInt(SECTION_ELASTICSEARCH, null, KEY_BULK_MAX_RETRIES, DEFAULT_BULK_MAX_RETRIES);
     this.hosts = new ArrayList<>();
     for (String server : cfg.getStringList(SECTION_ELASTICSEARCH, null, KEY_SERVER)) {
       try {
@@ -0,0 +1,84 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.elasticsearch;
+
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/** Metrics of the {@link BulkAccumulator}s of all Elasticsearch indexes. */
+@Singleton
+class ElasticIndexMetrics {
+  private static final Field<String> F_INDEX =
+      Field.ofString("index", Metadata.Builder::indexName).description("index name").build();
+
+  private final Timer1<String> bulkLatency;
+  private final Histogram1<String> bulkSize;
+  private final Counter1<String> retried;
+  private final Counter1<String> rejected;
+
+  @Inject
+  ElasticIndexMetrics(MetricMaker metricMaker) {
+    bulkLatency =
+        metricMaker.newTimer(
+            "index/elasticsearch/bulk_latency",
+            new Description("Latency of one bulk request to an Elasticsearch index")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            F_INDEX);
+    bulkSize =
+        metricMaker.newHistogram(
+            "index/elasticsearch/bulk_size",
+            new Description("Number of documents written in one bulk request")
+                .setCumulative()
+                .setUnit("documents"),
+            F_INDEX);
+    retried =
+        metricMaker.newCounter(
+            "index/elasticsearch/retried_count",
+            new Description("Documents sent again after Elasticsearch rejected them temporarily")
+                .setRate()
+                .setUnit("documents"),
+            F_INDEX);
+    rejected =
+        metricMaker.newCounter(
+            "index/elasticsearch/rejected_count",
+            new Description("Documents which failed to be written to an Elasticsearch index")
+                .setRate()
+                .setUnit("documents"),
+            F_INDEX);
+  }
+
+  void recordBulk(String index, int documents, long elapsedNanos) {
+    bulkSize.record(index, documents);
+    bulkLatency.record(index, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordRetry(String index, int documents) {
+    retried.incrementBy(index, documents);
+  }
+
+  void recordRejected(String index, int documents) {
+    rejected.incrementBy(index, documents);
+  }
+}
@@ -20,8 +20,10 @@ import com.google.common.primitives.Ints;
 import com.google.gerrit.index.Index;
 import com.google.gerrit.index.IndexDefinition;
 import com.google.gerrit.index.Schema;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.index.GerritIndexStatus;
 import com.google.gerrit.server.index.OnlineUpgradeListener;
 import com.google.gerrit.server.index.VersionManager;
@@ -47,8 +49,10 @@ public class ElasticIndexVersionManager extends VersionManager {
       SitePaths sitePaths,
       PluginSetContext<OnlineUpgradeListener> listeners,
       Collection<IndexDefinition<?, ?, ?>> defs,
+      WorkQueue workQueue,
+      MetricMaker metricMaker,
       ElasticIndexVersionDiscovery versionDiscovery) {
-    super(sitePaths, listeners, defs, VersionManager.getOnlineUpgrade(cfg));
+    super(sitePaths, listeners, defs, VersionManager.getOnlineUpgrade(cfg), workQueue, metricMaker);
     this.versionDiscovery = versionDiscovery;
     prefix = Strings.nullToEmpty(cfg.getString("elasticsearch", null, "prefix"));
   }
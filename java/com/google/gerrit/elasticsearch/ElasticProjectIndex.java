@@ -41,8 +41,6 @@ import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 import java.util.Optional;
 import java.util.Set;
-import org.apache.http.HttpStatus;
-import org.elasticsearch.client.Response;
 
 public class ElasticProjectIndex extends AbstractElasticIndex<Project.NameKey, ProjectData>
     implements ProjectIndex {
@@ -66,8 +64,9 @@ public class ElasticProjectIndex extends AbstractElasticIndex<Project.NameKey, P
       SitePaths sitePaths,
       Provider<ProjectCache> projectCache,
       ElasticRestClientProvider client,
+      ElasticIndexMetrics metrics,
       @Assisted Schema<ProjectData> schema) {
-    super(cfg, sitePaths, schema, client, PROJECTS);
+    super(cfg, sitePaths, schema, client, metrics, PROJECTS);
     this.projectCache = projectCache;
     this.schema = schema;
     this.mapping = new ProjectMapping(schema, client.adapter());
@@ -79,14 +78,14 @@ public class ElasticProjectIndex extends AbstractElasticIndex<Project.NameKey, P
         new IndexRequest(projectState.getProject().getName(), indexName)
             .add(new UpdateRequest<>(schema, projectState, ImmutableSet.of()));
 
-    String uri = getURI(BULK);
-    Response response = postRequest(uri, bulk, getRefreshParam());
-    int statusCode = response.getStatusLine().getStatusCode();
-    if (statusCode != HttpStatus.SC_OK) {
+    try {
+      executeBulk(bulk);
+    } catch (StorageException e) {
       throw new StorageException(
           String.format(
-              "Failed to replace project %s in index %s: %s",
-              projectState.getProject().getName(), indexName, statusCode));
+              "Failed to replace project %s in index %s",
+              projectState.getProject().getName(), indexName),
+          e);
     }
   }
 
@@ -88,6 +88,7 @@ import com.google.gerrit.server.mail.send.SmtpEmailSender;
 import com.google.gerrit.server.mime.MimeUtil2Module;
 import com.google.gerrit.server.patch.DiffExecutorModule;
 import com.google.gerrit.server.permissions.DefaultPermissionBackendModule;
+import com.google.gerrit.server.permissions.RefAdvertisementCache;
 import com.google.gerrit.server.plugins.PluginGuiceEnvironment;
 import com.google.gerrit.server.plugins.PluginModule;
 import com.google.gerrit.server.project.DefaultProjectNameLockManager;
@@ -308,6 +309,7 @@ public class WebAppInitializer extends GuiceServletContextListener implements Fi
     modules.add(new GerritApiModule());
     modules.add(new PluginApiModule());
     modules.add(new SearchingChangeCacheImpl.Module());
+    modules.add(new RefAdvertisementCache.Module());
     modules.add(new InternalAccountDirectory.Module());
     modules.add(new DefaultPermissionBackendModule());
     modules.add(new DefaultMemoryCacheModule());
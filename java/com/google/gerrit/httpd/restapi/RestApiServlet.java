@@ -1569,10 +1569,10 @@ public class RestApiServlet extends HttpServlet {
       throws IOException {
     BinaryResult gz;
     long len = src.getContentLength();
-    if (len < 256) {
+    if (0 <= len && len < 256) {
       return src; // Do not compress very small payloads.
     }
-    if (len <= (10 << 20)) {
+    if (0 <= len && len <= (10 << 20)) {
       gz = compress(src);
       if (len <= gz.getContentLength()) {
         return src;
@@ -60,6 +60,14 @@ public interface Index<K, V> {
   /** Delete all documents from the index. */
   void deleteAll();
 
+  /**
+   * Makes all writes which were done so far durable, so that they are not lost if the server
+   * crashes.
+   *
+   * <p>Implementations which make every write durable before it returns don't need to do anything.
+   */
+  default void commit() {}
+
   /**
    * Convert the given operator predicate into a source searching the index and returning only the
    * documents matching that predicate.
@@ -41,6 +41,7 @@ public abstract class IndexConfig {
     setIfPresent(cfg, "maxPages", b::maxPages);
     setIfPresent(cfg, "maxTerms", b::maxTerms);
     setTypeOrDefault(cfg, b::type);
+    b.paginationType(cfg.getEnum("index", null, "paginationType", PaginationType.OFFSET));
     return b;
   }
 
@@ -62,7 +63,8 @@ public abstract class IndexConfig {
         .maxPages(Integer.MAX_VALUE)
         .maxTerms(DEFAULT_MAX_TERMS)
         .type(IndexType.getDefault())
-        .separateChangeSubIndexes(false);
+        .separateChangeSubIndexes(false)
+        .paginationType(PaginationType.OFFSET);
   }
 
   @AutoValue.Builder
@@ -85,6 +87,8 @@ public abstract class IndexConfig {
 
     public abstract Builder separateChangeSubIndexes(boolean separate);
 
+    public abstract Builder paginationType(PaginationType type);
+
     abstract IndexConfig autoBuild();
 
     public IndexConfig build() {
@@ -124,4 +128,7 @@ public abstract class IndexConfig {
    * @return whether different subsets of changes may be stored in different physical sub-indexes.
    */
   public abstract boolean separateChangeSubIndexes();
+
+  /** @return how queries are continued when their first page of results was not sufficient. */
+  public abstract PaginationType paginationType();
 }
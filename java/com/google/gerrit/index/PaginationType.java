@@ -0,0 +1,29 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.index;
+
+/** How an index continues a query whose first page of results was not sufficient. */
+public enum PaginationType {
+  /** Query again, skipping the number of results which were already read. */
+  OFFSET,
+
+  /**
+   * Query again, continuing after the last result which was read.
+   *
+   * <p>Only supported by index implementations which return a cursor in {@link
+   * com.google.gerrit.index.query.ResultSet#searchAfter()}; others fall back to {@link #OFFSET}.
+   */
+  SEARCH_AFTER
+}
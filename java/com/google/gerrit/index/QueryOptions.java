@@ -19,15 +19,26 @@ import static com.google.common.base.Preconditions.checkArgument;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.primitives.Ints;
+import com.google.gerrit.common.Nullable;
 import java.util.Set;
 import java.util.function.Function;
 
 @AutoValue
 public abstract class QueryOptions {
   public static QueryOptions create(IndexConfig config, int start, int limit, Set<String> fields) {
+    return create(config, start, null, limit, fields);
+  }
+
+  public static QueryOptions create(
+      IndexConfig config,
+      int start,
+      @Nullable Object searchAfter,
+      int limit,
+      Set<String> fields) {
     checkArgument(start >= 0, "start must be nonnegative: %s", start);
     checkArgument(limit > 0, "limit must be positive: %s", limit);
-    return new AutoValue_QueryOptions(config, start, limit, ImmutableSet.copyOf(fields));
+    return new AutoValue_QueryOptions(
+        config, start, searchAfter, limit, ImmutableSet.copyOf(fields));
   }
 
   public QueryOptions convertForBackend() {
@@ -36,26 +47,38 @@ public abstract class QueryOptions {
     int backendLimit = config().maxLimit();
     int limit = Ints.saturatedCast((long) limit() + start());
     limit = Math.min(limit, backendLimit);
-    return create(config(), 0, limit, fields());
+    return create(config(), 0, searchAfter(), limit, fields());
   }
 
   public abstract IndexConfig config();
 
   public abstract int start();
 
+  /**
+   * Cursor of the index implementation, pointing to the last result of a previous page.
+   *
+   * <p>If set, results start after the cursor rather than at {@link #start()}.
+   */
+  @Nullable
+  public abstract Object searchAfter();
+
   public abstract int limit();
 
   public abstract ImmutableSet<String> fields();
 
   public QueryOptions withLimit(int newLimit) {
-    return create(config(), start(), newLimit, fields());
+    return create(config(), start(), searchAfter(), newLimit, fields());
   }
 
   public QueryOptions withStart(int newStart) {
-    return create(config(), newStart, limit(), fields());
+    return create(config(), newStart, searchAfter(), limit(), fields());
+  }
+
+  public QueryOptions withSearchAfter(@Nullable Object newSearchAfter) {
+    return create(config(), start(), newSearchAfter, limit(), fields());
   }
 
   public QueryOptions filterFields(Function<QueryOptions, Set<String>> filter) {
-    return create(config(), start(), limit(), filter.apply(this));
+    return create(config(), start(), searchAfter(), limit(), filter.apply(this));
   }
 }
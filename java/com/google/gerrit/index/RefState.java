@@ -75,7 +75,11 @@ public abstract class RefState {
   public abstract ObjectId id();
 
   public boolean match(Repository repo) throws IOException {
-    Ref ref = repo.exactRef(ref());
+    return match(repo.exactRef(ref()));
+  }
+
+  /** Returns whether the given ref, which was read before, matches this state. */
+  public boolean match(@Nullable Ref ref) {
     ObjectId expected = ref != null ? ref.getObjectId() : ObjectId.zeroId();
     return id().equals(expected);
   }
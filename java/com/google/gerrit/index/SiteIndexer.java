@@ -25,6 +25,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.OptionalInt;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -57,14 +58,49 @@ public abstract class SiteIndexer<K, V, I extends Index<K, V>> {
     }
   }
 
-  protected int totalWork = -1;
+  /**
+   * Record of the parts of all entities which were already indexed, so that an interrupted run of
+   * {@link #indexAll(Index)} can be resumed.
+   *
+   * <p>What a part is depends on the implementation, e.g. a slice of the changes of one project.
+   * Implementations which do not support resuming ignore the checkpoint.
+   */
+  public interface Checkpoint {
+    Checkpoint NONE =
+        new Checkpoint() {
+          @Override
+          public OptionalInt doneCount(String part) {
+            return OptionalInt.empty();
+          }
+
+          @Override
+          public void markDone(String part, int count) {}
+        };
+
+    /**
+     * Returns the number of entities indexed for the given part, if the part was fully indexed.
+     */
+    OptionalInt doneCount(String part);
+
+    /** Records that all {@code count} entities of the given part were indexed. */
+    void markDone(String part, int count);
+  }
+
+  protected volatile int totalWork = -1;
   protected OutputStream progressOut = NullOutputStream.INSTANCE;
   protected PrintWriter verboseWriter = newPrintWriter(NullOutputStream.INSTANCE);
+  protected Checkpoint checkpoint = Checkpoint.NONE;
+  protected boolean reuseExistingDocuments;
 
   public void setTotalWork(int num) {
     totalWork = num;
   }
 
+  /** Returns the number of entities to index, or -1 if it is not known (yet). */
+  public int getTotalWork() {
+    return totalWork;
+  }
+
   public void setProgressOut(OutputStream out) {
     progressOut = requireNonNull(out);
   }
@@ -73,6 +109,27 @@ public abstract class SiteIndexer<K, V, I extends Index<K, V>> {
     verboseWriter = newPrintWriter(requireNonNull(out));
   }
 
+  public void setCheckpoint(Checkpoint checkpoint) {
+    this.checkpoint = requireNonNull(checkpoint);
+  }
+
+  /**
+   * Whether {@link #indexAll(Index)} may skip entities whose documents in the index are known to be
+   * up to date, instead of indexing them again. Implementations which cannot tell ignore this.
+   */
+  public void setReuseExistingDocuments(boolean reuse) {
+    this.reuseExistingDocuments = reuse;
+  }
+
+  /**
+   * Whether this implementation can reuse existing documents, see {@link
+   * #setReuseExistingDocuments(boolean)}. Implementations which can must also delete the documents
+   * of entities which no longer exist.
+   */
+  public boolean canReuseExistingDocuments() {
+    return false;
+  }
+
   /** Indexes all entities for the provided index. */
   public abstract Result indexAll(I index);
 
@@ -21,6 +21,7 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.index.PaginationType;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -105,9 +106,16 @@ public class AndSource<T> extends AndPredicate<T>
             //
             @SuppressWarnings("unchecked")
             Paginated<T> p = (Paginated<T>) source;
+            boolean searchAfter =
+                p.getOptions().config().paginationType() == PaginationType.SEARCH_AFTER;
+            ResultSet<T> lastResultSet = resultSet;
             while (skipped && r.size() < p.getOptions().limit() + start) {
               skipped = false;
-              ResultSet<T> next = p.restart(nextStart);
+              // Continue after the last result if the index supports it, so that the index doesn't
+              // have to read and skip all results of the previous pages again.
+              Object cursor = searchAfter ? lastResultSet.searchAfter() : null;
+              ResultSet<T> next = cursor != null ? p.restart(cursor) : p.restart(nextStart);
+              lastResultSet = next;
 
               for (T data : buffer(next)) {
                 if (match(data)) {
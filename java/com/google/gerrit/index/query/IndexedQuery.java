@@ -88,12 +88,22 @@ public class IndexedQuery<I, T> extends Predicate<T> implements DataSource<T>, P
 
   @Override
   public ResultSet<T> restart(int start) {
-    opts = opts.withStart(start);
+    opts = opts.withStart(start).withSearchAfter(null);
+    return reread();
+  }
+
+  @Override
+  public ResultSet<T> restart(Object searchAfter) {
+    opts = opts.withStart(0).withSearchAfter(searchAfter);
+    return reread();
+  }
+
+  private ResultSet<T> reread() {
     try {
       source = index.getSource(pred, opts);
     } catch (QueryParseException e) {
       // Don't need to show this exception to the user; the only thing that
-      // changed about pred was its start, and any other QPEs that might happen
+      // changed about pred was its start or cursor, and any other QPEs that might happen
       // should have already thrown from the constructor.
       throw new StorageException(e);
     }
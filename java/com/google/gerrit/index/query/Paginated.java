@@ -20,4 +20,12 @@ public interface Paginated<T> {
   QueryOptions getOptions();
 
   ResultSet<T> restart(int start);
+
+  /**
+   * Restarts the query after the given cursor.
+   *
+   * @param searchAfter cursor returned by {@link ResultSet#searchAfter()} of a previous page.
+   * @return results after the cursor.
+   */
+  ResultSet<T> restart(Object searchAfter);
 }
@@ -284,6 +284,8 @@ public abstract class QueryProcessor<T> {
       // Only measure successful queries that actually touched the index.
       metrics.executionTime.record(
           schemaDef.getName(), System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+
+      postProcess(out);
     } catch (StorageException e) {
       Optional<QueryParseException> qpe = findQueryParseException(e);
       if (qpe.isPresent()) {
@@ -312,6 +314,14 @@ public abstract class QueryProcessor<T> {
     return QueryOptions.create(indexConfig, start, limit, requestedFields);
   }
 
+  /**
+   * Invoked with the results of all queries before they are returned. Subclasses may overwrite
+   * this method to inspect the results, the default implementation does nothing.
+   *
+   * @param results the query results
+   */
+  protected void postProcess(List<QueryResult<T>> results) {}
+
   /**
    * Invoked after the query was rewritten. Subclasses must overwrite this method to filter out
    * results that are not visible to the calling user.
@@ -15,6 +15,7 @@
 package com.google.gerrit.index.query;
 
 import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
 import java.util.Iterator;
 
 /**
@@ -49,4 +50,17 @@ public interface ResultSet<T> extends Iterable<T> {
    * the iterator has finished.
    */
   void close();
+
+  /**
+   * Returns a cursor pointing to the last result, which can be passed to {@link
+   * Paginated#restart(Object)} to read the results after it.
+   *
+   * <p>Only valid once all results were obtained.
+   *
+   * @return cursor, or null if the index does not support continuing after a result.
+   */
+  @Nullable
+  default Object searchAfter() {
+    return null;
+  }
 }
@@ -18,8 +18,10 @@ import com.google.common.collect.Iterables;
 import com.google.gerrit.index.Index;
 import com.google.gerrit.index.IndexDefinition;
 import com.google.gerrit.index.Schema;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.index.GerritIndexStatus;
 import com.google.gerrit.server.index.OnlineUpgradeListener;
 import com.google.gerrit.server.index.VersionManager;
@@ -39,8 +41,10 @@ public class FakeIndexVersionManager extends VersionManager {
       @GerritServerConfig Config cfg,
       SitePaths sitePaths,
       PluginSetContext<OnlineUpgradeListener> listeners,
-      Collection<IndexDefinition<?, ?, ?>> defs) {
-    super(sitePaths, listeners, defs, VersionManager.getOnlineUpgrade(cfg));
+      Collection<IndexDefinition<?, ?, ?>> defs,
+      WorkQueue workQueue,
+      MetricMaker metricMaker) {
+    super(sitePaths, listeners, defs, VersionManager.getOnlineUpgrade(cfg), workQueue, metricMaker);
   }
 
   @Override
@@ -17,6 +17,7 @@ package com.google.gerrit.lucene;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
@@ -30,6 +31,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.exceptions.StorageException;
@@ -49,18 +51,23 @@ import com.google.gerrit.server.logging.LoggingContextAwareExecutorService;
 import com.google.gerrit.server.logging.LoggingContextAwareScheduledExecutorService;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.function.IntSupplier;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
@@ -100,11 +107,20 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
   private final Directory dir;
   private final String name;
   private final ImmutableSet<String> skipFields;
+  private final String index;
   private final ListeningExecutorService writerThread;
-  private final IndexWriter writer;
+  private final AutoCommitWriter writer;
   private final ReferenceManager<IndexSearcher> searcherManager;
   private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
   private final Set<NrtFuture> notDoneNrtFutures;
+  private final BlockingQueue<PendingWrite> pendingWrites;
+  private final AtomicBoolean writesScheduled;
+  private final int maxWriteBatchSize;
+  private final long writeBatchDelayNanos;
+  private final LuceneIndexMetrics metrics;
+  private final String metricsIndex;
+  private final IntSupplier queueDepth;
+  @Nullable private final DeferredMergePolicy deferredMergePolicy;
   private ScheduledExecutorService autoCommitExecutor;
 
   AbstractLuceneIndex(
@@ -115,14 +131,17 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
       ImmutableSet<String> skipFields,
       String subIndex,
       GerritIndexWriterConfig writerConfig,
-      SearcherFactory searcherFactory)
+      SearcherFactory searcherFactory,
+      LuceneIndexMetrics metrics)
       throws IOException {
     this.schema = schema;
     this.sitePaths = sitePaths;
     this.dir = dir;
     this.name = name;
     this.skipFields = skipFields;
+    this.metrics = metrics;
     String index = Joiner.on('_').skipNulls().join(name, subIndex);
+    this.index = index;
     long commitPeriod = writerConfig.getCommitWithinMs();
 
     if (commitPeriod < 0) {
@@ -172,6 +191,16 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     searcherManager = new WrappableSearcherManager(writer, true, searcherFactory);
 
     notDoneNrtFutures = Sets.newConcurrentHashSet();
+    pendingWrites = new LinkedBlockingQueue<>();
+    writesScheduled = new AtomicBoolean();
+    maxWriteBatchSize = writerConfig.getMaxWriteBatchSize();
+    writeBatchDelayNanos = MILLISECONDS.toNanos(writerConfig.getWriteBatchDelayMs());
+    deferredMergePolicy = writerConfig.getDeferredMergePolicy();
+    // Both schema versions of an index are open during an online reindex.
+    metricsIndex =
+        Joiner.on('_').skipNulls().join(name, String.format("%04d", schema.getVersion()), subIndex);
+    queueDepth = pendingWrites::size;
+    metrics.register(metricsIndex, queueDepth);
 
     writerThread =
         MoreExecutors.listeningDecorator(
@@ -225,6 +254,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
 
   @Override
   public void close() {
+    metrics.unregister(metricsIndex, queueDepth);
     if (autoCommitExecutor != null) {
       autoCommitExecutor.shutdown();
     }
@@ -253,6 +283,18 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
       logger.atWarning().withCause(e).log("error finishing pending Lucene writes");
     }
 
+    if (deferredMergePolicy != null) {
+      // Merge the segments written so far once, closing the writer waits for the merges.
+      deferredMergePolicy.resume();
+      try {
+        writer.maybeMerge();
+      } catch (AlreadyClosedException e) {
+        // Ignore.
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("error merging %s Lucene index", index);
+      }
+    }
+
     try {
       writer.close();
     } catch (AlreadyClosedException e) {
@@ -268,28 +310,117 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
   }
 
   ListenableFuture<?> insert(Document doc) {
-    return submit(() -> writer.addDocument(doc));
+    return submit(w -> w.addDocumentDeferringFlush(doc));
   }
 
   ListenableFuture<?> replace(Term term, Document doc) {
-    return submit(() -> writer.updateDocument(term, doc));
+    return submit(w -> w.updateDocumentDeferringFlush(term, doc));
   }
 
   ListenableFuture<?> delete(Term term) {
-    return submit(() -> writer.deleteDocuments(term));
+    return submit(w -> w.deleteDocumentsDeferringFlush(term));
+  }
+
+  /**
+   * Queues a write for the writer thread.
+   *
+   * <p>The writer thread applies queued writes in batches of up to {@code
+   * index.<name>.maxWriteBatchSize}, and flushes (or commits, if configured) once per batch rather
+   * than once per write. If {@code index.<name>.writeBatchDelay} is set, it waits up to that long
+   * for a batch to fill up.
+   *
+   * @return future which is done once the write is visible to searchers.
+   */
+  private ListenableFuture<?> submit(Write write) {
+    PendingWrite pending = new PendingWrite(write);
+    pendingWrites.add(pending);
+    if (writesScheduled.compareAndSet(false, true)) {
+      writerThread.execute(this::applyPendingWrites);
+    }
+    return Futures.nonCancellationPropagating(pending.result);
+  }
+
+  private void applyPendingWrites() {
+    writesScheduled.set(false);
+    for (List<PendingWrite> batch = nextBatch(); !batch.isEmpty(); batch = nextBatch()) {
+      applyBatch(batch);
+    }
+  }
+
+  private List<PendingWrite> nextBatch() {
+    List<PendingWrite> batch = new ArrayList<>();
+    pendingWrites.drainTo(batch, maxWriteBatchSize);
+    if (batch.isEmpty() || writeBatchDelayNanos <= 0) {
+      return batch;
+    }
+    long deadline = batch.get(0).submitted + writeBatchDelayNanos;
+    try {
+      while (batch.size() < maxWriteBatchSize) {
+        long remaining = deadline - System.nanoTime();
+        PendingWrite next = remaining > 0 ? pendingWrites.poll(remaining, NANOSECONDS) : null;
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+        pendingWrites.drainTo(batch, maxWriteBatchSize - batch.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return batch;
+  }
+
+  private void applyBatch(List<PendingWrite> batch) {
+    List<PendingWrite> applied = new ArrayList<>(batch.size());
+    long maxGen = -1;
+    for (PendingWrite pending : batch) {
+      try {
+        pending.gen = pending.write.apply(writer);
+        maxGen = Math.max(maxGen, pending.gen);
+        applied.add(pending);
+      } catch (IOException | RuntimeException e) {
+        pending.result.setException(e);
+      }
+    }
+    if (applied.isEmpty()) {
+      return;
+    }
+    try {
+      writer.autoFlush();
+      // Tell the reopen thread a future is waiting on this
+      // generation so it uses the min stale time when refreshing.
+      reopenThread.waitForGeneration(maxGen, 0);
+    } catch (IOException | RuntimeException | InterruptedException e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      applied.forEach(p -> p.result.setException(e));
+      return;
+    }
+    metrics.recordBatch(metricsIndex, applied.size());
+    for (PendingWrite pending : applied) {
+      NrtFuture visible = new NrtFuture(pending.gen);
+      visible.addListener(
+          () -> metrics.recordVisible(metricsIndex, System.nanoTime() - pending.submitted),
+          directExecutor());
+      pending.result.setFuture(visible);
+    }
   }
 
-  private ListenableFuture<?> submit(Callable<Long> task) {
-    ListenableFuture<Long> future = Futures.nonCancellationPropagating(writerThread.submit(task));
-    return Futures.transformAsync(
-        future,
-        gen -> {
-          // Tell the reopen thread a future is waiting on this
-          // generation so it uses the min stale time when refreshing.
-          reopenThread.waitForGeneration(gen, 0);
-          return new NrtFuture(gen);
-        },
-        directExecutor());
+  @FunctionalInterface
+  private interface Write {
+    long apply(AutoCommitWriter writer) throws IOException;
+  }
+
+  private static class PendingWrite {
+    final Write write;
+    final long submitted = System.nanoTime();
+    final SettableFuture<Void> result = SettableFuture.create();
+    long gen;
+
+    PendingWrite(Write write) {
+      this.write = write;
+    }
   }
 
   @Override
@@ -301,6 +432,15 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     }
   }
 
+  @Override
+  public void commit() {
+    try {
+      writer.commit();
+    } catch (IOException e) {
+      throw new StorageException(e);
+    }
+  }
+
   public IndexWriter getWriter() {
     return writer;
   }
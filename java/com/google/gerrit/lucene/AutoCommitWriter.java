@@ -107,6 +107,23 @@ public class AutoCommitWriter extends IndexWriter {
     return ret;
   }
 
+  /** Adds a document without flushing; callers must call {@link #autoFlush()} afterwards. */
+  long addDocumentDeferringFlush(Iterable<? extends IndexableField> doc) throws IOException {
+    // IndexWriter#addDocument delegates to #updateDocument, which is overridden to flush.
+    return super.updateDocument(null, doc);
+  }
+
+  /** Updates a document without flushing; callers must call {@link #autoFlush()} afterwards. */
+  long updateDocumentDeferringFlush(Term term, Iterable<? extends IndexableField> doc)
+      throws IOException {
+    return super.updateDocument(term, doc);
+  }
+
+  /** Deletes documents without flushing; callers must call {@link #autoFlush()} afterwards. */
+  long deleteDocumentsDeferringFlush(Term term) throws IOException {
+    return super.deleteDocuments(term);
+  }
+
   void manualFlush() throws IOException {
     flush();
     if (autoCommit) {
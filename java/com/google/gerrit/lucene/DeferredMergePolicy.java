@@ -0,0 +1,73 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import java.io.IOException;
+import java.util.Map;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * Merge policy that does not merge segments until {@link #resume()} is called.
+ *
+ * <p>Used when building an index from scratch, where merging segments while documents are still
+ * being added rewrites the same documents many times. Once all documents are written, the segments
+ * are merged in one go by the wrapped policy.
+ */
+class DeferredMergePolicy extends MergePolicy {
+  private final MergePolicy delegate;
+  private volatile boolean deferred = true;
+
+  DeferredMergePolicy(MergePolicy delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Lets the wrapped policy select merges from now on. */
+  void resume() {
+    deferred = false;
+  }
+
+  @Override
+  public MergeSpecification findMerges(
+      MergeTrigger mergeTrigger, SegmentInfos segmentInfos, IndexWriter writer)
+      throws IOException {
+    return deferred ? null : delegate.findMerges(mergeTrigger, segmentInfos, writer);
+  }
+
+  @Override
+  public MergeSpecification findForcedMerges(
+      SegmentInfos segmentInfos,
+      int maxSegmentCount,
+      Map<SegmentCommitInfo, Boolean> segmentsToMerge,
+      IndexWriter writer)
+      throws IOException {
+    return delegate.findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge, writer);
+  }
+
+  @Override
+  public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos, IndexWriter writer)
+      throws IOException {
+    return delegate.findForcedDeletesMerges(segmentInfos, writer);
+  }
+
+  @Override
+  public boolean useCompoundFile(
+      SegmentInfos infos, SegmentCommitInfo mergedInfo, IndexWriter writer) throws IOException {
+    return delegate.useCompoundFile(infos, mergedInfo, writer);
+  }
+}
@@ -18,6 +18,7 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.config.ConfigUtil;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -33,6 +34,9 @@ class GerritIndexWriterConfig {
 
   private final IndexWriterConfig luceneConfig;
   private long commitWithinMs;
+  private final int maxWriteBatchSize;
+  private final long writeBatchDelayMs;
+  private final DeferredMergePolicy deferredMergePolicy;
   private final CustomMappingAnalyzer analyzer;
 
   GerritIndexWriterConfig(Config cfg, String name) {
@@ -75,6 +79,15 @@ class GerritIndexWriterConfig {
     } catch (IllegalArgumentException e) {
       commitWithinMs = cfg.getLong("index", name, "commitWithin", 0);
     }
+    maxWriteBatchSize = Math.max(1, cfg.getInt("index", name, "maxWriteBatchSize", 100));
+    writeBatchDelayMs =
+        ConfigUtil.getTimeUnit(cfg, "index", name, "writeBatchDelay", 0, MILLISECONDS);
+    if (cfg.getBoolean("index", name, "deferMerges", false)) {
+      deferredMergePolicy = new DeferredMergePolicy(luceneConfig.getMergePolicy());
+      luceneConfig.setMergePolicy(deferredMergePolicy);
+    } else {
+      deferredMergePolicy = null;
+    }
   }
 
   CustomMappingAnalyzer getAnalyzer() {
@@ -88,4 +101,17 @@ class GerritIndexWriterConfig {
   long getCommitWithinMs() {
     return commitWithinMs;
   }
+
+  int getMaxWriteBatchSize() {
+    return maxWriteBatchSize;
+  }
+
+  long getWriteBatchDelayMs() {
+    return writeBatchDelayMs;
+  }
+
+  @Nullable
+  DeferredMergePolicy getDeferredMergePolicy() {
+    return deferredMergePolicy;
+  }
 }
@@ -94,6 +94,7 @@ public class LuceneAccountIndex extends AbstractLuceneIndex<Account.Id, AccountS
       @GerritServerConfig Config cfg,
       SitePaths sitePaths,
       Provider<AccountCache> accountCache,
+      LuceneIndexMetrics metrics,
       @Assisted Schema<AccountState> schema)
       throws IOException {
     super(
@@ -104,7 +105,8 @@ public class LuceneAccountIndex extends AbstractLuceneIndex<Account.Id, AccountS
         ImmutableSet.of(),
         null,
         new GerritIndexWriterConfig(cfg, ACCOUNTS),
-        new SearcherFactory());
+        new SearcherFactory(),
+        metrics);
     this.accountCache = accountCache;
 
     indexWriterConfig = new GerritIndexWriterConfig(cfg, ACCOUNTS);
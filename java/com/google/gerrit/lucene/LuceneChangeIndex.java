@@ -26,6 +26,7 @@ import static java.util.Objects.requireNonNull;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
@@ -63,8 +64,10 @@ import com.google.protobuf.MessageLite;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -145,6 +148,7 @@ public class LuceneChangeIndex implements ChangeIndex {
       SitePaths sitePaths,
       @IndexExecutor(INTERACTIVE) ListeningExecutorService executor,
       ChangeData.Factory changeDataFactory,
+      LuceneIndexMetrics metrics,
       @Assisted Schema<ChangeData> schema)
       throws IOException {
     this.executor = executor;
@@ -170,7 +174,8 @@ public class LuceneChangeIndex implements ChangeIndex {
               "ramOpen",
               skipFields,
               openConfig,
-              searcherFactory);
+              searcherFactory,
+              metrics);
       closedIndex =
           new ChangeSubIndex(
               schema,
@@ -179,7 +184,8 @@ public class LuceneChangeIndex implements ChangeIndex {
               "ramClosed",
               skipFields,
               closedConfig,
-              searcherFactory);
+              searcherFactory,
+              metrics);
     } else {
       Path dir = LuceneVersionManager.getDir(sitePaths, CHANGES, schema);
       openIndex =
@@ -189,7 +195,8 @@ public class LuceneChangeIndex implements ChangeIndex {
               dir.resolve(CHANGES_OPEN),
               skipFields,
               openConfig,
-              searcherFactory);
+              searcherFactory,
+              metrics);
       closedIndex =
           new ChangeSubIndex(
               schema,
@@ -197,7 +204,8 @@ public class LuceneChangeIndex implements ChangeIndex {
               dir.resolve(CHANGES_CLOSED),
               skipFields,
               closedConfig,
-              searcherFactory);
+              searcherFactory,
+              metrics);
     }
 
     idField = this.schema.useLegacyNumericFields() ? LEGACY_ID : LEGACY_ID_STR;
@@ -262,6 +270,12 @@ public class LuceneChangeIndex implements ChangeIndex {
     closedIndex.deleteAll();
   }
 
+  @Override
+  public void commit() {
+    openIndex.commit();
+    closedIndex.commit();
+  }
+
   @Override
   public ChangeDataSource getSource(Predicate<ChangeData> p, QueryOptions opts)
       throws QueryParseException {
@@ -338,9 +352,9 @@ public class LuceneChangeIndex implements ChangeIndex {
       final Set<String> fields = IndexUtils.changeFields(opts, schema.useLegacyNumericFields());
       return new ChangeDataResults(
           executor.submit(
-              new Callable<List<Document>>() {
+              new Callable<Results>() {
                 @Override
-                public List<Document> call() throws IOException {
+                public Results call() throws IOException {
                   return doRead(fields);
                 }
 
@@ -354,14 +368,15 @@ public class LuceneChangeIndex implements ChangeIndex {
 
     @Override
     public ResultSet<FieldBundle> readRaw() {
-      List<Document> documents;
+      Results results;
       try {
-        documents = doRead(IndexUtils.changeFields(opts, schema.useLegacyNumericFields()));
+        results = doRead(IndexUtils.changeFields(opts, schema.useLegacyNumericFields()));
       } catch (IOException e) {
         throw new StorageException(e);
       }
+      ImmutableMap<ChangeSubIndex, ScoreDoc> searchAfter = results.searchAfter;
       ImmutableList<FieldBundle> fieldBundles =
-          documents.stream().map(rawDocumentMapper).collect(toImmutableList());
+          results.docs.stream().map(rawDocumentMapper).collect(toImmutableList());
       return new ResultSet<FieldBundle>() {
         @Override
         public Iterator<FieldBundle> iterator() {
@@ -377,11 +392,17 @@ public class LuceneChangeIndex implements ChangeIndex {
         public void close() {
           // Do nothing.
         }
+
+        @Override
+        public Object searchAfter() {
+          return searchAfter;
+        }
       };
     }
 
-    private List<Document> doRead(Set<String> fields) throws IOException {
+    private Results doRead(Set<String> fields) throws IOException {
       IndexSearcher[] searchers = new IndexSearcher[indexes.size()];
+      Map<ChangeSubIndex, ScoreDoc> searchAfter = getSearchAfter();
       try {
         int realLimit = opts.start() + opts.limit();
         if (Integer.MAX_VALUE - opts.limit() < opts.start()) {
@@ -389,8 +410,13 @@ public class LuceneChangeIndex implements ChangeIndex {
         }
         TopFieldDocs[] hits = new TopFieldDocs[indexes.size()];
         for (int i = 0; i < indexes.size(); i++) {
-          searchers[i] = indexes.get(i).acquire();
-          hits[i] = searchers[i].search(query, realLimit, sort);
+          ChangeSubIndex index = indexes.get(i);
+          searchers[i] = index.acquire();
+          ScoreDoc after = searchAfter.get(index);
+          hits[i] =
+              after != null
+                  ? (TopFieldDocs) searchers[i].searchAfter(after, query, realLimit, sort)
+                  : searchers[i].search(query, realLimit, sort);
         }
         TopDocs docs = TopDocs.merge(sort, realLimit, hits);
 
@@ -399,7 +425,11 @@ public class LuceneChangeIndex implements ChangeIndex {
           ScoreDoc sd = docs.scoreDocs[i];
           result.add(searchers[sd.shardIndex].doc(sd.doc, fields));
         }
-        return result;
+        // Sub-indexes which did not contribute to this page keep their previous cursor.
+        for (ScoreDoc sd : docs.scoreDocs) {
+          searchAfter.put(indexes.get(sd.shardIndex), sd);
+        }
+        return new Results(result, ImmutableMap.copyOf(searchAfter));
       } finally {
         for (int i = 0; i < indexes.size(); i++) {
           if (searchers[i] != null) {
@@ -412,13 +442,40 @@ public class LuceneChangeIndex implements ChangeIndex {
         }
       }
     }
+
+    /**
+     * Returns the cursor of the previous page, per sub-index.
+     *
+     * <p>The cursor of a sub-index is the last of its results which was returned. Sub-indexes
+     * which did not contribute any result yet are searched from the start, since all their results
+     * sort after the results returned so far.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<ChangeSubIndex, ScoreDoc> getSearchAfter() {
+      Map<ChangeSubIndex, ScoreDoc> searchAfter = new HashMap<>();
+      if (opts.searchAfter() instanceof Map) {
+        searchAfter.putAll((Map<ChangeSubIndex, ScoreDoc>) opts.searchAfter());
+      }
+      return searchAfter;
+    }
+  }
+
+  private static class Results {
+    final List<Document> docs;
+    final ImmutableMap<ChangeSubIndex, ScoreDoc> searchAfter;
+
+    Results(List<Document> docs, ImmutableMap<ChangeSubIndex, ScoreDoc> searchAfter) {
+      this.docs = docs;
+      this.searchAfter = searchAfter;
+    }
   }
 
   private class ChangeDataResults implements ResultSet<ChangeData> {
-    private final Future<List<Document>> future;
+    private final Future<Results> future;
     private final Set<String> fields;
+    private Object searchAfter;
 
-    ChangeDataResults(Future<List<Document>> future, Set<String> fields) {
+    ChangeDataResults(Future<Results> future, Set<String> fields) {
       this.future = future;
       this.fields = fields;
     }
@@ -431,12 +488,13 @@ public class LuceneChangeIndex implements ChangeIndex {
     @Override
     public ImmutableList<ChangeData> toList() {
       try {
-        List<Document> docs = future.get();
+        Results results = future.get();
         ImmutableList.Builder<ChangeData> result =
-            ImmutableList.builderWithExpectedSize(docs.size());
-        for (Document doc : docs) {
+            ImmutableList.builderWithExpectedSize(results.docs.size());
+        for (Document doc : results.docs) {
           result.add(toChangeData(fields(doc, fields), fields, idField.getName()));
         }
+        searchAfter = results.searchAfter;
         return result.build();
       } catch (InterruptedException e) {
         close();
@@ -451,6 +509,11 @@ public class LuceneChangeIndex implements ChangeIndex {
     public void close() {
       future.cancel(false /* do not interrupt Lucene */);
     }
+
+    @Override
+    public Object searchAfter() {
+      return searchAfter;
+    }
   }
 
   private static ListMultimap<String, IndexableField> fields(Document doc, Set<String> fields) {
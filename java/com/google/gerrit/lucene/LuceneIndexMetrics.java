@@ -0,0 +1,91 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/** Metrics of the write pipelines of all Lucene indexes. */
+@Singleton
+class LuceneIndexMetrics {
+  private static final Field<String> F_INDEX =
+      Field.ofString("index", Metadata.Builder::indexName)
+          .description("index name, schema version and sub index")
+          .build();
+
+  private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+  private final Histogram1<String> batchSize;
+  private final Timer1<String> visibilityLatency;
+
+  @Inject
+  LuceneIndexMetrics(MetricMaker metricMaker) {
+    batchSize =
+        metricMaker.newHistogram(
+            "index/lucene/write_batch_size",
+            new Description("Number of writes applied to a Lucene index in one batch")
+                .setCumulative()
+                .setUnit("writes"),
+            F_INDEX);
+    visibilityLatency =
+        metricMaker.newTimer(
+            "index/lucene/write_visibility_latency",
+            new Description("Time from submitting a write to a Lucene index until it is searchable")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            F_INDEX);
+    CallbackMetric1<String, Integer> queueDepth =
+        metricMaker.newCallbackMetric(
+            "index/lucene/write_queue_depth",
+            Integer.class,
+            new Description("Writes waiting to be applied to a Lucene index")
+                .setGauge()
+                .setUnit("writes"),
+            F_INDEX);
+    metricMaker.newTrigger(
+        queueDepth,
+        () -> {
+          queues.forEach((index, depth) -> queueDepth.set(index, depth.getAsInt()));
+          queueDepth.prune();
+        });
+  }
+
+  void register(String index, IntSupplier queueDepth) {
+    queues.put(index, queueDepth);
+  }
+
+  void unregister(String index, IntSupplier queueDepth) {
+    queues.remove(index, queueDepth);
+  }
+
+  void recordBatch(String index, int writes) {
+    batchSize.record(index, writes);
+  }
+
+  void recordVisible(String index, long elapsedNanos) {
+    visibilityLatency.record(index, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+}
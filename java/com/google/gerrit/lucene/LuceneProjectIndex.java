@@ -84,6 +84,7 @@ public class LuceneProjectIndex extends AbstractLuceneIndex<Project.NameKey, Pro
       @GerritServerConfig Config cfg,
       SitePaths sitePaths,
       Provider<ProjectCache> projectCache,
+      LuceneIndexMetrics metrics,
       @Assisted Schema<ProjectData> schema)
       throws IOException {
     super(
@@ -94,7 +95,8 @@ public class LuceneProjectIndex extends AbstractLuceneIndex<Project.NameKey, Pro
         ImmutableSet.of(),
         null,
         new GerritIndexWriterConfig(cfg, PROJECTS),
-        new SearcherFactory());
+        new SearcherFactory(),
+        metrics);
     this.projectCache = projectCache;
 
     indexWriterConfig = new GerritIndexWriterConfig(cfg, PROJECTS);
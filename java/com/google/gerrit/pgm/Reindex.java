@@ -17,6 +17,7 @@ package com.google.gerrit.pgm;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toSet;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.gerrit.common.Die;
 import com.google.gerrit.elasticsearch.ElasticIndexModule;
@@ -31,7 +32,10 @@ import com.google.gerrit.pgm.util.BatchProgramModule;
 import com.google.gerrit.pgm.util.SiteProgram;
 import com.google.gerrit.server.change.ChangeResource;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.index.IndexModule;
+import com.google.gerrit.server.index.ReindexCheckpoint;
+import com.google.gerrit.server.index.ReindexFingerprints;
 import com.google.gerrit.server.index.change.ChangeSchemaDefinitions;
 import com.google.gerrit.server.plugins.PluginGuiceEnvironment;
 import com.google.gerrit.server.util.ReplicaUtil;
@@ -39,6 +43,7 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.Module;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -54,6 +59,8 @@ import org.eclipse.jgit.util.io.NullOutputStream;
 import org.kohsuke.args4j.Option;
 
 public class Reindex extends SiteProgram {
+  private static final String RAM_BUFFER_SIZE = "256m";
+
   @Option(name = "--threads", usage = "Number of threads to use for indexing")
   private int threads = Runtime.getRuntime().availableProcessors();
 
@@ -71,12 +78,18 @@ public class Reindex extends SiteProgram {
   @Option(name = "--index", usage = "Only reindex specified indices")
   private List<String> indices = new ArrayList<>();
 
+  @Option(
+      name = "--reuse",
+      usage = "Keep the existing documents and skip those which are up to date")
+  private boolean reuse;
+
   private Injector dbInjector;
   private Injector sysInjector;
   private Injector cfgInjector;
   private Config globalConfig;
 
   @Inject private Collection<IndexDefinition<?, ?, ?>> indexDefs;
+  @Inject private SitePaths sitePaths;
 
   @Override
   public int run() throws Exception {
@@ -116,7 +129,7 @@ public class Reindex extends SiteProgram {
     return true;
   }
 
-  private boolean reindex() {
+  private boolean reindex() throws IOException {
     boolean ok = true;
     for (IndexDefinition<?, ?, ?> def : indexDefs) {
       if (indices.isEmpty() || indices.contains(def.getName())) {
@@ -188,10 +201,17 @@ public class Reindex extends SiteProgram {
   }
 
   private void overrideConfig() {
-    // Disable auto-commit for speed; committing will happen at the end of the process.
     if (IndexModule.getIndexType(dbInjector).isLucene()) {
-      globalConfig.setLong("index", "changes_open", "commitWithin", -1);
-      globalConfig.setLong("index", "changes_closed", "commitWithin", -1);
+      for (String name : ImmutableList.of("changes_open", "changes_closed")) {
+        // Disable auto-commit for speed; committing will happen at the end of the process.
+        globalConfig.setLong("index", name, "commitWithin", -1);
+        // Write few large segments and merge them only once at the end, instead of merging
+        // continuously while the index is built.
+        globalConfig.setBoolean("index", name, "deferMerges", true);
+        if (globalConfig.getString("index", name, "ramBufferSize") == null) {
+          globalConfig.setString("index", name, "ramBufferSize", RAM_BUFFER_SIZE);
+        }
+      }
     }
 
     // Disable change cache.
@@ -201,16 +221,29 @@ public class Reindex extends SiteProgram {
     globalConfig.setBoolean("index", null, "autoReindexIfStale", false);
   }
 
-  private <K, V, I extends Index<K, V>> boolean reindex(IndexDefinition<K, V, I> def) {
+  private <K, V, I extends Index<K, V>> boolean reindex(IndexDefinition<K, V, I> def)
+      throws IOException {
     I index = def.getIndexCollection().getSearchIndex();
     requireNonNull(
         index, () -> String.format("no active search index configured for %s", def.getName()));
+    int version = index.getSchema().getVersion();
     index.markReady(false);
-    index.deleteAll();
-
     SiteIndexer<K, V, I> siteIndexer = def.getSiteIndexer();
+    ReindexFingerprints fingerprints = new ReindexFingerprints(sitePaths, def.getName(), version);
+    // Without fingerprints of an earlier run nothing can be reused, and documents of entities
+    // which were deleted since would be kept.
+    boolean reuseDocuments =
+        reuse && siteIndexer.canReuseExistingDocuments() && fingerprints.exists();
+    if (!reuseDocuments) {
+      index.deleteAll();
+      // Neither an interrupted online reindex nor a later reindex can reuse deleted documents.
+      new ReindexCheckpoint(sitePaths, def.getName(), version).delete();
+      fingerprints.delete();
+    }
+
     siteIndexer.setProgressOut(System.err);
     siteIndexer.setVerboseOut(verbose ? System.out : NullOutputStream.INSTANCE);
+    siteIndexer.setReuseExistingDocuments(reuseDocuments);
     SiteIndexer.Result result = siteIndexer.indexAll(index);
     int n = result.doneCount() + result.failedCount();
     double t = result.elapsed(TimeUnit.MILLISECONDS) / 1000d;
@@ -221,7 +254,7 @@ public class Reindex extends SiteProgram {
     }
     System.out.format(
         "Index %s in version %d is %sready\n",
-        def.getName(), index.getSchema().getVersion(), result.success() ? "" : "NOT ");
+        def.getName(), version, result.success() ? "" : "NOT ");
     return result.success();
   }
 }
@@ -69,11 +69,15 @@ import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.mail.send.ReplacePatchSetSender;
 import com.google.gerrit.server.notedb.NoteDbModule;
+import com.google.gerrit.server.patch.AutoMerger;
 import com.google.gerrit.server.patch.DiffExecutorModule;
 import com.google.gerrit.server.patch.DiffOperationsImpl;
 import com.google.gerrit.server.patch.PatchListCacheImpl;
 import com.google.gerrit.server.permissions.DefaultPermissionBackendModule;
+import com.google.gerrit.server.permissions.RefAdvertisementCache;
+import com.google.gerrit.server.permissions.RefVisibilityCache;
 import com.google.gerrit.server.permissions.SectionSortCache;
+import com.google.gerrit.server.permissions.SharedVisibleChangesCache;
 import com.google.gerrit.server.plugins.PluginModule;
 import com.google.gerrit.server.project.CommentLinkProvider;
 import com.google.gerrit.server.project.CommitResource;
@@ -117,6 +121,7 @@ public class BatchProgramModule extends FactoryModule {
     modules.add(new SysExecutorModule());
     modules.add(BatchUpdate.module());
     modules.add(PatchListCacheImpl.module());
+    modules.add(AutoMerger.module());
     modules.add(new DefaultUrlFormatter.Module());
     modules.add(DiffOperationsImpl.module());
 
@@ -157,6 +162,9 @@ public class BatchProgramModule extends FactoryModule {
     // the change cache.
     bind(SearchingChangeCacheImpl.class).toProvider(Providers.of(null));
 
+    // Batch programs don't serve fetches, and may not see all ref updates.
+    bind(RefAdvertisementCache.class).toProvider(Providers.of(null));
+
     bind(new TypeLiteral<ImmutableSet<GroupReference>>() {})
         .annotatedWith(AdministrateServerGroups.class)
         .toInstance(ImmutableSet.of());
@@ -182,6 +190,8 @@ public class BatchProgramModule extends FactoryModule {
     modules.add(GroupIncludeCacheImpl.module());
     modules.add(ProjectCacheImpl.module());
     modules.add(SectionSortCache.module());
+    modules.add(RefVisibilityCache.module());
+    modules.add(SharedVisibleChangesCache.module());
     modules.add(ChangeKindCacheImpl.module());
     modules.add(MergeabilityCacheImpl.module());
     modules.add(ServiceUserClassifierImpl.module());
@@ -70,9 +70,57 @@ public class CacheMetrics {
             Double.class,
             new Description("Disk hit ratio for persistent cache").setGauge().setUnit("percent"),
             F_NAME);
+    CallbackMetric1<String, Long> tierPromote =
+        metrics.newCallbackMetric(
+            "caches/tier/promotion_count",
+            Long.class,
+            new Description("Entries read from disk and promoted to memory")
+                .setGauge()
+                .setUnit("promoted entries"),
+            F_NAME);
+    CallbackMetric1<String, Long> tierDemote =
+        metrics.newCallbackMetric(
+            "caches/tier/demotion_count",
+            Long.class,
+            new Description("Entries evicted from memory which are kept on disk")
+                .setGauge()
+                .setUnit("demoted entries"),
+            F_NAME);
+    CallbackMetric1<String, Long> tierRejected =
+        metrics.newCallbackMetric(
+            "caches/tier/admission_rejected_count",
+            Long.class,
+            new Description("Values too large to be admitted to memory")
+                .setGauge()
+                .setUnit("rejected entries"),
+            F_NAME);
+    CallbackMetric1<String, Double> tierDiskHit =
+        metrics.newCallbackMetric(
+            "caches/tier/disk_hit_ratio",
+            Double.class,
+            new Description("Disk hit ratio of lookups which missed memory")
+                .setGauge()
+                .setUnit("percent"),
+            F_NAME);
+    CallbackMetric1<String, Double> tierHit =
+        metrics.newCallbackMetric(
+            "caches/tier/combined_hit_ratio",
+            Double.class,
+            new Description("Hit ratio of memory and disk combined").setGauge().setUnit("percent"),
+            F_NAME);
 
     Set<CallbackMetric<?>> cacheMetrics =
-        ImmutableSet.of(memEnt, memHit, memEvict, perDiskEnt, perDiskHit);
+        ImmutableSet.of(
+            memEnt,
+            memHit,
+            memEvict,
+            perDiskEnt,
+            perDiskHit,
+            tierPromote,
+            tierDemote,
+            tierRejected,
+            tierDiskHit,
+            tierHit);
 
     metrics.newTrigger(
         cacheMetrics,
@@ -90,16 +138,30 @@ public class CacheMetrics {
               perDiskEnt.set(name, d.size());
               perDiskHit.set(name, hitRatio(d));
             }
+            PersistentCache.TierStats t =
+                c instanceof PersistentCache ? ((PersistentCache) c).tierStats() : null;
+            if (t != null) {
+              tierPromote.set(name, t.promotionCount());
+              tierDemote.set(name, t.demotionCount());
+              tierRejected.set(name, t.admissionRejectedCount());
+              tierDiskHit.set(name, hitRatio(t.diskHitCount(), t.diskRequestCount()));
+              tierHit.set(
+                  name, hitRatio(cstats.hitCount() + t.diskHitCount(), cstats.requestCount()));
+            }
           }
           cacheMetrics.forEach(CallbackMetric::prune);
         });
   }
 
   private static double hitRatio(PersistentCache.DiskStats d) {
-    if (d.requestCount() <= 0) {
+    return hitRatio(d.hitCount(), d.requestCount());
+  }
+
+  private static double hitRatio(long hitCount, long requestCount) {
+    if (requestCount <= 0) {
       return 100;
     }
-    return ((double) d.hitCount() / d.requestCount() * 100);
+    return ((double) hitCount / requestCount * 100);
   }
 
   private static String metricNameOf(Extension<Cache<?, ?>> e) {
@@ -0,0 +1,134 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.cache.PersistentCache.TierStats;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Admission policy and bookkeeping of the in-memory tier (L1) of a persistent cache, which sits in
+ * front of the persistent store (L2).
+ *
+ * <p>By default every value is admitted to L1. If {@code cache.<name>.memoryAdmissionLimit} is
+ * set, values whose weight exceeds it are only kept in L2, so that a few very large values cannot
+ * evict many small ones from memory. They are still returned to the caller, and are loaded from L2
+ * again on the next access.
+ *
+ * <p>Persistent cache implementations call {@link #recordDiskHit(Object, Object)} and {@link
+ * #recordDiskMiss()} whenever a lookup missed L1 and went to L2, and {@link #admit(Object,
+ * Object)} before putting a value into L1. Values which enter L1 through a cache loader cannot be
+ * refused there; for those the weigher returned by {@link #memoryWeigher(Function)} assigns a
+ * weight larger than the cache can hold, which makes the in-memory cache evict them immediately.
+ * These evictions are not counted as demotions.
+ */
+public class MemoryTierPolicy<K, V> {
+  public static <K, V> MemoryTierPolicy<K, V> create(Config cfg, CacheDef<K, V> def) {
+    long memoryLimit = cfg.getLong("cache", def.configKey(), "memoryLimit", def.maximumWeight());
+    long admissionLimit = cfg.getLong("cache", def.configKey(), "memoryAdmissionLimit", 0);
+    if (admissionLimit <= 0 || admissionLimit >= memoryLimit || def.weigher() == null) {
+      admissionLimit = Long.MAX_VALUE;
+    }
+    return new MemoryTierPolicy<>(def.weigher(), admissionLimit);
+  }
+
+  @Nullable private final Weigher<K, V> weigher;
+  private final long admissionLimit;
+  private final LongAdder promotions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+  private final LongAdder rejectedEvictions = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder diskMisses = new LongAdder();
+
+  public MemoryTierPolicy(@Nullable Weigher<K, V> weigher, long admissionLimit) {
+    this.weigher = weigher;
+    this.admissionLimit = admissionLimit;
+  }
+
+  /** Returns true if the value may be kept in L1; counts a rejection otherwise. */
+  public boolean admit(K key, V value) {
+    if (fits(key, value)) {
+      return true;
+    }
+    rejections.increment();
+    return false;
+  }
+
+  /**
+   * Records a value read from L2 after a miss in L1.
+   *
+   * @return true if the value is promoted to L1, false if it is only kept in L2.
+   */
+  public boolean recordDiskHit(K key, V value) {
+    diskHits.increment();
+    if (admit(key, value)) {
+      promotions.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /** Records a lookup which missed both L1 and L2. */
+  public void recordDiskMiss() {
+    diskMisses.increment();
+  }
+
+  /**
+   * Returns the weigher for L1, which stores values wrapped into holders of type {@code H}.
+   *
+   * @param unwrap extracts the value from its holder.
+   * @return weigher for L1, or null if the cache definition does not have a weigher.
+   */
+  @Nullable
+  public <H> Weigher<K, H> memoryWeigher(Function<H, V> unwrap) {
+    if (weigher == null) {
+      return null;
+    }
+    return (k, h) -> {
+      V value = unwrap.apply(h);
+      if (fits(k, value)) {
+        return weigher.weigh(k, value);
+      }
+      // The in-memory cache evicts the entry right away.
+      rejectedEvictions.increment();
+      return Integer.MAX_VALUE;
+    };
+  }
+
+  /**
+   * Returns statistics of both tiers.
+   *
+   * @param memoryStats statistics of the L1 cache. Its evictions are demotions, since every entry
+   *     of L1 is also written to L2, except for those of values which were not admitted.
+   */
+  public TierStats stats(CacheStats memoryStats) {
+    return new TierStats(
+        promotions.sum(),
+        Math.max(0, memoryStats.evictionCount() - rejectedEvictions.sum()),
+        rejections.sum(),
+        diskHits.sum(),
+        diskMisses.sum());
+  }
+
+  private boolean fits(K key, V value) {
+    return weigher == null
+        || admissionLimit == Long.MAX_VALUE
+        || weigher.weigh(key, value) <= admissionLimit;
+  }
+}
@@ -14,10 +14,24 @@
 
 package com.google.gerrit.server.cache;
 
+import com.google.gerrit.common.Nullable;
+
 public interface PersistentCache {
 
   DiskStats diskStats();
 
+  /**
+   * Returns statistics about entries moving between the in-memory and the persistent tier.
+   *
+   * <p>Unlike {@link #diskStats()} this must be cheap to compute, it is exported as metrics.
+   *
+   * @return statistics, or null if the cache does not track them.
+   */
+  @Nullable
+  default TierStats tierStats() {
+    return null;
+  }
+
   class DiskStats {
     private final long size;
     private final long space;
@@ -47,4 +61,50 @@ public interface PersistentCache {
       return hitCount + missCount;
     }
   }
+
+  class TierStats {
+    private final long promotionCount;
+    private final long demotionCount;
+    private final long admissionRejectedCount;
+    private final long diskHitCount;
+    private final long diskMissCount;
+
+    public TierStats(
+        long promotionCount,
+        long demotionCount,
+        long admissionRejectedCount,
+        long diskHitCount,
+        long diskMissCount) {
+      this.promotionCount = promotionCount;
+      this.demotionCount = demotionCount;
+      this.admissionRejectedCount = admissionRejectedCount;
+      this.diskHitCount = diskHitCount;
+      this.diskMissCount = diskMissCount;
+    }
+
+    /** Values read from the persistent tier and put into the in-memory tier. */
+    public long promotionCount() {
+      return promotionCount;
+    }
+
+    /** Entries evicted from the in-memory tier, which are still held by the persistent tier. */
+    public long demotionCount() {
+      return demotionCount;
+    }
+
+    /** Values which were not admitted to the in-memory tier. */
+    public long admissionRejectedCount() {
+      return admissionRejectedCount;
+    }
+
+    /** Lookups which missed the in-memory tier and were served by the persistent tier. */
+    public long diskHitCount() {
+      return diskHitCount;
+    }
+
+    /** Lookups which missed the in-memory tier and went to the persistent tier. */
+    public long diskRequestCount() {
+      return diskHitCount + diskMissCount;
+    }
+  }
 }
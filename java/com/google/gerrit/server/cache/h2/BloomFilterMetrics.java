@@ -0,0 +1,84 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.CallbackMetric;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Metrics of the BloomFilters in front of all H2 backed caches. */
+@Singleton
+class BloomFilterMetrics {
+  private static final Field<String> F_NAME =
+      Field.ofString("cache_name", Metadata.Builder::cacheName).build();
+
+  private final Map<String, SqlStore<?, ?>> stores = new ConcurrentHashMap<>();
+
+  @Inject
+  BloomFilterMetrics(MetricMaker metricMaker) {
+    CallbackMetric1<String, Double> falsePositives =
+        metricMaker.newCallbackMetric(
+            "caches/bloom_filter/false_positive_ratio",
+            Double.class,
+            new Description(
+                    "Share of keys missing from a persistent cache that passed the BloomFilter")
+                .setGauge()
+                .setUnit("percent"),
+            F_NAME);
+    CallbackMetric1<String, Double> expectedFpp =
+        metricMaker.newCallbackMetric(
+            "caches/bloom_filter/expected_false_positive_ratio",
+            Double.class,
+            new Description("False positive ratio expected from the BloomFilter size")
+                .setGauge()
+                .setUnit("percent"),
+            F_NAME);
+    Set<CallbackMetric<?>> metrics = ImmutableSet.of(falsePositives, expectedFpp);
+    metricMaker.newTrigger(
+        metrics,
+        () -> {
+          stores.forEach(
+              (name, s) -> {
+                falsePositives.set(name, s.bloomFilterFalsePositiveRatio() * 100);
+                expectedFpp.set(name, s.bloomFilterExpectedFpp() * 100);
+              });
+          metrics.forEach(CallbackMetric::prune);
+        });
+  }
+
+  void register(String name, SqlStore<?, ?> store) {
+    stores.put(name, store);
+  }
+
+  void unregister(String name) {
+    stores.remove(name);
+  }
+
+  @VisibleForTesting
+  boolean isRegistered(String name) {
+    return stores.containsKey(name);
+  }
+}
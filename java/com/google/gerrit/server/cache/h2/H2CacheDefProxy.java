@@ -17,6 +17,7 @@ package com.google.gerrit.server.cache.h2;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.Weigher;
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
 import com.google.gerrit.server.cache.PersistentCacheDef;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
 import com.google.gerrit.server.cache.serialize.CacheSerializer;
@@ -25,9 +26,15 @@ import java.time.Duration;
 
 class H2CacheDefProxy<K, V> implements PersistentCacheDef<K, V> {
   private final PersistentCacheDef<K, V> source;
+  private final MemoryTierPolicy<K, V> tier;
 
-  H2CacheDefProxy(PersistentCacheDef<K, V> source) {
+  H2CacheDefProxy(PersistentCacheDef<K, V> source, MemoryTierPolicy<K, V> tier) {
     this.source = source;
+    this.tier = tier;
+  }
+
+  MemoryTierPolicy<K, V> tier() {
+    return tier;
   }
 
   @Override
@@ -49,14 +56,12 @@ class H2CacheDefProxy<K, V> implements PersistentCacheDef<K, V> {
 
   @Override
   public Weigher<K, V> weigher() {
-    Weigher<K, V> weigher = source.weigher();
-    if (weigher == null) {
-      return null;
-    }
-
     // introduce weigher that performs calculations
     // on value that is being stored not on ValueHolder
-    Weigher<K, ValueHolder<V>> holderWeigher = (k, v) -> weigher.weigh(k, v.value);
+    Weigher<K, ValueHolder<V>> holderWeigher = tier.memoryWeigher((ValueHolder<V> h) -> h.value);
+    if (holderWeigher == null) {
+      return null;
+    }
     @SuppressWarnings("unchecked")
     Weigher<K, V> ret = (Weigher<K, V>) holderWeigher;
     return ret;
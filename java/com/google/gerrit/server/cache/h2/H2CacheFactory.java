@@ -23,6 +23,7 @@ import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.server.cache.CacheBackend;
 import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
 import com.google.gerrit.server.cache.PersistentCacheBaseFactory;
 import com.google.gerrit.server.cache.PersistentCacheDef;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
@@ -36,7 +37,6 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -58,16 +58,26 @@ class H2CacheFactory extends PersistentCacheBaseFactory implements LifecycleList
   private final ScheduledExecutorService cleanup;
   private final long h2CacheSize;
   private final boolean h2AutoServer;
+  private final int writeBehindQueueSize;
+  private final int writeBehindBatchSize;
+  private final WriteBehindMetrics writeBehindMetrics;
+  private final BloomFilterMetrics bloomFilterMetrics;
 
   @Inject
   H2CacheFactory(
       MemoryCacheFactory memCacheFactory,
       @GerritServerConfig Config cfg,
       SitePaths site,
-      DynamicMap<Cache<?, ?>> cacheMap) {
+      DynamicMap<Cache<?, ?>> cacheMap,
+      WriteBehindMetrics writeBehindMetrics,
+      BloomFilterMetrics bloomFilterMetrics) {
     super(memCacheFactory, cfg, site);
     h2CacheSize = cfg.getLong("cache", null, "h2CacheSize", -1);
     h2AutoServer = cfg.getBoolean("cache", null, "h2AutoServer", false);
+    writeBehindQueueSize = cfg.getInt("cache", null, "h2WriteBehindQueueSize", 10000);
+    writeBehindBatchSize = cfg.getInt("cache", null, "h2WriteBehindBatchSize", 100);
+    this.writeBehindMetrics = writeBehindMetrics;
+    this.bloomFilterMetrics = bloomFilterMetrics;
     caches = new LinkedList<>();
     this.cacheMap = cacheMap;
 
@@ -134,12 +144,13 @@ class H2CacheFactory extends PersistentCacheBaseFactory implements LifecycleList
   @Override
   public <K, V> Cache<K, V> buildImpl(
       PersistentCacheDef<K, V> in, long limit, CacheBackend backend) {
-    H2CacheDefProxy<K, V> def = new H2CacheDefProxy<>(in);
-    SqlStore<K, V> store = newSqlStore(def, limit);
+    H2CacheDefProxy<K, V> def = new H2CacheDefProxy<>(in, MemoryTierPolicy.create(config, in));
+    WriteBehindQueue<K, V> writeBehind = newWriteBehindQueue(def, newSqlStore(def, limit));
+    bloomFilterMetrics.register(def.name(), writeBehind.store());
     H2CacheImpl<K, V> cache =
         new H2CacheImpl<>(
-            executor,
-            store,
+            writeBehind,
+            def.tier(),
             def.keyType(),
             (Cache<K, ValueHolder<V>>) memCacheFactory.build(def, backend));
     synchronized (caches) {
@@ -152,15 +163,16 @@ class H2CacheFactory extends PersistentCacheBaseFactory implements LifecycleList
   @Override
   public <K, V> LoadingCache<K, V> buildImpl(
       PersistentCacheDef<K, V> in, CacheLoader<K, V> loader, long limit, CacheBackend backend) {
-    H2CacheDefProxy<K, V> def = new H2CacheDefProxy<>(in);
-    SqlStore<K, V> store = newSqlStore(def, limit);
+    H2CacheDefProxy<K, V> def = new H2CacheDefProxy<>(in, MemoryTierPolicy.create(config, in));
+    WriteBehindQueue<K, V> writeBehind = newWriteBehindQueue(def, newSqlStore(def, limit));
+    bloomFilterMetrics.register(def.name(), writeBehind.store());
     Cache<K, ValueHolder<V>> mem =
         (Cache<K, ValueHolder<V>>)
             memCacheFactory.build(
                 def,
-                (CacheLoader<K, V>) new H2CacheImpl.Loader<>(executor, store, loader),
+                (CacheLoader<K, V>) new H2CacheImpl.Loader<>(writeBehind, def.tier(), loader),
                 backend);
-    H2CacheImpl<K, V> cache = new H2CacheImpl<>(executor, store, def.keyType(), mem);
+    H2CacheImpl<K, V> cache = new H2CacheImpl<>(writeBehind, def.tier(), def.keyType(), mem);
     synchronized (caches) {
       caches.add(cache);
     }
@@ -170,15 +182,34 @@ class H2CacheFactory extends PersistentCacheBaseFactory implements LifecycleList
   @Override
   public void onStop(String plugin) {
     synchronized (caches) {
-      for (Map.Entry<String, Provider<Cache<?, ?>>> entry : cacheMap.byPlugin(plugin).entrySet()) {
-        Cache<?, ?> cache = entry.getValue().get();
+      for (Provider<Cache<?, ?>> provider : cacheMap.byPlugin(plugin).values()) {
+        Cache<?, ?> cache = provider.get();
         if (caches.remove(cache)) {
-          ((H2CacheImpl<?, ?>) cache).stop();
+          H2CacheImpl<?, ?> h2Cache = (H2CacheImpl<?, ?>) cache;
+          h2Cache.stop();
+          // The metrics are registered under the name of the cache, which includes the plugin
+          // name, rather than under the name the plugin exports the cache as.
+          writeBehindMetrics.unregister(h2Cache.name());
+          bloomFilterMetrics.unregister(h2Cache.name());
         }
       }
     }
   }
 
+  private <K, V> WriteBehindQueue<K, V> newWriteBehindQueue(
+      PersistentCacheDef<K, V> def, SqlStore<K, V> store) {
+    WriteBehindQueue<K, V> queue =
+        new WriteBehindQueue<>(
+            def.name(),
+            executor,
+            store,
+            writeBehindQueueSize,
+            writeBehindBatchSize,
+            writeBehindMetrics);
+    writeBehindMetrics.register(def.name(), queue);
+    return queue;
+  }
+
   private <V, K> SqlStore<K, V> newSqlStore(PersistentCacheDef<K, V> def, long maxSize) {
     StringBuilder url = new StringBuilder();
     url.append("jdbc:h2:").append(cacheDir.resolve(def.name()).toUri());
@@ -198,6 +229,8 @@ class H2CacheFactory extends PersistentCacheBaseFactory implements LifecycleList
         def.version(),
         maxSize,
         def.expireAfterWrite(),
-        def.expireFromMemoryAfterAccess());
+        def.expireFromMemoryAfterAccess(),
+        cacheDir.resolve(def.name() + ".bloom"),
+        cleanup);
   }
 }
@@ -14,6 +14,9 @@
 
 package com.google.gerrit.server.cache.h2;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
 import com.google.common.base.Throwables;
 import com.google.common.cache.AbstractLoadingCache;
 import com.google.common.cache.Cache;
@@ -28,6 +31,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
 import com.google.gerrit.server.cache.PersistentCache;
 import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.logging.Metadata;
@@ -35,8 +39,14 @@ import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.logging.TraceContext.TraceTimer;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.inject.TypeLiteral;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -58,6 +68,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -70,12 +81,19 @@ import java.util.concurrent.atomic.AtomicLong;
  * such as the PatchListCache.
  *
  * <p>Cache stores and invalidations are performed on a background thread, hiding the latency
- * associated with serializing the key and value pairs and writing them to the database log.
+ * associated with serializing the key and value pairs and writing them to the database log. Stores
+ * go through a bounded {@link WriteBehindQueue} which coalesces them into batched MERGE statements.
  *
  * <p>A BloomFilter is used around the database to reduce the number of SELECTs issued against the
  * database for new cache items that have not been seen before, a common operation for the
  * PatchListCache. The BloomFilter is sized when the cache starts to be 64,000 entries or double the
- * number of items currently in the database table.
+ * number of items currently in the database table. It is saved next to the database when the cache
+ * is stopped and loaded again on start. If there is no usable snapshot, the BloomFilter is rebuilt
+ * in the background; until it is ready, every lookup goes to the database.
+ *
+ * <p>The in-memory cache is the first tier, the database the second one. Which values are admitted
+ * to the in-memory tier and how entries move between the tiers is tracked by a {@link
+ * MemoryTierPolicy}.
  *
  * <p>This cache does not export its items as a ConcurrentMap.
  *
@@ -87,22 +105,31 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
   private static final ImmutableSet<String> OLD_CLASS_NAMES =
       ImmutableSet.of("com.google.gerrit.server.change.ChangeKind");
 
-  private final Executor executor;
+  private static final int BLOOM_FILTER_MAGIC = 0x48324246; // "H2BF"
+
+  private final WriteBehindQueue<K, V> writeBehind;
   private final SqlStore<K, V> store;
+  private final MemoryTierPolicy<K, V> tier;
   private final TypeLiteral<K> keyType;
   private final Cache<K, ValueHolder<V>> mem;
 
   H2CacheImpl(
-      Executor executor,
-      SqlStore<K, V> store,
+      WriteBehindQueue<K, V> writeBehind,
+      MemoryTierPolicy<K, V> tier,
       TypeLiteral<K> keyType,
       Cache<K, ValueHolder<V>> mem) {
-    this.executor = executor;
-    this.store = store;
+    this.writeBehind = writeBehind;
+    this.store = writeBehind.store();
+    this.tier = tier;
     this.keyType = keyType;
     this.mem = mem;
   }
 
+  /** Name of the cache, including the plugin name for caches of plugins. */
+  String name() {
+    return writeBehind.name();
+  }
+
   @Override
   public V getIfPresent(Object objKey) {
     if (!keyType.getRawType().isInstance(objKey)) {
@@ -120,10 +147,13 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
     if (store.mightContain(key)) {
       h = store.getIfPresent(key);
       if (h != null) {
-        mem.put(key, h);
+        if (tier.recordDiskHit(key, h.value)) {
+          mem.put(key, h);
+        }
         return h.value;
       }
     }
+    tier.recordDiskMiss();
     return null;
   }
 
@@ -165,13 +195,16 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
               if (store.mightContain(key)) {
                 ValueHolder<V> h = store.getIfPresent(key);
                 if (h != null) {
+                  tier.recordDiskHit(key, h.value);
                   return h;
                 }
               }
+              tier.recordDiskMiss();
 
               ValueHolder<V> h =
                   new ValueHolder<>(valueLoader.call(), Instant.ofEpochMilli(TimeUtil.nowMs()));
-              executor.execute(() -> store.put(key, h));
+              tier.admit(key, h.value);
+              writeBehind.add(key, h);
               return h;
             })
         .value;
@@ -180,22 +213,27 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
   @Override
   public void put(K key, V val) {
     final ValueHolder<V> h = new ValueHolder<>(val, Instant.ofEpochMilli(TimeUtil.nowMs()));
-    mem.put(key, h);
-    executor.execute(() -> store.put(key, h));
+    if (tier.admit(key, val)) {
+      mem.put(key, h);
+    } else {
+      // Don't keep serving an older value from memory.
+      mem.invalidate(key);
+    }
+    writeBehind.add(key, h);
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public void invalidate(Object key) {
-    if (keyType.getRawType().isInstance(key) && store.mightContain((K) key)) {
-      executor.execute(() -> store.invalidate((K) key));
+    if (keyType.getRawType().isInstance(key)) {
+      writeBehind.invalidate((K) key);
     }
     mem.invalidate(key);
   }
 
   @Override
   public void invalidateAll() {
-    store.invalidateAll();
+    writeBehind.invalidateAll();
     mem.invalidateAll();
   }
 
@@ -214,11 +252,17 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
     return store.diskStats();
   }
 
+  @Override
+  public TierStats tierStats() {
+    return tier.stats(mem.stats());
+  }
+
   void start() {
     store.open();
   }
 
   void stop() {
+    writeBehind.flush();
     for (Map.Entry<K, ValueHolder<V>> e : mem.asMap().entrySet()) {
       ValueHolder<V> h = e.getValue();
       if (!h.clean) {
@@ -258,11 +302,16 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
   static class Loader<K, V> extends CacheLoader<K, ValueHolder<V>> {
     private final Executor executor;
     private final SqlStore<K, V> store;
+    private final WriteBehindQueue<K, V> writeBehind;
+    private final MemoryTierPolicy<K, V> tier;
     private final CacheLoader<K, V> loader;
 
-    Loader(Executor executor, SqlStore<K, V> store, CacheLoader<K, V> loader) {
-      this.executor = executor;
-      this.store = store;
+    Loader(
+        WriteBehindQueue<K, V> writeBehind, MemoryTierPolicy<K, V> tier, CacheLoader<K, V> loader) {
+      this.executor = writeBehind.executor();
+      this.store = writeBehind.store();
+      this.writeBehind = writeBehind;
+      this.tier = tier;
       this.loader = loader;
     }
 
@@ -274,13 +323,16 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         if (store.mightContain(key)) {
           ValueHolder<V> h = store.getIfPresent(key);
           if (h != null) {
+            tier.recordDiskHit(key, h.value);
             return h;
           }
         }
+        tier.recordDiskMiss();
 
         final ValueHolder<V> h =
             new ValueHolder<>(loader.load(key), Instant.ofEpochMilli(TimeUtil.nowMs()));
-        executor.execute(() -> store.put(key, h));
+        tier.admit(key, h.value);
+        writeBehind.add(key, h);
         return h;
       }
     }
@@ -291,12 +343,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         List<K> notInMemory = new ArrayList<>();
         Map<K, ValueHolder<V>> result = new HashMap<>();
         for (K key : keys) {
-          if (!store.mightContain(key)) {
-            notInMemory.add(key);
-            continue;
-          }
-          ValueHolder<V> h = store.getIfPresent(key);
+          ValueHolder<V> h = store.mightContain(key) ? store.getIfPresent(key) : null;
           if (h != null) {
+            tier.recordDiskHit(key, h.value);
             result.put(key, h);
           } else {
             notInMemory.add(key);
@@ -305,6 +354,11 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         try {
           Map<K, V> remaining = loader.loadAll(notInMemory);
           Instant instant = Instant.ofEpochMilli(TimeUtil.nowMs());
+          remaining.forEach(
+              (k, v) -> {
+                tier.recordDiskMiss();
+                tier.admit(k, v);
+              });
           storeInDatabase(remaining, instant);
           remaining
               .entrySet()
@@ -328,7 +382,7 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
           new FutureCallback<V>() {
             @Override
             public void onSuccess(V result) {
-              store.put(key, new ValueHolder<>(result, TimeUtil.now()));
+              writeBehind.add(key, new ValueHolder<>(result, TimeUtil.now()));
             }
 
             @Override
@@ -342,12 +396,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
     }
 
     private void storeInDatabase(Map<K, V> entries, Instant instant) {
-      executor.execute(
-          () -> {
-            for (Map.Entry<K, V> entry : entries.entrySet()) {
-              store.put(entry.getKey(), new ValueHolder<>(entry.getValue(), instant));
-            }
-          });
+      Map<K, ValueHolder<V>> holders = new HashMap<>();
+      entries.forEach((k, v) -> holders.put(k, new ValueHolder<>(v, instant)));
+      writeBehind.addAll(holders);
     }
   }
 
@@ -362,9 +413,23 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
     private final BlockingQueue<SqlHandle> handles;
     private final AtomicLong hitCount = new AtomicLong();
     private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bloomNegativeCount = new AtomicLong();
+    private final AtomicLong bloomFalsePositiveCount = new AtomicLong();
+    private final AtomicBoolean rebuildingBloomFilter = new AtomicBoolean();
+    @Nullable private final Path bloomFilterFile;
+    @Nullable private final Executor bloomFilterExecutor;
     private volatile BloomFilter<K> bloomFilter;
+    private volatile BloomFilter<K> pendingBloomFilter;
     private int estimatedSize;
 
+    /**
+     * Creates a store.
+     *
+     * @param bloomFilterFile file the BloomFilter is saved to on close and loaded from on open, or
+     *     null to always build it from the database.
+     * @param bloomFilterExecutor executor to build the BloomFilter on, or null to build it on the
+     *     thread that first needs it.
+     */
     SqlStore(
         String jdbcUrl,
         TypeLiteral<K> keyType,
@@ -373,7 +438,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         int version,
         long maxSize,
         @Nullable Duration expireAfterWrite,
-        @Nullable Duration refreshAfterWrite) {
+        @Nullable Duration refreshAfterWrite,
+        @Nullable Path bloomFilterFile,
+        @Nullable Executor bloomFilterExecutor) {
       this.url = jdbcUrl;
       this.keyType = createKeyType(keyType, keySerializer);
       this.valueSerializer = valueSerializer;
@@ -381,6 +448,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
       this.maxSize = maxSize;
       this.expireAfterWrite = expireAfterWrite;
       this.refreshAfterWrite = refreshAfterWrite;
+      this.bloomFilterFile = bloomFilterFile;
+      this.bloomFilterExecutor = bloomFilterExecutor;
 
       int cores = Runtime.getRuntime().availableProcessors();
       int keep = Math.min(cores, 16);
@@ -398,11 +467,15 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
 
     synchronized void open() {
       if (bloomFilter == null) {
-        bloomFilter = buildBloomFilter();
+        bloomFilter = loadBloomFilter();
+        if (bloomFilter == null) {
+          rebuildBloomFilter();
+        }
       }
     }
 
     void close() {
+      saveBloomFilter();
       SqlHandle h;
       while ((h = handles.poll()) != null) {
         h.close();
@@ -411,16 +484,140 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
 
     boolean mightContain(K key) {
       BloomFilter<K> b = bloomFilter;
+      if (b == null && bloomFilterExecutor != null) {
+        rebuildBloomFilter();
+        return true;
+      }
       if (b == null) {
         synchronized (this) {
           b = bloomFilter;
           if (b == null) {
             b = buildBloomFilter();
             bloomFilter = b;
+            pendingBloomFilter = null;
           }
         }
       }
-      return b == null || b.mightContain(key);
+      if (b == null || b.mightContain(key)) {
+        return true;
+      }
+      bloomNegativeCount.incrementAndGet();
+      return false;
+    }
+
+    /**
+     * Observed false positive ratio of the BloomFilter: the share of keys not in the database for
+     * which the BloomFilter still claimed they might be present.
+     */
+    double bloomFilterFalsePositiveRatio() {
+      long fp = bloomFalsePositiveCount.get();
+      long total = fp + bloomNegativeCount.get();
+      return total > 0 ? (double) fp / total : 0;
+    }
+
+    /** False positive ratio expected from the BloomFilter size and the keys put into it. */
+    double bloomFilterExpectedFpp() {
+      BloomFilter<K> b = bloomFilter;
+      return b != null ? b.expectedFpp() : 0;
+    }
+
+    private void rebuildBloomFilter() {
+      if (bloomFilterExecutor == null) {
+        bloomFilter = buildBloomFilter();
+        pendingBloomFilter = null;
+        return;
+      }
+      if (!rebuildingBloomFilter.compareAndSet(false, true)) {
+        return;
+      }
+      bloomFilterExecutor.execute(
+          () -> {
+            try {
+              BloomFilter<K> b = buildBloomFilter();
+              if (b != null) {
+                bloomFilter = b;
+              }
+            } finally {
+              pendingBloomFilter = null;
+              rebuildingBloomFilter.set(false);
+            }
+          });
+    }
+
+    @Nullable
+    private BloomFilter<K> loadBloomFilter() {
+      if (bloomFilterFile == null || !Files.exists(bloomFilterFile)) {
+        return null;
+      }
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(bloomFilterFile)))) {
+        if (in.readInt() != BLOOM_FILTER_MAGIC || in.readInt() != version) {
+          logger.atInfo().log("Ignoring BloomFilter snapshot of other version for %s", url);
+          return null;
+        }
+        long savedCount = in.readLong();
+        int savedEstimatedSize = in.readInt();
+        long count = countEntries();
+        if (count != savedCount || count > 2L * Math.max(savedEstimatedSize, 32 * 1024)) {
+          logger.atInfo().log("Ignoring stale BloomFilter snapshot for %s", url);
+          estimatedSize = (int) Math.min(count, Integer.MAX_VALUE);
+          return null;
+        }
+        estimatedSize = savedEstimatedSize;
+        return BloomFilter.readFrom(in, keyType.funnel());
+      } catch (IOException | SQLException e) {
+        logger.atWarning().withCause(e).log("Cannot load BloomFilter snapshot for %s", url);
+        return null;
+      } finally {
+        // The snapshot is only valid until the next write; removing it makes sure that a crash
+        // forces a rebuild on the next start.
+        try {
+          Files.deleteIfExists(bloomFilterFile);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot delete %s", bloomFilterFile);
+        }
+      }
+    }
+
+    private void saveBloomFilter() {
+      BloomFilter<K> b = bloomFilter;
+      if (bloomFilterFile == null || b == null || rebuildingBloomFilter.get()) {
+        return;
+      }
+      Path tmp = bloomFilterFile.resolveSibling(bloomFilterFile.getFileName() + ".tmp");
+      try {
+        long count = countEntries();
+        try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          out.writeInt(BLOOM_FILTER_MAGIC);
+          out.writeInt(version);
+          out.writeLong(count);
+          out.writeInt(estimatedSize);
+          b.writeTo(out);
+        }
+        Files.move(tmp, bloomFilterFile, REPLACE_EXISTING, ATOMIC_MOVE);
+      } catch (IOException | SQLException e) {
+        logger.atWarning().withCause(e).log("Cannot save BloomFilter snapshot for %s", url);
+      }
+    }
+
+    private long countEntries() throws SQLException {
+      SqlHandle c = null;
+      try {
+        c = acquire();
+        try (PreparedStatement ps =
+            c.conn.prepareStatement("SELECT COUNT(*) FROM data WHERE version=?")) {
+          ps.setInt(1, version);
+          try (ResultSet r = ps.executeQuery()) {
+            return r.next() ? r.getLong(1) : 0;
+          }
+        }
+      } catch (SQLException e) {
+        c = close(c);
+        throw e;
+      } finally {
+        release(c);
+      }
     }
 
     private BloomFilter<K> buildBloomFilter() {
@@ -438,6 +635,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         }
 
         BloomFilter<K> b = newBloomFilter();
+        // Keys written while the table is scanned are added by put().
+        pendingBloomFilter = b;
         try (PreparedStatement ps = c.conn.prepareStatement("SELECT k FROM data WHERE version=?")) {
           ps.setInt(1, version);
           try (ResultSet r = ps.executeQuery()) {
@@ -488,6 +687,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
         try (ResultSet r = c.get.executeQuery()) {
           if (!r.next()) {
             missCount.incrementAndGet();
+            if (bloomFilter != null) {
+              bloomFalsePositiveCount.incrementAndGet();
+            }
             return null;
           }
 
@@ -583,6 +785,7 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
           c.put.setTimestamp(4, Timestamp.from(holder.created));
           c.put.setTimestamp(5, TimeUtil.nowTs());
           c.put.executeUpdate();
+          addToPendingBloomFilter(key);
           holder.clean = true;
         } finally {
           c.put.clearParameters();
@@ -595,6 +798,63 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements Per
       }
     }
 
+    void putAll(Map<K, ValueHolder<V>> entries) {
+      BloomFilter<K> b = bloomFilter;
+      SqlHandle c = null;
+      try {
+        c = acquire();
+        if (c.put == null) {
+          c.put =
+              c.conn.prepareStatement(
+                  "MERGE INTO data (k, v, version, created, accessed) VALUES(?,?,?,?,?)");
+        }
+        List<ValueHolder<V>> written = new ArrayList<>(entries.size());
+        try {
+          for (Map.Entry<K, ValueHolder<V>> e : entries.entrySet()) {
+            ValueHolder<V> holder = e.getValue();
+            if (holder.clean) {
+              continue;
+            }
+            if (b != null) {
+              b.put(e.getKey());
+            }
+            keyType.set(c.put, 1, e.getKey());
+            c.put.setBytes(2, valueSerializer.serialize(holder.value));
+            c.put.setInt(3, version);
+            c.put.setTimestamp(4, Timestamp.from(holder.created));
+            c.put.setTimestamp(5, TimeUtil.nowTs());
+            c.put.addBatch();
+            written.add(holder);
+          }
+          if (!written.isEmpty()) {
+            c.put.executeBatch();
+          }
+          entries.keySet().forEach(this::addToPendingBloomFilter);
+          written.forEach(h -> h.clean = true);
+        } finally {
+          c.put.clearBatch();
+          c.put.clearParameters();
+        }
+      } catch (IOException | SQLException e) {
+        logger.atWarning().withCause(e).log("Cannot put into cache %s", url);
+        c = close(c);
+      } finally {
+        release(c);
+      }
+    }
+
+    private void addToPendingBloomFilter(K key) {
+      BloomFilter<K> b = pendingBloomFilter;
+      if (b == null) {
+        // The build may have finished after the key was written, but without seeing it. It
+        // publishes the new BloomFilter before it clears the pending one, so add the key there.
+        b = bloomFilter;
+      }
+      if (b != null) {
+        b.put(key);
+      }
+    }
+
     void invalidate(K key) {
       SqlHandle c = null;
       try {
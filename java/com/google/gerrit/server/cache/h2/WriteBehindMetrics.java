@@ -0,0 +1,104 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Metrics of the {@link WriteBehindQueue}s of all H2 backed caches. */
+@Singleton
+class WriteBehindMetrics {
+  private static final Field<String> F_NAME =
+      Field.ofString("cache_name", Metadata.Builder::cacheName).build();
+
+  private final Map<String, WriteBehindQueue<?, ?>> queues = new ConcurrentHashMap<>();
+  private final Counter1<String> dropped;
+  private final Histogram1<String> batchSize;
+  private final Timer1<String> flushLatency;
+
+  @Inject
+  WriteBehindMetrics(MetricMaker metricMaker) {
+    dropped =
+        metricMaker.newCounter(
+            "caches/write_behind/dropped_count",
+            new Description("Writes to a persistent cache dropped because the queue was full")
+                .setRate()
+                .setUnit("entries"),
+            F_NAME);
+    batchSize =
+        metricMaker.newHistogram(
+            "caches/write_behind/batch_size",
+            new Description("Number of entries written to a persistent cache in one batch")
+                .setCumulative()
+                .setUnit("entries"),
+            F_NAME);
+    flushLatency =
+        metricMaker.newTimer(
+            "caches/write_behind/flush_latency",
+            new Description("Latency of writing one batch to a persistent cache")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            F_NAME);
+    CallbackMetric1<String, Integer> queueDepth =
+        metricMaker.newCallbackMetric(
+            "caches/write_behind/queue_depth",
+            Integer.class,
+            new Description("Entries waiting to be written to a persistent cache")
+                .setGauge()
+                .setUnit("entries"),
+            F_NAME);
+    metricMaker.newTrigger(
+        queueDepth,
+        () -> {
+          queues.forEach((name, q) -> queueDepth.set(name, q.depth()));
+          queueDepth.prune();
+        });
+  }
+
+  void register(String name, WriteBehindQueue<?, ?> queue) {
+    queues.put(name, queue);
+  }
+
+  void unregister(String name) {
+    queues.remove(name);
+  }
+
+  @VisibleForTesting
+  boolean isRegistered(String name) {
+    return queues.containsKey(name);
+  }
+
+  void recordDrop(String name) {
+    dropped.increment(name);
+  }
+
+  void recordFlush(String name, int entries, long elapsedNanos) {
+    batchSize.record(name, entries);
+    flushLatency.record(name, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+}
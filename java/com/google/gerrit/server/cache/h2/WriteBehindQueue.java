@@ -0,0 +1,150 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded write-behind queue in front of a {@link SqlStore}.
+ *
+ * <p>Writes are keyed by cache key, so repeated puts of the same key before the queue is flushed
+ * are coalesced into a single write. The queue is drained on the store executor, writing up to
+ * {@code batchSize} entries per JDBC batch.
+ *
+ * <p>When the queue is full, writes of new keys are dropped. The value is still held by the
+ * in-memory cache, which is written out on shutdown, and is otherwise recomputed on the next miss.
+ *
+ * <p>Invalidations cancel pending writes of the key. If a write of the key is already being
+ * flushed, the deletion is queued on the store executor, which serializes it after the flush.
+ */
+class WriteBehindQueue<K, V> {
+  private final String name;
+  private final Executor executor;
+  private final SqlStore<K, V> store;
+  private final int capacity;
+  private final int batchSize;
+  private final WriteBehindMetrics metrics;
+  private final ConcurrentMap<K, ValueHolder<V>> pending = new ConcurrentHashMap<>();
+  private final Set<K> inFlight = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  WriteBehindQueue(
+      String name,
+      Executor executor,
+      SqlStore<K, V> store,
+      int capacity,
+      int batchSize,
+      WriteBehindMetrics metrics) {
+    this.name = name;
+    this.executor = executor;
+    this.store = store;
+    this.capacity = capacity;
+    this.batchSize = Math.max(1, batchSize);
+    this.metrics = metrics;
+  }
+
+  String name() {
+    return name;
+  }
+
+  SqlStore<K, V> store() {
+    return store;
+  }
+
+  Executor executor() {
+    return executor;
+  }
+
+  int depth() {
+    return pending.size();
+  }
+
+  void add(K key, ValueHolder<V> holder) {
+    if (holder.clean) {
+      return;
+    }
+    if (pending.size() >= capacity && !pending.containsKey(key)) {
+      metrics.recordDrop(name);
+      return;
+    }
+    pending.put(key, holder);
+    schedule();
+  }
+
+  void addAll(Map<K, ValueHolder<V>> entries) {
+    entries.forEach(this::add);
+  }
+
+  void invalidate(K key) {
+    boolean queued = pending.remove(key) != null;
+    if (queued || inFlight.contains(key) || store.mightContain(key)) {
+      executor.execute(() -> store.invalidate(key));
+    }
+  }
+
+  void invalidateAll() {
+    pending.clear();
+    store.invalidateAll();
+    if (!inFlight.isEmpty()) {
+      executor.execute(store::invalidateAll);
+    }
+  }
+
+  /** Writes all pending entries on the calling thread. */
+  void flush() {
+    scheduled.set(false);
+    while (!pending.isEmpty()) {
+      Map<K, ValueHolder<V>> batch = new LinkedHashMap<>();
+      Iterator<Map.Entry<K, ValueHolder<V>>> it = pending.entrySet().iterator();
+      while (it.hasNext() && batch.size() < batchSize) {
+        Map.Entry<K, ValueHolder<V>> e = it.next();
+        K key = e.getKey();
+        ValueHolder<V> holder = e.getValue();
+        // Mark the key in flight before removing it, so that invalidate() never misses it.
+        inFlight.add(key);
+        if (pending.remove(key, holder)) {
+          batch.put(key, holder);
+        } else {
+          inFlight.remove(key);
+        }
+      }
+      if (batch.isEmpty()) {
+        continue;
+      }
+      long start = System.nanoTime();
+      try {
+        store.putAll(batch);
+      } finally {
+        inFlight.removeAll(batch.keySet());
+      }
+      metrics.recordFlush(name, batch.size(), System.nanoTime() - start);
+    }
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(this::flush);
+    }
+  }
+}
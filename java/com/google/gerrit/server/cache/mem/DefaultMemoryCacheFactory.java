@@ -27,6 +27,7 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.cache.CacheBackend;
 import com.google.gerrit.server.cache.CacheDef;
@@ -38,7 +39,21 @@ import com.google.inject.Inject;
 import java.time.Duration;
 import org.eclipse.jgit.lib.Config;
 
+/**
+ * Creates in-memory caches.
+ *
+ * <p>Caches are built on Caffeine, unless the cache was declared with the legacy Guava backend. The
+ * backend can be selected per cache with {@code cache.<name>.backend}, which overrides the one
+ * given by the cache declaration.
+ *
+ * <p>Caffeine uses a frequency based admission policy (W-TinyLFU), so that a scan over many cold
+ * keys, as done e.g. by reindexing, does not evict the hot entries. Reads don't take any locks,
+ * and entries due for {@code refreshAfterWrite} are reloaded asynchronously while the old value is
+ * still served.
+ */
 class DefaultMemoryCacheFactory implements MemoryCacheFactory {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   private final Config cfg;
   private final ForwardingRemovalListener.Factory forwardingRemovalListenerFactory;
 
@@ -52,7 +67,7 @@ class DefaultMemoryCacheFactory implements MemoryCacheFactory {
 
   @Override
   public <K, V> Cache<K, V> build(CacheDef<K, V> def, CacheBackend backend) {
-    return backend.isLegacyBackend()
+    return backend(def, backend).isLegacyBackend()
         ? createLegacy(def).build()
         : CaffeinatedGuava.build(create(def));
   }
@@ -60,11 +75,22 @@ class DefaultMemoryCacheFactory implements MemoryCacheFactory {
   @Override
   public <K, V> LoadingCache<K, V> build(
       CacheDef<K, V> def, CacheLoader<K, V> loader, CacheBackend backend) {
-    return backend.isLegacyBackend()
+    return backend(def, backend).isLegacyBackend()
         ? createLegacy(def).build(loader)
         : CaffeinatedGuava.build(create(def), loader);
   }
 
+  /** Returns the backend configured for the cache, falling back to the declared one. */
+  <K, V> CacheBackend backend(CacheDef<K, V> def, CacheBackend declared) {
+    try {
+      return cfg.getEnum("cache", def.configKey(), "backend", declared);
+    } catch (IllegalArgumentException e) {
+      logger.atWarning().withCause(e).log(
+          "Invalid cache.%s.backend, using %s", def.configKey(), declared);
+      return declared;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private <K, V> CacheBuilder<K, V> createLegacy(CacheDef<K, V> def) {
     CacheBuilder<K, V> builder = newLegacyCacheBuilder();
@@ -158,7 +184,7 @@ class DefaultMemoryCacheFactory implements MemoryCacheFactory {
 
     Duration refreshAfterWrite = def.refreshAfterWrite();
     if (has(def.configKey(), "refreshAfterWrite")) {
-      builder.expireAfterAccess(
+      builder.refreshAfterWrite(
           ConfigUtil.getTimeUnit(
               cfg,
               "cache",
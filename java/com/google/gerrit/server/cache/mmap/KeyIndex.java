@@ -0,0 +1,181 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mmap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.function.LongPredicate;
+
+/**
+ * Open-addressing hash index mapping a 64-bit key fingerprint to the location of a record in a
+ * segment file.
+ *
+ * <p>Only the fingerprint is kept in memory, the actual key bytes stay on disk. Since two keys may
+ * share a fingerprint, every operation takes a predicate which is used to verify that the record at
+ * a candidate location really belongs to the requested key.
+ *
+ * <p>Collisions are resolved by linear probing; removal uses backward shift deletion so that no
+ * tombstones are needed in the table.
+ *
+ * <p>This class is not thread-safe; callers are expected to guard it with their own lock.
+ */
+class KeyIndex {
+  /** Location value marking an empty slot. Valid locations are never zero. */
+  static final long NONE = 0;
+
+  private static final int MIN_CAPACITY = 1 << 10;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private long[] hashes;
+  private long[] locations;
+  private int mask;
+  private int size;
+  private int resizeAt;
+
+  KeyIndex() {
+    this(MIN_CAPACITY);
+  }
+
+  KeyIndex(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Finds the location of a key.
+   *
+   * @param hash fingerprint of the key.
+   * @param sameKey tests whether the record at the given location holds the requested key.
+   * @return location of the record, or {@link #NONE} if the key is not indexed.
+   */
+  long find(long hash, LongPredicate sameKey) {
+    for (int i = slot(hash); locations[i] != NONE; i = (i + 1) & mask) {
+      if (hashes[i] == hash && sameKey.test(locations[i])) {
+        return locations[i];
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Associates a key with a new location.
+   *
+   * @param hash fingerprint of the key.
+   * @param location location of the record, must not be {@link #NONE}.
+   * @param sameKey tests whether the record at the given location holds the requested key.
+   * @return previous location of the key, or {@link #NONE} if the key was not indexed.
+   */
+  long put(long hash, long location, LongPredicate sameKey) {
+    checkArgument(location != NONE, "invalid location");
+    int i = slot(hash);
+    for (; locations[i] != NONE; i = (i + 1) & mask) {
+      if (hashes[i] == hash && sameKey.test(locations[i])) {
+        long old = locations[i];
+        locations[i] = location;
+        return old;
+      }
+    }
+    hashes[i] = hash;
+    locations[i] = location;
+    if (++size > resizeAt) {
+      resize(hashes.length << 1);
+    }
+    return NONE;
+  }
+
+  /**
+   * Removes a key from the index.
+   *
+   * @param hash fingerprint of the key.
+   * @param sameKey tests whether the record at the given location holds the requested key.
+   * @return location the key was associated with, or {@link #NONE} if the key was not indexed.
+   */
+  long remove(long hash, LongPredicate sameKey) {
+    for (int i = slot(hash); locations[i] != NONE; i = (i + 1) & mask) {
+      if (hashes[i] == hash && sameKey.test(locations[i])) {
+        long old = locations[i];
+        delete(i);
+        size--;
+        return old;
+      }
+    }
+    return NONE;
+  }
+
+  void clear() {
+    allocate(MIN_CAPACITY);
+  }
+
+  private void delete(int hole) {
+    int i = hole;
+    int j = hole;
+    while (true) {
+      j = (j + 1) & mask;
+      if (locations[j] == NONE) {
+        break;
+      }
+      int home = slot(hashes[j]);
+      // Leave the entry in place if its home slot lies cyclically in (i, j].
+      boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+      if (!stays) {
+        hashes[i] = hashes[j];
+        locations[i] = locations[j];
+        i = j;
+      }
+    }
+    hashes[i] = 0;
+    locations[i] = NONE;
+  }
+
+  private void resize(int capacity) {
+    long[] oldHashes = hashes;
+    long[] oldLocations = locations;
+    allocate(capacity);
+    for (int s = 0; s < oldLocations.length; s++) {
+      if (oldLocations[s] != NONE) {
+        int i = slot(oldHashes[s]);
+        while (locations[i] != NONE) {
+          i = (i + 1) & mask;
+        }
+        hashes[i] = oldHashes[s];
+        locations[i] = oldLocations[s];
+        size++;
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    hashes = new long[capacity];
+    locations = new long[capacity];
+    mask = capacity - 1;
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+    size = 0;
+  }
+
+  private int slot(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mmap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.server.cache.CacheBackend;
+import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
+import com.google.gerrit.server.cache.PersistentCacheBaseFactory;
+import com.google.gerrit.server.cache.PersistentCacheDef;
+import com.google.gerrit.server.cache.mmap.MmapCacheImpl.ValueHolder;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.logging.LoggingContextAwareExecutorService;
+import com.google.gerrit.server.logging.LoggingContextAwareScheduledExecutorService;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Creates persistent caches stored in memory-mapped segment files.
+ *
+ * <p>This is an alternative to the H2 backend which can be enabled by setting {@code
+ * gerrit.installModule} to {@link MmapCacheModule}. If the cache.directory property is unset, it
+ * will fall back to in-memory caches.
+ */
+@Singleton
+class MmapCacheFactory extends PersistentCacheBaseFactory implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+  static final long MIN_SEGMENT_SIZE = 1L << 20;
+  static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+  private final List<MmapCacheImpl<?, ?>> caches;
+  private final DynamicMap<Cache<?, ?>> cacheMap;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService cleanup;
+  private final int segmentSize;
+  private final double compactionRatio;
+
+  @Inject
+  MmapCacheFactory(
+      MemoryCacheFactory memCacheFactory,
+      @GerritServerConfig Config cfg,
+      SitePaths site,
+      DynamicMap<Cache<?, ?>> cacheMap) {
+    super(memCacheFactory, cfg, site);
+    segmentSize =
+        Ints.saturatedCast(
+            Math.max(
+                MIN_SEGMENT_SIZE,
+                cfg.getLong("cache", null, "mmapSegmentSize", DEFAULT_SEGMENT_SIZE)));
+    compactionRatio = getCompactionRatio(cfg);
+    caches = new LinkedList<>();
+    this.cacheMap = cacheMap;
+
+    if (diskEnabled) {
+      executor =
+          new LoggingContextAwareExecutorService(
+              Executors.newFixedThreadPool(
+                  1, new ThreadFactoryBuilder().setNameFormat("DiskCache-Store-%d").build()));
+      cleanup =
+          new LoggingContextAwareScheduledExecutorService(
+              Executors.newScheduledThreadPool(
+                  1,
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("DiskCache-Compact-%d")
+                      .setDaemon(true)
+                      .build()));
+    } else {
+      executor = null;
+      cleanup = null;
+    }
+  }
+
+  private static double getCompactionRatio(Config cfg) {
+    String v = cfg.getString("cache", null, "mmapCompactionRatio");
+    if (v == null) {
+      return DEFAULT_COMPACTION_RATIO;
+    }
+    try {
+      double ratio = Double.parseDouble(v);
+      if (ratio >= 0 && ratio <= 1) {
+        return ratio;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the warning below.
+    }
+    logger.atWarning().log(
+        "Invalid cache.mmapCompactionRatio %s, using %s", v, DEFAULT_COMPACTION_RATIO);
+    return DEFAULT_COMPACTION_RATIO;
+  }
+
+  @Override
+  public void start() {
+    if (executor != null) {
+      for (MmapCacheImpl<?, ?> cache : caches) {
+        executor.execute(cache::start);
+        @SuppressWarnings("unused")
+        Future<?> possiblyIgnoredError =
+            cleanup.schedule(() -> cache.compact(cleanup), 30, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      try {
+        cleanup.shutdownNow();
+
+        List<Runnable> pending = executor.shutdownNow();
+        if (executor.awaitTermination(15, TimeUnit.MINUTES)) {
+          if (pending != null && !pending.isEmpty()) {
+            logger.atInfo().log("Finishing %d disk cache updates", pending.size());
+            for (Runnable update : pending) {
+              update.run();
+            }
+          }
+        } else {
+          logger.atInfo().log("Timeout waiting for disk cache to close");
+        }
+      } catch (InterruptedException e) {
+        logger.atWarning().log("Interrupted waiting for disk cache to shutdown");
+      }
+    }
+    synchronized (caches) {
+      for (MmapCacheImpl<?, ?> cache : caches) {
+        cache.stop();
+      }
+    }
+  }
+
+  @SuppressWarnings({"unchecked"})
+  @Override
+  public <K, V> Cache<K, V> buildImpl(
+      PersistentCacheDef<K, V> in, long limit, CacheBackend backend) {
+    MmapCacheDefProxy<K, V> def = new MmapCacheDefProxy<>(in, MemoryTierPolicy.create(config, in));
+    SegmentStore<K, V> store = newStore(def, limit);
+    MmapCacheImpl<K, V> cache =
+        new MmapCacheImpl<>(
+            executor,
+            store,
+            def.tier(),
+            def.keyType(),
+            (Cache<K, ValueHolder<V>>) memCacheFactory.build(def, backend));
+    synchronized (caches) {
+      caches.add(cache);
+    }
+    return cache;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <K, V> LoadingCache<K, V> buildImpl(
+      PersistentCacheDef<K, V> in, CacheLoader<K, V> loader, long limit, CacheBackend backend) {
+    MmapCacheDefProxy<K, V> def = new MmapCacheDefProxy<>(in, MemoryTierPolicy.create(config, in));
+    SegmentStore<K, V> store = newStore(def, limit);
+    Cache<K, ValueHolder<V>> mem =
+        (Cache<K, ValueHolder<V>>)
+            memCacheFactory.build(
+                def,
+                (CacheLoader<K, V>)
+                    new MmapCacheImpl.Loader<>(executor, store, def.tier(), loader),
+                backend);
+    MmapCacheImpl<K, V> cache =
+        new MmapCacheImpl<>(executor, store, def.tier(), def.keyType(), mem);
+    synchronized (caches) {
+      caches.add(cache);
+    }
+    return cache;
+  }
+
+  @Override
+  public void onStop(String plugin) {
+    synchronized (caches) {
+      for (Map.Entry<String, Provider<Cache<?, ?>>> entry : cacheMap.byPlugin(plugin).entrySet()) {
+        Cache<?, ?> cache = entry.getValue().get();
+        if (caches.remove(cache)) {
+          ((MmapCacheImpl<?, ?>) cache).stop();
+        }
+      }
+    }
+  }
+
+  private <V, K> SegmentStore<K, V> newStore(PersistentCacheDef<K, V> def, long maxSize) {
+    return new SegmentStore<>(
+        cacheDir.resolve(def.name() + ".mmap"),
+        def.keySerializer(),
+        def.valueSerializer(),
+        def.version(),
+        maxSize,
+        segmentSize,
+        compactionRatio,
+        def.expireAfterWrite(),
+        def.refreshAfterWrite());
+  }
+}
@@ -0,0 +1,344 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mmap;
+
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
+import com.google.gerrit.server.cache.PersistentCache;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.gerrit.server.logging.TraceContext;
+import com.google.gerrit.server.logging.TraceContext.TraceTimer;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.inject.TypeLiteral;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hybrid in-memory and memory-mapped file backed cache.
+ *
+ * <p>This cache behaves like {@code H2CacheImpl}: the in-memory cache is checked first, then the
+ * {@link SegmentStore}, and finally the CacheLoader, if any, is used to construct the item. Unlike
+ * the H2 backend, lookups in the store never leave the JVM: the key index is held in memory and
+ * values are read straight from the mapped segment files, so no Bloom filter is needed.
+ *
+ * <p>Which values are admitted to the in-memory tier and how entries move between the tiers is
+ * tracked by a {@link MemoryTierPolicy}.
+ *
+ * <p>Cache stores and invalidations are performed on a background thread, hiding the latency
+ * associated with serializing the key and value pairs and appending them to the segment files.
+ *
+ * @see MmapCacheFactory
+ */
+public class MmapCacheImpl<K, V> extends AbstractLoadingCache<K, V> implements PersistentCache {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Executor executor;
+  private final SegmentStore<K, V> store;
+  private final MemoryTierPolicy<K, V> tier;
+  private final TypeLiteral<K> keyType;
+  private final Cache<K, ValueHolder<V>> mem;
+
+  MmapCacheImpl(
+      Executor executor,
+      SegmentStore<K, V> store,
+      MemoryTierPolicy<K, V> tier,
+      TypeLiteral<K> keyType,
+      Cache<K, ValueHolder<V>> mem) {
+    this.executor = executor;
+    this.store = store;
+    this.tier = tier;
+    this.keyType = keyType;
+    this.mem = mem;
+  }
+
+  @Override
+  public V getIfPresent(Object objKey) {
+    if (!keyType.getRawType().isInstance(objKey)) {
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    K key = (K) objKey;
+
+    ValueHolder<V> h = mem.getIfPresent(key);
+    if (h != null) {
+      return h.value;
+    }
+
+    h = store.getIfPresent(key);
+    if (h != null) {
+      if (tier.recordDiskHit(key, h.value)) {
+        mem.put(key, h);
+      }
+      return h.value;
+    }
+    tier.recordDiskMiss();
+    return null;
+  }
+
+  @Override
+  public V get(K key) throws ExecutionException {
+    if (mem instanceof LoadingCache) {
+      LoadingCache<K, ValueHolder<V>> asLoadingCache = (LoadingCache<K, ValueHolder<V>>) mem;
+      ValueHolder<V> valueHolder = asLoadingCache.get(key);
+      if (store.needsRefresh(valueHolder.created)) {
+        asLoadingCache.refresh(key);
+      }
+      return valueHolder.value;
+    }
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+    if (mem instanceof LoadingCache) {
+      ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+      LoadingCache<K, ValueHolder<V>> asLoadingCache = (LoadingCache<K, ValueHolder<V>>) mem;
+      ImmutableMap<K, ValueHolder<V>> values = asLoadingCache.getAll(keys);
+      for (Map.Entry<K, ValueHolder<V>> entry : values.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().value);
+        if (store.needsRefresh(entry.getValue().created)) {
+          asLoadingCache.refresh(entry.getKey());
+        }
+      }
+      return result.build();
+    }
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
+    return mem.get(
+            key,
+            () -> {
+              ValueHolder<V> h = store.getIfPresent(key);
+              if (h != null) {
+                tier.recordDiskHit(key, h.value);
+                return h;
+              }
+              tier.recordDiskMiss();
+
+              h = new ValueHolder<>(valueLoader.call(), Instant.ofEpochMilli(TimeUtil.nowMs()));
+              tier.admit(key, h.value);
+              store(key, h);
+              return h;
+            })
+        .value;
+  }
+
+  @Override
+  public void put(K key, V val) {
+    ValueHolder<V> h = new ValueHolder<>(val, Instant.ofEpochMilli(TimeUtil.nowMs()));
+    if (tier.admit(key, val)) {
+      mem.put(key, h);
+    } else {
+      // Don't keep serving an older value from memory.
+      mem.invalidate(key);
+    }
+    store(key, h);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void invalidate(Object key) {
+    if (keyType.getRawType().isInstance(key)) {
+      executor.execute(() -> store.invalidate((K) key));
+    }
+    mem.invalidate(key);
+  }
+
+  @Override
+  public void invalidateAll() {
+    store.invalidateAll();
+    mem.invalidateAll();
+  }
+
+  @Override
+  public long size() {
+    return mem.size();
+  }
+
+  @Override
+  public CacheStats stats() {
+    return mem.stats();
+  }
+
+  @Override
+  public DiskStats diskStats() {
+    return store.diskStats();
+  }
+
+  @Override
+  public TierStats tierStats() {
+    return tier.stats(mem.stats());
+  }
+
+  void start() {
+    store.open();
+  }
+
+  void stop() {
+    for (Map.Entry<K, ValueHolder<V>> e : mem.asMap().entrySet()) {
+      ValueHolder<V> h = e.getValue();
+      if (!h.clean) {
+        store.put(e.getKey(), h);
+      }
+    }
+    store.close();
+  }
+
+  void compact(ScheduledExecutorService service) {
+    store.compact(mem);
+
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError =
+        service.schedule(() -> compact(service), 1, TimeUnit.HOURS);
+  }
+
+  private void store(K key, ValueHolder<V> h) {
+    executor.execute(
+        () -> {
+          store.put(key, h);
+          if (store.overLimit()) {
+            store.compact(mem);
+          }
+        });
+  }
+
+  static class ValueHolder<V> {
+    final V value;
+    final Instant created;
+    volatile boolean clean;
+
+    ValueHolder(V value, Instant created) {
+      this.value = value;
+      this.created = created;
+    }
+  }
+
+  static class Loader<K, V> extends CacheLoader<K, ValueHolder<V>> {
+    private final Executor executor;
+    private final SegmentStore<K, V> store;
+    private final MemoryTierPolicy<K, V> tier;
+    private final CacheLoader<K, V> loader;
+
+    Loader(
+        Executor executor,
+        SegmentStore<K, V> store,
+        MemoryTierPolicy<K, V> tier,
+        CacheLoader<K, V> loader) {
+      this.executor = executor;
+      this.store = store;
+      this.tier = tier;
+      this.loader = loader;
+    }
+
+    @Override
+    public ValueHolder<V> load(K key) throws Exception {
+      try (TraceTimer timer =
+          TraceContext.newTimer(
+              "Loading value from cache", Metadata.builder().cacheKey(key.toString()).build())) {
+        ValueHolder<V> h = store.getIfPresent(key);
+        if (h != null) {
+          tier.recordDiskHit(key, h.value);
+          return h;
+        }
+        tier.recordDiskMiss();
+
+        ValueHolder<V> loaded =
+            new ValueHolder<>(loader.load(key), Instant.ofEpochMilli(TimeUtil.nowMs()));
+        tier.admit(key, loaded.value);
+        executor.execute(() -> store.put(key, loaded));
+        return loaded;
+      }
+    }
+
+    @Override
+    public Map<K, ValueHolder<V>> loadAll(Iterable<? extends K> keys) throws Exception {
+      try (TraceTimer timer = TraceContext.newTimer("Loading multiple values from cache")) {
+        List<K> notInStore = new ArrayList<>();
+        Map<K, ValueHolder<V>> result = new HashMap<>();
+        for (K key : keys) {
+          ValueHolder<V> h = store.getIfPresent(key);
+          if (h != null) {
+            tier.recordDiskHit(key, h.value);
+            result.put(key, h);
+          } else {
+            notInStore.add(key);
+          }
+        }
+        try {
+          Map<K, V> remaining = loader.loadAll(notInStore);
+          Instant instant = Instant.ofEpochMilli(TimeUtil.nowMs());
+          Map<K, ValueHolder<V>> loaded = new HashMap<>();
+          remaining.forEach(
+              (k, v) -> {
+                tier.recordDiskMiss();
+                tier.admit(k, v);
+                loaded.put(k, new ValueHolder<>(v, instant));
+              });
+          executor.execute(() -> loaded.forEach(store::put));
+          result.putAll(loaded);
+        } catch (UnsupportedLoadingOperationException e) {
+          // Fallback to the default load() if loadAll() is not implemented
+          for (K k : notInStore) {
+            result.put(k, load(k));
+          }
+        }
+        return result;
+      }
+    }
+
+    @Override
+    public ListenableFuture<ValueHolder<V>> reload(K key, ValueHolder<V> oldValue)
+        throws Exception {
+      ListenableFuture<V> reloadedValue = loader.reload(key, oldValue.value);
+      Futures.addCallback(
+          reloadedValue,
+          new FutureCallback<V>() {
+            @Override
+            public void onSuccess(V result) {
+              store.put(key, new ValueHolder<>(result, TimeUtil.now()));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              logger.atWarning().withCause(t).log("Unable to reload cache value");
+            }
+          },
+          executor);
+
+      return Futures.transform(reloadedValue, v -> new ValueHolder<>(v, TimeUtil.now()), executor);
+    }
+  }
+}
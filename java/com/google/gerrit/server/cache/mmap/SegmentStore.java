@@ -0,0 +1,668 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mmap;
+
+import com.google.common.cache.Cache;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.cache.PersistentCache.DiskStats;
+import com.google.gerrit.server.cache.mmap.MmapCacheImpl.ValueHolder;
+import com.google.gerrit.server.cache.serialize.CacheSerializer;
+import com.google.gerrit.server.util.time.TimeUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of serialized cache entries in memory-mapped segment files.
+ *
+ * <p>Each cache owns a directory of segment files. New entries, as well as tombstones for
+ * invalidated keys, are appended to the active segment; once it is full a new segment is started.
+ * The location of the latest record of every key is kept in an in-memory {@link KeyIndex}, which is
+ * rebuilt by replaying all segments in order when the store is opened.
+ *
+ * <p>Space held by overwritten or invalidated records is reclaimed by {@link #compact(Cache)},
+ * which rewrites sparse segments and, when the store exceeds its disk limit, evicts entries of the
+ * oldest segments that are not currently held in memory.
+ *
+ * <p>Record layout, all numbers big-endian:
+ *
+ * <pre>
+ *   int  length of the record, including this header
+ *   int  CRC32 of all following bytes of the record
+ *   int  cache version
+ *   long creation time in milliseconds since the epoch
+ *   int  length of the key
+ *   int  length of the value, or -1 for a tombstone
+ *   byte[] key
+ *   byte[] value
+ * </pre>
+ */
+class SegmentStore<K, V> {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x47434d31; // "GCM1"
+  private static final int FORMAT_VERSION = 1;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 28;
+  private static final int TOMBSTONE = -1;
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final int OFF_CRC = 4;
+  private static final int OFF_VERSION = 8;
+  private static final int OFF_CREATED = 12;
+  private static final int OFF_KEY_LENGTH = 20;
+  private static final int OFF_VALUE_LENGTH = 24;
+
+  private final Path dir;
+  private final CacheSerializer<K> keySerializer;
+  private final CacheSerializer<V> valueSerializer;
+  private final int version;
+  private final long maxSize;
+  private final int segmentSize;
+  private final double compactionRatio;
+  @Nullable private final Duration expireAfterWrite;
+  @Nullable private final Duration refreshAfterWrite;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private final KeyIndex index = new KeyIndex();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private volatile boolean opened;
+  private Segment active;
+  private long usedSpace;
+  private long liveSpace;
+
+  SegmentStore(
+      Path dir,
+      CacheSerializer<K> keySerializer,
+      CacheSerializer<V> valueSerializer,
+      int version,
+      long maxSize,
+      int segmentSize,
+      double compactionRatio,
+      @Nullable Duration expireAfterWrite,
+      @Nullable Duration refreshAfterWrite) {
+    this.dir = dir;
+    this.keySerializer = keySerializer;
+    this.valueSerializer = valueSerializer;
+    this.version = version;
+    this.maxSize = maxSize;
+    this.segmentSize = segmentSize;
+    this.compactionRatio = compactionRatio;
+    this.expireAfterWrite = expireAfterWrite;
+    this.refreshAfterWrite = refreshAfterWrite;
+  }
+
+  void open() {
+    if (opened) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (opened) {
+        return;
+      }
+      Files.createDirectories(dir);
+      for (Path p : listSegments()) {
+        try {
+          load(p);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Dropping unreadable cache segment %s", p);
+          Files.deleteIfExists(p);
+        }
+      }
+      roll(0);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot open cache %s", dir);
+    } finally {
+      opened = true;
+      lock.writeLock().unlock();
+    }
+  }
+
+  void close() {
+    lock.writeLock().lock();
+    try {
+      for (Segment s : segments.values()) {
+        s.close();
+      }
+      segments.clear();
+      index.clear();
+      active = null;
+      usedSpace = 0;
+      liveSpace = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Nullable
+  ValueHolder<V> getIfPresent(K key) {
+    open();
+    byte[] k = keySerializer.serialize(key);
+    long hash = fingerprint(k);
+    long created;
+    byte[] v;
+    lock.readLock().lock();
+    try {
+      long loc = index.find(hash, l -> keyEquals(l, k));
+      if (loc == KeyIndex.NONE) {
+        missCount.incrementAndGet();
+        return null;
+      }
+      ByteBuffer b = segment(loc).view();
+      int off = offset(loc);
+      created = b.getLong(off + OFF_CREATED);
+      v = new byte[b.getInt(off + OFF_VALUE_LENGTH)];
+      b.position(off + RECORD_HEADER_SIZE + k.length);
+      b.get(v);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Instant createdAt = Instant.ofEpochMilli(created);
+    if (expired(createdAt)) {
+      invalidate(key);
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    V val;
+    try {
+      val = valueSerializer.deserialize(v);
+    } catch (RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot read cache %s for %s", dir, key);
+      invalidate(key);
+      missCount.incrementAndGet();
+      return null;
+    }
+    ValueHolder<V> h = new ValueHolder<>(val, createdAt);
+    h.clean = true;
+    hitCount.incrementAndGet();
+    return h;
+  }
+
+  boolean needsRefresh(Instant created) {
+    if (refreshAfterWrite == null) {
+      return false;
+    }
+    Duration age = Duration.between(created, TimeUtil.now());
+    return age.compareTo(refreshAfterWrite) > 0;
+  }
+
+  void put(K key, ValueHolder<V> holder) {
+    if (holder.clean) {
+      return;
+    }
+    open();
+    byte[] k = keySerializer.serialize(key);
+    byte[] v = valueSerializer.serialize(holder.value);
+    byte[] record = newRecord(holder.created.toEpochMilli(), k, v);
+    long hash = fingerprint(k);
+    lock.writeLock().lock();
+    try {
+      if (active == null) {
+        return;
+      }
+      long loc = append(record);
+      release(index.put(hash, loc, l -> keyEquals(l, k)));
+      retain(loc, record.length, k.length + v.length);
+      holder.clean = true;
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot put into cache %s", dir);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void invalidate(K key) {
+    open();
+    byte[] k = keySerializer.serialize(key);
+    long hash = fingerprint(k);
+    lock.writeLock().lock();
+    try {
+      long old = index.remove(hash, l -> keyEquals(l, k));
+      if (old != KeyIndex.NONE) {
+        release(old);
+        if (active != null) {
+          append(newRecord(0, k, null));
+        }
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot invalidate cache %s", dir);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void invalidateAll() {
+    open();
+    lock.writeLock().lock();
+    try {
+      for (Segment s : segments.values()) {
+        s.delete();
+      }
+      segments.clear();
+      index.clear();
+      usedSpace = 0;
+      liveSpace = 0;
+      roll(0);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot invalidate cache %s", dir);
+      active = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Whether the segments use more space than allowed by the disk limit. */
+  boolean overLimit() {
+    lock.readLock().lock();
+    try {
+      return usedSpace > maxSize;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reclaims disk space.
+   *
+   * <p>Sealed segments are visited from the oldest to the newest. While the store exceeds its disk
+   * limit, entries of the visited segment are evicted unless they are still present in {@code mem},
+   * in which case they are moved to the active segment. Once the store is within its limit, only
+   * segments whose live data falls below the compaction ratio are rewritten.
+   *
+   * @param mem in-memory cache used to decide which entries are worth keeping.
+   */
+  void compact(Cache<K, ?> mem) {
+    open();
+    if (!compacting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      List<Integer> ids;
+      lock.readLock().lock();
+      try {
+        ids = new ArrayList<>(segments.keySet());
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      int evicted = 0;
+      int rewritten = 0;
+      for (int id : ids) {
+        lock.writeLock().lock();
+        try {
+          Segment s = segments.get(id);
+          if (s == null || s == active) {
+            continue;
+          }
+          boolean evict = usedSpace > maxSize;
+          if (!evict && s.live >= s.capacity() * compactionRatio) {
+            continue;
+          }
+          evicted += rewrite(s, evict ? mem : null);
+          rewritten++;
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot compact cache %s", dir);
+          return;
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }
+      if (rewritten > 0) {
+        logger.atInfo().log(
+            "Compacted %d segments of cache %s, evicted %d entries", rewritten, dir, evicted);
+      }
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  DiskStats diskStats() {
+    open();
+    lock.readLock().lock();
+    try {
+      return new DiskStats(index.size(), liveSpace, hitCount.get(), missCount.get());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int rewrite(Segment s, @Nullable Cache<K, ?> retain) throws IOException {
+    boolean hasOlder = segments.firstKey() < s.id;
+    int evicted = 0;
+    ByteBuffer b = s.view();
+    for (int off = SEGMENT_HEADER_SIZE; off < s.writeOffset; ) {
+      int len = b.getInt(off);
+      long loc = location(s.id, off);
+      byte[] k = readKey(b, off);
+      long hash = fingerprint(k);
+      if (b.getInt(off + OFF_VALUE_LENGTH) == TOMBSTONE) {
+        // A tombstone must survive as long as an older segment may still hold the dead record.
+        if (hasOlder && index.find(hash, l -> keyEquals(l, k)) == KeyIndex.NONE) {
+          append(readRecord(b, off, len));
+        }
+      } else if (index.find(hash, l -> keyEquals(l, k)) == loc) {
+        int space = k.length + b.getInt(off + OFF_VALUE_LENGTH);
+        if (retain == null || keep(k, b.getLong(off + OFF_CREATED), retain)) {
+          long moved = append(readRecord(b, off, len));
+          release(index.put(hash, moved, l -> keyEquals(l, k)));
+          retain(moved, len, space);
+        } else {
+          release(index.remove(hash, l -> keyEquals(l, k)));
+          evicted++;
+        }
+      }
+      off += len;
+    }
+    segments.remove(s.id);
+    usedSpace -= s.writeOffset;
+    s.delete();
+    return evicted;
+  }
+
+  private boolean keep(byte[] k, long created, Cache<K, ?> mem) {
+    if (expired(Instant.ofEpochMilli(created))) {
+      return false;
+    }
+    try {
+      return mem.getIfPresent(keySerializer.deserialize(k)) != null;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void load(Path p) throws IOException {
+    int id = segmentId(p);
+    Segment s = Segment.open(id, p);
+    ByteBuffer b = s.view();
+    if (s.capacity() < SEGMENT_HEADER_SIZE
+        || b.getInt(0) != MAGIC
+        || b.getInt(4) != FORMAT_VERSION) {
+      s.close();
+      throw new IOException("invalid segment header");
+    }
+    segments.put(id, s);
+
+    int off = SEGMENT_HEADER_SIZE;
+    while (off + RECORD_HEADER_SIZE <= s.capacity()) {
+      int len = b.getInt(off);
+      if (len == 0) {
+        break;
+      }
+      if (len < RECORD_HEADER_SIZE
+          || len > s.capacity() - off
+          || b.getInt(off + OFF_CRC) != crc(b, off, len)) {
+        logger.atWarning().log("Ignoring truncated cache segment %s after offset %d", p, off);
+        break;
+      }
+      replay(b, location(id, off), len);
+      off += len;
+    }
+    s.writeOffset = off;
+    usedSpace += off;
+  }
+
+  private void replay(ByteBuffer b, long loc, int len) {
+    int off = offset(loc);
+    byte[] k = readKey(b, off);
+    long hash = fingerprint(k);
+    int valueLength = b.getInt(off + OFF_VALUE_LENGTH);
+    if (valueLength == TOMBSTONE
+        || b.getInt(off + OFF_VERSION) != version
+        || expired(Instant.ofEpochMilli(b.getLong(off + OFF_CREATED)))) {
+      release(index.remove(hash, l -> keyEquals(l, k)));
+      return;
+    }
+    release(index.put(hash, loc, l -> keyEquals(l, k)));
+    retain(loc, len, k.length + valueLength);
+  }
+
+  private long append(byte[] record) throws IOException {
+    if (active.writeOffset + record.length > active.capacity()) {
+      roll(record.length);
+    }
+    int off = active.writeOffset;
+    ByteBuffer b = active.view();
+    b.position(off);
+    b.put(record);
+    active.writeOffset += record.length;
+    usedSpace += record.length;
+    return location(active.id, off);
+  }
+
+  private void roll(int minRecordSize) throws IOException {
+    if (active != null) {
+      active.buf.force();
+    }
+    int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    int capacity = Math.max(segmentSize, SEGMENT_HEADER_SIZE + minRecordSize);
+    Segment s = Segment.create(id, dir.resolve(segmentName(id)), capacity);
+    ByteBuffer b = s.view();
+    b.putInt(0, MAGIC);
+    b.putInt(4, FORMAT_VERSION);
+    s.writeOffset = SEGMENT_HEADER_SIZE;
+    usedSpace += SEGMENT_HEADER_SIZE;
+    segments.put(id, s);
+    active = s;
+  }
+
+  private void retain(long loc, int recordLength, int space) {
+    segment(loc).live += recordLength;
+    liveSpace += space;
+  }
+
+  private void release(long loc) {
+    if (loc == KeyIndex.NONE) {
+      return;
+    }
+    Segment s = segment(loc);
+    ByteBuffer b = s.view();
+    int off = offset(loc);
+    s.live -= b.getInt(off);
+    liveSpace -= b.getInt(off + OFF_KEY_LENGTH) + b.getInt(off + OFF_VALUE_LENGTH);
+  }
+
+  private boolean keyEquals(long loc, byte[] key) {
+    ByteBuffer b = segment(loc).view();
+    int off = offset(loc);
+    if (b.getInt(off + OFF_KEY_LENGTH) != key.length) {
+      return false;
+    }
+    int start = off + RECORD_HEADER_SIZE;
+    for (int i = 0; i < key.length; i++) {
+      if (b.get(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean expired(Instant created) {
+    if (expireAfterWrite == null) {
+      return false;
+    }
+    Duration age = Duration.between(created, TimeUtil.now());
+    return age.compareTo(expireAfterWrite) > 0;
+  }
+
+  private Segment segment(long loc) {
+    return segments.get((int) (loc >>> 32));
+  }
+
+  private byte[] newRecord(long created, byte[] key, @Nullable byte[] value) {
+    int len = RECORD_HEADER_SIZE + key.length + (value != null ? value.length : 0);
+    ByteBuffer b = ByteBuffer.allocate(len);
+    b.putInt(len);
+    b.putInt(0);
+    b.putInt(version);
+    b.putLong(created);
+    b.putInt(key.length);
+    b.putInt(value != null ? value.length : TOMBSTONE);
+    b.put(key);
+    if (value != null) {
+      b.put(value);
+    }
+    b.putInt(OFF_CRC, crc(b, 0, len));
+    return b.array();
+  }
+
+  private List<Path> listSegments() throws IOException {
+    Map<Integer, Path> found = new TreeMap<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+      for (Path p : ds) {
+        int id = segmentId(p);
+        if (id > 0) {
+          found.put(id, p);
+        }
+      }
+    }
+    return new ArrayList<>(found.values());
+  }
+
+  private static byte[] readKey(ByteBuffer b, int off) {
+    byte[] k = new byte[b.getInt(off + OFF_KEY_LENGTH)];
+    ByteBuffer d = b.duplicate();
+    d.position(off + RECORD_HEADER_SIZE);
+    d.get(k);
+    return k;
+  }
+
+  private static byte[] readRecord(ByteBuffer b, int off, int len) {
+    byte[] r = new byte[len];
+    ByteBuffer d = b.duplicate();
+    d.position(off);
+    d.get(r);
+    return r;
+  }
+
+  private static int crc(ByteBuffer b, int off, int len) {
+    ByteBuffer d = b.duplicate();
+    d.limit(off + len);
+    d.position(off + OFF_VERSION);
+    CRC32 crc = new CRC32();
+    crc.update(d);
+    return (int) crc.getValue();
+  }
+
+  private static long fingerprint(byte[] key) {
+    return Hashing.farmHashFingerprint64().hashBytes(key).asLong();
+  }
+
+  private static long location(int segmentId, int offset) {
+    return ((long) segmentId << 32) | offset;
+  }
+
+  private static int offset(long loc) {
+    return (int) loc;
+  }
+
+  private static String segmentName(int id) {
+    return String.format("%010d%s", id, SEGMENT_SUFFIX);
+  }
+
+  private static int segmentId(Path p) {
+    String n = p.getFileName().toString();
+    try {
+      return Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static class Segment {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buf;
+    int writeOffset;
+    long live;
+
+    static Segment create(int id, Path path, int capacity) throws IOException {
+      FileChannel c =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      return new Segment(id, path, c, c.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    }
+
+    static Segment open(int id, Path path) throws IOException {
+      FileChannel c = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long size = c.size();
+      if (size > Integer.MAX_VALUE) {
+        c.close();
+        throw new IOException("segment too large");
+      }
+      return new Segment(id, path, c, c.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buf) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+      this.buf = buf;
+    }
+
+    int capacity() {
+      return buf.capacity();
+    }
+
+    ByteBuffer view() {
+      return buf.duplicate();
+    }
+
+    void close() {
+      try {
+        buf.force();
+        channel.close();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot close cache segment %s", path);
+      }
+    }
+
+    void delete() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot delete cache segment %s", path);
+      }
+    }
+  }
+}
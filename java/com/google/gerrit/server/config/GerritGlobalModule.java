@@ -166,13 +166,17 @@ import com.google.gerrit.server.mail.send.MailTemplates;
 import com.google.gerrit.server.mime.FileTypeRegistry;
 import com.google.gerrit.server.mime.MimeUtilFileTypeRegistry;
 import com.google.gerrit.server.notedb.NoteDbModule;
+import com.google.gerrit.server.patch.AutoMerger;
 import com.google.gerrit.server.patch.DiffOperationsImpl;
+import com.google.gerrit.server.patch.DiffPrecomputer;
 import com.google.gerrit.server.patch.PatchListCacheImpl;
 import com.google.gerrit.server.patch.PatchScriptFactory;
 import com.google.gerrit.server.patch.PatchScriptFactoryForAutoFix;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.permissions.PermissionCollection;
+import com.google.gerrit.server.permissions.RefVisibilityCache;
 import com.google.gerrit.server.permissions.SectionSortCache;
+import com.google.gerrit.server.permissions.SharedVisibleChangesCache;
 import com.google.gerrit.server.plugins.ReloadPluginListener;
 import com.google.gerrit.server.project.AccessControlModule;
 import com.google.gerrit.server.project.CommentLinkProvider;
@@ -250,9 +254,12 @@ public class GerritGlobalModule extends FactoryModule {
     install(MergeabilityCacheImpl.module());
     install(ServiceUserClassifierImpl.module());
     install(PatchListCacheImpl.module());
+    install(AutoMerger.module());
     install(ProjectCacheImpl.module());
     install(DiffOperationsImpl.module());
     install(SectionSortCache.module());
+    install(RefVisibilityCache.module());
+    install(SharedVisibleChangesCache.module());
     install(SubmitStrategy.module());
     install(TagCache.module());
     install(PureRevertCache.module());
@@ -370,6 +377,7 @@ public class GerritGlobalModule extends FactoryModule {
     DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(ReindexAfterRefUpdate.class);
     DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
         .to(ProjectConfigEntry.UpdateChecker.class);
+    DynamicSet.bind(binder(), RevisionCreatedListener.class).to(DiffPrecomputer.class);
     DynamicSet.setOf(binder(), EventListener.class);
     DynamicSet.bind(binder(), EventListener.class).to(EventsMetrics.class);
     DynamicSet.setOf(binder(), UserScopedEventListener.class);
@@ -39,6 +39,7 @@ import com.google.gerrit.server.project.ProjectState;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import org.eclipse.jgit.diff.Edit;
 
 /** Creates and fills a new {@link DiffInfo} object based on diff between files. */
@@ -69,6 +70,19 @@ public class DiffInfoCreator {
 
   /* Returns the {@link DiffInfo} to display for end-users */
   public DiffInfo create(PatchScript ps, DiffSide sideA, DiffSide sideB) {
+    DiffInfo result = createWithoutContent(ps, sideA, sideB);
+    List<ContentEntry> content = Lists.newArrayListWithExpectedSize(ps.getEdits().size() + 2);
+    forEachContentEntry(ps, content::add);
+    result.content = content;
+    return result;
+  }
+
+  /**
+   * Returns the {@link DiffInfo} to display for end-users, without the content entries. The
+   * content entries can be produced one by one with {@link #forEachContentEntry(PatchScript,
+   * Consumer)}, e.g. to write them to a stream.
+   */
+  public DiffInfo createWithoutContent(PatchScript ps, DiffSide sideA, DiffSide sideB) {
     DiffInfo result = new DiffInfo();
 
     ImmutableList<DiffWebLinkInfo> links = webLinksProvider.getDiffLinks();
@@ -102,12 +116,15 @@ public class DiffInfoCreator {
     if (ps.getPatchHeader().size() > 0) {
       result.diffHeader = ps.getPatchHeader();
     }
-    result.content = calculateDiffContentEntries(ps);
     return result;
   }
 
-  private static List<ContentEntry> calculateDiffContentEntries(PatchScript ps) {
-    ContentCollector contentCollector = new ContentCollector(ps);
+  /**
+   * Computes the content entries of the diff and passes them to {@code consumer} in order. Each
+   * entry is passed as soon as it is complete.
+   */
+  public static void forEachContentEntry(PatchScript ps, Consumer<ContentEntry> consumer) {
+    ContentCollector contentCollector = new ContentCollector(ps, consumer);
     Set<Edit> editsDueToRebase = ps.getEditsDueToRebase();
     for (Edit edit : ps.getEdits()) {
       logger.atFine().log("next edit = %s", edit);
@@ -143,8 +160,7 @@ public class DiffInfoCreator {
       }
     }
     contentCollector.addCommon(ps.getA().getSize());
-
-    return contentCollector.lines;
+    contentCollector.finish();
   }
 
   private Optional<FileMeta> createFileMeta(DiffSide side) {
@@ -166,16 +182,17 @@ public class DiffInfoCreator {
 
   private static class ContentCollector {
 
-    private final List<ContentEntry> lines;
+    private final Consumer<ContentEntry> consumer;
     private final SparseFileContent.Accessor fileA;
     private final SparseFileContent.Accessor fileB;
     private final boolean ignoreWS;
 
     private int nextA;
     private int nextB;
+    private ContentEntry current;
 
-    ContentCollector(PatchScript ps) {
-      lines = Lists.newArrayListWithExpectedSize(ps.getEdits().size() + 2);
+    ContentCollector(PatchScript ps, Consumer<ContentEntry> consumer) {
+      this.consumer = consumer;
       fileA = ps.getA().createAccessor();
       fileB = ps.getB().createAccessor();
       ignoreWS = ps.isIgnoreWhitespace();
@@ -292,10 +309,18 @@ public class DiffInfoCreator {
       e.dueToRebase = dueToRebase ? true : null;
     }
 
+    void finish() {
+      if (current != null) {
+        consumer.accept(current);
+        current = null;
+      }
+    }
+
     private ContentEntry entry() {
-      ContentEntry e = new ContentEntry();
-      lines.add(e);
-      return e;
+      // Entries are only modified until the next one is started.
+      finish();
+      current = new ContentEntry();
+      return current;
     }
   }
 }
@@ -14,7 +14,6 @@
 
 package com.google.gerrit.server.git;
 
-import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 import com.google.common.base.Preconditions;
@@ -24,10 +23,13 @@ import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -125,26 +127,39 @@ public class PermissionAwareReadOnlyRefDatabase extends DelegateRefDatabase {
 
   @Override
   public List<Ref> getRefsByPrefix(String prefix) throws IOException {
-    Map<String, Ref> coarseRefs;
-    int lastSlash = prefix.lastIndexOf('/');
-    if (lastSlash == -1) {
-      coarseRefs = getRefs(ALL);
-    } else {
-      coarseRefs = getRefs(prefix.substring(0, lastSlash + 1));
+    return getRefsByPrefix(new String[] {prefix});
+  }
+
+  /**
+   * Returns the visible refs matching any of the prefixes.
+   *
+   * <p>Only the refs matching the prefixes are read from the delegate and checked for visibility,
+   * so that e.g. a protocol v2 {@code ls-refs} request with {@code ref-prefix refs/heads/master}
+   * doesn't filter all other refs of the repository.
+   */
+  @Override
+  public List<Ref> getRefsByPrefix(String... prefixes) throws IOException {
+    Map<String, Ref> refs = new LinkedHashMap<>();
+    for (String prefix : prefixes) {
+      for (Ref ref : getDelegate().getRefDatabase().getRefsByPrefix(prefix)) {
+        refs.putIfAbsent(ref.getName(), ref);
+      }
+    }
+    if (refs.isEmpty()) {
+      return Collections.emptyList();
     }
 
-    List<Ref> result;
-    if (lastSlash + 1 == prefix.length()) {
-      result = coarseRefs.values().stream().collect(toList());
-    } else {
-      String p = prefix.substring(lastSlash + 1);
+    Collection<Ref> result;
+    try {
       result =
-          coarseRefs.entrySet().stream()
-              .filter(e -> e.getKey().startsWith(p))
-              .map(e -> e.getValue())
-              .collect(toList());
+          forProject.filter(
+              refs.values(),
+              getDelegate(),
+              RefFilterOptions.builder().setPrefixes(Arrays.asList(prefixes)).build());
+    } catch (PermissionBackendException e) {
+      throw new IOException("", e);
     }
-    return Collections.unmodifiableList(result);
+    return Collections.unmodifiableList(new ArrayList<>(result));
   }
 
   @Override
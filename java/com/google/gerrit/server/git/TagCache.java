@@ -15,6 +15,9 @@
 package com.google.gerrit.server.git;
 
 import com.google.common.cache.Cache;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
@@ -22,11 +25,20 @@ import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
 
 @Singleton
 public class TagCache {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   private static final String CACHE_NAME = "git_tags";
 
   public static Module module() {
@@ -43,10 +55,21 @@ public class TagCache {
   }
 
   private final Cache<String, TagSetHolder> cache;
+  private final GitRepositoryManager repoManager;
+  private final Map<Project.NameKey, Future<?>> pendingRebuilds = new ConcurrentHashMap<>();
+
+  @Nullable private ScheduledExecutorService rebuildExecutor;
 
   @Inject
-  TagCache(@Named(CACHE_NAME) Cache<String, TagSetHolder> cache) {
+  TagCache(
+      @Named(CACHE_NAME) Cache<String, TagSetHolder> cache, GitRepositoryManager repoManager) {
     this.cache = cache;
+    this.repoManager = repoManager;
+  }
+
+  @Inject(optional = true)
+  void setWorkQueue(WorkQueue workQueue) {
+    rebuildExecutor = workQueue.createQueue(1, "TagSetRebuild");
   }
 
   /**
@@ -90,4 +113,45 @@ public class TagCache {
   void put(Project.NameKey name, TagSetHolder tags) {
     cache.put(name.get(), tags);
   }
+
+  /**
+   * Schedules a complete rebuild of the tag set of a project, unless one is already pending.
+   *
+   * @return false if there is no work queue to run the rebuild, e.g. in batch programs.
+   */
+  boolean rebuildInBackground(TagSetHolder holder) {
+    if (rebuildExecutor == null) {
+      return false;
+    }
+    Project.NameKey name = holder.getProjectName();
+    // The task removes itself once it is done. If it finishes before it was added, the removal
+    // waits for computeIfAbsent to return.
+    pendingRebuilds.computeIfAbsent(
+        name,
+        n ->
+            rebuildExecutor.submit(
+                () -> {
+                  try (Repository repo = repoManager.openRepository(n)) {
+                    holder.rebuildFromScratch(this, repo);
+                  } catch (IOException e) {
+                    logger.atWarning().withCause(e).log("Cannot rebuild tags of %s", n);
+                  } finally {
+                    pendingRebuilds.remove(n);
+                  }
+                }));
+    return true;
+  }
+
+  /** Waits until a pending rebuild of the tag set of a project in the background is done. */
+  void awaitRebuildInBackground(Project.NameKey name) {
+    Future<?> rebuild = pendingRebuilds.get(name);
+    if (rebuild == null) {
+      return;
+    }
+    try {
+      Uninterruptibles.getUninterruptibly(rebuild);
+    } catch (ExecutionException | CancellationException e) {
+      logger.atWarning().withCause(e).log("Rebuild of tags of %s failed", name);
+    }
+  }
 }
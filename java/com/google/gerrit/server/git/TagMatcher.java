@@ -14,20 +14,37 @@
 
 package com.google.gerrit.server.git;
 
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.git.TagSet.Tag;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 
 public class TagMatcher {
+  /**
+   * Maximum number of commits walked to find new tags while the set is rebuilt in the background.
+   * Beyond that, the matcher waits for the rebuild instead of walking a large part of the history.
+   */
+  private static final int MAX_NEW_TAG_WALK = 10000;
+
   final BitSet mask = new BitSet();
   final List<Ref> newRefs = new ArrayList<>();
-  final List<LostRef> lostRefs = new ArrayList<>();
+  final List<TagFlag> lostRefs = new ArrayList<>();
+  final List<TagFlag> gainedRefs = new ArrayList<>();
+  final List<Ref> movedRefs = new ArrayList<>();
   final TagSetHolder holder;
   final TagCache cache;
   final Repository db;
@@ -35,6 +52,8 @@ public class TagMatcher {
   TagSet tags;
   final boolean updated;
   private boolean rebuiltForNewTags;
+  private boolean newTagsRebuiltInBackground;
+  private Set<ObjectId> reachableNewTags;
 
   TagMatcher(
       TagSetHolder holder,
@@ -63,23 +82,98 @@ public class TagMatcher {
 
     Tag tag = tags.lookupTag(tagObj);
     if (tag == null) {
-      if (rebuiltForNewTags) {
-        return false;
+      if (!rebuiltForNewTags) {
+        rebuiltForNewTags = true;
+        newTagsRebuiltInBackground = !holder.rebuildForNewTags(cache, this);
+        if (!newTagsRebuiltInBackground) {
+          return isReachable(tagRef);
+        }
       }
-
-      rebuiltForNewTags = true;
-      holder.rebuildForNewTags(cache, this);
-      return isReachable(tagRef);
+      return newTagsRebuiltInBackground && isReachableNewTag(tagObj);
     }
 
     return tag.has(mask);
   }
 
-  static class LostRef {
+  /**
+   * Checks a tag that is not in the set while the set is rebuilt in the background. All such tags
+   * are looked up by a single walk from the included refs, which stops once all of them are found.
+   * If that walk gets too long, the matcher waits for the rebuild and switches to the rebuilt set.
+   */
+  private boolean isReachableNewTag(ObjectId tagObj) throws IOException {
+    if (reachableNewTags == null) {
+      reachableNewTags = findReachableNewTags();
+      if (reachableNewTags == null) {
+        // Tags which are still missing after the rebuild were created after it started.
+        newTagsRebuiltInBackground = false;
+        reachableNewTags = new HashSet<>();
+        holder.awaitRebuildInBackground(cache, this);
+        Tag tag = tags.lookupTag(tagObj);
+        return tag != null && tag.has(mask);
+      }
+    }
+    return reachableNewTags.contains(tagObj);
+  }
+
+  /** Returns null if not all new tags were found within {@link #MAX_NEW_TAG_WALK} commits. */
+  @Nullable
+  private Set<ObjectId> findReachableNewTags() throws IOException {
+    RefDatabase refDb = db.getRefDatabase();
+    Set<ObjectId> newTags = new HashSet<>();
+    for (Ref ref : refDb.getRefsByPrefix(Constants.R_TAGS)) {
+      ref = refDb.peel(ref);
+      ObjectId id = ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+      if (id != null && tags.lookupTag(id) == null) {
+        newTags.add(id);
+      }
+    }
+
+    Set<ObjectId> reachable = new HashSet<>();
+    if (newTags.isEmpty()) {
+      return reachable;
+    }
+    try (RevWalk rw = new RevWalk(db)) {
+      rw.setRetainBody(false);
+      // Like in TagSet, tags of non-commits are never reachable. Ignore them, so that the walk can
+      // stop early.
+      Set<ObjectId> newCommitTags = new HashSet<>();
+      for (ObjectId id : newTags) {
+        try {
+          if (rw.parseAny(id) instanceof RevCommit) {
+            newCommitTags.add(id);
+          }
+        } catch (MissingObjectException e) {
+          // Tag to a missing object, it can't be reachable.
+        }
+      }
+      newTags = newCommitTags;
+      for (Ref ref : include) {
+        try {
+          rw.markStart(rw.parseCommit(ref.getObjectId()));
+        } catch (IncorrectObjectTypeException | MissingObjectException e) {
+          // Like in TagSet, only references to commits are tracked.
+        }
+      }
+      RevCommit c;
+      int walked = 0;
+      while (reachable.size() < newTags.size() && (c = rw.next()) != null) {
+        if (++walked > MAX_NEW_TAG_WALK) {
+          return null;
+        }
+        if (newTags.contains(c)) {
+          reachable.add(c.copy());
+        }
+      }
+    }
+    return reachable;
+  }
+
+  /** A flag of a ref that a tag gained or lost. */
+  static class TagFlag {
     final Tag tag;
     final int flag;
 
-    LostRef(Tag tag, int flag) {
+    TagFlag(Tag tag, int flag) {
       this.tag = tag;
       this.flag = flag;
     }
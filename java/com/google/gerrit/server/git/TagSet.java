@@ -16,9 +16,12 @@ package com.google.gerrit.server.git;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.server.cache.proto.Cache.TagSetHolderProto.TagSetProto;
@@ -27,18 +30,27 @@ import com.google.gerrit.server.cache.proto.Cache.TagSetHolderProto.TagSetProto.
 import com.google.gerrit.server.cache.serialize.ObjectIdConverter;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.BitmapWalker;
+import org.eclipse.jgit.revwalk.ObjectWalk;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -49,6 +61,10 @@ import org.eclipse.jgit.revwalk.RevWalk;
  * updated to newer states of the RefDatabase using the refresh method. The updateFastForward method
  * can do partial updates based on individual refs moving forward.
  *
+ * <p>If the repository has pack bitmaps, the reachability of tags is looked up in the bitmaps
+ * instead of walking the complete history. This also allows new references and new tags to be
+ * added to an existing set without a complete rebuild.
+ *
  * <p>This set is used to determine which tags should be advertised when only a subset of refs is
  * visible to a user.
  *
@@ -63,24 +79,31 @@ class TagSet {
           RefNames.REFS_DRAFT_COMMENTS,
           RefNames.REFS_STARRED_CHANGES);
 
+  /**
+   * Maximum number of distinct commits whose reachable objects are looked up in the pack bitmaps.
+   * Each lookup builds a bitmap of the repository size, so with more branch tips a walk of the
+   * complete history is cheaper.
+   */
+  private static final int MAX_BITMAP_TIPS = 1000;
+
   private final Project.NameKey projectName;
 
   /**
    * refName => ref. CachedRef is a ref that has an integer identity, used for indexing into
-   * BitSets.
+   * BitSets. The map is an immutable snapshot, which is replaced as a whole once the set is built.
    */
-  private final Map<String, CachedRef> refs;
+  private volatile Map<String, CachedRef> refs;
 
   /** ObjectId-pointed-to-by-tag => Tag */
   private final ObjectIdOwnerMap<Tag> tags;
 
   TagSet(Project.NameKey projectName) {
-    this(projectName, new HashMap<>(), new ObjectIdOwnerMap<>());
+    this(projectName, ImmutableMap.of(), new ObjectIdOwnerMap<>());
   }
 
-  TagSet(Project.NameKey projectName, HashMap<String, CachedRef> refs, ObjectIdOwnerMap<Tag> tags) {
+  TagSet(Project.NameKey projectName, Map<String, CachedRef> refs, ObjectIdOwnerMap<Tag> tags) {
     this.projectName = projectName;
-    this.refs = refs;
+    this.refs = ImmutableMap.copyOf(refs);
     this.tags = tags;
   }
 
@@ -106,9 +129,6 @@ class TagSet {
 
   /** Record a fast-forward update of the given ref. This is called from multiple threads. */
   boolean updateFastForward(String refName, ObjectId oldValue, ObjectId newValue) {
-    // this looks fishy: refs is not a thread-safe data structure, but it is mutated in build() and
-    // rebuild(). TagSetHolder prohibits concurrent writes through the buildLock mutex, but it does
-    // not prohibit concurrent read/write.
     CachedRef ref = refs.get(refName);
     if (ref != null) {
       // compareAndSet works on reference equality, but this operation
@@ -159,32 +179,45 @@ class TagSet {
 
           RevCommit savedCommit = rw.parseCommit(savedObjectId);
           RevCommit currentCommit = rw.parseCommit(currentRef.getObjectId());
-          if (rw.isMergedInto(savedCommit, currentCommit)) {
-            // Fast-forward. Safely update the reference in-place.
-            savedRef.compareAndSet(savedObjectId, currentRef.getObjectId());
-            m.mask.set(savedRef.flag);
-            continue;
+          boolean err = false;
+          RevCommit c;
+          if (!rw.isMergedInto(savedCommit, currentCommit)) {
+            // The branch rewound. Walk the list of commits removed from
+            // the reference. If any matches to a tag, this has to be removed.
+            rw.reset();
+            rw.markStart(savedCommit);
+            rw.markUninteresting(currentCommit);
+            rw.sort(RevSort.TOPO, true);
+            while ((c = rw.next()) != null) {
+              Tag tag = tags.get(c);
+              if (tag != null && tag.refFlags.get(savedRef.flag)) {
+                m.lostRefs.add(new TagMatcher.TagFlag(tag, savedRef.flag));
+                err = true;
+              }
+            }
           }
 
-          // The branch rewound. Walk the list of commits removed from
-          // the reference. If any matches to a tag, this has to be removed.
-          boolean err = false;
+          // Walk the list of commits added to the reference. Tags on them
+          // which were not reachable from the reference before have to be
+          // added. This is usually a short walk, as it stops at the old tip.
           rw.reset();
-          rw.markStart(savedCommit);
-          rw.markUninteresting(currentCommit);
-          rw.sort(RevSort.TOPO, true);
-          RevCommit c;
+          rw.markStart(currentCommit);
+          rw.markUninteresting(savedCommit);
           while ((c = rw.next()) != null) {
             Tag tag = tags.get(c);
-            if (tag != null && tag.refFlags.get(savedRef.flag)) {
-              m.lostRefs.add(new TagMatcher.LostRef(tag, savedRef.flag));
+            if (tag != null && !tag.refFlags.get(savedRef.flag)) {
+              m.gainedRefs.add(new TagMatcher.TagFlag(tag, savedRef.flag));
               err = true;
             }
           }
+
           if (!err) {
-            // All of the tags are still reachable. Update in-place.
+            // The same tags are reachable. Update in-place.
             savedRef.compareAndSet(savedObjectId, currentRef.getObjectId());
             m.mask.set(savedRef.flag);
+          } else {
+            // Update the flags in a new copy of the set.
+            m.movedRefs.add(currentRef);
           }
 
         } catch (IOException err) {
@@ -201,11 +234,13 @@ class TagSet {
   }
 
   void build(Repository git, TagSet old, TagMatcher m) {
-    if (old != null && m != null && refresh(old, m)) {
+    if (old != null && m != null && refresh(git, old, m)) {
       return;
     }
 
-    try (TagWalk rw = new TagWalk(git)) {
+    Map<String, CachedRef> refs = new HashMap<>();
+    try (TagWalk rw = new TagWalk(git);
+        BitmapReachability bitmaps = BitmapReachability.create(git)) {
       rw.setRetainBody(false);
       for (Ref ref :
           git.getRefDatabase()
@@ -223,7 +258,15 @@ class TagSet {
 
         } else {
           // New reference to include in the set.
-          addRef(rw, ref);
+          addRef(rw, ref, refs);
+        }
+      }
+
+      if (bitmaps != null) {
+        Map<ObjectId, BitSet> flagsByTip = flagsByTip(refs);
+        if (flagsByTip.size() <= MAX_BITMAP_TIPS) {
+          addFlagsFromBitmaps(rw, bitmaps, flagsByTip);
+          return;
         }
       }
 
@@ -241,7 +284,43 @@ class TagSet {
       }
     } catch (IOException e) {
       logger.atWarning().withCause(e).log("Error building tags for repository %s", projectName);
+    } finally {
+      this.refs = ImmutableMap.copyOf(refs);
+    }
+  }
+
+  /**
+   * Sets the flags of all tags pointing to commits from the pack bitmaps, instead of traversing
+   * the complete history.
+   */
+  private void addFlagsFromBitmaps(
+      TagWalk rw, BitmapReachability bitmaps, Map<ObjectId, BitSet> flagsByTip)
+      throws IOException {
+    // The flags of a tag on a commit are aliased to the TagCommit, which
+    // already has the flags of references pointing to that commit.
+    List<Tag> commitTags = new ArrayList<>();
+    for (Tag tag : tags) {
+      if (rw.lookupOrNull(tag) instanceof TagCommit) {
+        commitTags.add(tag);
+      }
+    }
+    for (Map.Entry<ObjectId, BitSet> e : flagsByTip.entrySet()) {
+      BitmapBuilder reachable = bitmaps.reachableFrom(e.getKey());
+      for (Tag tag : commitTags) {
+        if (reachable.contains(tag)) {
+          tag.refFlags.or(e.getValue());
+        }
+      }
+    }
+  }
+
+  /** Groups the flags of references by the commit they point to. */
+  private static Map<ObjectId, BitSet> flagsByTip(Map<String, CachedRef> refs) {
+    Map<ObjectId, BitSet> flagsByTip = new HashMap<>();
+    for (CachedRef r : refs.values()) {
+      flagsByTip.computeIfAbsent(r.get(), id -> new BitSet()).set(r.flag);
     }
+    return flagsByTip;
   }
 
   static TagSet fromProto(TagSetProto proto) {
@@ -286,36 +365,65 @@ class TagSet {
     return b.build();
   }
 
-  private boolean refresh(TagSet old, TagMatcher m) {
-    if (m.newRefs.isEmpty()) {
-      // No new references is a simple update. Copy from the old set.
-      copy(old, m);
-      return true;
-    }
-
+  private boolean refresh(Repository git, TagSet old, TagMatcher m) {
     // Only permit a refresh if all new references start from the tip of
-    // an existing references. This happens some of the time within a
-    // Gerrit Code Review server, perhaps about 50% of new references.
-    // Since a complete rebuild is so costly, try this approach first.
+    // an existing references, or if the repository has bitmaps to look up
+    // the tags reachable from them. Starting from an existing tip happens
+    // some of the time within a Gerrit Code Review server, perhaps about 50%
+    // of new references. Since a complete rebuild is so costly, try this
+    // approach first.
 
     Map<ObjectId, Integer> byObj = new HashMap<>();
     for (CachedRef r : old.refs.values()) {
-      ObjectId id = r.get();
-      if (!byObj.containsKey(id)) {
-        byObj.put(id, r.flag);
-      }
+      byObj.putIfAbsent(r.get(), r.flag);
     }
 
+    // Tags reachable from new references that don't start from an existing
+    // tip, or null for references to non-commits. All of them are computed
+    // before the old set is copied, so that a failure can still fall back to
+    // a complete rebuild.
+    Map<ObjectId, List<ObjectId>> tagsByNewTip = new HashMap<>();
     for (Ref newRef : m.newRefs) {
       ObjectId id = newRef.getObjectId();
-      if (id == null || refs.containsKey(newRef.getName())) {
-        continue;
-      } else if (!byObj.containsKey(id)) {
+      if (id != null && !byObj.containsKey(id)) {
+        tagsByNewTip.put(id, null);
+      }
+    }
+    if (tagsByNewTip.size() > MAX_BITMAP_TIPS) {
+      return false;
+    }
+    if (!tagsByNewTip.isEmpty()) {
+      try (BitmapReachability bitmaps = BitmapReachability.create(git)) {
+        if (bitmaps == null) {
+          return false;
+        }
+        List<Tag> commitTags = new ArrayList<>();
+        for (Tag tag : old.tags) {
+          if (bitmaps.isCommit(tag)) {
+            commitTags.add(tag);
+          }
+        }
+        for (Map.Entry<ObjectId, List<ObjectId>> e : tagsByNewTip.entrySet()) {
+          if (!bitmaps.isCommit(e.getKey())) {
+            // Like in a complete build, references to non-commits are not tracked.
+            continue;
+          }
+          BitmapBuilder reachable = bitmaps.reachableFrom(e.getKey());
+          List<ObjectId> reachableTags = new ArrayList<>();
+          for (Tag tag : commitTags) {
+            if (reachable.contains(tag)) {
+              reachableTags.add(tag);
+            }
+          }
+          e.setValue(reachableTags);
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Error refreshing tags of %s", projectName);
         return false;
       }
     }
 
-    copy(old, m);
+    Map<String, CachedRef> refs = copy(old, m);
 
     for (Ref newRef : m.newRefs) {
       ObjectId id = newRef.getObjectId();
@@ -323,35 +431,125 @@ class TagSet {
         continue;
       }
 
-      int srcFlag = byObj.get(id);
+      Integer srcFlag = byObj.get(id);
+      if (srcFlag == null && tagsByNewTip.get(id) == null) {
+        continue;
+      }
       int newFlag = refs.size();
       refs.put(newRef.getName(), new CachedRef(newRef, newFlag));
 
-      for (Tag tag : tags) {
-        if (tag.refFlags.get(srcFlag)) {
-          tag.refFlags.set(newFlag);
+      if (srcFlag != null) {
+        for (Tag tag : tags) {
+          if (tag.refFlags.get(srcFlag)) {
+            tag.refFlags.set(newFlag);
+          }
+        }
+      } else {
+        for (ObjectId tagId : tagsByNewTip.get(id)) {
+          tags.get(tagId).refFlags.set(newFlag);
+        }
+      }
+    }
+
+    this.refs = ImmutableMap.copyOf(refs);
+    return true;
+  }
+
+  /**
+   * Copies the old set and adds the tags that were created since it was built, looking up their
+   * reachability in the pack bitmaps.
+   *
+   * @return false if the repository has no bitmaps, or if the set has too many branch tips to look
+   *     them up, in which case the set must be rebuilt.
+   */
+  boolean refreshTags(Repository git, TagSet old) {
+    Map<ObjectId, BitSet> flagsByTip = flagsByTip(old.refs);
+    if (flagsByTip.size() > MAX_BITMAP_TIPS) {
+      return false;
+    }
+    Map<ObjectId, BitSet> newTags = new HashMap<>();
+    try (BitmapReachability bitmaps = BitmapReachability.create(git)) {
+      if (bitmaps == null) {
+        return false;
+      }
+      List<ObjectId> commitTags = new ArrayList<>();
+      RefDatabase refDb = git.getRefDatabase();
+      for (Ref ref : refDb.getRefsByPrefix(Constants.R_TAGS)) {
+        ObjectId id = peeledId(refDb, ref);
+        if (id == null || old.tags.contains(id) || newTags.containsKey(id)) {
+          continue;
+        }
+        newTags.put(id, new BitSet());
+        if (bitmaps.isCommit(id)) {
+          commitTags.add(id);
+        }
+      }
+      if (!commitTags.isEmpty()) {
+        for (Map.Entry<ObjectId, BitSet> e : flagsByTip.entrySet()) {
+          BitmapBuilder reachable = bitmaps.reachableFrom(e.getKey());
+          for (ObjectId id : commitTags) {
+            if (reachable.contains(id)) {
+              newTags.get(id).or(e.getValue());
+            }
+          }
         }
       }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Error adding new tags of %s", projectName);
+      return false;
     }
 
+    Map<String, CachedRef> refs = copy(old, null);
+    newTags.forEach((id, flags) -> tags.add(new Tag(id, flags)));
+    this.refs = ImmutableMap.copyOf(refs);
     return true;
   }
 
-  private void copy(TagSet old, TagMatcher m) {
-    refs.putAll(old.refs);
+  @Nullable
+  private static ObjectId peeledId(RefDatabase refDb, Ref ref) {
+    try {
+      ref = refDb.peel(ref);
+    } catch (IOException e) {
+      // Fall back to the unpeeled ref, like addTag.
+    }
+    ObjectId id = ref.getPeeledObjectId();
+    return id != null ? id : ref.getObjectId();
+  }
+
+  private Map<String, CachedRef> copy(TagSet old, @Nullable TagMatcher m) {
+    Map<String, CachedRef> refs = new HashMap<>(old.refs);
 
     for (Tag srcTag : old.tags) {
       BitSet mine = new BitSet();
       mine.or(srcTag.refFlags);
       tags.add(new Tag(srcTag, mine));
     }
+    if (m == null) {
+      return refs;
+    }
 
-    for (TagMatcher.LostRef lost : m.lostRefs) {
+    for (TagMatcher.TagFlag lost : m.lostRefs) {
       Tag mine = tags.get(lost.tag);
       if (mine != null) {
         mine.refFlags.clear(lost.flag);
       }
     }
+    for (TagMatcher.TagFlag gained : m.gainedRefs) {
+      Tag mine = tags.get(gained.tag);
+      if (mine != null) {
+        mine.refFlags.set(gained.flag);
+      }
+    }
+
+    // The old set may still be used by other threads, so it keeps its
+    // CachedRefs, which match the flags of its tags.
+    for (Ref moved : m.movedRefs) {
+      CachedRef r = refs.get(moved.getName());
+      if (r != null) {
+        refs.put(moved.getName(), new CachedRef(moved, r.flag));
+      }
+    }
+    return refs;
   }
 
   private void addTag(TagWalk rw, Ref ref) {
@@ -374,7 +572,7 @@ class TagSet {
     }
   }
 
-  private void addRef(TagWalk rw, Ref ref) {
+  private void addRef(TagWalk rw, Ref ref, Map<String, CachedRef> refs) {
     try {
       TagCommit commit = (TagCommit) rw.parseCommit(ref.getObjectId());
       rw.markStart(commit);
@@ -458,6 +656,54 @@ class TagSet {
     }
   }
 
+  /** Looks up the objects reachable from commits in the pack bitmaps of a repository. */
+  private static final class BitmapReachability implements AutoCloseable {
+    /** Returns null if the repository has no bitmaps. */
+    @Nullable
+    static BitmapReachability create(Repository git) throws IOException {
+      ObjectReader reader = git.newObjectReader();
+      BitmapIndex bitmapIndex = reader.getBitmapIndex();
+      if (bitmapIndex == null) {
+        reader.close();
+        return null;
+      }
+      return new BitmapReachability(reader, bitmapIndex);
+    }
+
+    private final ObjectReader reader;
+    private final RevWalk rw;
+    private final BitmapWalker walker;
+
+    private BitmapReachability(ObjectReader reader, BitmapIndex bitmapIndex) {
+      this.reader = reader;
+      this.rw = new RevWalk(reader);
+      this.walker =
+          new BitmapWalker(new ObjectWalk(reader), bitmapIndex, NullProgressMonitor.INSTANCE);
+    }
+
+    /**
+     * Returns the objects reachable from the commit. Commits which are newer than the bitmaps are
+     * walked until they reach commits with bitmaps.
+     */
+    BitmapBuilder reachableFrom(ObjectId commit) throws IOException {
+      return walker.findObjects(ImmutableList.of(commit), null, true);
+    }
+
+    boolean isCommit(AnyObjectId id) throws IOException {
+      try {
+        return rw.parseAny(id) instanceof RevCommit;
+      } catch (MissingObjectException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public void close() {
+      rw.close();
+      reader.close();
+    }
+  }
+
   private static final class TagWalk extends RevWalk {
     TagWalk(Repository git) {
       super(git);
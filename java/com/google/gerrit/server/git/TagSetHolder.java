@@ -57,7 +57,7 @@ public class TagSetHolder {
 
     TagMatcher m = new TagMatcher(this, cache, db, include, tags, false);
     tags.prepare(m);
-    if (!m.newRefs.isEmpty() || !m.lostRefs.isEmpty()) {
+    if (!m.newRefs.isEmpty() || !m.movedRefs.isEmpty()) {
       tags = rebuild(cache, db, tags, m);
 
       m = new TagMatcher(this, cache, db, include, tags, true);
@@ -66,14 +66,70 @@ public class TagSetHolder {
     return m;
   }
 
-  void rebuildForNewTags(TagCache cache, TagMatcher m) {
-    m.tags = rebuild(cache, m.db, m.tags, null);
+  /**
+   * Adds tags that were created after the tag set of the matcher was built.
+   *
+   * <p>If the repository has no bitmaps, the set has to be rebuilt from scratch. This is done in
+   * the background if possible, so that readers don't wait for it.
+   *
+   * @return false if the set is rebuilt in the background, and the matcher keeps using its set.
+   */
+  boolean rebuildForNewTags(TagCache cache, TagMatcher m) {
+    TagSet old = m.tags;
+    TagSet cur;
+    synchronized (buildLock) {
+      cur = this.tags;
+      if (cur == old) {
+        cur = new TagSet(projectName);
+        if (!cur.refreshTags(m.db, old)) {
+          if (cache.rebuildInBackground(this)) {
+            return false;
+          }
+          cur.build(m.db, null, null);
+        }
+        this.tags = cur;
+        cache.put(projectName, this);
+      }
+    }
+    use(cur, m);
+    return true;
+  }
+
+  /**
+   * Waits until a rebuild of the set in the background is done, and lets the matcher use the
+   * current set.
+   */
+  void awaitRebuildInBackground(TagCache cache, TagMatcher m) {
+    cache.awaitRebuildInBackground(projectName);
+    TagSet cur = this.tags;
+    if (cur != m.tags) {
+      use(cur, m);
+    }
+  }
+
+  private static void use(TagSet cur, TagMatcher m) {
+    m.tags = cur;
     m.mask.clear();
     m.newRefs.clear();
     m.lostRefs.clear();
+    m.gainedRefs.clear();
+    m.movedRefs.clear();
     m.tags.prepare(m);
   }
 
+  /**
+   * Builds a new tag set from scratch and replaces the current one. The build lock is only held to
+   * publish the new set, so that readers aren't blocked while the set is built.
+   */
+  void rebuildFromScratch(TagCache cache, Repository db) {
+    TagSet tags = new TagSet(projectName);
+    tags.build(db, null, null);
+    synchronized (buildLock) {
+      this.tags = tags;
+      cache.put(projectName, this);
+    }
+  }
+
   private TagSet build(TagCache cache, Repository db) {
     synchronized (buildLock) {
       TagSet tags = this.tags;
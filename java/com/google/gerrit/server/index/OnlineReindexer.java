@@ -15,6 +15,8 @@
 package com.google.gerrit.server.index;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.common.collect.Lists;
 import com.google.common.flogger.FluentLogger;
@@ -22,8 +24,14 @@ import com.google.gerrit.index.Index;
 import com.google.gerrit.index.IndexCollection;
 import com.google.gerrit.index.IndexDefinition;
 import com.google.gerrit.index.SiteIndexer;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.plugincontext.PluginSetContext;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -40,45 +48,91 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
   private final int oldVersion;
   private final int newVersion;
   private final PluginSetContext<OnlineUpgradeListener> listeners;
+  private final Executor executor;
+  private final ReindexCheckpoint checkpoint;
+  private final ReindexFingerprints fingerprints;
   private I index;
   private final AtomicBoolean running = new AtomicBoolean();
+  private volatile long startNanos;
+  private volatile int doneAtStart;
 
   public OnlineReindexer(
       IndexDefinition<K, V, I> def,
       int oldVersion,
       int newVersion,
-      PluginSetContext<OnlineUpgradeListener> listeners) {
+      PluginSetContext<OnlineUpgradeListener> listeners,
+      SitePaths sitePaths,
+      Executor executor,
+      MetricMaker metricMaker) {
     this.name = def.getName();
     this.indexes = def.getIndexCollection();
     this.batchIndexer = def.getSiteIndexer();
     this.oldVersion = oldVersion;
     this.newVersion = newVersion;
     this.listeners = listeners;
+    this.executor = executor;
+    this.checkpoint = new ReindexCheckpoint(sitePaths, name, newVersion);
+    this.fingerprints = new ReindexFingerprints(sitePaths, name, newVersion);
+
+    String prefix = "index/online_reindex/" + name + "/";
+    metricMaker.newCallbackMetric(
+        prefix + "done_count",
+        Integer.class,
+        new Description("Documents indexed by the running online reindex").setGauge(),
+        () -> running.get() ? checkpoint.getDoneCount() : 0);
+    metricMaker.newCallbackMetric(
+        prefix + "total_count",
+        Integer.class,
+        new Description("Documents to index by the running online reindex").setGauge(),
+        () -> running.get() ? Math.max(batchIndexer.getTotalWork(), 0) : 0);
+    metricMaker.newCallbackMetric(
+        prefix + "eta",
+        Long.class,
+        new Description("Estimated time until the running online reindex is done")
+            .setGauge()
+            .setUnit(Units.SECONDS),
+        () -> running.get() ? estimateRemainingSeconds() : 0L);
   }
 
   /** Starts the background process. */
   public void start() {
+    start(false);
+  }
+
+  /**
+   * Starts the background process.
+   *
+   * @param reuseExistingDocuments whether to skip documents which are known to be up to date, if
+   *     the index version is reindexed which is already in use.
+   */
+  public void start(boolean reuseExistingDocuments) {
     if (running.compareAndSet(false, true)) {
-      Thread t =
-          new Thread(
-              () -> {
-                boolean ok = false;
-                try {
-                  reindex();
-                  ok = true;
-                } catch (RuntimeException e) {
-                  logger.atSevere().withCause(e).log(
-                      "Online reindex of %s schema version %s failed", name, version(index));
-                } finally {
-                  running.set(false);
-                  if (!ok) {
-                    listeners.runEach(listener -> listener.onFailure(name, oldVersion, newVersion));
-                  }
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              boolean ok = false;
+              try {
+                reindex(reuseExistingDocuments);
+                ok = true;
+              } catch (RuntimeException e) {
+                logger.atSevere().withCause(e).log(
+                    "Online reindex of %s schema version %s failed", name, version(index));
+              } finally {
+                running.set(false);
+                if (!ok) {
+                  listeners.runEach(listener -> listener.onFailure(name, oldVersion, newVersion));
                 }
-              });
-      t.setName(
-          String.format("Reindex %s v%d-v%d", name, version(indexes.getSearchIndex()), newVersion));
-      t.start();
+              }
+            }
+
+            @Override
+            public String toString() {
+              return String.format(
+                  "Reindex %s v%d-v%d%s",
+                  name, version(indexes.getSearchIndex()), newVersion, progress());
+            }
+          });
     }
   }
 
@@ -96,7 +150,33 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
     return i.getSchema().getVersion();
   }
 
-  private void reindex() {
+  private String progress() {
+    int total = batchIndexer.getTotalWork();
+    if (total <= 0) {
+      return "";
+    }
+    int done = checkpoint.getDoneCount();
+    long eta = estimateRemainingSeconds();
+    return String.format(
+        ": %d/%d (%d%%)%s",
+        done,
+        total,
+        100L * done / total,
+        eta > 0 ? String.format(", %d min left", Math.max(1, SECONDS.toMinutes(eta))) : "");
+  }
+
+  private long estimateRemainingSeconds() {
+    int total = batchIndexer.getTotalWork();
+    int done = checkpoint.getDoneCount();
+    long elapsedNanos = System.nanoTime() - startNanos;
+    int doneInThisRun = done - doneAtStart;
+    if (total <= 0 || doneInThisRun <= 0 || done >= total) {
+      return 0;
+    }
+    return NANOSECONDS.toSeconds((long) ((double) elapsedNanos / doneInThisRun * (total - done)));
+  }
+
+  private void reindex(boolean reuseExistingDocuments) {
     listeners.runEach(listener -> listener.onStart(name, oldVersion, newVersion));
     index =
         requireNonNull(
@@ -106,10 +186,57 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
         "Starting online reindex of %s from schema version %s to %s",
         name, version(indexes.getSearchIndex()), version(index));
 
-    if (oldVersion != newVersion) {
+    boolean resume = false;
+    if (oldVersion != newVersion && checkpoint.exists()) {
+      try {
+        checkpoint.load();
+        resume = true;
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log(
+            "Cannot read reindex checkpoint of %s, starting over", name);
+      }
+    }
+    // Only a reindex into a new, not yet used index version can be resumed after a restart.
+    boolean useCheckpoint = oldVersion != newVersion;
+    if (!resume) {
+      try {
+        // Also resets anything which was loaded partially.
+        checkpoint.delete();
+      } catch (IOException e) {
+        // Recording new parts next to the stale ones would make a later run skip parts whose
+        // documents are deleted below.
+        logger.atWarning().withCause(e).log("Cannot delete reindex checkpoint of %s", name);
+        useCheckpoint = false;
+      }
+    }
+    if (resume) {
+      logger.atInfo().log(
+          "Resuming online reindex of %s schema version %s after %d documents",
+          name, version(index), checkpoint.getDoneCount());
+    } else if (oldVersion != newVersion) {
       index.deleteAll();
+      try {
+        fingerprints.delete();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot delete reindex fingerprints of %s", name);
+      }
+    }
+
+    batchIndexer.setTotalWork(-1);
+    doneAtStart = checkpoint.getDoneCount();
+    startNanos = System.nanoTime();
+    SiteIndexer.Result result;
+    if (useCheckpoint) {
+      batchIndexer.setCheckpoint(checkpoint);
+    }
+    // Documents can only be reused if they were not deleted above.
+    batchIndexer.setReuseExistingDocuments(reuseExistingDocuments && oldVersion == newVersion);
+    try {
+      result = batchIndexer.indexAll(index);
+    } finally {
+      batchIndexer.setCheckpoint(SiteIndexer.Checkpoint.NONE);
+      batchIndexer.setReuseExistingDocuments(false);
     }
-    SiteIndexer.Result result = batchIndexer.indexAll(index);
     if (!result.success()) {
       logger.atSevere().log(
           "Online reindex of %s schema version %s failed. Successfully"
@@ -119,6 +246,11 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
     }
     logger.atInfo().log("Reindex %s to version %s complete", name, version(index));
     activateIndex();
+    try {
+      checkpoint.delete();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete reindex checkpoint of %s", name);
+    }
     listeners.runEach(listener -> listener.onSuccess(name, oldVersion, newVersion));
   }
 
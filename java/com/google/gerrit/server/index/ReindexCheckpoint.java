@@ -0,0 +1,108 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.primitives.Ints;
+import com.google.gerrit.index.SiteIndexer;
+import com.google.gerrit.server.config.SitePaths;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+
+/**
+ * {@link SiteIndexer.Checkpoint} which is stored in a file in the index directory of the site.
+ *
+ * <p>Every indexed part is appended to the file as a line, so that an online reindex which was
+ * interrupted by a restart of the server can skip the parts it indexed before.
+ */
+public class ReindexCheckpoint implements SiteIndexer.Checkpoint {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Path file;
+  private final Map<String, Integer> done = new HashMap<>();
+  private int doneCount;
+
+  public ReindexCheckpoint(SitePaths sitePaths, String indexName, int version) {
+    this.file =
+        sitePaths.index_dir.resolve(
+            String.format("reindex_%s_%04d.checkpoint", indexName, version));
+  }
+
+  /** Returns whether an earlier reindex of this index version recorded any parts. */
+  public boolean exists() {
+    return Files.exists(file);
+  }
+
+  /** Loads the parts recorded by an earlier reindex of this index version. */
+  public synchronized void load() throws IOException {
+    done.clear();
+    doneCount = 0;
+    try {
+      for (String line : Files.readAllLines(file, UTF_8)) {
+        int sep = line.indexOf(' ');
+        Integer count = sep > 0 ? Ints.tryParse(line.substring(0, sep)) : null;
+        if (count == null) {
+          // Possibly a partially written last line.
+          logger.atWarning().log("Ignoring invalid line in %s: %s", file, line);
+          continue;
+        }
+        done.put(line.substring(sep + 1), count);
+        doneCount += count;
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing recorded yet.
+    }
+  }
+
+  /** Deletes all recorded parts. */
+  public synchronized void delete() throws IOException {
+    done.clear();
+    doneCount = 0;
+    Files.deleteIfExists(file);
+  }
+
+  /** Returns the number of entities in all recorded parts. */
+  public synchronized int getDoneCount() {
+    return doneCount;
+  }
+
+  @Override
+  public synchronized OptionalInt doneCount(String part) {
+    Integer count = done.get(part);
+    return count != null ? OptionalInt.of(count) : OptionalInt.empty();
+  }
+
+  @Override
+  public synchronized void markDone(String part, int count) {
+    try {
+      Files.write(file, ImmutableList.of(count + " " + part), UTF_8, CREATE, APPEND);
+    } catch (IOException e) {
+      // Not fatal, the part is just indexed again if the reindex is resumed.
+      logger.atWarning().withCause(e).log("Cannot record indexed %s in %s", part, file);
+    }
+    done.put(part, count);
+    doneCount += count;
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.config.SitePaths;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fingerprints of the state from which groups of documents of an index version were built, e.g.
+ * of the change refs of each project.
+ *
+ * <p>A reindex which reuses existing documents skips the groups whose fingerprint did not change
+ * since they were indexed last. The fingerprints are stored in a file in the index directory of
+ * the site, and must be deleted whenever the documents of the index version are deleted.
+ */
+public class ReindexFingerprints {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Path file;
+
+  public ReindexFingerprints(SitePaths sitePaths, String indexName, int version) {
+    this.file =
+        sitePaths.index_dir.resolve(
+            String.format("reindex_%s_%04d.fingerprints", indexName, version));
+  }
+
+  /** Returns whether fingerprints are stored. */
+  public boolean exists() {
+    return Files.exists(file);
+  }
+
+  /** Returns the stored fingerprints by key, or an empty map if none are stored. */
+  public ImmutableMap<String, String> load() throws IOException {
+    Map<String, String> fingerprints = new HashMap<>();
+    try {
+      for (String line : Files.readAllLines(file, UTF_8)) {
+        int sep = line.indexOf(' ');
+        if (sep <= 0) {
+          logger.atWarning().log("Ignoring invalid line in %s: %s", file, line);
+          continue;
+        }
+        fingerprints.put(line.substring(sep + 1), line.substring(0, sep));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing stored yet.
+    }
+    return ImmutableMap.copyOf(fingerprints);
+  }
+
+  /** Replaces the stored fingerprints. */
+  public void save(Map<String, String> fingerprints) throws IOException {
+    List<String> lines = new ArrayList<>(fingerprints.size());
+    fingerprints.forEach((key, fingerprint) -> lines.add(fingerprint + " " + key));
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(tmp, lines, UTF_8);
+    Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /** Deletes the stored fingerprints. */
+  public void delete() throws IOException {
+    Files.deleteIfExists(file);
+  }
+}
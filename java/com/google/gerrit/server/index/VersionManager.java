@@ -26,7 +26,9 @@ import com.google.gerrit.index.IndexCollection;
 import com.google.gerrit.index.IndexDefinition;
 import com.google.gerrit.index.IndexDefinition.IndexFactory;
 import com.google.gerrit.index.Schema;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.plugincontext.PluginSetContext;
 import com.google.inject.ProvisionException;
 import java.io.IOException;
@@ -34,6 +36,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
 
@@ -63,6 +66,8 @@ public abstract class VersionManager implements LifecycleListener {
   protected final SitePaths sitePaths;
 
   private final PluginSetContext<OnlineUpgradeListener> listeners;
+  private final MetricMaker metricMaker;
+  private final Executor reindexExecutor;
 
   // The following fields must be accessed synchronized on this.
   protected final Map<String, IndexDefinition<?, ?, ?>> defs;
@@ -72,9 +77,15 @@ public abstract class VersionManager implements LifecycleListener {
       SitePaths sitePaths,
       PluginSetContext<OnlineUpgradeListener> listeners,
       Collection<IndexDefinition<?, ?, ?>> defs,
-      boolean onlineUpgrade) {
+      boolean onlineUpgrade,
+      WorkQueue workQueue,
+      MetricMaker metricMaker) {
     this.sitePaths = sitePaths;
     this.listeners = listeners;
+    this.metricMaker = metricMaker;
+    // Online reindexers run in a queue of their own, which lists them with their progress in
+    // show-queue.
+    this.reindexExecutor = workQueue.createQueue(defs.size(), "OnlineReindex");
     this.defs = Maps.newHashMapWithExpectedSize(defs.size());
     for (IndexDefinition<?, ?, ?> def : defs) {
       this.defs.put(def.getName(), def);
@@ -111,10 +122,26 @@ public abstract class VersionManager implements LifecycleListener {
    */
   public synchronized boolean startReindexer(String name, boolean force)
       throws ReindexerAlreadyRunningException {
+    return startReindexer(name, force, false);
+  }
+
+  /**
+   * Start the online reindexer if the current index is not already the latest.
+   *
+   * @param name index name
+   * @param force start re-index
+   * @param reuseExistingDocuments skip documents which are up to date, if the current index is
+   *     reindexed
+   * @return true if started, otherwise false.
+   * @throws ReindexerAlreadyRunningException
+   */
+  public synchronized boolean startReindexer(
+      String name, boolean force, boolean reuseExistingDocuments)
+      throws ReindexerAlreadyRunningException {
     OnlineReindexer<?, ?, ?> reindexer = reindexers.get(name);
     validateReindexerNotRunning(reindexer);
     if (force || !isLatestIndexVersion(name, reindexer)) {
-      reindexer.start();
+      reindexer.start(reuseExistingDocuments);
       return true;
     }
     return false;
@@ -192,7 +219,8 @@ public abstract class VersionManager implements LifecycleListener {
       if (!reindexers.containsKey(def.getName())) {
         int latest = write.get(0).version;
         OnlineReindexer<K, V, I> reindexer =
-            new OnlineReindexer<>(def, search.version, latest, listeners);
+            new OnlineReindexer<>(
+                def, search.version, latest, listeners, sitePaths, reindexExecutor, metricMaker);
         reindexers.put(def.getName(), reindexer);
       }
     }
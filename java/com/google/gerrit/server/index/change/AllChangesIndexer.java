@@ -19,9 +19,19 @@ import static com.google.common.util.concurrent.Futures.successfulAsList;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gerrit.server.git.QueueProvider.QueueType.BATCH;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Sets;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -29,27 +39,42 @@ import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.index.SiteIndexer;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MultiProgressMonitor;
 import com.google.gerrit.server.git.MultiProgressMonitor.Task;
 import com.google.gerrit.server.index.IndexExecutor;
 import com.google.gerrit.server.index.OnlineReindexMode;
+import com.google.gerrit.server.index.ReindexFingerprints;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.notedb.ChangeNotes.Factory.ChangeNotesResult;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 
@@ -68,6 +93,9 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
   private final ChangeIndexer.Factory indexerFactory;
   private final ChangeNotes.Factory notesFactory;
   private final ProjectCache projectCache;
+  private final SitePaths sitePaths;
+  private final Provider<InternalChangeQuery> queryProvider;
+  private final AllUsersName allUsersName;
 
   @Inject
   AllChangesIndexer(
@@ -76,13 +104,19 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
       @IndexExecutor(BATCH) ListeningExecutorService executor,
       ChangeIndexer.Factory indexerFactory,
       ChangeNotes.Factory notesFactory,
-      ProjectCache projectCache) {
+      ProjectCache projectCache,
+      SitePaths sitePaths,
+      Provider<InternalChangeQuery> queryProvider,
+      AllUsersName allUsersName) {
     this.changeDataFactory = changeDataFactory;
     this.repoManager = repoManager;
     this.executor = executor;
     this.indexerFactory = indexerFactory;
     this.notesFactory = notesFactory;
     this.projectCache = projectCache;
+    this.sitePaths = sitePaths;
+    this.queryProvider = queryProvider;
+    this.allUsersName = allUsersName;
   }
 
   private static class ProjectSlice {
@@ -107,6 +141,16 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     public int getSlices() {
       return slices;
     }
+
+    /** Key of this slice in the {@link SiteIndexer.Checkpoint}. */
+    String checkpointPart() {
+      return slice + "/" + slices + " " + name.get();
+    }
+  }
+
+  @Override
+  public boolean canReuseExistingDocuments() {
+    return true;
   }
 
   @Override
@@ -117,8 +161,52 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     int changeCount = 0;
     Stopwatch sw = Stopwatch.createStarted();
     int projectsFailed = 0;
-    for (Project.NameKey name : projectCache.all()) {
+    ReindexFingerprints fingerprintStore =
+        new ReindexFingerprints(
+            sitePaths, ChangeSchemaDefinitions.NAME, index.getSchema().getVersion());
+    Map<String, String> previousFingerprints = ImmutableMap.of();
+    if (reuseExistingDocuments) {
+      try {
+        previousFingerprints = fingerprintStore.load();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot read fingerprints of projects, indexing all");
+      }
+    }
+    ListMultimap<Change.Id, Ref> userRefs;
+    try {
+      userRefs = userRefsByChange();
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Error collecting draft comments and stars");
+      return Result.create(sw, false, 0, 0);
+    }
+    Map<String, String> fingerprints = new HashMap<>();
+    int projectsUnchanged = 0;
+    // Projects whose documents may include changes which no longer exist.
+    Set<Project.NameKey> projectsToClean = new HashSet<>();
+    Set<Project.NameKey> allProjects = projectCache.all();
+    for (String name : previousFingerprints.keySet()) {
+      Project.NameKey project = Project.nameKey(name);
+      if (!allProjects.contains(project)) {
+        projectsToClean.add(project);
+      }
+    }
+    for (Project.NameKey name : allProjects) {
       try (Repository repo = repoManager.openRepository(name)) {
+        List<Ref> changeRefs = repo.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES);
+        String fingerprint = fingerprint(changeRefs, userRefs);
+        fingerprints.put(name.get(), fingerprint);
+        if (fingerprint.equals(previousFingerprints.get(name.get()))) {
+          // No change of this project was updated since it was indexed last, and its documents
+          // were kept up to date by the regular indexing.
+          projectsUnchanged++;
+          pm.update(1);
+          continue;
+        }
+
+        if (reuseExistingDocuments) {
+          projectsToClean.add(name);
+        }
+
         // The simplest approach to distribute indexing would be to let each thread grab a project
         // and index it fully. But if a site has one big project and 100s of small projects, then
         // in the beginning all CPUs would be busy reindexing projects. But soon enough all small
@@ -133,7 +221,7 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
         // which had 2 big projects, many middle sized ones, and lots of smaller ones, the
         // splitting of repos into smaller parts reduced indexing time from 1.5 hours to 55 minutes
         // in 2020.
-        int size = estimateSize(repo);
+        int size = estimateSize(changeRefs);
         changeCount += size;
         int slices = 1 + size / PROJECT_SLICE_MAX_REFS;
         if (slices > 1) {
@@ -154,6 +242,11 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     }
     pm.endTask();
     setTotalWork(changeCount);
+    if (projectsUnchanged > 0) {
+      logger.atInfo().log(
+          "Skipping %d projects whose changes are unchanged since they were indexed",
+          projectsUnchanged);
+    }
 
     // projectSlices are currently grouped by projects. First all slices for project1, followed
     // by all slices for project2, and so on. As workers pick tasks sequentially, multiple threads
@@ -162,15 +255,117 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     // different slices are less likely to be worked on concurrently.
     // This shuffling gave a 6% runtime reduction for Wikimedia's Gerrit in 2020.
     Collections.shuffle(projectSlices);
-    return indexAll(index, projectSlices);
+    Set<Project.NameKey> failedProjects = Sets.newConcurrentHashSet();
+    Result result = indexAll(index, projectSlices, failedProjects);
+    if (reuseExistingDocuments) {
+      // Documents were not deleted before indexing, so remove those of changes which no longer
+      // exist.
+      deleteMissingChanges(index, projectsToClean);
+    }
+
+    // Only remember projects which were indexed completely.
+    failedProjects.forEach(p -> fingerprints.remove(p.get()));
+    try {
+      fingerprintStore.save(fingerprints);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot store fingerprints of indexed projects");
+    }
+    return result;
+  }
+
+  /**
+   * Deletes the documents of changes of the given projects whose meta ref doesn't exist anymore.
+   *
+   * <p>The meta refs are checked rather than the changes which were scanned, so that changes which
+   * were created concurrently by an online reindex are kept.
+   */
+  private void deleteMissingChanges(ChangeIndex index, Set<Project.NameKey> projects) {
+    int deleted = 0;
+    for (Project.NameKey project : projects) {
+      try {
+        List<ChangeData> documents = queryProvider.get().noFields().byProject(project);
+        if (documents.isEmpty()) {
+          continue;
+        }
+        Set<String> metaRefs = new HashSet<>();
+        try (Repository repo = repoManager.openRepository(project)) {
+          for (Ref ref : repo.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES)) {
+            metaRefs.add(ref.getName());
+          }
+        } catch (RepositoryNotFoundException e) {
+          // The project was deleted, and all of its changes with it.
+        }
+        for (ChangeData cd : documents) {
+          if (!metaRefs.contains(RefNames.changeMetaRef(cd.getId()))) {
+            index.delete(cd.getId());
+            deleted++;
+          }
+        }
+      } catch (IOException | StorageException e) {
+        logger.atWarning().withCause(e).log(
+            "Cannot delete documents of missing changes of project %s", project);
+      }
+    }
+    if (deleted > 0) {
+      logger.atInfo().log("Deleted %d documents of changes which no longer exist", deleted);
+    }
+  }
+
+  /**
+   * Returns the draft comment and star refs in All-Users by change. Like the meta refs, they are
+   * part of the {@link com.google.gerrit.index.RefState} of the documents of their changes.
+   */
+  private ListMultimap<Change.Id, Ref> userRefsByChange() throws IOException {
+    ListMultimap<Change.Id, Ref> refs = MultimapBuilder.hashKeys().arrayListValues().build();
+    try (Repository repo = repoManager.openRepository(allUsersName)) {
+      for (Ref ref :
+          repo.getRefDatabase()
+              .getRefsByPrefix(RefNames.REFS_DRAFT_COMMENTS, RefNames.REFS_STARRED_CHANGES)) {
+        Change.Id id = Change.Id.fromAllUsersRef(ref.getName());
+        if (id != null) {
+          refs.put(id, ref);
+        }
+      }
+    }
+    return refs;
   }
 
-  private int estimateSize(Repository repo) throws IOException {
+  /**
+   * Fingerprint of the change meta refs of a project and of the draft comment and star refs of its
+   * changes, which changes with every update of the data the documents are based on.
+   */
+  private static String fingerprint(List<Ref> changeRefs, ListMultimap<Change.Id, Ref> userRefs) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+    Consumer<Ref> putRef =
+        r -> {
+          h.putString(r.getName(), UTF_8);
+          r.getObjectId().copyRawTo(buf, 0);
+          h.putBytes(buf);
+        };
+    changeRefs.stream()
+        .filter(r -> r.getName().endsWith(RefNames.META_SUFFIX) && r.getObjectId() != null)
+        .sorted(comparing(Ref::getName))
+        .forEach(
+            r -> {
+              putRef.accept(r);
+              Change.Id id = Change.Id.fromRef(r.getName());
+              if (id != null) {
+                userRefs.get(id).stream()
+                    .filter(u -> u.getObjectId() != null)
+                    .sorted(comparing(Ref::getName))
+                    .forEach(putRef);
+              }
+            });
+    return h.hash().toString();
+  }
+
+  private static int estimateSize(List<Ref> changeRefs) {
     // Estimate size based on IDs that show up in ref names. This is not perfect, since patch set
     // refs may exist for changes whose metadata was never successfully stored. But that's ok, as
     // the estimate is just used as a heuristic for sorting projects.
     long size =
-        repo.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES).stream()
+        changeRefs.stream()
             .map(r -> Change.Id.fromRef(r.getName()))
             .filter(Objects::nonNull)
             .distinct()
@@ -178,7 +373,8 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     return Ints.saturatedCast(size);
   }
 
-  private SiteIndexer.Result indexAll(ChangeIndex index, List<ProjectSlice> projectSlices) {
+  private SiteIndexer.Result indexAll(
+      ChangeIndex index, List<ProjectSlice> projectSlices, Set<Project.NameKey> failedProjects) {
     Stopwatch sw = Stopwatch.createStarted();
     MultiProgressMonitor mpm = new MultiProgressMonitor(progressOut, "Reindexing changes");
     Task projTask = mpm.beginSubTask("project-slices", projectSlices.size());
@@ -188,25 +384,43 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
 
     List<ListenableFuture<?>> futures = new ArrayList<>();
     AtomicBoolean ok = new AtomicBoolean(true);
+    CommittingCheckpoint committingCheckpoint = new CommittingCheckpoint(index, checkpoint);
 
+    int resumed = 0;
     for (ProjectSlice projectSlice : projectSlices) {
       Project.NameKey name = projectSlice.getName();
       int slice = projectSlice.getSlice();
       int slices = projectSlice.getSlices();
+      OptionalInt alreadyDone = checkpoint.doneCount(projectSlice.checkpointPart());
+      if (alreadyDone.isPresent()) {
+        // Indexed by an earlier run which was interrupted.
+        doneTask.update(alreadyDone.getAsInt());
+        projTask.update(1);
+        resumed++;
+        continue;
+      }
       ListenableFuture<?> future =
           executor.submit(
-              reindexProject(
+              new ProjectIndexer(
                   indexerFactory.create(executor, index),
                   name,
                   slice,
                   slices,
                   doneTask,
-                  failedTask));
+                  failedTask,
+                  committingCheckpoint,
+                  failedProjects));
       String description = "project " + name + " (" + slice + "/" + slices + ")";
       addErrorListener(future, description, projTask, ok);
       futures.add(future);
     }
 
+    if (resumed > 0) {
+      logger.atInfo().log(
+          "Skipped %d of %d project slices which were indexed before",
+          resumed, projectSlices.size());
+    }
+
     try {
       mpm.waitFor(
           transform(
@@ -219,6 +433,8 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     } catch (UncheckedExecutionException e) {
       logger.atSevere().withCause(e).log("Error in batch indexer");
       ok.set(false);
+    } finally {
+      committingCheckpoint.commit();
     }
     // If too many changes failed, maybe there was a bug in the indexer. Don't
     // trust the results. This is not an exact percentage since we bump the same
@@ -236,6 +452,61 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     return Result.create(sw, ok.get(), nDone, nFailed);
   }
 
+  /**
+   * Records slices in the checkpoint only after their documents were committed to the index.
+   *
+   * <p>Lucene commits writes only periodically. If a slice were recorded right after it was
+   * indexed, a crash could lose its documents while a resumed reindex would skip it. Committing
+   * after every slice would be too expensive, so finished slices are collected and recorded with
+   * the next commit, which is done at most once a minute.
+   */
+  private static class CommittingCheckpoint implements Checkpoint {
+    private static final long COMMIT_INTERVAL_NANOS = MINUTES.toNanos(1);
+
+    private final ChangeIndex index;
+    private final Checkpoint checkpoint;
+    private final Map<String, Integer> uncommitted = new LinkedHashMap<>();
+    private long lastCommit = System.nanoTime();
+
+    CommittingCheckpoint(ChangeIndex index, Checkpoint checkpoint) {
+      this.index = index;
+      this.checkpoint = checkpoint;
+    }
+
+    @Override
+    public OptionalInt doneCount(String part) {
+      return checkpoint.doneCount(part);
+    }
+
+    @Override
+    public synchronized void markDone(String part, int count) {
+      if (checkpoint == Checkpoint.NONE) {
+        return;
+      }
+      uncommitted.put(part, count);
+      if (System.nanoTime() - lastCommit >= COMMIT_INTERVAL_NANOS) {
+        commit();
+      }
+    }
+
+    /** Commits the index and records all slices which were indexed before. */
+    synchronized void commit() {
+      if (uncommitted.isEmpty()) {
+        return;
+      }
+      try {
+        index.commit();
+      } catch (RuntimeException e) {
+        // The slices are recorded with the next successful commit, or indexed again on resume.
+        logger.atWarning().withCause(e).log("Cannot commit change index");
+        return;
+      }
+      uncommitted.forEach(checkpoint::markDone);
+      uncommitted.clear();
+      lastCommit = System.nanoTime();
+    }
+  }
+
   public Callable<Void> reindexProject(
       ChangeIndexer indexer, Project.NameKey project, Task done, Task failed) {
     return reindexProject(indexer, project, 0, 1, done, failed);
@@ -248,7 +519,8 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
       int slices,
       Task done,
       Task failed) {
-    return new ProjectIndexer(indexer, project, slice, slices, done, failed);
+    return new ProjectIndexer(
+        indexer, project, slice, slices, done, failed, Checkpoint.NONE, new HashSet<>());
   }
 
   private class ProjectIndexer implements Callable<Void> {
@@ -258,6 +530,10 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     private final int slices;
     private final ProgressMonitor done;
     private final ProgressMonitor failed;
+    private final Checkpoint checkpoint;
+    private final Set<Project.NameKey> failedProjects;
+    private int indexed;
+    private int failedInSlice;
 
     private ProjectIndexer(
         ChangeIndexer indexer,
@@ -265,17 +541,23 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
         int slice,
         int slices,
         ProgressMonitor done,
-        ProgressMonitor failed) {
+        ProgressMonitor failed,
+        Checkpoint checkpoint,
+        Set<Project.NameKey> failedProjects) {
       this.indexer = indexer;
       this.project = project;
       this.slice = slice;
       this.slices = slices;
       this.done = done;
       this.failed = failed;
+      this.checkpoint = checkpoint;
+      this.failedProjects = failedProjects;
     }
 
     @Override
     public Void call() throws Exception {
+      Stopwatch sw = Stopwatch.createStarted();
+      boolean complete = false;
       try (Repository repo = repoManager.openRepository(project)) {
         OnlineReindexMode.begin();
 
@@ -285,11 +567,22 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
         // but the goal is to invalidate that cache as infrequently as we possibly can. And besides,
         // we don't have concrete proof that improving packfile locality would help.
         notesFactory.scan(repo, project, id -> (id.get() % slices) == slice).forEach(r -> index(r));
+        if (failedInSlice == 0) {
+          checkpoint.markDone(new ProjectSlice(project, slice, slices).checkpointPart(), indexed);
+          complete = true;
+        }
       } catch (RepositoryNotFoundException rnfe) {
         logger.atSevere().log(rnfe.getMessage());
       } finally {
         OnlineReindexMode.end();
+        if (!complete) {
+          failedProjects.add(project);
+        }
       }
+      double t = sw.elapsed(MILLISECONDS) / 1000d;
+      verboseWriter.format(
+          "Reindexed %d changes of project %s (%d/%d) in %.01fs (%.01f/s)\n",
+          indexed, project.get(), slice, slices, t, t > 0 ? indexed / t : 0d);
       return null;
     }
 
@@ -301,6 +594,7 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
       try {
         indexer.index(changeDataFactory.create(r.notes()));
         done.update(1);
+        indexed++;
         verboseWriter.format(
             "Reindexed change %d (project: %s)\n", r.id().get(), r.notes().getProjectName().get());
       } catch (RejectedExecutionException e) {
@@ -314,6 +608,7 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
     private void fail(String error, boolean failed, Throwable e) {
       if (failed) {
         this.failed.update(1);
+        failedInSlice++;
       }
 
       logger.atWarning().withCause(e).log(error);
@@ -322,6 +617,7 @@ public class AllChangesIndexer extends SiteIndexer<Change.Id, ChangeData, Change
 
     private void failSilently() {
       this.failed.update(1);
+      failedInSlice++;
     }
 
     @Override
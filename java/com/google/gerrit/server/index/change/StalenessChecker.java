@@ -15,12 +15,14 @@
 package com.google.gerrit.server.index.change;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.joining;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MultimapBuilder;
@@ -33,17 +35,31 @@ import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.restapi.Url;
 import com.google.gerrit.index.IndexConfig;
 import com.google.gerrit.index.RefState;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.index.StalenessCheckResult;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Pattern;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 
 /**
@@ -63,13 +79,38 @@ public class StalenessChecker {
   private final ChangeIndexCollection indexes;
   private final GitRepositoryManager repoManager;
   private final IndexConfig indexConfig;
+  private final boolean checkQueryResults;
+  private final Timer0 queryResultsCheckLatency;
+  private final Counter0 staleQueryResults;
 
   @Inject
   StalenessChecker(
-      ChangeIndexCollection indexes, GitRepositoryManager repoManager, IndexConfig indexConfig) {
+      @GerritServerConfig Config cfg,
+      ChangeIndexCollection indexes,
+      GitRepositoryManager repoManager,
+      IndexConfig indexConfig,
+      MetricMaker metricMaker) {
     this.indexes = indexes;
     this.repoManager = repoManager;
     this.indexConfig = indexConfig;
+    this.checkQueryResults = cfg.getBoolean("index", null, "autoReindexIfStaleOnQuery", false);
+    this.queryResultsCheckLatency =
+        metricMaker.newTimer(
+            "index/change/query_staleness_check_latency",
+            new Description("Latency of checking the results of a change query for staleness")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    this.staleQueryResults =
+        metricMaker.newCounter(
+            "index/change/stale_query_results",
+            new Description("Change query results which were found to be stale")
+                .setRate()
+                .setUnit("changes"));
+  }
+
+  /** Returns whether the results of change queries should be checked for staleness. */
+  public boolean isCheckQueryResultsEnabled() {
+    return checkQueryResults;
   }
 
   /**
@@ -127,6 +168,124 @@ public class StalenessChecker {
     return StalenessCheckResult.notStale();
   }
 
+  /**
+   * Returns the stale ones of the given changes, which were read from the index together with the
+   * ref state fields.
+   *
+   * <p>Unlike {@link #check(Change.Id)}, this does not read the documents from the index again, and
+   * opens every repository only once for all changes, reading all refs the documents depend on with
+   * one lookup. Changes without ref state patterns, e.g. because they were not read from the
+   * index, are not checked.
+   */
+  public ImmutableList<ChangeData> checkQueryResults(Collection<ChangeData> changes) {
+    ChangeIndex i = indexes.getSearchIndex();
+    if (changes.isEmpty()
+        || i == null
+        || !i.getSchema().hasField(ChangeField.REF_STATE)
+        || !i.getSchema().hasField(ChangeField.REF_STATE_PATTERN)) {
+      return ImmutableList.of();
+    }
+
+    try (Timer0.Context ignored = queryResultsCheckLatency.start()) {
+      Map<Change.Id, ChangeData> byId = new LinkedHashMap<>();
+      Map<Change.Id, SetMultimap<Project.NameKey, RefState>> states = new HashMap<>();
+      Map<Change.Id, ListMultimap<Project.NameKey, RefStatePattern>> patterns = new HashMap<>();
+      for (ChangeData cd : changes) {
+        if (cd.getRefStatePatterns() == null || byId.putIfAbsent(cd.getId(), cd) != null) {
+          continue;
+        }
+        states.put(cd.getId(), cd.getRefStates());
+        patterns.put(cd.getId(), parsePatterns(cd));
+      }
+
+      ImmutableSet<Change.Id> stale = staleChanges(repoManager, states, patterns);
+      staleQueryResults.incrementBy(stale.size());
+      return stale.stream().map(byId::get).collect(toImmutableList());
+    }
+  }
+
+  /**
+   * Returns the IDs of the stale changes, given the ref states and ref state patterns of every
+   * change.
+   */
+  @VisibleForTesting
+  static ImmutableSet<Change.Id> staleChanges(
+      GitRepositoryManager repoManager,
+      Map<Change.Id, ? extends SetMultimap<Project.NameKey, RefState>> states,
+      Map<Change.Id, ? extends ListMultimap<Project.NameKey, RefStatePattern>> patterns) {
+    SetMultimap<Project.NameKey, Change.Id> changesByProject =
+        MultimapBuilder.hashKeys().linkedHashSetValues().build();
+    states.forEach((id, s) -> s.keySet().forEach(p -> changesByProject.put(p, id)));
+    patterns.forEach((id, s) -> s.keySet().forEach(p -> changesByProject.put(p, id)));
+
+    Set<Change.Id> stale = new LinkedHashSet<>();
+    for (Project.NameKey project : changesByProject.keySet()) {
+      Set<String> refNames = new HashSet<>();
+      Set<String> prefixes = new HashSet<>();
+      for (Change.Id id : changesByProject.get(project)) {
+        statesOf(states, id, project).forEach(state -> refNames.add(state.ref()));
+        patternsOf(patterns, id, project).forEach(pattern -> prefixes.add(pattern.prefix()));
+      }
+
+      try (Repository repo = repoManager.openRepository(project)) {
+        RefDatabase refDb = repo.getRefDatabase();
+        Map<String, Ref> refs = refDb.exactRef(refNames.toArray(new String[0]));
+        Map<String, List<Ref>> refsByPrefix = new HashMap<>();
+        for (String prefix : prefixes) {
+          refsByPrefix.put(prefix, refDb.getRefsByPrefix(prefix));
+        }
+
+        for (Change.Id id : changesByProject.get(project)) {
+          if (stale.contains(id)) {
+            continue;
+          }
+          Set<RefState> expected = statesOf(states, id, project);
+          for (RefState state : expected) {
+            if (!state.match(refs.get(state.ref()))) {
+              logger.atFine().log(
+                  "Ref states don't match for document %s (%s != %s)",
+                  id, state, refs.get(state.ref()));
+              stale.add(id);
+              break;
+            }
+          }
+          if (stale.contains(id)) {
+            continue;
+          }
+          for (RefStatePattern pattern : patternsOf(patterns, id, project)) {
+            if (!pattern.match(refsByPrefix.get(pattern.prefix()), expected)) {
+              logger.atFine().log(
+                  "Ref patterns don't match for document %s. Pattern: %s States: %s",
+                  id, pattern, expected);
+              stale.add(id);
+              break;
+            }
+          }
+        }
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("error checking staleness of changes in %s", project);
+        stale.addAll(changesByProject.get(project));
+      }
+    }
+    return ImmutableSet.copyOf(stale);
+  }
+
+  private static Set<RefState> statesOf(
+      Map<Change.Id, ? extends SetMultimap<Project.NameKey, RefState>> states,
+      Change.Id id,
+      Project.NameKey project) {
+    SetMultimap<Project.NameKey, RefState> s = states.get(id);
+    return s != null ? s.get(project) : ImmutableSet.of();
+  }
+
+  private static List<RefStatePattern> patternsOf(
+      Map<Change.Id, ? extends ListMultimap<Project.NameKey, RefStatePattern>> patterns,
+      Change.Id id,
+      Project.NameKey project) {
+    ListMultimap<Project.NameKey, RefStatePattern> p = patterns.get(id);
+    return p != null ? p.get(project) : ImmutableList.of();
+  }
+
   private ListMultimap<Project.NameKey, RefStatePattern> parsePatterns(ChangeData cd) {
     return parsePatterns(cd.getRefStatePatterns());
   }
@@ -223,7 +382,11 @@ public class StalenessChecker {
     }
 
     private boolean match(Repository repo, Set<RefState> expected) throws IOException {
-      for (Ref r : repo.getRefDatabase().getRefsByPrefix(prefix())) {
+      return match(repo.getRefDatabase().getRefsByPrefix(prefix()), expected);
+    }
+
+    private boolean match(List<Ref> refsWithPrefix, Set<RefState> expected) {
+      for (Ref r : refsWithPrefix) {
         if (!match(r.getName())) {
           continue;
         }
@@ -25,17 +25,20 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Sets.SetView;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Futures;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.AttentionSetUpdate;
@@ -52,9 +55,11 @@ import com.google.gerrit.entities.RobotComment;
 import com.google.gerrit.entities.SubmitRecord;
 import com.google.gerrit.entities.SubmitRequirementResult;
 import com.google.gerrit.server.AssigneeStatusUpdate;
+import com.google.gerrit.server.FanOutExecutor;
 import com.google.gerrit.server.ReviewerByEmailSet;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.ReviewerStatusUpdate;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.RefCache;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.ProjectCache;
@@ -67,12 +72,21 @@ import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -100,14 +114,22 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
     private final Args args;
     private final Provider<InternalChangeQuery> queryProvider;
     private final ProjectCache projectCache;
+    private final ExecutorService executor;
+    private final int batchLoadParallelism;
 
     @VisibleForTesting
     @Inject
     public Factory(
-        Args args, Provider<InternalChangeQuery> queryProvider, ProjectCache projectCache) {
+        Args args,
+        Provider<InternalChangeQuery> queryProvider,
+        ProjectCache projectCache,
+        @FanOutExecutor ExecutorService executor,
+        @GerritServerConfig Config cfg) {
       this.args = args;
       this.queryProvider = queryProvider;
       this.projectCache = projectCache;
+      this.executor = executor;
+      this.batchLoadParallelism = cfg.getInt("notedb", "changes", "batchLoadParallelism", 8);
     }
 
     public ChangeNotes createChecked(Change c) {
@@ -197,6 +219,101 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       return notes;
     }
 
+    /**
+     * Loads the notes of many changes at once, e.g. for the results of a query.
+     *
+     * <p>Each repository is opened once, and the meta refs of all its changes are read with a
+     * single ref database lookup. The notes are then parsed in parallel on the fan-out executor,
+     * using up to {@code notedb.changes.batchLoadParallelism} threads including the calling one.
+     *
+     * <p>Loading is best effort: changes which do not exist or cannot be loaded are omitted from
+     * the result. Callers that need them should load them individually, which reports the error.
+     *
+     * @param changes IDs of the changes to load, by project.
+     * @return loaded notes by change ID.
+     */
+    public ImmutableMap<Change.Id, ChangeNotes> createAll(
+        Multimap<Project.NameKey, Change.Id> changes) {
+      Map<Change.Id, ChangeNotes> result = new ConcurrentHashMap<>();
+      Queue<Runnable> loads = new ConcurrentLinkedQueue<>();
+      List<Repository> repos = new ArrayList<>();
+      try {
+        for (Map.Entry<Project.NameKey, Collection<Change.Id>> e : changes.asMap().entrySet()) {
+          Project.NameKey project = e.getKey();
+          String[] refNames =
+              e.getValue().stream().map(RefNames::changeMetaRef).toArray(String[]::new);
+          Repository repo;
+          Map<String, Ref> metaRefs;
+          try {
+            repo = args.repoManager.openRepository(project);
+            repos.add(repo);
+            metaRefs = repo.getRefDatabase().exactRef(refNames);
+          } catch (IOException ex) {
+            logger.atWarning().withCause(ex).log("Cannot read meta refs of project %s", project);
+            continue;
+          }
+          RefCache refs = name -> Optional.ofNullable(metaRefs.get(name)).map(Ref::getObjectId);
+          for (Change.Id id : e.getValue()) {
+            if (!metaRefs.containsKey(changeMetaRef(id))) {
+              continue;
+            }
+            ChangeNotes notes = new ChangeNotes(args, newChange(project, id), true, refs);
+            loads.add(() -> loadQuietly(notes, repo, result));
+          }
+        }
+        runInParallel(loads);
+      } finally {
+        repos.forEach(Repository::close);
+      }
+      return ImmutableMap.copyOf(result);
+    }
+
+    private static void loadQuietly(
+        ChangeNotes notes, Repository repo, Map<Change.Id, ChangeNotes> result) {
+      try {
+        result.put(notes.getChangeId(), notes.load(repo));
+      } catch (RuntimeException e) {
+        logger.atFine().withCause(e).log(
+            "Cannot load change %s in project %s", notes.getChangeId(), notes.getProjectName());
+      }
+    }
+
+    private void runInParallel(Queue<Runnable> tasks) {
+      Runnable drain =
+          () -> {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+              task.run();
+            }
+          };
+      int helpers = Math.min(tasks.size(), batchLoadParallelism) - 1;
+      List<AtomicBoolean> started = new ArrayList<>();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < helpers; i++) {
+        AtomicBoolean s = new AtomicBoolean();
+        started.add(s);
+        futures.add(
+            executor.submit(
+                () -> {
+                  if (s.compareAndSet(false, true)) {
+                    drain.run();
+                  }
+                }));
+      }
+      // The calling thread drains the queue as well. Afterwards it claims the helpers which have
+      // not started yet, so they won't touch the repositories or the result anymore, and waits
+      // only for the helpers which are already running. This cannot deadlock when called from a
+      // fan-out thread.
+      drain.run();
+      for (int i = 0; i < helpers; i++) {
+        if (started.get(i).compareAndSet(false, true)) {
+          futures.get(i).cancel(false);
+        } else {
+          Futures.getUnchecked(futures.get(i));
+        }
+      }
+    }
+
     public ListMultimap<Project.NameKey, ChangeNotes> create(Predicate<ChangeNotes> predicate)
         throws IOException {
       ListMultimap<Project.NameKey, ChangeNotes> m =
@@ -227,11 +344,12 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       if (changeIdPredicate != null) {
         idStream = idStream.filter(changeIdPredicate);
       }
-      return idStream.map(id -> scanOneChange(project, sr, id)).filter(Objects::nonNull);
+      return idStream.map(id -> scanOneChange(repo, project, sr, id)).filter(Objects::nonNull);
     }
 
     @Nullable
-    private ChangeNotesResult scanOneChange(Project.NameKey project, ScanResult sr, Change.Id id) {
+    private ChangeNotesResult scanOneChange(
+        Repository repo, Project.NameKey project, ScanResult sr, Change.Id id) {
       if (!sr.fromMetaRefs().contains(id)) {
         // Stray patch set refs can happen due to normal error conditions, e.g. failed
         // push processing, so aren't worth even a warning.
@@ -242,7 +360,7 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       try {
         Change change = ChangeNotes.Factory.newChange(project, id);
         logger.atFine().log("adding change %s found in project %s", id, project);
-        return toResult(change);
+        return toResult(change, repo, sr);
       } catch (InvalidServerIdException ise) {
         logger.atWarning().withCause(ise).log(
             "skipping change %d in project %s because of an invalid server id", id.get(), project);
@@ -251,10 +369,13 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
     }
 
     @Nullable
-    private ChangeNotesResult toResult(Change rawChangeFromNoteDb) {
-      ChangeNotes n = new ChangeNotes(args, rawChangeFromNoteDb, true, null);
+    private ChangeNotesResult toResult(Change rawChangeFromNoteDb, Repository repo, ScanResult sr) {
+      // Load from the repository which was opened for the scan, and take the meta ref from the scan
+      // as well, instead of opening the repository and looking up the ref again for every change.
+      RefCache refs = name -> Optional.ofNullable(sr.metaIds().get(Change.Id.fromRef(name)));
+      ChangeNotes n = new ChangeNotes(args, rawChangeFromNoteDb, true, refs);
       try {
-        n.load();
+        n.load(repo);
       } catch (Exception e) {
         return ChangeNotesResult.error(n.getChangeId(), e);
       }
@@ -299,7 +420,11 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
     abstract static class ScanResult {
       abstract ImmutableSet<Change.Id> fromPatchSetRefs();
 
-      abstract ImmutableSet<Change.Id> fromMetaRefs();
+      abstract ImmutableMap<Change.Id, ObjectId> metaIds();
+
+      ImmutableSet<Change.Id> fromMetaRefs() {
+        return metaIds().keySet();
+      }
 
       SetView<Change.Id> all() {
         return Sets.union(fromPatchSetRefs(), fromMetaRefs());
@@ -308,14 +433,20 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
 
     private static ScanResult scanChangeIds(Repository repo) throws IOException {
       ImmutableSet.Builder<Change.Id> fromPs = ImmutableSet.builder();
-      ImmutableSet.Builder<Change.Id> fromMeta = ImmutableSet.builder();
+      Map<Change.Id, ObjectId> metaIds = new HashMap<>();
       for (Ref r : repo.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES)) {
         Change.Id id = Change.Id.fromRef(r.getName());
-        if (id != null) {
-          (r.getName().endsWith(RefNames.META_SUFFIX) ? fromMeta : fromPs).add(id);
+        if (id == null) {
+          continue;
+        }
+        if (r.getName().endsWith(RefNames.META_SUFFIX)) {
+          metaIds.put(id, r.getObjectId());
+        } else {
+          fromPs.add(id);
         }
       }
-      return new AutoValue_ChangeNotes_Factory_ScanResult(fromPs.build(), fromMeta.build());
+      return new AutoValue_ChangeNotes_Factory_ScanResult(
+          fromPs.build(), ImmutableMap.copyOf(metaIds));
     }
   }
 
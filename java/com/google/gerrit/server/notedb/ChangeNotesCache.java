@@ -30,6 +30,7 @@ import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.cache.proto.Cache.ChangeNotesKeyProto;
 import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.cache.serialize.ObjectIdConverter;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.notedb.AbstractChangeNotes.Args;
 import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
 import com.google.inject.Inject;
@@ -44,7 +45,9 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
 
 @Singleton
 public class ChangeNotesCache {
@@ -364,24 +367,62 @@ public class ChangeNotesCache {
     public ChangeNotesState call() throws ConfigInvalidException, IOException {
       logger.atFine().log(
           "Load change notes for change %s of project %s", key.changeId(), key.project());
-      ChangeNotesParser parser =
-          new ChangeNotesParser(
-              key.changeId(), key.id(), walkSupplier.get(), args.changeNoteJson, args.metrics);
+      ChangeNotesRevWalk walk = walkSupplier.get();
+      ChangeNotesState base = findCachedAncestor(walk);
+      if (base != null) {
+        ChangeNotesParser parser = newParser(walk);
+        ChangeNotesState result = parser.parseIncrementally(base);
+        if (result != null) {
+          revisionNoteMap = parser.getRevisionNoteMap();
+          return result;
+        }
+      }
+      ChangeNotesParser parser = newParser(walk);
       ChangeNotesState result = parser.parseAll();
       // This assignment only happens if call() was actually called, which only
       // happens when Cache#get(K, Callable<V>) incurs a cache miss.
       revisionNoteMap = parser.getRevisionNoteMap();
       return result;
     }
+
+    private ChangeNotesParser newParser(ChangeNotesRevWalk walk) {
+      return new ChangeNotesParser(
+          key.changeId(), key.id(), walk, args.changeNoteJson, args.metrics);
+    }
+
+    /**
+     * Returns the cached state of the closest ancestor of the requested meta commit, so that only
+     * the commits after it need to be parsed. Usually this is the state before the last update of
+     * the change.
+     */
+    @Nullable
+    private ChangeNotesState findCachedAncestor(ChangeNotesRevWalk walk) throws IOException {
+      RevCommit commit = walk.parseCommit(key.id());
+      for (int i = 0; i < maxIncrementalParseCommits && commit.getParentCount() == 1; i++) {
+        commit = walk.parseCommit(commit.getParent(0));
+        ChangeNotesState state =
+            cache.getIfPresent(Key.create(key.project(), key.changeId(), commit));
+        if (state != null) {
+          return state;
+        }
+      }
+      return null;
+    }
   }
 
   private final Cache<Key, ChangeNotesState> cache;
   private final Args args;
+  private final int maxIncrementalParseCommits;
 
   @Inject
-  ChangeNotesCache(@Named(CACHE_NAME) Cache<Key, ChangeNotesState> cache, Args args) {
+  ChangeNotesCache(
+      @Named(CACHE_NAME) Cache<Key, ChangeNotesState> cache,
+      Args args,
+      @GerritServerConfig Config cfg) {
     this.cache = cache;
     this.args = args;
+    this.maxIncrementalParseCommits =
+        cfg.getInt("notedb", "changes", "maxIncrementalParseCommits", 20);
   }
 
   Value get(
@@ -0,0 +1,117 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.server.FanOutExecutor;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * Parses the state of updated changes in the background, so that the {@link ChangeNotesCache}
+ * already holds it when the change is read next.
+ *
+ * <p>The cached {@link ChangeNotesState} is the parsed snapshot of a meta commit. If the {@code
+ * change_notes} cache is persisted, it is stored in its serialized form, keyed by the SHA-1 of the
+ * meta commit, and survives restarts. Since the state before the update is usually cached, the new
+ * state is mostly parsed incrementally.
+ *
+ * <p>Disabled unless {@code notedb.changes.warmCacheOnUpdate} is set.
+ */
+@Singleton
+class ChangeNotesCacheWarmer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final boolean enabled;
+  private final ExecutorService executor;
+  private final GitRepositoryManager repoManager;
+  private final ChangeNotesCache cache;
+
+  @Inject
+  ChangeNotesCacheWarmer(
+      @GerritServerConfig Config cfg,
+      @FanOutExecutor ExecutorService executor,
+      GitRepositoryManager repoManager,
+      ChangeNotesCache cache) {
+    this.enabled = cfg.getBoolean("notedb", "changes", "warmCacheOnUpdate", false);
+    this.executor = executor;
+    this.repoManager = repoManager;
+    this.cache = cache;
+  }
+
+  /** Schedules parsing of all change meta refs which were successfully updated by {@code bru}. */
+  void warm(Project.NameKey project, @Nullable BatchRefUpdate bru) {
+    if (!enabled || bru == null) {
+      return;
+    }
+    Map<Change.Id, ObjectId> updated = new HashMap<>();
+    for (ReceiveCommand cmd : bru.getCommands()) {
+      if (cmd.getResult() != ReceiveCommand.Result.OK
+          || cmd.getType() == ReceiveCommand.Type.DELETE
+          || !cmd.getRefName().endsWith(RefNames.META_SUFFIX)) {
+        continue;
+      }
+      Change.Id id = Change.Id.fromRef(cmd.getRefName());
+      if (id != null) {
+        updated.put(id, cmd.getNewId());
+      }
+    }
+    warm(project, ImmutableMap.copyOf(updated));
+  }
+
+  /** Schedules parsing of the given meta commits. */
+  void warm(Project.NameKey project, Map<Change.Id, ObjectId> metaIds) {
+    if (!enabled || metaIds.isEmpty()) {
+      return;
+    }
+
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError = executor.submit(() -> load(project, metaIds));
+  }
+
+  private void load(Project.NameKey project, Map<Change.Id, ObjectId> metaIds) {
+    try (Repository repo = repoManager.openRepository(project)) {
+      for (Map.Entry<Change.Id, ObjectId> e : metaIds.entrySet()) {
+        try (ChangeNotesRevWalk walk = ChangeNotesCommit.newRevWalk(repo)) {
+          cache.get(project, e.getKey(), e.getValue(), () -> walk);
+        } catch (IOException | RuntimeException ex) {
+          logger.atWarning().withCause(ex).log(
+              "Failed to parse change %s in project %s after update", e.getKey(), project);
+        }
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Failed to parse changes in project %s after update", project);
+    }
+  }
+}
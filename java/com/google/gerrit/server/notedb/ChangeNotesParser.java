@@ -44,6 +44,7 @@ import static java.util.stream.Collectors.joining;
 import com.google.common.base.Enums;
 import com.google.common.base.Splitter;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.ListMultimap;
@@ -163,6 +164,8 @@ class ChangeNotesParser {
   // the latest record unsets the field).
   private Optional<PatchSet.Id> cherryPickOf;
   private Timestamp mergedOn;
+  // Reviewer updates of the cached state an incremental parse starts from, oldest first.
+  private List<ReviewerStatusUpdate> baseReviewerUpdates = ImmutableList.of();
 
   ChangeNotesParser(
       Change.Id changeId,
@@ -223,10 +226,228 @@ class ChangeNotesParser {
       updatePatchSetStates();
       checkMandatoryFooters();
     }
+    metrics.fullParseCount.increment();
 
     return buildState();
   }
 
+  /**
+   * Parses only the commits which were added on top of {@code base}, and applies them to it.
+   *
+   * <p>This parser must not have been used before. If this returns null, the parser is unusable
+   * and the caller needs to create a new one to do a full parse.
+   *
+   * @param base state previously parsed from an ancestor of the tip.
+   * @return the state at the tip, or null if the new commits cannot be applied incrementally, e.g.
+   *     because {@code base} is not an ancestor of the tip or because the new commits delete patch
+   *     sets.
+   */
+  @Nullable
+  ChangeNotesState parseIncrementally(ChangeNotesState base)
+      throws ConfigInvalidException, IOException {
+    if (base.columns() == null || base.serverId() == null || base.metaId().equals(tip)) {
+      return fallBackToFullParse();
+    }
+    walk.reset();
+    walk.markStart(walk.parseCommit(tip));
+    walk.markUninteresting(walk.parseCommit(base.metaId()));
+
+    try (Timer0.Context timer = metrics.incrementalParseLatency.start()) {
+      Set<PatchSet.Id> referencedPatchSets = new HashSet<>();
+      ChangeNotesCommit commit;
+      while ((commit = walk.next()) != null) {
+        // Patch set states are applied to everything parsed before, and NoteDb history is linear.
+        // Anything else means that base is not the state of a plain ancestor.
+        if (commit.getParentCount() != 1 || parsePatchSetState(commit) != null) {
+          return fallBackToFullParse();
+        }
+        referencedPatchSets.add(parsePatchSetId(commit));
+        parse(commit);
+      }
+      if (referencedPatchSets.isEmpty() || !canApplyTo(base, referencedPatchSets)) {
+        return fallBackToFullParse();
+      }
+      applyBase(base);
+      parseNotes();
+      pruneReviewers();
+      pruneReviewersByEmail();
+
+      updatePatchSetStates();
+      checkMandatoryFooters();
+    }
+    metrics.incrementalParseCount.increment();
+
+    return buildState();
+  }
+
+  @Nullable
+  private ChangeNotesState fallBackToFullParse() {
+    metrics.incrementalParseFallbackCount.increment();
+    return null;
+  }
+
+  /** Whether the updates parsed so far can be applied to {@code base} without a full parse. */
+  private boolean canApplyTo(ChangeNotesState base, Set<PatchSet.Id> referencedPatchSets) {
+    Set<PatchSet.Id> basePatchSets = new HashSet<>();
+    base.patchSets().forEach(e -> basePatchSets.add(e.getKey()));
+    for (PatchSet.Id psId : referencedPatchSets) {
+      if (!basePatchSets.contains(psId) && !patchSetCommitParsed(psId)) {
+        // Deleted or missing in base, which is only known to a full parse.
+        return false;
+      }
+    }
+    for (PatchSet.Id psId : patchSets.keySet()) {
+      if (basePatchSets.contains(psId) && patchSetCommitParsed(psId)) {
+        return false; // Multiple revisions for the patch set, let the full parse report it.
+      }
+    }
+    for (Account.Id accountId : reviewers.rowKeySet()) {
+      if (base.allPastReviewers().contains(accountId)
+          && !base.reviewers().all().contains(accountId)) {
+        // Approvals of removed reviewers are dropped from base, but are needed again if the
+        // reviewer was added back.
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merges {@code base} into the state parsed from the newer commits, so that the result is the
+   * same as if all commits had been parsed.
+   */
+  private void applyBase(ChangeNotesState base) {
+    ChangeNotesState.ChangeColumns c = base.columns();
+
+    // Fields where the newest value wins.
+    if (branch == null) {
+      branch = c.branch();
+    }
+    if (changeId == null) {
+      changeId = c.changeKey().get();
+    }
+    if (subject == null) {
+      subject = c.subject();
+    }
+    if (topic == null) {
+      topic = c.topic();
+    }
+    if (hashtags == null) {
+      hashtags = base.hashtags();
+    }
+    if (submissionId == null) {
+      submissionId = c.submissionId();
+    }
+    if (mergedOn == null) {
+      mergedOn = base.mergedOn();
+    }
+    if (submitRecords.isEmpty()) {
+      submitRecords.addAll(base.submitRecords());
+    }
+    if (isPrivate == null) {
+      isPrivate = c.isPrivate();
+    }
+    if (revertOf == null) {
+      revertOf = c.revertOf();
+    }
+    if (cherryPickOf == null) {
+      cherryPickOf = Optional.ofNullable(c.cherryPickOf());
+    }
+    if (hasReviewStarted == null) {
+      hasReviewStarted = c.reviewStarted();
+    }
+    if (status == null) {
+      status = c.status();
+      if (status == Change.Status.MERGED) {
+        for (PatchSetApproval.Builder psa : bufferedApprovals) {
+          if (!psa.key().isLegacySubmit()) {
+            psa.postSubmit(true);
+          }
+        }
+      }
+    }
+    bufferedApprovals.clear();
+
+    // Fields where the oldest value wins.
+    createdOn = c.createdOn();
+    originalSubject = c.originalSubject();
+    ownerId = c.owner();
+    serverId = base.serverId();
+    if (c.lastUpdatedOn().after(lastUpdatedOn)) {
+      lastUpdatedOn = c.lastUpdatedOn();
+    }
+    updateCount += base.updateCount();
+
+    // The pending reviewers snapshot is taken at the newest WIP footer, which may be in base.
+    if (workInProgress == null) {
+      workInProgress = c.workInProgress();
+      if (workInProgress) {
+        Table<Account.Id, ReviewerStateInternal, Timestamp> pending =
+            HashBasedTable.create(reviewers);
+        putAbsentRows(pending, Tables.transpose(base.pendingReviewers().asTable()));
+        pendingReviewers = ReviewerSet.fromTable(Tables.transpose(pending));
+        Table<Address, ReviewerStateInternal, Timestamp> pendingByEmail =
+            HashBasedTable.create(reviewersByEmail);
+        putAbsentRows(pendingByEmail, Tables.transpose(base.pendingReviewersByEmail().asTable()));
+        pendingReviewersByEmail = ReviewerByEmailSet.fromTable(Tables.transpose(pendingByEmail));
+      }
+    }
+
+    allPastReviewers.addAll(reviewers.rowKeySet());
+    for (Account.Id accountId : base.allPastReviewers()) {
+      if (!reviewers.containsRow(accountId)) {
+        allPastReviewers.add(accountId);
+      }
+    }
+    putAbsentRows(reviewers, Tables.transpose(base.reviewers().asTable()));
+    putAbsentRows(reviewersByEmail, Tables.transpose(base.reviewersByEmail().asTable()));
+    baseReviewerUpdates = base.reviewerUpdates();
+
+    for (AttentionSetUpdate u : base.attentionSet()) {
+      latestAttentionStatus.putIfAbsent(u.account(), u);
+    }
+    allAttentionSetUpdates.addAll(base.allAttentionSetUpdates());
+    assigneeUpdates.addAll(base.assigneeUpdates());
+    allChangeMessages.addAll(Lists.reverse(base.changeMessages()));
+
+    for (Map.Entry<PatchSet.Id, PatchSet> e : base.patchSets()) {
+      PatchSet ps = e.getValue();
+      // Push certificates are read again from the notes at the tip.
+      PatchSet.Builder b =
+          PatchSet.builder()
+              .id(ps.id())
+              .commitId(ps.commitId())
+              .uploader(ps.uploader())
+              .createdOn(ps.createdOn())
+              .groups(ps.groups())
+              .description(ps.description());
+      PatchSet.Builder pending = patchSets.get(ps.id());
+      if (pending != null) {
+        if (pending.description().isPresent()) {
+          b.description(pending.description());
+        }
+        if (!pending.groups().isEmpty()) {
+          b.groups(pending.groups());
+        }
+      }
+      patchSets.put(ps.id(), b);
+    }
+    if (c.currentPatchSetId() != null) {
+      currentPatchSets.add(c.currentPatchSetId());
+    }
+    for (Map.Entry<PatchSet.Id, PatchSetApproval> e : base.approvals()) {
+      approvals.putIfAbsent(e.getValue().key(), e.getValue().toBuilder());
+    }
+  }
+
+  private static <R, C, V> void putAbsentRows(Table<R, C, V> table, Table<R, C, V> other) {
+    for (Table.Cell<R, C, V> cell : other.cellSet()) {
+      if (!table.containsRow(cell.getRowKey())) {
+        table.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+      }
+    }
+  }
+
   RevisionNoteMap<ChangeRevisionNote> getRevisionNoteMap() {
     return revisionNoteMap;
   }
@@ -315,8 +536,11 @@ class ChangeNotesParser {
   }
 
   private List<ReviewerStatusUpdate> buildReviewerUpdates() {
-    List<ReviewerStatusUpdate> result = new ArrayList<>();
+    List<ReviewerStatusUpdate> result = new ArrayList<>(baseReviewerUpdates);
     HashMap<Account.Id, ReviewerStateInternal> lastState = new HashMap<>();
+    for (ReviewerStatusUpdate u : baseReviewerUpdates) {
+      lastState.put(u.reviewer(), u.state());
+    }
     for (ReviewerStatusUpdate u : Lists.reverse(reviewerUpdates)) {
       if (!Objects.equals(ownerId, u.reviewer()) && lastState.get(u.reviewer()) != u.state()) {
         result.add(u);
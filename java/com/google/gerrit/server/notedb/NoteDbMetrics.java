@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.notedb;
 
+import com.google.gerrit.metrics.Counter0;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Description.Units;
 import com.google.gerrit.metrics.MetricMaker;
@@ -43,6 +44,21 @@ class NoteDbMetrics {
    */
   final Timer0 parseLatency;
 
+  /**
+   * Latency for applying the commits added since a cached state of an ancestor commit on top of
+   * that state. Like {@link #parseLatency}, this excludes I/O to a best effort.
+   */
+  final Timer0 incrementalParseLatency;
+
+  /** Number of changes parsed from all commits of their meta ref. */
+  final Counter0 fullParseCount;
+
+  /** Number of changes parsed incrementally from the cached state of an ancestor commit. */
+  final Counter0 incrementalParseCount;
+
+  /** Number of incremental parses which had to be redone as full parses. */
+  final Counter0 incrementalParseFallbackCount;
+
   @Inject
   NoteDbMetrics(MetricMaker metrics) {
     updateLatency =
@@ -72,5 +88,33 @@ class NoteDbMetrics {
             new Description("NoteDb parse latency for changes")
                 .setCumulative()
                 .setUnit(Units.MICROSECONDS));
+
+    incrementalParseLatency =
+        metrics.newTimer(
+            "notedb/incremental_parse_latency",
+            new Description("NoteDb parse latency for changes parsed from a cached state")
+                .setCumulative()
+                .setUnit(Units.MICROSECONDS));
+
+    fullParseCount =
+        metrics.newCounter(
+            "notedb/full_parse_count",
+            new Description("Changes parsed from all commits of their meta ref")
+                .setRate()
+                .setUnit("changes"));
+
+    incrementalParseCount =
+        metrics.newCounter(
+            "notedb/incremental_parse_count",
+            new Description("Changes parsed incrementally from a cached state")
+                .setRate()
+                .setUnit("changes"));
+
+    incrementalParseFallbackCount =
+        metrics.newCounter(
+            "notedb/incremental_parse_fallback_count",
+            new Description("Incremental change parses that fell back to a full parse")
+                .setRate()
+                .setUnit("changes"));
   }
 }
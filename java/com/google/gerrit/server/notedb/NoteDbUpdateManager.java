@@ -93,6 +93,7 @@ public class NoteDbUpdateManager implements AutoCloseable {
   private OpenRepo changeRepo;
   private OpenRepo allUsersRepo;
   private AllUsersAsyncUpdate updateAllUsersAsync;
+  private final ChangeNotesCacheWarmer cacheWarmer;
   private boolean executed;
   private String refLogMessage;
   private PersonIdent refLogIdent;
@@ -107,12 +108,14 @@ public class NoteDbUpdateManager implements AutoCloseable {
       AllUsersName allUsersName,
       NoteDbMetrics metrics,
       AllUsersAsyncUpdate updateAllUsersAsync,
+      ChangeNotesCacheWarmer cacheWarmer,
       @Assisted Project.NameKey projectName) {
     this.serverIdent = serverIdent;
     this.repoManager = repoManager;
     this.allUsersName = allUsersName;
     this.metrics = metrics;
     this.updateAllUsersAsync = updateAllUsersAsync;
+    this.cacheWarmer = cacheWarmer;
     this.projectName = projectName;
     maxUpdates = cfg.getInt("change", null, "maxUpdates", MAX_UPDATES_DEFAULT);
     maxPatchSets = cfg.getInt("change", null, "maxPatchSets", MAX_PATCH_SETS_DEFAULT);
@@ -341,6 +344,7 @@ public class NoteDbUpdateManager implements AutoCloseable {
         // All-Users we don't care much of the operation succeeds, so we are skipping the dry run
         // altogether.
         updateAllUsersAsync.execute(refLogIdent, refLogMessage, pushCert);
+        cacheWarmer.warm(projectName, result);
       }
       executed = true;
       return result;
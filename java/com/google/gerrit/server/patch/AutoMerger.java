@@ -16,6 +16,10 @@ package com.google.gerrit.server.patch;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.UsedAt;
 import com.google.gerrit.entities.RefNames;
@@ -25,19 +29,27 @@ import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.serialize.ObjectIdCacheSerializer;
+import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.git.InsertedObject;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.update.RepoView;
 import com.google.inject.Inject;
+import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
@@ -71,6 +83,14 @@ import org.eclipse.jgit.transport.ReceiveCommand;
  *
  * <p>The second point means that these commits are referenced from NoteDb. The consequence of this
  * is that these refs should never be deleted.
+ *
+ * <p>The merged tree only depends on the parents of the merge commit, so it is shared by all merge
+ * commits with the same parents, e.g. by all patch sets of a merge change which only differ in
+ * their commit message. The trees of auto-merges which were written to a repository are cached in
+ * the persistent {@code auto_merge_trees} cache, and are reused for later auto-merges of the same
+ * parents in that repository. Auto-merges which are only computed in memory, e.g. because {@code
+ * change.cacheAutomerge} is false, keep their merged objects in the {@code auto_merge_objects}
+ * memory cache for a limited time.
  */
 @Singleton
 public class AutoMerger {
@@ -78,6 +98,25 @@ public class AutoMerger {
 
   public static final String AUTO_MERGE_MSG_PREFIX = "Auto-merge of ";
 
+  private static final String TREE_CACHE = "auto_merge_trees";
+  private static final String OBJECTS_CACHE = "auto_merge_objects";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        persist(TREE_CACHE, String.class, ObjectId.class)
+            .version(1)
+            .keySerializer(StringCacheSerializer.INSTANCE)
+            .valueSerializer(ObjectIdCacheSerializer.INSTANCE);
+        cache(OBJECTS_CACHE, String.class, MergedObjects.class)
+            .maximumWeight(10 << 20)
+            .weigher(MergedObjectsWeigher.class)
+            .expireAfterWrite(Duration.ofMinutes(10));
+      }
+    };
+  }
+
   @UsedAt(UsedAt.Project.GOOGLE)
   public static boolean cacheAutomerge(Config cfg) {
     return cfg.getBoolean("change", null, "cacheAutomerge", true);
@@ -86,7 +125,8 @@ public class AutoMerger {
   private enum OperationType {
     CACHE_LOAD,
     IN_MEMORY_WRITE,
-    ON_DISK_WRITE
+    ON_DISK_WRITE,
+    MERGE_CACHE_LOAD
   }
 
   private final Counter1<OperationType> counter;
@@ -94,12 +134,16 @@ public class AutoMerger {
   private final Provider<PersonIdent> gerritIdentProvider;
   private final boolean save;
   private final ThreeWayMergeStrategy configuredMergeStrategy;
+  private final Cache<String, ObjectId> treeCache;
+  private final Cache<String, MergedObjects> objectsCache;
 
   @Inject
   AutoMerger(
       MetricMaker metricMaker,
       @GerritServerConfig Config cfg,
-      @GerritPersonIdent Provider<PersonIdent> gerritIdentProvider) {
+      @GerritPersonIdent Provider<PersonIdent> gerritIdentProvider,
+      @Named(TREE_CACHE) Cache<String, ObjectId> treeCache,
+      @Named(OBJECTS_CACHE) Cache<String, MergedObjects> objectsCache) {
     this.counter =
         metricMaker.newCounter(
             "git/auto-merge/num_operations",
@@ -115,6 +159,8 @@ public class AutoMerger {
     this.save = cacheAutomerge(cfg);
     this.gerritIdentProvider = gerritIdentProvider;
     this.configuredMergeStrategy = MergeUtil.getMergeStrategy(cfg);
+    this.treeCache = treeCache;
+    this.objectsCache = objectsCache;
   }
 
   /**
@@ -196,31 +242,7 @@ public class AutoMerger {
       ThreeWayMergeStrategy mergeStrategy)
       throws IOException {
     rw.parseHeaders(merge);
-    ResolveMerger m = (ResolveMerger) mergeStrategy.newMerger(ins, repoConfig);
-    DirCache dc = DirCache.newInCore();
-    m.setDirCache(dc);
-    // If we don't plan on saving results, use a fully in-memory inserter.
-    // Using just a non-flushing wrapper is not sufficient, since in particular DfsInserter might
-    // try to write to storage after exceeding an internal buffer size.
-    m.setObjectInserter(ins instanceof InMemoryInserter ? new NonFlushingWrapper(ins) : ins);
-
-    boolean couldMerge = m.merge(merge.getParents());
-
-    ObjectId treeId;
-    if (couldMerge) {
-      treeId = m.getResultTreeId();
-    } else {
-      treeId =
-          MergeUtil.mergeWithConflicts(
-              rw,
-              ins,
-              dc,
-              "HEAD",
-              merge.getParent(0),
-              "BRANCH",
-              merge.getParent(1),
-              m.getMergeResults());
-    }
+    ObjectId treeId = mergedTree(repoConfig, rw, ins, merge, mergeStrategy);
 
     rw.parseHeaders(merge);
     // For maximum stability, choose a single ident using the committer time of
@@ -251,6 +273,84 @@ public class AutoMerger {
     return rw.parseCommit(ins.insert(cb));
   }
 
+  /**
+   * Returns the merged tree of the parents of the given merge commit, reusing the tree of an
+   * earlier auto-merge of the same parents if possible.
+   */
+  private ObjectId mergedTree(
+      Config repoConfig,
+      RevWalk rw,
+      ObjectInserter ins,
+      RevCommit merge,
+      ThreeWayMergeStrategy mergeStrategy)
+      throws IOException {
+    String key = cacheKey(merge, mergeStrategy);
+    ObjectId cachedTree = treeCache.getIfPresent(key);
+    // The tree may be missing if it was cached for another repository, or if the transaction
+    // which should have written it failed.
+    if (cachedTree != null && rw.getObjectReader().has(cachedTree, Constants.OBJ_TREE)) {
+      counter.increment(OperationType.MERGE_CACHE_LOAD);
+      return cachedTree;
+    }
+
+    if (ins instanceof InMemoryInserter) {
+      InMemoryInserter inMemoryIns = (InMemoryInserter) ins;
+      MergedObjects cached = objectsCache.getIfPresent(key);
+      if (cached != null) {
+        counter.increment(OperationType.MERGE_CACHE_LOAD);
+        cached.objects().forEach(inMemoryIns::insert);
+        return cached.treeId();
+      }
+      // Merge into a separate inserter, so that only the merged objects are cached.
+      InMemoryInserter mergeIns = new InMemoryInserter(rw.getObjectReader());
+      ObjectId treeId = mergeTrees(repoConfig, rw, mergeIns, merge, mergeStrategy);
+      ImmutableList<InsertedObject> objects = mergeIns.getInsertedObjects();
+      objects.forEach(inMemoryIns::insert);
+      objectsCache.put(key, MergedObjects.create(treeId, objects));
+      return treeId;
+    }
+
+    ObjectId treeId = mergeTrees(repoConfig, rw, ins, merge, mergeStrategy);
+    treeCache.put(key, treeId);
+    return treeId;
+  }
+
+  private ObjectId mergeTrees(
+      Config repoConfig,
+      RevWalk rw,
+      ObjectInserter ins,
+      RevCommit merge,
+      ThreeWayMergeStrategy mergeStrategy)
+      throws IOException {
+    ResolveMerger m = (ResolveMerger) mergeStrategy.newMerger(ins, repoConfig);
+    DirCache dc = DirCache.newInCore();
+    m.setDirCache(dc);
+    // If we don't plan on saving results, use a fully in-memory inserter.
+    // Using just a non-flushing wrapper is not sufficient, since in particular DfsInserter might
+    // try to write to storage after exceeding an internal buffer size.
+    m.setObjectInserter(ins instanceof InMemoryInserter ? new NonFlushingWrapper(ins) : ins);
+
+    boolean couldMerge = m.merge(merge.getParents());
+
+    if (couldMerge) {
+      return m.getResultTreeId();
+    }
+    return MergeUtil.mergeWithConflicts(
+        rw,
+        ins,
+        dc,
+        "HEAD",
+        merge.getParent(0),
+        "BRANCH",
+        merge.getParent(1),
+        m.getMergeResults());
+  }
+
+  private static String cacheKey(RevCommit merge, ThreeWayMergeStrategy mergeStrategy) {
+    return String.join(
+        " ", merge.getParent(0).name(), merge.getParent(1).name(), mergeStrategy.getName());
+  }
+
   private Optional<RevCommit> lookupCommit(Repository repo, RevWalk rw, String refName)
       throws IOException {
     Ref ref = repo.getRefDatabase().exactRef(refName);
@@ -263,6 +363,29 @@ public class AutoMerger {
     return Optional.empty();
   }
 
+  /** Objects of an auto-merge which was computed in memory. */
+  @AutoValue
+  abstract static class MergedObjects {
+    static MergedObjects create(ObjectId treeId, ImmutableList<InsertedObject> objects) {
+      return new AutoValue_AutoMerger_MergedObjects(treeId, objects);
+    }
+
+    abstract ObjectId treeId();
+
+    abstract ImmutableList<InsertedObject> objects();
+  }
+
+  static class MergedObjectsWeigher implements Weigher<String, MergedObjects> {
+    @Override
+    public int weigh(String key, MergedObjects value) {
+      int size = 16 + 2 * key.length() + 20;
+      for (InsertedObject o : value.objects()) {
+        size += 64 + o.data().size();
+      }
+      return size;
+    }
+  }
+
   private static class NonFlushingWrapper extends ObjectInserter.Filter {
     private final ObjectInserter ins;
 
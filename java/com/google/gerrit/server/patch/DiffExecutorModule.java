@@ -14,15 +14,19 @@
 
 package com.google.gerrit.server.patch;
 
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.logging.LoggingContextAwareExecutorService;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import org.eclipse.jgit.lib.Config;
 
-/** Module providing the {@link DiffExecutor}. */
+/** Module providing the {@link DiffExecutor} and the {@link DiffLoadExecutor}. */
 public class DiffExecutorModule extends AbstractModule {
 
   @Override
@@ -36,4 +40,20 @@ public class DiffExecutorModule extends AbstractModule {
         Executors.newCachedThreadPool(
             new ThreadFactoryBuilder().setNameFormat("Diff-%d").setDaemon(true).build()));
   }
+
+  @Provides
+  @Singleton
+  @DiffLoadExecutor
+  public ExecutorService provideDiffLoadExecutor(@GerritServerConfig Config cfg) {
+    int threads =
+        cfg.getInt("cache", "diff", "loadThreads", Runtime.getRuntime().availableProcessors());
+    if (threads <= 0) {
+      return newDirectExecutorService();
+    }
+    // Must not share threads with the DiffExecutor, since the loads wait for diffs computed on it.
+    return new LoggingContextAwareExecutorService(
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("DiffLoad-%d").setDaemon(true).build()));
+  }
 }
@@ -18,9 +18,12 @@ import static com.google.gerrit.entities.Patch.COMMIT_MSG;
 import static com.google.gerrit.entities.Patch.MERGE_LIST;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Patch;
@@ -28,7 +31,12 @@ import com.google.gerrit.entities.Patch.ChangeType;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.patch.diff.ModifiedFilesCache;
 import com.google.gerrit.server.patch.diff.ModifiedFilesCacheImpl;
 import com.google.gerrit.server.patch.diff.ModifiedFilesCacheKey;
@@ -47,6 +55,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 
 /**
@@ -62,9 +79,16 @@ public class DiffOperationsImpl implements DiffOperations {
       DiffAlgorithm.HISTOGRAM_WITH_FALLBACK_MYERS;
   private static final Whitespace DEFAULT_WHITESPACE = Whitespace.IGNORE_NONE;
 
+  /** Minimum number of file diffs loaded by one task when loading them in parallel. */
+  private static final int MIN_KEYS_PER_TASK = 25;
+
   private final ModifiedFilesCache modifiedFilesCache;
   private final FileDiffCache fileDiffCache;
   private final BaseCommitUtil baseCommitUtil;
+  private final ExecutorService loadExecutor;
+  private final int loadParallelism;
+  private final Histogram0 loadParallelismAchieved;
+  private final Counter0 loadsCancelled;
 
   public static Module module() {
     return new CacheModule() {
@@ -81,12 +105,29 @@ public class DiffOperationsImpl implements DiffOperations {
 
   @Inject
   public DiffOperationsImpl(
+      @GerritServerConfig Config cfg,
       ModifiedFilesCache modifiedFilesCache,
       FileDiffCache fileDiffCache,
-      BaseCommitUtil baseCommit) {
+      BaseCommitUtil baseCommit,
+      @DiffLoadExecutor ExecutorService loadExecutor,
+      MetricMaker metricMaker) {
     this.modifiedFilesCache = modifiedFilesCache;
     this.fileDiffCache = fileDiffCache;
     this.baseCommitUtil = baseCommit;
+    this.loadExecutor = loadExecutor;
+    this.loadParallelism = cfg.getInt("cache", "diff", "loadParallelism", 4);
+    this.loadParallelismAchieved =
+        metricMaker.newHistogram(
+            "diff/file_diff_load_parallelism",
+            new Description("Number of tasks which loaded the file diffs of a request in parallel")
+                .setCumulative()
+                .setUnit("tasks"));
+    this.loadsCancelled =
+        metricMaker.newCounter(
+            "diff/file_diff_loads_cancelled",
+            new Description("Parallel loads of file diffs which were cancelled before completion")
+                .setRate()
+                .setUnit("requests"));
   }
 
   @Override
@@ -232,7 +273,7 @@ public class DiffOperationsImpl implements DiffOperations {
    */
   private ImmutableMap<String, FileDiffOutput> getModifiedFilesForKeys(List<FileDiffCacheKey> keys)
       throws DiffNotAvailableException {
-    ImmutableMap<FileDiffCacheKey, FileDiffOutput> fileDiffs = fileDiffCache.getAll(keys);
+    ImmutableMap<FileDiffCacheKey, FileDiffOutput> fileDiffs = loadFileDiffs(keys);
     List<FileDiffCacheKey> fallbackKeys = new ArrayList<>();
 
     ImmutableList.Builder<FileDiffOutput> result = ImmutableList.builder();
@@ -263,6 +304,135 @@ public class DiffOperationsImpl implements DiffOperations {
     return mapByFilePath(result.build());
   }
 
+  /**
+   * Loads the file diffs for the input {@code keys} from the {@link FileDiffCache}.
+   *
+   * <p>Many keys are split into chunks, which are loaded by up to {@code
+   * cache.diff.loadParallelism} tasks at the same time. One of the tasks runs on the calling
+   * thread, so that the request makes progress even if all threads of the {@link
+   * DiffLoadExecutor} are busy. Once no chunks are left, it only waits for the tasks which are
+   * still loading a chunk, not for tasks which haven't started yet. If the calling thread is
+   * interrupted, e.g. because the client disconnected, no further chunks are loaded. Chunks which
+   * are being loaded are completed though, since interrupting JGit while it reads from a pack file
+   * may invalidate the pack file.
+   */
+  private ImmutableMap<FileDiffCacheKey, FileDiffOutput> loadFileDiffs(List<FileDiffCacheKey> keys)
+      throws DiffNotAvailableException {
+    ImmutableList<FileDiffCacheKey> distinctKeys = ImmutableSet.copyOf(keys).asList();
+    int tasks = Math.min(loadParallelism, distinctKeys.size() / MIN_KEYS_PER_TASK);
+    if (tasks <= 1) {
+      return fileDiffCache.getAll(distinctKeys);
+    }
+
+    // Use more chunks than tasks, so that the tasks finish at about the same time even if some
+    // files take much longer than others.
+    int chunkSize = Math.max(MIN_KEYS_PER_TASK, distinctKeys.size() / (4 * tasks));
+    ParallelLoad load = new ParallelLoad(Lists.partition(distinctKeys, chunkSize));
+    List<Future<?>> futures = new ArrayList<>(tasks - 1);
+    try {
+      for (int i = 1; i < tasks; i++) {
+        futures.add(loadExecutor.submit(load::runHelper));
+      }
+      load.run();
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      // All chunks are loaded or being loaded. Helpers which haven't started yet have nothing left
+      // to do, so only wait for the ones which are still loading a chunk.
+      load.awaitRunningHelpers();
+      load.throwIfFailed();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      loadsCancelled.increment();
+      throw new DiffNotAvailableException("Interrupted while loading file diffs", e);
+    } finally {
+      // Stop loading further chunks if any task failed or the caller gave up.
+      load.cancel();
+      futures.forEach(f -> f.cancel(false));
+    }
+    loadParallelismAchieved.record(load.tasksWithWork.get());
+    return ImmutableMap.copyOf(load.result);
+  }
+
+  /** State of loading the chunks of file diffs of one request in parallel. */
+  private class ParallelLoad {
+    final Queue<List<FileDiffCacheKey>> chunks;
+    final Map<FileDiffCacheKey, FileDiffOutput> result = new ConcurrentHashMap<>();
+    final AtomicInteger tasksWithWork = new AtomicInteger();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final AtomicReference<Exception> helperFailure = new AtomicReference<>();
+
+    // Guarded by this.
+    private int runningHelpers;
+    private boolean helpersClosed;
+
+    ParallelLoad(List<List<FileDiffCacheKey>> chunks) {
+      this.chunks = new ConcurrentLinkedQueue<>(chunks);
+    }
+
+    /**
+     * Loads chunks until no chunks are left, or the load was cancelled, or the current thread was
+     * interrupted.
+     */
+    void run() throws DiffNotAvailableException {
+      boolean hadWork = false;
+      for (List<FileDiffCacheKey> chunk = chunks.poll();
+          chunk != null && !cancelled.get() && !Thread.currentThread().isInterrupted();
+          chunk = chunks.poll()) {
+        if (!hadWork) {
+          hadWork = true;
+          tasksWithWork.incrementAndGet();
+        }
+        result.putAll(fileDiffCache.getAll(chunk));
+      }
+    }
+
+    /**
+     * Runs {@link #run()} on a helper thread, unless the calling thread already stopped waiting for
+     * helpers. A failure is recorded for the calling thread and stops the other tasks.
+     */
+    void runHelper() {
+      synchronized (this) {
+        if (helpersClosed) {
+          return;
+        }
+        runningHelpers++;
+      }
+      try {
+        run();
+      } catch (DiffNotAvailableException | RuntimeException e) {
+        helperFailure.compareAndSet(null, e);
+        cancel();
+      } finally {
+        synchronized (this) {
+          runningHelpers--;
+          notifyAll();
+        }
+      }
+    }
+
+    /** Prevents helpers which haven't started yet from running, and waits for the others. */
+    synchronized void awaitRunningHelpers() throws InterruptedException {
+      helpersClosed = true;
+      while (runningHelpers > 0) {
+        wait();
+      }
+    }
+
+    void throwIfFailed() throws DiffNotAvailableException {
+      Exception e = helperFailure.get();
+      if (e != null) {
+        Throwables.throwIfInstanceOf(e, DiffNotAvailableException.class);
+        Throwables.throwIfUnchecked(e);
+        throw new DiffNotAvailableException(e);
+      }
+    }
+
+    void cancel() {
+      cancelled.set(true);
+    }
+  }
+
   /**
    * Map a collection of {@link FileDiffOutput} based on their file paths. The result map keys
    * represent the old file path for deleted files, or the new path otherwise.
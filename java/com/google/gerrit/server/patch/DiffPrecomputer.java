@@ -0,0 +1,175 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BooleanProjectConfig;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Computes the diffs of new patch sets in the background, so that they are already cached when the
+ * change is viewed for the first time.
+ *
+ * <p>For every patch set which is created in a project that enables {@link
+ * BooleanProjectConfig#PRECOMPUTE_DIFFS}, the modified files against the parent, or the auto-merge
+ * for merge commits, and against the previous patch set are loaded through {@link DiffOperations}.
+ * Patch sets with more than {@code change.precomputeDiffsMaxFiles} modified files are skipped.
+ *
+ * <p>The diffs are computed on a low priority queue with {@code change.precomputeDiffsThreads}
+ * threads.
+ */
+@Singleton
+public class DiffPrecomputer implements RevisionCreatedListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ProjectCache projectCache;
+  private final ChangeNotes.Factory notesFactory;
+  private final GitRepositoryManager repoManager;
+  private final DiffOperations diffOperations;
+  private final int maxFiles;
+  private final ScheduledExecutorService executor;
+
+  @Inject
+  DiffPrecomputer(
+      @GerritServerConfig Config cfg,
+      WorkQueue workQueue,
+      ProjectCache projectCache,
+      ChangeNotes.Factory notesFactory,
+      GitRepositoryManager repoManager,
+      DiffOperations diffOperations) {
+    this.projectCache = projectCache;
+    this.notesFactory = notesFactory;
+    this.repoManager = repoManager;
+    this.diffOperations = diffOperations;
+    this.maxFiles = cfg.getInt("change", "precomputeDiffsMaxFiles", 1000);
+    int threads = cfg.getInt("change", "precomputeDiffsThreads", 1);
+    this.executor =
+        threads > 0
+            ? workQueue.createQueue(threads, "DiffPrecompute", Thread.MIN_PRIORITY, true)
+            : null;
+  }
+
+  @Override
+  public void onRevisionCreated(Event event) {
+    if (executor == null) {
+      return;
+    }
+    ChangeInfo change = event.getChange();
+    Project.NameKey project = Project.nameKey(change.project);
+    Optional<ProjectState> projectState = projectCache.get(project);
+    if (!projectState.isPresent()
+        || !projectState.get().is(BooleanProjectConfig.PRECOMPUTE_DIFFS)) {
+      return;
+    }
+    PatchSet.Id psId = PatchSet.id(Change.id(change._number), event.getRevision()._number);
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError = executor.submit(new Task(project, psId));
+  }
+
+  /**
+   * Returns whether the commit modifies more than {@code max} files compared to its first parent.
+   *
+   * <p>Renames are not detected, so this is an upper bound of the number of files in the diff.
+   */
+  @VisibleForTesting
+  static boolean hasMoreModifiedFilesThan(RevWalk rw, RevCommit commit, int max)
+      throws IOException {
+    try (TreeWalk tw = new TreeWalk(rw.getObjectReader())) {
+      tw.setRecursive(true);
+      tw.setFilter(TreeFilter.ANY_DIFF);
+      if (commit.getParentCount() > 0) {
+        tw.addTree(rw.parseCommit(commit.getParent(0)).getTree());
+      } else {
+        tw.addTree(new EmptyTreeIterator());
+      }
+      tw.addTree(commit.getTree());
+      int count = 0;
+      while (tw.next()) {
+        if (++count > max) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private class Task implements Runnable {
+    private final Project.NameKey project;
+    private final PatchSet.Id psId;
+
+    Task(Project.NameKey project, PatchSet.Id psId) {
+      this.project = project;
+      this.psId = psId;
+    }
+
+    @Override
+    public void run() {
+      try {
+        ChangeNotes notes = notesFactory.createChecked(project, psId.changeId());
+        PatchSet ps = notes.getPatchSets().get(psId);
+        if (ps == null) {
+          return;
+        }
+        try (Repository repo = repoManager.openRepository(project);
+            RevWalk rw = new RevWalk(repo)) {
+          if (hasMoreModifiedFilesThan(rw, rw.parseCommit(ps.commitId()), maxFiles)) {
+            logger.atFine().log(
+                "Not precomputing diffs of patch set %s in project %s with more than %d files",
+                psId, project, maxFiles);
+            return;
+          }
+        }
+        diffOperations.listModifiedFilesAgainstParent(project, ps.commitId(), /* parentNum=*/ 0);
+        Map.Entry<PatchSet.Id, PatchSet> previous = notes.getPatchSets().headMap(psId).lastEntry();
+        if (previous != null) {
+          diffOperations.listModifiedFiles(project, previous.getValue().commitId(), ps.commitId());
+        }
+      } catch (IOException | DiffNotAvailableException | RuntimeException e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to precompute diffs of patch set %s in project %s", psId, project);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("precompute-diffs %s %s", project, psId);
+    }
+  }
+}
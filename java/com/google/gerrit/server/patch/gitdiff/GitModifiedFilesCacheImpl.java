@@ -27,22 +27,19 @@ import com.google.gerrit.server.cache.proto.Cache.ModifiedFilesProto;
 import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.patch.DiffNotAvailableException;
+import com.google.gerrit.server.patch.gitfilediff.GitTreeDiff;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 import java.io.IOException;
-import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
-import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 /** Implementation of the {@link GitModifiedFilesCache} */
 @Singleton
@@ -116,24 +113,18 @@ public class GitModifiedFilesCacheImpl implements GitModifiedFilesCache {
     @Override
     public ImmutableList<ModifiedFile> load(GitModifiedFilesCacheKey key) throws IOException {
       try (Repository repo = repoManager.openRepository(key.project());
-          ObjectReader reader = repo.newObjectReader()) {
-        List<DiffEntry> entries = getGitTreeDiff(repo, reader, key);
-
-        return entries.stream().map(Loader::toModifiedFile).collect(toImmutableList());
-      }
-    }
-
-    private List<DiffEntry> getGitTreeDiff(
-        Repository repo, ObjectReader reader, GitModifiedFilesCacheKey key) throws IOException {
-      try (DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
-        df.setReader(reader, repo.getConfig());
-        if (key.renameDetection()) {
-          df.setDetectRenames(true);
-          df.getRenameDetector().setRenameScore(key.renameScore());
-        }
-        // The scan method only returns the file paths that are different. Callers may choose to
-        // format these paths themselves.
-        return df.scan(key.aTree().equals(ObjectId.zeroId()) ? null : key.aTree(), key.bTree());
+          ObjectReader reader = repo.newObjectReader();
+          GitTreeDiff treeDiff =
+              GitTreeDiff.scan(
+                  repo,
+                  reader,
+                  key.aTree(),
+                  key.bTree(),
+                  key.renameScore(),
+                  /* skipContentRenamesForBinaryFiles= */ false)) {
+        return treeDiff.entries().stream()
+            .map(Loader::toModifiedFile)
+            .collect(toImmutableList());
       }
     }
 
@@ -26,7 +26,6 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Streams;
 import com.google.gerrit.entities.Project;
-import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
 import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
@@ -54,16 +53,13 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
-import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.diff.HistogramDiff;
-import org.eclipse.jgit.diff.RawTextComparator;
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.patch.FileHeader;
-import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 /** Implementation of the {@link GitFileDiffCache} */
 @Singleton
@@ -192,8 +188,8 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
           try (Repository repo = repoManager.openRepository(entry.getKey());
               ObjectReader reader = repo.newObjectReader()) {
 
-            // Grouping keys by diff options because each group of keys will be processed with a
-            // separate call to JGit using the DiffFormatter object.
+            // Grouping keys by the options affecting the modified files, so that the trees are
+            // walked only once for all keys of a group, regardless of their other diff options.
             Map<DiffOptions, List<GitFileDiffCacheKey>> optionsGroups =
                 entry.getValue().stream().collect(Collectors.groupingBy(DiffOptions::fromKey));
 
@@ -220,73 +216,42 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
           ImmutableMap.builderWithExpectedSize(keys.size());
       Map<GitFileDiffCacheKey, String> filePaths =
           keys.stream().collect(Collectors.toMap(identity(), GitFileDiffCacheKey::newFilePath));
-      DiffFormatter formatter = createDiffFormatter(options, repo, reader);
-      Map<String, DiffEntry> diffEntries = loadDiffEntries(formatter, options, filePaths.values());
-      for (GitFileDiffCacheKey key : filePaths.keySet()) {
-        String newFilePath = filePaths.get(key);
-        if (!diffEntries.containsKey(newFilePath)) {
-          result.put(
-              key,
-              GitFileDiff.empty(
-                  AbbreviatedObjectId.fromObjectId(key.oldTree()),
-                  AbbreviatedObjectId.fromObjectId(key.newTree()),
-                  newFilePath));
-          continue;
+      try (GitTreeDiff treeDiff =
+          GitTreeDiff.scan(
+              repo,
+              reader,
+              options.oldTree(),
+              options.newTree(),
+              options.renameScore(),
+              /* skipContentRenamesForBinaryFiles= */ true)) {
+        Map<String, DiffEntry> diffEntries = loadDiffEntries(treeDiff, filePaths.values());
+        for (GitFileDiffCacheKey key : filePaths.keySet()) {
+          String newFilePath = filePaths.get(key);
+          if (!diffEntries.containsKey(newFilePath)) {
+            result.put(
+                key,
+                GitFileDiff.empty(
+                    AbbreviatedObjectId.fromObjectId(key.oldTree()),
+                    AbbreviatedObjectId.fromObjectId(key.newTree()),
+                    newFilePath));
+            continue;
+          }
+          DiffEntry diffEntry = diffEntries.get(newFilePath);
+          GitFileDiff gitFileDiff = createGitFileDiff(diffEntry, treeDiff, key);
+          result.put(key, gitFileDiff);
         }
-        DiffEntry diffEntry = diffEntries.get(newFilePath);
-        GitFileDiff gitFileDiff = createGitFileDiff(diffEntry, formatter, key);
-        result.put(key, gitFileDiff);
       }
       return result.build();
     }
 
     private static Map<String, DiffEntry> loadDiffEntries(
-        DiffFormatter diffFormatter, DiffOptions diffOptions, Collection<String> filePaths)
-        throws IOException {
+        GitTreeDiff treeDiff, Collection<String> filePaths) {
       Set<String> filePathsSet = ImmutableSet.copyOf(filePaths);
-      List<DiffEntry> diffEntries =
-          diffFormatter.scan(
-              diffOptions.oldTree().equals(ObjectId.zeroId()) ? null : diffOptions.oldTree(),
-              diffOptions.newTree());
-
-      return diffEntries.stream()
+      return treeDiff.entries().stream()
           .filter(d -> filePathsSet.contains(pathExtractor.apply(d)))
           .collect(Collectors.toMap(d -> pathExtractor.apply(d), identity()));
     }
 
-    private static DiffFormatter createDiffFormatter(
-        DiffOptions diffOptions, Repository repo, ObjectReader reader) {
-      try (DiffFormatter diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
-        diffFormatter.setReader(reader, repo.getConfig());
-        RawTextComparator cmp = comparatorFor(diffOptions.whitespace());
-        diffFormatter.setDiffComparator(cmp);
-        if (diffOptions.renameScore() != -1) {
-          diffFormatter.setDetectRenames(true);
-          diffFormatter.getRenameDetector().setRenameScore(diffOptions.renameScore());
-        }
-        diffFormatter.setDiffAlgorithm(DiffAlgorithmFactory.create(diffOptions.diffAlgorithm()));
-        diffFormatter.getRenameDetector().setSkipContentRenamesForBinaryFiles(true);
-        return diffFormatter;
-      }
-    }
-
-    private static RawTextComparator comparatorFor(Whitespace ws) {
-      switch (ws) {
-        case IGNORE_ALL:
-          return RawTextComparator.WS_IGNORE_ALL;
-
-        case IGNORE_TRAILING:
-          return RawTextComparator.WS_IGNORE_TRAILING;
-
-        case IGNORE_LEADING_AND_TRAILING:
-          return RawTextComparator.WS_IGNORE_CHANGE;
-
-        case IGNORE_NONE:
-        default:
-          return RawTextComparator.DEFAULT;
-      }
-    }
-
     /**
      * Create a {@link GitFileDiff}. The result depends on the value of the {@code useTimeout} field
      * of the {@code key} parameter.
@@ -300,24 +265,22 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
      *       timeout enforcement.
      */
     private GitFileDiff createGitFileDiff(
-        DiffEntry diffEntry, DiffFormatter formatter, GitFileDiffCacheKey key) throws IOException {
+        DiffEntry diffEntry, GitTreeDiff treeDiff, GitFileDiffCacheKey key) throws IOException {
       if (!key.useTimeout()) {
-        FileHeader fileHeader = formatter.toFileHeader(diffEntry);
+        FileHeader fileHeader =
+            treeDiff.fileHeader(diffEntry, key.whitespace(), key.diffAlgorithm());
         return GitFileDiff.create(diffEntry, fileHeader);
       }
+      // The computation doesn't share a reader with the other files, so they can still be loaded
+      // if it times out and keeps running in the background.
       Future<FileHeader> fileHeaderFuture =
           diffExecutor.submit(
-              () -> {
-                synchronized (diffEntry) {
-                  return formatter.toFileHeader(diffEntry);
-                }
-              });
+              treeDiff.detachedFileHeader(diffEntry, key.whitespace(), key.diffAlgorithm()));
       try {
         // We employ the timeout because of a bug in Myers diff in JGit. See
         // bugs.chromium.org/p/gerrit/issues/detail?id=487 for more details. The bug may happen
         // if the algorithm used in diffs is HISTOGRAM_WITH_FALLBACK_MYERS.
-        fileHeaderFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
-        FileHeader fileHeader = formatter.toFileHeader(diffEntry);
+        FileHeader fileHeader = fileHeaderFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
         return GitFileDiff.create(diffEntry, fileHeader);
       } catch (InterruptedException | TimeoutException e) {
         // If timeout happens, create a negative result
@@ -334,23 +297,19 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
     }
   }
 
-  /** An entity representing the options affecting the diff computation. */
+  /**
+   * An entity representing the options affecting the modified files between two trees. The
+   * whitespace and diff algorithm options only affect the edits of each file.
+   */
   @AutoValue
   abstract static class DiffOptions {
     /** Convert a {@link GitFileDiffCacheKey} input to a {@link DiffOptions}. */
     static DiffOptions fromKey(GitFileDiffCacheKey key) {
-      return create(
-          key.oldTree(), key.newTree(), key.renameScore(), key.whitespace(), key.diffAlgorithm());
+      return create(key.oldTree(), key.newTree(), key.renameScore());
     }
 
-    private static DiffOptions create(
-        ObjectId oldTree,
-        ObjectId newTree,
-        Integer renameScore,
-        Whitespace whitespace,
-        DiffAlgorithm diffAlgorithm) {
-      return new AutoValue_GitFileDiffCacheImpl_DiffOptions(
-          oldTree, newTree, renameScore, whitespace, diffAlgorithm);
+    private static DiffOptions create(ObjectId oldTree, ObjectId newTree, Integer renameScore) {
+      return new AutoValue_GitFileDiffCacheImpl_DiffOptions(oldTree, newTree, renameScore);
     }
 
     abstract ObjectId oldTree();
@@ -358,9 +317,5 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
     abstract ObjectId newTree();
 
     abstract Integer renameScore();
-
-    abstract Whitespace whitespace();
-
-    abstract DiffAlgorithm diffAlgorithm();
   }
 }
@@ -0,0 +1,171 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch.gitfilediff;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl.DiffAlgorithm;
+import com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl.DiffAlgorithmFactory;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.patch.FileHeader;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+
+/**
+ * The differences between two git trees, computed with a single walk over both trees.
+ *
+ * <p>The walk finds all modified files, including renames, so that the {@link
+ * com.google.gerrit.server.patch.gitdiff.GitModifiedFilesCache} can use the {@link #entries()}
+ * directly. The {@link GitFileDiffCache} computes the file headers and edits of any number of these
+ * entries from the same instance, for every combination of whitespace and diff algorithm options,
+ * without walking the trees again.
+ *
+ * <p>Instances are not thread-safe, except for the {@link #detachedFileHeader(DiffEntry,
+ * Whitespace, DiffAlgorithm) detached} computations.
+ */
+public class GitTreeDiff implements AutoCloseable {
+  /**
+   * Walks the trees and detects the modified files between them.
+   *
+   * @param repo the repository containing the trees.
+   * @param reader reader to use for the walk, not closed by this instance.
+   * @param oldTree the old tree, or {@link ObjectId#zeroId()} to compare against an empty tree.
+   * @param newTree the new tree.
+   * @param renameScore the minimum score for renames, or -1 to use the rename detection settings of
+   *     the repository.
+   * @param skipContentRenamesForBinaryFiles whether binary files should only be detected as renamed
+   *     if their content is identical.
+   */
+  public static GitTreeDiff scan(
+      Repository repo,
+      ObjectReader reader,
+      ObjectId oldTree,
+      ObjectId newTree,
+      int renameScore,
+      boolean skipContentRenamesForBinaryFiles)
+      throws IOException {
+    try (DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+      df.setReader(reader, repo.getConfig());
+      if (renameScore != -1) {
+        df.setDetectRenames(true);
+        df.getRenameDetector().setRenameScore(renameScore);
+      }
+      if (skipContentRenamesForBinaryFiles && df.getRenameDetector() != null) {
+        df.getRenameDetector().setSkipContentRenamesForBinaryFiles(true);
+      }
+      // The scan method only returns the file paths that are different. The file headers are
+      // computed on demand.
+      List<DiffEntry> entries =
+          df.scan(oldTree.equals(ObjectId.zeroId()) ? null : oldTree, newTree);
+      return new GitTreeDiff(repo, reader, ImmutableList.copyOf(entries));
+    }
+  }
+
+  private final Repository repo;
+  private final ObjectReader reader;
+  private final ImmutableList<DiffEntry> entries;
+  private final Map<FormatOptions, DiffFormatter> formatters = new HashMap<>();
+
+  private GitTreeDiff(Repository repo, ObjectReader reader, ImmutableList<DiffEntry> entries) {
+    this.repo = repo;
+    this.reader = reader;
+    this.entries = entries;
+  }
+
+  /** Returns the modified files between the trees. */
+  public ImmutableList<DiffEntry> entries() {
+    return entries;
+  }
+
+  /** Computes the file header and edits of one of the {@link #entries()}. */
+  FileHeader fileHeader(DiffEntry entry, Whitespace whitespace, DiffAlgorithm diffAlgorithm)
+      throws IOException {
+    return formatter(whitespace, diffAlgorithm).toFileHeader(entry);
+  }
+
+  /**
+   * Returns a computation of the file header and edits of one of the {@link #entries()}, which can
+   * run on another thread, concurrently with other calls on this instance.
+   *
+   * <p>The computation uses its own reader and closes it when it is done, so a caller that stops
+   * waiting for it, e.g. because it timed out, can go on using this instance and close it.
+   */
+  Callable<FileHeader> detachedFileHeader(
+      DiffEntry entry, Whitespace whitespace, DiffAlgorithm diffAlgorithm) {
+    FormatOptions options = FormatOptions.create(whitespace, diffAlgorithm);
+    return () -> {
+      try (ObjectReader ownReader = repo.newObjectReader()) {
+        return newFormatter(ownReader, options).toFileHeader(entry);
+      }
+    };
+  }
+
+  private DiffFormatter formatter(Whitespace whitespace, DiffAlgorithm diffAlgorithm) {
+    return formatters.computeIfAbsent(
+        FormatOptions.create(whitespace, diffAlgorithm), o -> newFormatter(reader, o));
+  }
+
+  private DiffFormatter newFormatter(ObjectReader reader, FormatOptions options) {
+    DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
+    df.setReader(reader, repo.getConfig());
+    df.setDiffComparator(comparatorFor(options.whitespace()));
+    df.setDiffAlgorithm(DiffAlgorithmFactory.create(options.diffAlgorithm()));
+    return df;
+  }
+
+  private static RawTextComparator comparatorFor(Whitespace ws) {
+    switch (ws) {
+      case IGNORE_ALL:
+        return RawTextComparator.WS_IGNORE_ALL;
+
+      case IGNORE_TRAILING:
+        return RawTextComparator.WS_IGNORE_TRAILING;
+
+      case IGNORE_LEADING_AND_TRAILING:
+        return RawTextComparator.WS_IGNORE_CHANGE;
+
+      case IGNORE_NONE:
+      default:
+        return RawTextComparator.DEFAULT;
+    }
+  }
+
+  @Override
+  public void close() {
+    // Formatters which were set up with a reader don't close it, so they don't need to be closed.
+    formatters.clear();
+  }
+
+  @AutoValue
+  abstract static class FormatOptions {
+    static FormatOptions create(Whitespace whitespace, DiffAlgorithm diffAlgorithm) {
+      return new AutoValue_GitTreeDiff_FormatOptions(whitespace, diffAlgorithm);
+    }
+
+    abstract Whitespace whitespace();
+
+    abstract DiffAlgorithm diffAlgorithm();
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.gerrit.server.permissions;
 
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.flogger.LazyArgs.lazy;
 import static com.google.gerrit.entities.RefNames.REFS_CONFIG;
 import static java.util.stream.Collectors.toCollection;
@@ -24,6 +25,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.HashCode;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.exceptions.StorageException;
@@ -47,6 +50,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
@@ -64,12 +68,16 @@ class DefaultRefFilter {
   private final ChangeNotes.Factory changeNotesFactory;
   private final PermissionBackend permissionBackend;
   private final RefVisibilityControl refVisibilityControl;
+  private final RefVisibilityCache refVisibilityCache;
+  @Nullable private final RefAdvertisementCache refAdvertisementCache;
   private final ProjectControl projectControl;
   private final CurrentUser user;
   private final ProjectState projectState;
   private final PermissionBackend.ForProject permissionBackendForProject;
   private final Counter0 fullFilterCount;
   private final Counter0 skipFilterCount;
+  private final Counter0 enumeratedRefCount;
+  private final Counter0 visibleRefCount;
   private final boolean skipFullRefEvaluationIfAllRefsAreVisible;
   private final VisibleChangesCache.Factory visibleChangesCacheFactory;
 
@@ -81,6 +89,8 @@ class DefaultRefFilter {
       ChangeNotes.Factory changeNotesFactory,
       PermissionBackend permissionBackend,
       RefVisibilityControl refVisibilityControl,
+      RefVisibilityCache refVisibilityCache,
+      @Nullable RefAdvertisementCache refAdvertisementCache,
       @GerritServerConfig Config config,
       MetricMaker metricMaker,
       VisibleChangesCache.Factory visibleChangesCacheFactory,
@@ -89,6 +99,8 @@ class DefaultRefFilter {
     this.changeNotesFactory = changeNotesFactory;
     this.permissionBackend = permissionBackend;
     this.refVisibilityControl = refVisibilityControl;
+    this.refVisibilityCache = refVisibilityCache;
+    this.refAdvertisementCache = refAdvertisementCache;
     this.skipFullRefEvaluationIfAllRefsAreVisible =
         config.getBoolean("auth", "skipFullRefEvaluationIfAllRefsAreVisible", true);
     this.projectControl = projectControl;
@@ -109,11 +121,72 @@ class DefaultRefFilter {
                     "Rate of ref filter operations where we skip full evaluation"
                         + " because the user can read all refs")
                 .setRate());
+    this.enumeratedRefCount =
+        metricMaker.newCounter(
+            "permissions/ref_filter/enumerated_ref_count",
+            new Description("Rate of refs passed to ref filter operations")
+                .setRate()
+                .setUnit("refs"));
+    this.visibleRefCount =
+        metricMaker.newCounter(
+            "permissions/ref_filter/visible_ref_count",
+            new Description("Rate of refs returned as visible by ref filter operations")
+                .setRate()
+                .setUnit("refs"));
   }
 
   /** Filters given refs and tags by visibility. */
   Collection<Ref> filter(Collection<Ref> refs, Repository repo, RefFilterOptions opts)
       throws PermissionBackendException {
+    int enumerated = refs.size();
+    // Refs that don't match the prefixes are dropped before any visibility check.
+    refs = filterByPrefixes(refs, opts.prefixes());
+    Collection<Ref> visibleRefs = filterWithCache(refs, repo, opts);
+    enumeratedRefCount.incrementBy(enumerated);
+    visibleRefCount.incrementBy(visibleRefs.size());
+    return visibleRefs;
+  }
+
+  /**
+   * Filters the refs by visibility, reusing the result of an earlier filter operation of the same
+   * user on the same refs if possible.
+   */
+  private Collection<Ref> filterWithCache(
+      Collection<Ref> refs, Repository repo, RefFilterOptions opts)
+      throws PermissionBackendException {
+    Optional<RefAdvertisementCache.Key> key =
+        refAdvertisementCache != null && refs.size() > 1
+            ? refAdvertisementCache.key(projectControl, opts)
+            : Optional.empty();
+    if (!key.isPresent()) {
+      return filterByVisibility(refs, repo, opts);
+    }
+
+    HashCode refsHash = RefAdvertisementCache.hash(refs);
+    List<Ref> cached = refAdvertisementCache.get(key.get(), refsHash);
+    if (cached != null) {
+      logger.atFinest().log("Use cached visible refs of %s", projectState.getNameKey());
+      // Callers may modify the result.
+      return new ArrayList<>(cached);
+    }
+    Collection<Ref> visibleRefs = filterByVisibility(refs, repo, opts);
+    refAdvertisementCache.put(key.get(), refsHash, visibleRefs);
+    return visibleRefs;
+  }
+
+  private static Collection<Ref> filterByPrefixes(
+      Collection<Ref> refs, ImmutableList<String> prefixes) {
+    if (prefixes.contains("")) {
+      return refs;
+    }
+    return refs.stream()
+        .filter(r -> prefixes.stream().anyMatch(p -> r.getName().startsWith(p)))
+        .collect(toImmutableList());
+  }
+
+  private Collection<Ref> filterByVisibility(
+      Collection<Ref> refs, Repository repo, RefFilterOptions opts)
+      throws PermissionBackendException {
     visibleChangesCache = visibleChangesCacheFactory.create(projectControl, repo);
     logger.atFinest().log(
         "Filter refs for repository %s by visibility (options = %s, refs = %s)",
@@ -214,6 +287,9 @@ class DefaultRefFilter {
         permissionBackend
             .user(projectControl.getUser())
             .testOrFalse(GlobalPermission.ACCESS_DATABASE);
+    // Internal users can read all refs, so there is no point in compiling their read access.
+    RefVisibilityCache.CompiledVisibility compiledVisibility =
+        user.isInternalUser() ? null : refVisibilityCache.get(projectControl);
     List<Ref> resultRefs = new ArrayList<>(refs.size());
     List<Ref> deferredTags = new ArrayList<>();
     for (Ref ref : refs) {
@@ -259,6 +335,12 @@ class DefaultRefFilter {
           // Change is visible
           resultRefs.add(ref);
         }
+      } else if (compiledVisibility != null && !RefNames.isGerritRef(ref.getLeaf().getName())) {
+        // Same as RefVisibilityControl for branches and other refs not managed by Gerrit, but
+        // without computing the permissions of each ref individually.
+        if (compiledVisibility.canRead(projectControl, ref.getLeaf().getName())) {
+          resultRefs.add(ref);
+        }
       } else if (refVisibilityControl.isVisible(projectControl, ref.getLeaf().getName())) {
         resultRefs.add(ref);
       }
@@ -224,7 +224,7 @@ class ProjectControl {
     return false;
   }
 
-  private boolean isDeclaredOwner() {
+  boolean isDeclaredOwner() {
     if (declaredOwner == null) {
       GroupMembership effectiveGroups = user.getEffectiveGroups();
       declaredOwner = effectiveGroups.containsAnyOf(state.getAllOwners());
@@ -0,0 +1,262 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.permissions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.Permission;
+import com.google.gerrit.entities.PermissionRule;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.account.CapabilityCollection;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.util.Providers;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Caches the refs of a project that are visible to a user, so that frequent fetches of the same
+ * user, e.g. from a build farm, don't filter all refs again.
+ *
+ * <p>Entries are keyed by a generation of the project that is incremented on every ref update,
+ * the config revisions of the project and its parents, the account of the user, the groups of the
+ * user that access rules for reading refs refer to, whether the user owns the project and the
+ * filter options. An entry is only used if the refs to filter have the same names and values
+ * as the refs it was computed from, which is checked by a hash of the refs.
+ *
+ * <p>Refs that are updated by replication don't fire ref update events, so the cache isn't bound
+ * on replicas, like {@link com.google.gerrit.server.git.SearchingChangeCacheImpl}.
+ */
+@Singleton
+public class RefAdvertisementCache implements GitReferenceUpdatedListener {
+  private static final String CACHE_NAME = "ref_advertisements";
+
+  public static class Module extends CacheModule {
+    private final boolean replica;
+
+    public Module() {
+      this(false);
+    }
+
+    public Module(boolean replica) {
+      this.replica = replica;
+    }
+
+    @Override
+    protected void configure() {
+      if (replica) {
+        bind(RefAdvertisementCache.class).toProvider(Providers.of(null));
+      } else {
+        cache(CACHE_NAME, Key.class, VisibleRefs.class)
+            .maximumWeight(32 << 20)
+            .weigher(VisibleRefsWeigher.class);
+        bind(RefAdvertisementCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+            .to(RefAdvertisementCache.class);
+      }
+    }
+  }
+
+  private final Cache<Key, VisibleRefs> cache;
+  private final Map<Project.NameKey, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  @Inject
+  RefAdvertisementCache(@Named(CACHE_NAME) Cache<Key, VisibleRefs> cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    generation(Project.nameKey(event.getProjectName())).incrementAndGet();
+  }
+
+  private AtomicLong generation(Project.NameKey project) {
+    return generations.computeIfAbsent(project, p -> new AtomicLong());
+  }
+
+  /**
+   * Returns the key for filtering refs for the user of the project control, or empty if the result
+   * must not be cached. The key must be created before the refs are filtered.
+   */
+  Optional<Key> key(ProjectControl projectControl, RefFilterOptions opts) {
+    CurrentUser user = projectControl.getUser();
+    if (user.isInternalUser()) {
+      return Optional.empty();
+    }
+    ProjectState projectState = projectControl.getProjectState();
+    Project.NameKey project = projectState.getNameKey();
+    // Read the generation first, so that a concurrent ref update makes the key outdated.
+    long generation = generation(project).get();
+    Optional<ImmutableList<ObjectId>> configRevisions =
+        RefVisibilityCache.configRevisions(projectState);
+    if (!configRevisions.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        Key.create(
+            project,
+            generation,
+            configRevisions.get(),
+            user.isIdentifiedUser() ? Optional.of(user.getAccountId()) : Optional.empty(),
+            groups(projectControl),
+            projectControl.isDeclaredOwner(),
+            opts));
+  }
+
+  /**
+   * Returns the groups of the user which the visible refs depend on: the groups used by rules for
+   * reading refs and private changes, and for the global capabilities that affect ref filtering.
+   *
+   * <p>Like {@link RefVisibilityCache}, this asks the group backends about specific groups, since
+   * not all group backends know all groups of a user.
+   */
+  private static ImmutableSet<AccountGroup.UUID> groups(ProjectControl projectControl) {
+    ProjectState projectState = projectControl.getProjectState();
+    Set<AccountGroup.UUID> capabilityGroups = new HashSet<>();
+    for (ProjectState s : projectState.tree()) {
+      if (s.isAllProjects()) {
+        CapabilityCollection capabilities = s.getCapabilityCollection();
+        for (PermissionRule rule :
+            Iterables.concat(
+                capabilities.getPermission(GlobalCapability.ACCESS_DATABASE),
+                capabilities.administrateServer)) {
+          capabilityGroups.add(rule.getGroup().getUUID());
+        }
+      }
+    }
+    return ImmutableSet.<AccountGroup.UUID>builder()
+        .addAll(
+            RefVisibilityCache.groupsUsedBy(
+                projectControl,
+                projectState.getAllSections(),
+                ImmutableSet.of(Permission.READ, Permission.VIEW_PRIVATE_CHANGES)))
+        .addAll(projectControl.getUser().getEffectiveGroups().intersection(capabilityGroups))
+        .build();
+  }
+
+  /** Returns a hash of the names and values of the refs. */
+  static HashCode hash(Collection<Ref> refs) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    for (Ref ref : refs) {
+      h.putString(ref.getName(), UTF_8).putByte((byte) 0);
+      if (ref.isSymbolic()) {
+        h.putString(ref.getTarget().getName(), UTF_8);
+      }
+      h.putByte((byte) 0);
+      ObjectId id = ref.getObjectId();
+      if (id != null) {
+        h.putString(id.name(), UTF_8);
+      }
+      h.putByte((byte) 0);
+    }
+    return h.hash();
+  }
+
+  /**
+   * Returns the visible refs for the key, or null if they are not cached or were computed from
+   * other refs.
+   */
+  @Nullable
+  ImmutableList<Ref> get(Key key, HashCode refsHash) {
+    VisibleRefs visibleRefs = cache.getIfPresent(key);
+    if (visibleRefs == null || !visibleRefs.refsHash().equals(refsHash)) {
+      return null;
+    }
+    return visibleRefs.refs();
+  }
+
+  void put(Key key, HashCode refsHash, Collection<Ref> visibleRefs) {
+    cache.put(key, VisibleRefs.create(refsHash, visibleRefs));
+  }
+
+  /** Visible refs, and the hash of the refs they were filtered from. */
+  @AutoValue
+  abstract static class VisibleRefs {
+    static VisibleRefs create(HashCode refsHash, Collection<Ref> refs) {
+      return new AutoValue_RefAdvertisementCache_VisibleRefs(refsHash, ImmutableList.copyOf(refs));
+    }
+
+    abstract HashCode refsHash();
+
+    abstract ImmutableList<Ref> refs();
+  }
+
+  static class VisibleRefsWeigher implements Weigher<Key, VisibleRefs> {
+    @Override
+    public int weigh(Key key, VisibleRefs value) {
+      int weight = 64 * key.configRevisions().size() + 32 * key.groups().size();
+      for (Ref ref : value.refs()) {
+        weight += 96 + 2 * ref.getName().length();
+      }
+      return weight;
+    }
+  }
+
+  @AutoValue
+  abstract static class Key {
+    abstract Project.NameKey project();
+
+    abstract long generation();
+
+    abstract ImmutableList<ObjectId> configRevisions();
+
+    abstract Optional<Account.Id> accountId();
+
+    abstract ImmutableSet<AccountGroup.UUID> groups();
+
+    abstract boolean declaredOwner();
+
+    abstract RefFilterOptions options();
+
+    static Key create(
+        Project.NameKey project,
+        long generation,
+        ImmutableList<ObjectId> configRevisions,
+        Optional<Account.Id> accountId,
+        ImmutableSet<AccountGroup.UUID> groups,
+        boolean declaredOwner,
+        RefFilterOptions options) {
+      return new AutoValue_RefAdvertisementCache_Key(
+          project, generation, configRevisions, accountId, groups, declaredOwner, options);
+    }
+  }
+}
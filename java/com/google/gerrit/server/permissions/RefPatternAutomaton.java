@@ -0,0 +1,303 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.permissions;
+
+import static com.google.gerrit.server.project.RefPattern.containsParameters;
+import static com.google.gerrit.server.project.RefPattern.isRE;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.ImmutableIntArray;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.project.RefPattern;
+import com.google.gerrit.server.project.RefPatternMatcher;
+import com.google.gerrit.server.project.SectionMatcher;
+import dk.brics.automaton.RunAutomaton;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds all access sections of a project that match a ref name in a single pass over the name.
+ *
+ * <p>Exact and prefix patterns, e.g. {@code refs/heads/master} and {@code refs/heads/*}, are
+ * stored in a trie. Regular expressions are combined into a single deterministic automaton, whose
+ * states are built lazily from the automata of the individual expressions as refs are matched.
+ * Regular expressions which use syntax that may be interpreted differently by the automaton
+ * library than by {@link java.util.regex.Pattern}, and patterns with parameters like {@code
+ * ${username}}, are matched individually.
+ *
+ * <p>Instances are thread-safe.
+ */
+final class RefPatternAutomaton {
+  /** Maximum number of states of the combined regular expression automaton that are kept. */
+  private static final int MAX_DFA_STATES = 10_000;
+
+  /**
+   * Compiles the given sections.
+   *
+   * @param sections sections in the order of {@link
+   *     com.google.gerrit.server.project.ProjectState#getAllSections()}. The bits of the sets
+   *     returned by {@link #match(String, CurrentUser)} are the indexes in this list.
+   */
+  static RefPatternAutomaton compile(List<SectionMatcher> sections) {
+    TrieNode root = new TrieNode();
+    List<RunAutomaton> regexes = new ArrayList<>();
+    List<Integer> regexSections = new ArrayList<>();
+    List<IndividualMatcher> individual = new ArrayList<>();
+    for (int i = 0; i < sections.size(); i++) {
+      SectionMatcher sm = sections.get(i);
+      String pattern = sm.getSection().getName();
+      if (containsParameters(pattern)) {
+        individual.add(new IndividualMatcher(i, sm.getMatcher()));
+      } else if (isRE(pattern)) {
+        RunAutomaton regex = toAutomaton(pattern);
+        if (regex != null) {
+          regexes.add(regex);
+          regexSections.add(i);
+        } else {
+          individual.add(new IndividualMatcher(i, sm.getMatcher()));
+        }
+      } else if (pattern.endsWith("/*")) {
+        root.add(pattern.substring(0, pattern.length() - 1)).prefixSections.set(i);
+      } else {
+        root.add(pattern).exactSections.set(i);
+      }
+    }
+    return new RefPatternAutomaton(sections.size(), root, regexes, regexSections, individual);
+  }
+
+  private static RunAutomaton toAutomaton(String pattern) {
+    if (!hasSameSemantics(pattern.substring(1))) {
+      return null;
+    }
+    try {
+      return new RunAutomaton(RefPattern.toRegExp(pattern).toAutomaton());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether the regular expression only uses syntax that {@link java.util.regex.Pattern}
+   * and the automaton library interpret in the same way: literals, character classes without
+   * negation, {@code .}, alternatives, groups and the greedy quantifiers {@code *}, {@code +} and
+   * {@code ?}.
+   */
+  @VisibleForTesting
+  static boolean hasSameSemantics(String regex) {
+    boolean inClass = false;
+    char prev = '(';
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        // Escaped letters and digits are character classes in Pattern, but literals in the
+        // automaton library.
+        if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          return false;
+        }
+        prev = regex.charAt(++i);
+        continue;
+      }
+      if (inClass) {
+        // Nested classes are unions in Pattern, but literals in the automaton library.
+        if (c == '[' || (prev == '[' && (c == '^' || c == ']'))) {
+          return false;
+        }
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (isQuantifier(c)) {
+        // Rejects lazy and possessive quantifiers, and special groups like "(?:".
+        if (isQuantifier(prev) || prev == '(' || prev == '|') {
+          return false;
+        }
+      } else if (!isLiteral(c) && "|().".indexOf(c) < 0) {
+        return false;
+      }
+      prev = c;
+    }
+    return !inClass;
+  }
+
+  private static boolean isQuantifier(char c) {
+    return c == '*' || c == '+' || c == '?';
+  }
+
+  private static boolean isLiteral(char c) {
+    return (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || c == '/'
+        || c == '_'
+        || c == '-';
+  }
+
+  private final int sectionCount;
+  private final TrieNode root;
+  private final RunAutomaton[] regexes;
+  private final int[] regexSections;
+  private final List<IndividualMatcher> individual;
+  private final Map<ImmutableIntArray, DfaState> dfaStates = new ConcurrentHashMap<>();
+  private final DfaState dfaStart;
+
+  private RefPatternAutomaton(
+      int sectionCount,
+      TrieNode root,
+      List<RunAutomaton> regexes,
+      List<Integer> regexSections,
+      List<IndividualMatcher> individual) {
+    this.sectionCount = sectionCount;
+    this.root = root;
+    this.regexes = regexes.toArray(new RunAutomaton[0]);
+    this.regexSections = regexSections.stream().mapToInt(Integer::intValue).toArray();
+    this.individual = individual;
+    if (this.regexes.length > 0) {
+      int[] start = new int[this.regexes.length];
+      for (int i = 0; i < start.length; i++) {
+        start[i] = this.regexes[i].getInitialState();
+      }
+      this.dfaStart = state(start);
+    } else {
+      this.dfaStart = null;
+    }
+  }
+
+  /**
+   * Returns the indexes of all sections that match the ref.
+   *
+   * @param ref name of the ref, must not be a ref pattern.
+   * @param user user for expanding per-user ref patterns.
+   */
+  BitSet match(String ref, CurrentUser user) {
+    BitSet matched = new BitSet(sectionCount);
+    TrieNode node = root;
+    for (int i = 0; node != null; i++) {
+      matched.or(node.prefixSections);
+      if (i == ref.length()) {
+        matched.or(node.exactSections);
+        break;
+      }
+      node = node.children.get(ref.charAt(i));
+    }
+
+    DfaState state = dfaStart;
+    for (int i = 0; state != null && i < ref.length(); i++) {
+      state = state.step(ref.charAt(i));
+    }
+    if (state != null) {
+      matched.or(state.accepting);
+    }
+
+    for (IndividualMatcher m : individual) {
+      if (m.matcher.match(ref, user)) {
+        matched.set(m.section);
+      }
+    }
+    return matched;
+  }
+
+  /** Returns the state of the combined automaton, or null if no expression can match anymore. */
+  private DfaState state(int[] states) {
+    boolean alive = false;
+    for (int s : states) {
+      alive |= s >= 0;
+    }
+    if (!alive) {
+      return null;
+    }
+    ImmutableIntArray key = ImmutableIntArray.copyOf(states);
+    DfaState state = dfaStates.get(key);
+    if (state != null) {
+      return state;
+    }
+    if (dfaStates.size() >= MAX_DFA_STATES) {
+      return new DfaState(states, false);
+    }
+    return dfaStates.computeIfAbsent(key, k -> new DfaState(states, true));
+  }
+
+  private class DfaState {
+    private final int[] states;
+    private final BitSet accepting;
+    private final boolean interned;
+    private final DfaState[] asciiNext = new DfaState[128];
+    private final boolean[] asciiDead = new boolean[128];
+
+    DfaState(int[] states, boolean interned) {
+      this.states = states;
+      this.interned = interned;
+      this.accepting = new BitSet(sectionCount);
+      for (int i = 0; i < states.length; i++) {
+        if (states[i] >= 0 && regexes[i].isAccept(states[i])) {
+          accepting.set(regexSections[i]);
+        }
+      }
+    }
+
+    DfaState step(char c) {
+      if (c >= asciiNext.length) {
+        return computeStep(c);
+      }
+      DfaState next = asciiNext[c];
+      if (next != null || asciiDead[c]) {
+        return next;
+      }
+      next = computeStep(c);
+      // Only transitions between interned states are remembered, so that the number of states
+      // reachable from this one stays bounded.
+      if (next == null) {
+        asciiDead[c] = true;
+      } else if (next.interned) {
+        asciiNext[c] = next;
+      }
+      return next;
+    }
+
+    private DfaState computeStep(char c) {
+      int[] next = new int[states.length];
+      for (int i = 0; i < states.length; i++) {
+        next[i] = states[i] >= 0 ? regexes[i].step(states[i], c) : -1;
+      }
+      return state(next);
+    }
+  }
+
+  private static class TrieNode {
+    final Map<Character, TrieNode> children = new HashMap<>();
+    final BitSet prefixSections = new BitSet();
+    final BitSet exactSections = new BitSet();
+
+    TrieNode add(String name) {
+      TrieNode node = this;
+      for (int i = 0; i < name.length(); i++) {
+        node = node.children.computeIfAbsent(name.charAt(i), c -> new TrieNode());
+      }
+      return node;
+    }
+  }
+
+  private static class IndividualMatcher {
+    final int section;
+    final RefPatternMatcher matcher;
+
+    IndividualMatcher(int section, RefPatternMatcher matcher) {
+      this.section = section;
+      this.matcher = matcher;
+    }
+  }
+}
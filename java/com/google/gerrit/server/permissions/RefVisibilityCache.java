@@ -0,0 +1,209 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.permissions;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.AccessSection;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.Permission;
+import com.google.gerrit.entities.PermissionRule;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.project.SectionMatcher;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Caches the compiled read access of users to the branches and other non-Gerrit refs of a project.
+ *
+ * <p>Whether a user can read a ref only depends on the access sections that match the ref, the
+ * groups of the user which are granted or denied READ in these sections, and on whether the user
+ * owns the project. The sections of a project are compiled into a {@link RefPatternAutomaton},
+ * which finds the matching sections of a ref in a single pass over its name. The read access is
+ * then computed once for each distinct set of matching sections, and reused for all other refs
+ * with the same set.
+ *
+ * <p>Entries are keyed by the config revisions of the project and its parents and by the relevant
+ * group memberships, so they can be shared by all users with the same memberships.
+ */
+@Singleton
+public class RefVisibilityCache {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final String CACHE_NAME = "ref_visibility";
+
+  /** Maximum number of distinct sets of matching sections whose read access is remembered. */
+  private static final int MAX_SECTION_SETS = 10_000;
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, CompiledVisibility.class);
+        bind(RefVisibilityCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, CompiledVisibility> cache;
+
+  @Inject
+  RefVisibilityCache(@Named(CACHE_NAME) Cache<Key, CompiledVisibility> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the compiled read access of the user of the project control. Only refs which are
+   * neither tags nor Gerrit refs may be checked with the result.
+   */
+  CompiledVisibility get(ProjectControl projectControl) {
+    ProjectState projectState = projectControl.getProjectState();
+    List<SectionMatcher> sections = projectState.getAllSections();
+    Optional<Key> key = key(projectControl, sections);
+    if (!key.isPresent()) {
+      return new CompiledVisibility(sections);
+    }
+    try {
+      return cache.get(key.get(), () -> new CompiledVisibility(sections));
+    } catch (ExecutionException e) {
+      logger.atWarning().withCause(e).log(
+          "Failed to compile ref visibility of project %s", projectState.getName());
+      return new CompiledVisibility(sections);
+    }
+  }
+
+  private static Optional<Key> key(ProjectControl projectControl, List<SectionMatcher> sections) {
+    Optional<ImmutableList<ObjectId>> configRevisions =
+        configRevisions(projectControl.getProjectState());
+    if (!configRevisions.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        Key.create(
+            projectControl.getProjectState().getNameKey(),
+            configRevisions.get(),
+            groupsUsedBy(projectControl, sections, ImmutableSet.of(Permission.READ)),
+            projectControl.isDeclaredOwner()));
+  }
+
+  /**
+   * Returns the config revisions of the project and its parents, or empty if a config has no
+   * revision yet.
+   */
+  static Optional<ImmutableList<ObjectId>> configRevisions(ProjectState projectState) {
+    ImmutableList.Builder<ObjectId> revisions = ImmutableList.builder();
+    for (ProjectState s : projectState.tree()) {
+      Optional<ObjectId> revision = s.getConfig().getRevision();
+      if (!revision.isPresent()) {
+        return Optional.empty();
+      }
+      revisions.add(revision.get());
+    }
+    return Optional.of(revisions.build());
+  }
+
+  /**
+   * Returns the groups of the user of the project control which are used by rules of the given
+   * permissions in the sections.
+   */
+  static ImmutableSet<AccountGroup.UUID> groupsUsedBy(
+      ProjectControl projectControl,
+      List<SectionMatcher> sections,
+      ImmutableSet<String> permissionNames) {
+    Set<AccountGroup.UUID> groups = new HashSet<>();
+    for (SectionMatcher sm : sections) {
+      for (String permissionName : permissionNames) {
+        Permission permission = sm.getSection().getPermission(permissionName);
+        if (permission != null) {
+          for (PermissionRule rule : permission.getRules()) {
+            groups.add(rule.getGroup().getUUID());
+          }
+        }
+      }
+    }
+    return ImmutableSet.copyOf(projectControl.getUser().getEffectiveGroups().intersection(groups));
+  }
+
+  /** Read access of the users with the same relevant group memberships to the refs of a project. */
+  static class CompiledVisibility {
+    private final RefPatternAutomaton automaton;
+    private final BitSet exclusiveRead = new BitSet();
+    private final Map<BitSet, Boolean> readableBySections = new ConcurrentHashMap<>();
+
+    private CompiledVisibility(List<SectionMatcher> sections) {
+      automaton = RefPatternAutomaton.compile(sections);
+      for (int i = 0; i < sections.size(); i++) {
+        AccessSection section = sections.get(i).getSection();
+        Permission read = section.getPermission(Permission.READ);
+        if (read != null && read.getExclusiveGroup()) {
+          exclusiveRead.set(i);
+        }
+      }
+    }
+
+    /** Returns whether the user of the project control can read the ref. */
+    boolean canRead(ProjectControl projectControl, String refName) {
+      BitSet sections = automaton.match(refName, projectControl.getUser());
+      if (sections.intersects(exclusiveRead)) {
+        // Exclusive permissions depend on the order of the sections, which is specific to the ref.
+        return projectControl.controlForRef(refName).hasReadPermissionOnRef(false);
+      }
+      Boolean canRead = readableBySections.get(sections);
+      if (canRead == null) {
+        canRead = projectControl.controlForRef(refName).hasReadPermissionOnRef(false);
+        if (readableBySections.size() < MAX_SECTION_SETS) {
+          readableBySections.put(sections, canRead);
+        }
+      }
+      return canRead;
+    }
+  }
+
+  @AutoValue
+  abstract static class Key {
+    abstract Project.NameKey project();
+
+    abstract ImmutableList<ObjectId> configRevisions();
+
+    abstract ImmutableSet<AccountGroup.UUID> readGroups();
+
+    abstract boolean declaredOwner();
+
+    static Key create(
+        Project.NameKey project,
+        ImmutableList<ObjectId> configRevisions,
+        ImmutableSet<AccountGroup.UUID> readGroups,
+        boolean declaredOwner) {
+      return new AutoValue_RefVisibilityCache_Key(
+          project, configRevisions, readGroups, declaredOwner);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.permissions;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Permission;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Keeps the changes of a project that are visible to a user across requests.
+ *
+ * <p>Each entry remembers which version of each change the visibility was computed for: the
+ * revision of the change meta ref if the changes were loaded from NoteDb, or the cached {@link
+ * Change} instance if they were read from the {@link
+ * com.google.gerrit.server.git.SearchingChangeCacheImpl}. {@link VisibleChangesCache} only
+ * recomputes the visibility of changes whose version differs from the remembered one, so a fetch
+ * after a few changes were updated doesn't check the visibility of all other changes again.
+ *
+ * <p>Entries are keyed by the config revisions of the project and its parents, the account of the
+ * user and the user's memberships in groups that can be granted read access to changes.
+ */
+@Singleton
+public class SharedVisibleChangesCache {
+  private static final String CACHE_NAME = "visible_changes";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, VisibleChanges.class)
+            .maximumWeight(10 << 20)
+            .weigher(VisibleChangesWeigher.class);
+        bind(SharedVisibleChangesCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, VisibleChanges> cache;
+
+  @Inject
+  SharedVisibleChangesCache(@Named(CACHE_NAME) Cache<Key, VisibleChanges> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the key for the user of the project control, or empty if the visible changes of the
+   * user should not be shared across requests.
+   */
+  Optional<Key> key(ProjectControl projectControl) {
+    CurrentUser user = projectControl.getUser();
+    if (user.isInternalUser()) {
+      return Optional.empty();
+    }
+    ProjectState projectState = projectControl.getProjectState();
+    Optional<ImmutableList<ObjectId>> configRevisions =
+        RefVisibilityCache.configRevisions(projectState);
+    if (!configRevisions.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        Key.create(
+            projectState.getNameKey(),
+            configRevisions.get(),
+            user.isIdentifiedUser() ? Optional.of(user.getAccountId()) : Optional.empty(),
+            RefVisibilityCache.groupsUsedBy(
+                projectControl,
+                projectState.getAllSections(),
+                ImmutableSet.of(Permission.READ, Permission.VIEW_PRIVATE_CHANGES)),
+            projectControl.isDeclaredOwner()));
+  }
+
+  @Nullable
+  VisibleChanges get(Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  void put(Key key, VisibleChanges visibleChanges) {
+    cache.put(key, visibleChanges);
+  }
+
+  /** Visible changes of a user, and the versions of all changes they were computed from. */
+  @AutoValue
+  abstract static class VisibleChanges {
+    static VisibleChanges create(
+        Map<Change.Id, Object> versions, Map<Change.Id, BranchNameKey> visible) {
+      return new AutoValue_SharedVisibleChangesCache_VisibleChanges(
+          ImmutableMap.copyOf(versions), ImmutableMap.copyOf(visible));
+    }
+
+    /**
+     * Versions of the changes whose visibility was computed, either a meta ref revision or a
+     * {@link Change} instance, which is compared by identity.
+     */
+    abstract ImmutableMap<Change.Id, Object> versions();
+
+    /** Destination branches of the visible changes. */
+    abstract ImmutableMap<Change.Id, BranchNameKey> visible();
+
+    /** Returns whether the visibility of the given version of the change is known. */
+    boolean isKnown(Change.Id changeId, Object version) {
+      Object knownVersion = versions().get(changeId);
+      return knownVersion != null && knownVersion.equals(version);
+    }
+  }
+
+  static class VisibleChangesWeigher implements Weigher<Key, VisibleChanges> {
+    @Override
+    public int weigh(Key key, VisibleChanges value) {
+      return 64 * key.configRevisions().size()
+          + 64 * value.versions().size()
+          + 96 * value.visible().size();
+    }
+  }
+
+  @AutoValue
+  abstract static class Key {
+    abstract Project.NameKey project();
+
+    abstract ImmutableList<ObjectId> configRevisions();
+
+    abstract Optional<Account.Id> accountId();
+
+    abstract ImmutableSet<AccountGroup.UUID> groups();
+
+    abstract boolean declaredOwner();
+
+    static Key create(
+        Project.NameKey project,
+        ImmutableList<ObjectId> configRevisions,
+        Optional<Account.Id> accountId,
+        ImmutableSet<AccountGroup.UUID> groups,
+        boolean declaredOwner) {
+      return new AutoValue_SharedVisibleChangesCache_Key(
+          project, configRevisions, accountId, groups, declaredOwner);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
@@ -34,11 +35,18 @@ import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 
 /**
  * Gets all of the visible by current user changes in the repository that are available in the
  * change index and cache.
+ *
+ * <p>The result is shared with later requests of the same user through the {@link
+ * SharedVisibleChangesCache}, so that only the visibility of changes which were updated since then
+ * needs to be computed again.
  */
 class VisibleChangesCache {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
@@ -48,6 +56,8 @@ class VisibleChangesCache {
   }
 
   @Nullable private final SearchingChangeCacheImpl changeCache;
+  private final SharedVisibleChangesCache sharedCache;
+  private final ProjectControl projectControl;
   private final ProjectState projectState;
   private final ChangeNotes.Factory changeNotesFactory;
   private final PermissionBackend.ForProject permissionBackendForProject;
@@ -58,11 +68,14 @@ class VisibleChangesCache {
   @Inject
   VisibleChangesCache(
       @Nullable SearchingChangeCacheImpl changeCache,
+      SharedVisibleChangesCache sharedCache,
       PermissionBackend permissionBackend,
       ChangeNotes.Factory changeNotesFactory,
       @Assisted ProjectControl projectControl,
       @Assisted Repository repository) {
     this.changeCache = changeCache;
+    this.sharedCache = sharedCache;
+    this.projectControl = projectControl;
     this.projectState = projectControl.getProjectState();
     this.permissionBackendForProject =
         permissionBackend.user(projectControl.getUser()).project(projectState.getNameKey());
@@ -85,10 +98,17 @@ class VisibleChangesCache {
    */
   public Map<Change.Id, BranchNameKey> cachedVisibleChanges() throws PermissionBackendException {
     if (visibleChanges == null) {
+      Optional<SharedVisibleChangesCache.Key> key = sharedCache.key(projectControl);
+      SharedVisibleChangesCache.VisibleChanges known = key.map(sharedCache::get).orElse(null);
+      Map<Change.Id, Object> versions = new HashMap<>();
       if (changeCache == null) {
-        visibleChangesByScan();
+        visibleChangesByScan(known, versions);
       } else {
-        visibleChangesBySearch();
+        visibleChangesBySearch(known, versions);
+      }
+      if (key.isPresent()) {
+        sharedCache.put(
+            key.get(), SharedVisibleChangesCache.VisibleChanges.create(versions, visibleChanges));
       }
       logger.atFinest().log("Visible changes: %s", visibleChanges.keySet());
     }
@@ -105,11 +125,24 @@ class VisibleChangesCache {
     return cachedVisibleChanges().get(changeId);
   }
 
-  private void visibleChangesBySearch() throws PermissionBackendException {
+  private void visibleChangesBySearch(
+      @Nullable SharedVisibleChangesCache.VisibleChanges known, Map<Change.Id, Object> versions)
+      throws PermissionBackendException {
     visibleChanges = new HashMap<>();
     Project.NameKey project = projectState.getNameKey();
     try {
       for (ChangeData cd : changeCache.getChangeData(project)) {
+        // The change cache returns the same Change instances until any change of the project is
+        // updated, so the visibility of an unchanged instance is still the same.
+        Change change = cd.change();
+        versions.put(cd.getId(), change);
+        if (known != null && known.isKnown(cd.getId(), change)) {
+          BranchNameKey branch = known.visible().get(cd.getId());
+          if (branch != null) {
+            visibleChanges.put(cd.getId(), branch);
+          }
+          continue;
+        }
         if (!projectState.statePermitsRead()) {
           continue;
         }
@@ -123,22 +156,51 @@ class VisibleChangesCache {
     } catch (StorageException e) {
       logger.atSevere().withCause(e).log(
           "Cannot load changes for project %s, assuming no changes are visible", project);
+      versions.clear();
     }
   }
 
-  private void visibleChangesByScan() throws PermissionBackendException {
+  private void visibleChangesByScan(
+      @Nullable SharedVisibleChangesCache.VisibleChanges known, Map<Change.Id, Object> versions)
+      throws PermissionBackendException {
     visibleChanges = new HashMap<>();
     Project.NameKey p = projectState.getNameKey();
     ImmutableList<ChangeNotesResult> changes;
     try {
-      changes = changeNotesFactory.scan(repository, p).collect(toImmutableList());
+      Map<Change.Id, ObjectId> metaIds = new HashMap<>();
+      if (known != null) {
+        for (Ref ref : repository.getRefDatabase().getRefsByPrefix(RefNames.REFS_CHANGES)) {
+          if (RefNames.isNoteDbMetaRef(ref.getName())) {
+            metaIds.put(Change.Id.fromRef(ref.getName()), ref.getObjectId());
+          }
+        }
+        // Only load the changes whose meta ref was updated since the visibility was computed.
+        for (Map.Entry<Change.Id, ObjectId> e : metaIds.entrySet()) {
+          if (known.isKnown(e.getKey(), e.getValue())) {
+            versions.put(e.getKey(), e.getValue());
+            BranchNameKey branch = known.visible().get(e.getKey());
+            if (branch != null) {
+              visibleChanges.put(e.getKey(), branch);
+            }
+          }
+        }
+      }
+      changes =
+          changeNotesFactory
+              .scan(repository, p, id -> !versions.containsKey(id))
+              .collect(toImmutableList());
     } catch (IOException e) {
       logger.atSevere().withCause(e).log(
           "Cannot load changes for project %s, assuming no changes are visible", p);
+      visibleChanges.clear();
+      versions.clear();
       return;
     }
 
     for (ChangeNotesResult notesResult : changes) {
+      if (!notesResult.error().isPresent()) {
+        versions.put(notesResult.id(), notesResult.notes().getRevision());
+      }
       ChangeNotes notes = toNotes(notesResult);
       if (notes != null) {
         visibleChanges.put(notes.getChangeId(), notes.getChange().getDest());
@@ -71,6 +71,9 @@ public class BooleanProjectConfigTransformations {
           .put(
               BooleanProjectConfig.WORK_IN_PROGRESS_BY_DEFAULT,
               new Mapper(i -> i.workInProgressByDefault, (i, v) -> i.workInProgressByDefault = v))
+          .put(
+              BooleanProjectConfig.PRECOMPUTE_DIFFS,
+              new Mapper(i -> i.precomputeDiffs, (i, v) -> i.precomputeDiffs = v))
           .build();
 
   static {
@@ -33,6 +33,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Table;
 import com.google.common.flogger.FluentLogger;
@@ -106,6 +107,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
@@ -158,6 +160,7 @@ public class ChangeData {
       return;
     }
 
+    ensureNotesLoaded(changes, cd -> cd.change == null);
     for (ChangeData cd : changes) {
       cd.change();
     }
@@ -169,6 +172,7 @@ public class ChangeData {
       return;
     }
 
+    ensureNotesLoaded(changes, cd -> cd.patchSets == null);
     for (ChangeData cd : changes) {
       cd.patchSets();
     }
@@ -180,6 +184,7 @@ public class ChangeData {
       return;
     }
 
+    ensureNotesLoaded(changes, cd -> cd.currentPatchSet == null && cd.patchSets == null);
     for (ChangeData cd : changes) {
       cd.currentPatchSet();
     }
@@ -191,6 +196,7 @@ public class ChangeData {
       return;
     }
 
+    ensureNotesLoaded(changes, cd -> cd.currentApprovals == null);
     for (ChangeData cd : changes) {
       cd.currentApprovals();
     }
@@ -202,11 +208,48 @@ public class ChangeData {
       return;
     }
 
+    ensureNotesLoaded(changes, cd -> cd.messages == null);
     for (ChangeData cd : changes) {
       cd.messages();
     }
   }
 
+  /**
+   * Loads the notes of all changes that still need them for the data about to be read, with one
+   * bulk load instead of one load per change.
+   *
+   * <p>This only fetches ahead; changes which fail to load are left alone, so that reading them
+   * reports the error as usual.
+   *
+   * @param changes changes to load notes for.
+   * @param needsNotes whether reading the data of a change requires its notes.
+   */
+  private static void ensureNotesLoaded(
+      Iterable<ChangeData> changes, Predicate<ChangeData> needsNotes) {
+    ListMultimap<Project.NameKey, Change.Id> pending =
+        MultimapBuilder.hashKeys().arrayListValues().build();
+    ChangeNotes.Factory notesFactory = null;
+    for (ChangeData cd : changes) {
+      if (cd.notes == null && cd.notesFactory != null && cd.lazyload() && needsNotes.test(cd)) {
+        pending.put(cd.project, cd.legacyId);
+        notesFactory = cd.notesFactory;
+      }
+    }
+    if (pending.size() < 2) {
+      return;
+    }
+    Map<Change.Id, ChangeNotes> loaded = notesFactory.createAll(pending);
+    for (ChangeData cd : changes) {
+      ChangeNotes notes = loaded.get(cd.legacyId);
+      if (notes != null && cd.notes == null) {
+        cd.notes = notes;
+        if (cd.change == null) {
+          cd.change = notes.getChange();
+        }
+      }
+    }
+  }
+
   public static void ensureReviewedByLoadedForOpenChanges(Iterable<ChangeData> changes) {
     List<ChangeData> pending = new ArrayList<>();
     for (ChangeData cd : changes) {
@@ -18,6 +18,7 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.gerrit.server.query.change.ChangeQueryBuilder.FIELD_LIMIT;
 
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.extensions.common.PluginDefinedInfo;
 import com.google.gerrit.extensions.registration.DynamicSet;
@@ -27,6 +28,7 @@ import com.google.gerrit.index.QueryOptions;
 import com.google.gerrit.index.query.IndexPredicate;
 import com.google.gerrit.index.query.Predicate;
 import com.google.gerrit.index.query.QueryProcessor;
+import com.google.gerrit.index.query.QueryResult;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.DynamicOptions;
@@ -35,10 +37,13 @@ import com.google.gerrit.server.account.AccountLimits;
 import com.google.gerrit.server.change.ChangePluginDefinedInfoFactory;
 import com.google.gerrit.server.change.PluginDefinedAttributesFactories;
 import com.google.gerrit.server.change.PluginDefinedInfosFactory;
+import com.google.gerrit.server.index.change.ChangeField;
 import com.google.gerrit.server.index.change.ChangeIndexCollection;
 import com.google.gerrit.server.index.change.ChangeIndexRewriter;
+import com.google.gerrit.server.index.change.ChangeIndexer;
 import com.google.gerrit.server.index.change.ChangeSchemaDefinitions;
 import com.google.gerrit.server.index.change.IndexedChangeQuery;
+import com.google.gerrit.server.index.change.StalenessChecker;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import java.util.ArrayList;
@@ -47,6 +52,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Query processor for the change index.
@@ -58,6 +64,8 @@ public class ChangeQueryProcessor extends QueryProcessor<ChangeData>
     implements DynamicOptions.BeanReceiver, DynamicOptions.BeanProvider, PluginDefinedInfosFactory {
   private final Provider<CurrentUser> userProvider;
   private final ChangeIsVisibleToPredicate.Factory changeIsVisibleToPredicateFactory;
+  private final StalenessChecker stalenessChecker;
+  private final Provider<ChangeIndexer> indexer;
   private final Map<String, DynamicBean> dynamicBeans = new HashMap<>();
   private final List<Extension<ChangePluginDefinedInfoFactory>>
       changePluginDefinedInfoFactoriesByPlugin = new ArrayList<>();
@@ -78,7 +86,9 @@ public class ChangeQueryProcessor extends QueryProcessor<ChangeData>
       ChangeIndexCollection indexes,
       ChangeIndexRewriter rewriter,
       ChangeIsVisibleToPredicate.Factory changeIsVisibleToPredicateFactory,
-      DynamicSet<ChangePluginDefinedInfoFactory> changePluginDefinedInfoFactories) {
+      DynamicSet<ChangePluginDefinedInfoFactory> changePluginDefinedInfoFactories,
+      StalenessChecker stalenessChecker,
+      Provider<ChangeIndexer> indexer) {
     super(
         metricMaker,
         ChangeSchemaDefinitions.INSTANCE,
@@ -89,6 +99,8 @@ public class ChangeQueryProcessor extends QueryProcessor<ChangeData>
         () -> limitsFactory.create(userProvider.get()).getQueryLimit());
     this.userProvider = userProvider;
     this.changeIsVisibleToPredicateFactory = changeIsVisibleToPredicateFactory;
+    this.stalenessChecker = stalenessChecker;
+    this.indexer = indexer;
 
     changePluginDefinedInfoFactories
         .entries()
@@ -104,9 +116,32 @@ public class ChangeQueryProcessor extends QueryProcessor<ChangeData>
   @Override
   protected QueryOptions createOptions(
       IndexConfig indexConfig, int start, int limit, Set<String> requestedFields) {
+    if (stalenessChecker.isCheckQueryResultsEnabled()) {
+      // The ref states are needed to check the results for staleness without loading them.
+      requestedFields =
+          ImmutableSet.<String>builder()
+              .addAll(requestedFields)
+              .add(ChangeField.REF_STATE.getName())
+              .add(ChangeField.REF_STATE_PATTERN.getName())
+              .build();
+    }
     return IndexedChangeQuery.createOptions(indexConfig, start, limit, requestedFields);
   }
 
+  @Override
+  protected void postProcess(List<QueryResult<ChangeData>> results) {
+    if (!stalenessChecker.isCheckQueryResultsEnabled()) {
+      return;
+    }
+    List<ChangeData> changes = new ArrayList<>();
+    results.forEach(r -> changes.addAll(r.entities()));
+    for (ChangeData cd : stalenessChecker.checkQueryResults(changes)) {
+      // The stale document is still returned, it's only fixed for subsequent queries.
+      @SuppressWarnings("unused")
+      Future<?> possiblyIgnoredError = indexer.get().reindexIfStale(cd.project(), cd.getId());
+    }
+  }
+
   @Override
   public void setDynamicBean(String plugin, DynamicBean dynamicBean) {
     dynamicBeans.put(plugin, dynamicBean);
@@ -15,8 +15,10 @@
 package com.google.gerrit.server.restapi.change;
 
 import static com.google.gerrit.server.project.ProjectCache.illegalState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
@@ -30,16 +32,19 @@ import com.google.gerrit.extensions.common.DiffWebLinkInfo;
 import com.google.gerrit.extensions.common.WebLinkInfo;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.BinaryResult;
 import com.google.gerrit.extensions.restapi.CacheControl;
 import com.google.gerrit.extensions.restapi.IdString;
 import com.google.gerrit.extensions.restapi.ResourceConflictException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.json.OutputFormat;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.WebLinks;
 import com.google.gerrit.server.change.FileResource;
 import com.google.gerrit.server.change.RevisionResource;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.diff.DiffInfoCreator;
 import com.google.gerrit.server.diff.DiffSide;
 import com.google.gerrit.server.diff.DiffWebLinksProvider;
@@ -51,10 +56,20 @@ import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.OptionDef;
@@ -70,6 +85,7 @@ public class GetDiff implements RestReadView<FileResource> {
   private final Revisions revisions;
   private final WebLinks webLinks;
   private final Provider<CurrentUser> currentUser;
+  private final long streamThreshold;
 
   @Option(name = "--base", metaVar = "REVISION")
   String base;
@@ -98,16 +114,51 @@ public class GetDiff implements RestReadView<FileResource> {
       PatchScriptFactory.Factory patchScriptFactoryFactory,
       Revisions revisions,
       WebLinks webLinks,
-      Provider<CurrentUser> currentUser) {
+      Provider<CurrentUser> currentUser,
+      @GerritServerConfig Config cfg) {
     this.projectCache = projectCache;
     this.patchScriptFactoryFactory = patchScriptFactoryFactory;
     this.revisions = revisions;
     this.webLinks = webLinks;
     this.currentUser = currentUser;
+    this.streamThreshold = cfg.getLong("change", "diffStreamThreshold", 100_000);
   }
 
+  /**
+   * Returns the diff of the file.
+   *
+   * <p>If the file has more than {@code change.diffStreamThreshold} lines on both sides together,
+   * the diff is returned as a {@link BinaryResult} which writes the JSON of the {@link DiffInfo}
+   * while the content entries are computed, so that neither the content entries nor the JSON are
+   * held in memory as a whole. Use {@link #getDiffInfo(FileResource)} to always get a {@link
+   * DiffInfo}.
+   */
   @Override
-  public Response<DiffInfo> apply(FileResource resource)
+  public Response<?> apply(FileResource resource)
+      throws BadRequestException, ResourceConflictException, ResourceNotFoundException,
+          AuthException, InvalidChangeOperationException, IOException, PermissionBackendException {
+    Diff diff = computeDiff(resource);
+    if (streamThreshold > 0 && diff.lines() > streamThreshold) {
+      return caching(resource, Response.ok(new StreamedDiff(diff)));
+    }
+    return caching(resource, Response.ok(diff.create()));
+  }
+
+  /** Returns the diff of the file as {@link DiffInfo}, regardless of its size. */
+  public Response<DiffInfo> getDiffInfo(FileResource resource)
+      throws BadRequestException, ResourceConflictException, ResourceNotFoundException,
+          AuthException, InvalidChangeOperationException, IOException, PermissionBackendException {
+    return caching(resource, Response.ok(computeDiff(resource).create()));
+  }
+
+  private static <T> Response<T> caching(FileResource resource, Response<T> r) {
+    if (resource.isCacheable()) {
+      r.caching(CacheControl.PRIVATE(7, TimeUnit.DAYS));
+    }
+    return r;
+  }
+
+  private Diff computeDiff(FileResource resource)
       throws BadRequestException, ResourceConflictException, ResourceNotFoundException,
           AuthException, InvalidChangeOperationException, IOException, PermissionBackendException {
     DiffPreferencesInfo prefs = new DiffPreferencesInfo();
@@ -162,13 +213,7 @@ public class GetDiff implements RestReadView<FileResource> {
       DiffWebLinksProvider webLinksProvider =
           new DiffWebLinksProviderImpl(sideA, sideB, projectName, basePatchSet, webLinks, resource);
       DiffInfoCreator diffInfoCreator = new DiffInfoCreator(state, webLinksProvider, intraline);
-      DiffInfo result = diffInfoCreator.create(ps, sideA, sideB);
-
-      Response<DiffInfo> r = Response.ok(result);
-      if (resource.isCacheable()) {
-        r.caching(CacheControl.PRIVATE(7, TimeUnit.DAYS));
-      }
-      return r;
+      return new Diff(ps, sideA, sideB, diffInfoCreator);
     } catch (NoSuchChangeException e) {
       throw new ResourceNotFoundException(e.getMessage(), e);
     } catch (LargeObjectException e) {
@@ -176,6 +221,70 @@ public class GetDiff implements RestReadView<FileResource> {
     }
   }
 
+  private static class Diff {
+    final PatchScript ps;
+    final DiffSide sideA;
+    final DiffSide sideB;
+    final DiffInfoCreator diffInfoCreator;
+
+    Diff(PatchScript ps, DiffSide sideA, DiffSide sideB, DiffInfoCreator diffInfoCreator) {
+      this.ps = ps;
+      this.sideA = sideA;
+      this.sideB = sideB;
+      this.diffInfoCreator = diffInfoCreator;
+    }
+
+    long lines() {
+      return (long) ps.getA().getSize() + ps.getB().getSize();
+    }
+
+    DiffInfo create() {
+      return diffInfoCreator.create(ps, sideA, sideB);
+    }
+  }
+
+  /** Writes the JSON of a {@link DiffInfo} while its content entries are computed. */
+  private static class StreamedDiff extends BinaryResult {
+    /** Same prefix as the one which the REST API puts in front of every JSON response. */
+    private static final String JSON_MAGIC = ")]}'\n";
+
+    private final Diff diff;
+
+    StreamedDiff(Diff diff) {
+      this.diff = diff;
+      setContentType("application/json");
+      setCharacterEncoding(UTF_8);
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+      Gson gson = OutputFormat.JSON_COMPACT.newGson();
+      Writer w = new BufferedWriter(new OutputStreamWriter(os, UTF_8));
+      w.write(JSON_MAGIC);
+      JsonWriter json = gson.newJsonWriter(w);
+      json.beginObject();
+      DiffInfo info = diff.diffInfoCreator.createWithoutContent(diff.ps, diff.sideA, diff.sideB);
+      for (Map.Entry<String, JsonElement> e : gson.toJsonTree(info).getAsJsonObject().entrySet()) {
+        json.name(e.getKey());
+        gson.toJson(e.getValue(), json);
+      }
+      json.name("content");
+      json.beginArray();
+      try {
+        DiffInfoCreator.forEachContentEntry(
+            diff.ps, e -> gson.toJson(e, DiffInfo.ContentEntry.class, json));
+      } catch (JsonIOException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        throw e;
+      }
+      json.endArray();
+      json.endObject();
+      json.flush();
+      w.write('\n');
+      w.flush();
+    }
+  }
+
   private static class DiffWebLinksProviderImpl implements DiffWebLinksProvider {
 
     private final WebLinks webLinks;
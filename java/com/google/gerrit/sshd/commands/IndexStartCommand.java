@@ -31,6 +31,11 @@ public class IndexStartCommand extends SshCommand {
   @Option(name = "--force", usage = "force a re-index")
   private boolean force;
 
+  @Option(
+      name = "--reuse",
+      usage = "skip documents which are up to date when forcing a re-index of the current version")
+  private boolean reuse;
+
   @Argument(index = 0, required = true, metaVar = "INDEX", usage = "index name to start")
   private String name;
 
@@ -41,7 +46,7 @@ public class IndexStartCommand extends SshCommand {
     enableGracefulStop();
     try {
       if (versionManager.isKnownIndex(name)) {
-        if (versionManager.startReindexer(name, force)) {
+        if (versionManager.startReindexer(name, force, reuse)) {
           stdout.println("Reindexer started");
         } else {
           stdout.println("Nothing to reindex, index is already the latest version");
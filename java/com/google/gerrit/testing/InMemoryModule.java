@@ -83,7 +83,9 @@ import com.google.gerrit.server.index.group.GroupIndexCollection;
 import com.google.gerrit.server.index.group.GroupSchemaDefinitions;
 import com.google.gerrit.server.mail.SignedTokenEmailTokenVerifier;
 import com.google.gerrit.server.patch.DiffExecutor;
+import com.google.gerrit.server.patch.DiffLoadExecutor;
 import com.google.gerrit.server.permissions.DefaultPermissionBackendModule;
+import com.google.gerrit.server.permissions.RefAdvertisementCache;
 import com.google.gerrit.server.plugins.ServerInformationImpl;
 import com.google.gerrit.server.project.DefaultProjectNameLockManager;
 import com.google.gerrit.server.restapi.RestApiModule;
@@ -185,6 +187,7 @@ public class InMemoryModule extends FactoryModule {
     install(new PluginApiModule());
     install(new DefaultPermissionBackendModule());
     install(new SearchingChangeCacheImpl.Module());
+    install(new RefAdvertisementCache.Module());
     factory(GarbageCollection.Factory.class);
     install(new AuditModule());
     install(new SubscriptionGraph.Module());
@@ -228,6 +231,13 @@ public class InMemoryModule extends FactoryModule {
           public ExecutorService createDiffExecutor() {
             return newDirectExecutorService();
           }
+
+          @Provides
+          @Singleton
+          @DiffLoadExecutor
+          public ExecutorService createDiffLoadExecutor() {
+            return newDirectExecutorService();
+          }
         });
     install(new DefaultMemoryCacheModule());
     install(new H2CacheModule());
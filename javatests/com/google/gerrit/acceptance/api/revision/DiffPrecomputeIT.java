@@ -0,0 +1,103 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.api.revision;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.extensions.api.projects.ConfigInput;
+import com.google.gerrit.extensions.client.InheritableBoolean;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Tests that the diffs of new patch sets are precomputed if enabled. */
+public class DiffPrecomputeIT extends AbstractDaemonTest {
+  private static final String QUEUE_NAME = "DiffPrecompute";
+
+  @Inject private DynamicMap<Cache<?, ?>> caches;
+  @Inject private WorkQueue workQueue;
+
+  @Test
+  public void diffsOfNewPatchSetArePrecomputed() throws Exception {
+    setPrecomputeDiffs(InheritableBoolean.TRUE);
+    ScheduledThreadPoolExecutor queue = workQueue.getExecutor(QUEUE_NAME);
+    assertThat(queue).isNotNull();
+    long completed = queue.getCompletedTaskCount();
+
+    PushOneCommit.Result r = createChange();
+    awaitCompletedTasks(queue, completed + 1);
+
+    // The diff caches were filled in the background, so listing the files doesn't miss.
+    CacheStats before = fileDiffCacheStats();
+    assertThat(gApi.changes().id(r.getChangeId()).current().files()).isNotEmpty();
+    assertThat(fileDiffCacheStats().missCount()).isEqualTo(before.missCount());
+  }
+
+  @Test
+  @GerritConfig(name = "change.precomputeDiffsThreads", value = "0")
+  public void diffsAreNotPrecomputedWithoutThreads() throws Exception {
+    setPrecomputeDiffs(InheritableBoolean.TRUE);
+    assertThat(workQueue.getExecutor(QUEUE_NAME)).isNull();
+
+    assertDiffsNotPrecomputed(createChange());
+  }
+
+  @Test
+  public void diffsAreNotPrecomputedIfProjectDoesNotEnableIt() throws Exception {
+    setPrecomputeDiffs(InheritableBoolean.FALSE);
+    ScheduledThreadPoolExecutor queue = workQueue.getExecutor(QUEUE_NAME);
+    long tasks = queue != null ? queue.getTaskCount() : 0;
+
+    PushOneCommit.Result r = createChange();
+    if (queue != null) {
+      assertThat(queue.getTaskCount()).isEqualTo(tasks);
+    }
+    assertDiffsNotPrecomputed(r);
+  }
+
+  private void assertDiffsNotPrecomputed(PushOneCommit.Result r) throws Exception {
+    CacheStats before = fileDiffCacheStats();
+    assertThat(gApi.changes().id(r.getChangeId()).current().files()).isNotEmpty();
+    assertThat(fileDiffCacheStats().missCount()).isGreaterThan(before.missCount());
+  }
+
+  private void setPrecomputeDiffs(InheritableBoolean value) throws Exception {
+    ConfigInput input = new ConfigInput();
+    input.precomputeDiffs = value;
+    gApi.projects().name(project.get()).config(input);
+  }
+
+  private CacheStats fileDiffCacheStats() {
+    return caches.get("gerrit", "gerrit_file_diff").stats();
+  }
+
+  private static void awaitCompletedTasks(ScheduledThreadPoolExecutor queue, long count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (queue.getCompletedTaskCount() < count) {
+      assertWithMessage("diffs precomputed in time").that(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -17,24 +17,32 @@ package com.google.gerrit.acceptance.git;
 import static com.google.common.truth.Truth.assertThat;
 import static org.eclipse.jgit.lib.Constants.HEAD;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
 import com.google.gerrit.acceptance.GitUtil;
 import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.config.GerritConfig;
 import com.google.gerrit.common.RawInputUtil;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.common.ChangeInput;
 import com.google.gerrit.extensions.common.MergeInput;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.inject.Inject;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.junit.Before;
 import org.junit.Test;
 
 /** Ensures that auto merge commits are created when a new patch set or change is uploaded. */
 public class AutoMergeIT extends AbstractDaemonTest {
+  @Inject private DynamicMap<Cache<?, ?>> caches;
+
   private RevCommit parent1;
   private RevCommit parent2;
 
@@ -185,6 +193,77 @@ public class AutoMergeIT extends AbstractDaemonTest {
     assertAutoMergeCreated(result.getCommit());
   }
 
+  @Test
+  public void autoMergeTreeSharedByPatchSetsWithSameParents() throws Exception {
+    PushOneCommit.Result ps1 = pushMerge();
+    CacheStats before = cacheStats("auto_merge_trees");
+    RevCommit ps2 = pushNewPatchSet(ps1);
+    CacheStats after = cacheStats("auto_merge_trees");
+    assertThat(after.hitCount()).isGreaterThan(before.hitCount());
+    assertThat(after.missCount()).isEqualTo(before.missCount());
+
+    try (Repository repo = repoManager.openRepository(project);
+        RevWalk rw = new RevWalk(repo)) {
+      RevCommit autoMerge1 = autoMergeCommit(repo, rw, ps1.getCommit());
+      RevCommit autoMerge2 = autoMergeCommit(repo, rw, ps2);
+      assertThat(autoMerge2).isNotEqualTo(autoMerge1);
+      assertThat(autoMerge2.getTree()).isEqualTo(autoMerge1.getTree());
+      assertThat(autoMerge2.getFullMessage()).contains(ps2.name());
+    }
+  }
+
+  @Test
+  @GerritConfig(name = "change.cacheAutomerge", value = "false")
+  public void inMemoryAutoMergeSharedByPatchSetsWithSameParents() throws Exception {
+    PushOneCommit.Result ps1 = pushMerge();
+    RevCommit ps2 = pushNewPatchSet(ps1);
+    assertNoAutoMergeCreated(ps1.getCommit());
+    assertNoAutoMergeCreated(ps2);
+
+    // Trigger the in-memory AutoMerge computations.
+    assertThat(gApi.changes().id(ps1.getChangeId()).revision(1).file("foo").blameRequest().get())
+        .isNotEmpty();
+    CacheStats before = cacheStats("auto_merge_objects");
+    assertThat(gApi.changes().id(ps1.getChangeId()).revision(2).file("foo").blameRequest().get())
+        .isNotEmpty();
+    CacheStats after = cacheStats("auto_merge_objects");
+    assertThat(after.hitCount()).isGreaterThan(before.hitCount());
+    assertThat(after.missCount()).isEqualTo(before.missCount());
+  }
+
+  private PushOneCommit.Result pushMerge() throws Exception {
+    PushOneCommit m =
+        pushFactory.create(
+            admin.newIdent(), testRepo, "merge", ImmutableMap.of("foo", "foo-1", "bar", "bar-2"));
+    m.setParents(ImmutableList.of(parent1, parent2));
+    PushOneCommit.Result result = m.to("refs/for/master");
+    result.assertOkStatus();
+    return result;
+  }
+
+  /** Pushes a patch set which only differs from the given one in its commit message. */
+  private RevCommit pushNewPatchSet(PushOneCommit.Result ps1) throws Exception {
+    RevCommit ps2 =
+        testRepo
+            .amend(ps1.getCommit())
+            .message("PS2")
+            .insertChangeId(ps1.getChangeId().substring(1))
+            .create();
+    testRepo.reset(ps2);
+    GitUtil.pushHead(testRepo, "refs/for/master");
+    return ps2;
+  }
+
+  private CacheStats cacheStats(String name) {
+    return caches.get("gerrit", name).stats();
+  }
+
+  private static RevCommit autoMergeCommit(Repository repo, RevWalk rw, ObjectId mergeCommit)
+      throws Exception {
+    return rw.parseCommit(
+        repo.exactRef(RefNames.refsCacheAutomerge(mergeCommit.name())).getObjectId());
+  }
+
   private void assertAutoMergeCreated(ObjectId mergeCommit) throws Exception {
     try (Repository repo = repoManager.openRepository(project)) {
       assertThat(repo.exactRef(RefNames.refsCacheAutomerge(mergeCommit.name()))).isNotNull();
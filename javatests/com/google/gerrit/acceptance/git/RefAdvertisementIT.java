@@ -26,6 +26,8 @@ import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.p
 import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
 import com.google.gerrit.acceptance.NoHttpd;
@@ -46,9 +48,11 @@ import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.api.changes.DraftInput;
 import com.google.gerrit.extensions.api.groups.GroupInput;
 import com.google.gerrit.extensions.api.projects.BranchInput;
+import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.server.account.ServiceUserClassifier;
 import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.git.PermissionAwareRepositoryManager;
 import com.google.gerrit.server.git.receive.ReceiveCommitsAdvertiseRefsHookChain;
 import com.google.gerrit.server.git.receive.testing.TestRefAdvertiser;
 import com.google.gerrit.server.notedb.Sequences;
@@ -79,6 +83,7 @@ import org.junit.Test;
 @NoHttpd
 public class RefAdvertisementIT extends AbstractDaemonTest {
   @Inject private AllUsersName allUsersName;
+  @Inject private DynamicMap<Cache<?, ?>> caches;
   @Inject private PermissionBackend permissionBackend;
   @Inject private ProjectOperations projectOperations;
   @Inject private RequestScopeOperations requestScopeOperations;
@@ -1245,6 +1250,32 @@ public class RefAdvertisementIT extends AbstractDaemonTest {
     }
   }
 
+  @Test
+  @GerritConfig(name = "container.slave", value = "true")
+  public void advertisedReferencesOmitPrivateChangesOfOtherUsersWithoutSearchingChangeCache()
+      throws Exception {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/master").group(REGISTERED_USERS))
+        .update();
+
+    TestRepository<?> userTestRepository = cloneProject(project, user);
+    try (Git git = userTestRepository.git()) {
+      String change3RefName = cd3.currentPatchSet().refName();
+      String change1RefName = cd1.currentPatchSet().refName();
+      assertWithMessage("Precondition violated")
+          .that(getRefs(git))
+          .containsAtLeast(change1RefName, change3RefName);
+
+      // The visibility of the unchanged change is reused, the updated change is checked again.
+      gApi.changes().id(cd3.getId().get()).setPrivate(true, null);
+      List<String> refs = getRefs(git);
+      assertThat(refs).contains(change1RefName);
+      assertThat(refs).doesNotContain(change3RefName);
+    }
+  }
+
   @Test
   public void advertisedReferencesIncludePrivateChangesWhenAllRefsMayBeRead() throws Exception {
     assume()
@@ -1407,6 +1438,118 @@ public class RefAdvertisementIT extends AbstractDaemonTest {
     }
   }
 
+  @Test
+  public void advertisedReferencesReflectUpdatesAfterEarlierFetch() throws Exception {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/*").group(REGISTERED_USERS))
+        .update();
+    assertThat(lsRemote(project, user)).doesNotContain("refs/heads/new");
+
+    gApi.projects().name(project.get()).branch("new").create(new BranchInput());
+    assertThat(lsRemote(project, user)).contains("refs/heads/new");
+
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(deny(Permission.READ).ref("refs/heads/new").group(REGISTERED_USERS))
+        .update();
+    assertThat(lsRemote(project, user)).doesNotContain("refs/heads/new");
+  }
+
+  @Test
+  public void repeatedFetchIsServedFromRefAdvertisementCache() throws Exception {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/*").group(REGISTERED_USERS))
+        .update();
+    List<String> refs = lsRemote(project, user);
+
+    CacheStats before = refAdvertisementCacheStats();
+    assertThat(lsRemote(project, user)).containsExactlyElementsIn(refs);
+    CacheStats after = refAdvertisementCacheStats();
+    assertThat(after.hitCount()).isGreaterThan(before.hitCount());
+    assertThat(after.missCount()).isEqualTo(before.missCount());
+  }
+
+  @Test
+  public void refsUpdatedWithoutEventAreNotServedFromRefAdvertisementCache() throws Exception {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/*").group(REGISTERED_USERS))
+        .update();
+    assertThat(lsRemote(project, user)).doesNotContain("refs/heads/no-event");
+
+    // Updating the repository directly doesn't fire a ref update event, so the cached entry is
+    // still current by its key, but was computed from other refs.
+    try (Repository repo = repoManager.openRepository(project)) {
+      RefUpdate u = repo.updateRef("refs/heads/no-event");
+      u.setExpectedOldObjectId(ObjectId.zeroId());
+      u.setNewObjectId(repo.exactRef("refs/heads/master").getObjectId());
+      assertThat(u.update()).isEqualTo(RefUpdate.Result.NEW);
+    }
+    assertThat(lsRemote(project, user)).contains("refs/heads/no-event");
+  }
+
+  @Test
+  public void refAdvertisementCacheReflectsGroupMembershipChanges() throws Exception {
+    AccountGroup.UUID readers = createGroup("Readers", admins);
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/*").group(readers))
+        .update();
+    assertThat(lsRemote(project, user)).doesNotContain("refs/heads/master");
+
+    // Neither the project nor its config change, only the groups of the user.
+    gApi.groups().id(readers.get()).addMembers(user.username());
+    assertThat(lsRemote(project, user)).contains("refs/heads/master");
+
+    gApi.groups().id(readers.get()).removeMembers(user.username());
+    assertThat(lsRemote(project, user)).doesNotContain("refs/heads/master");
+  }
+
+  @Test
+  public void permissionAwareRefDatabaseOnlyFiltersRefsMatchingPrefixes() throws Exception {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/heads/master").group(REGISTERED_USERS))
+        .add(deny(Permission.READ).ref("refs/heads/branch").group(REGISTERED_USERS))
+        .update();
+
+    try (Repository repo = repoManager.openRepository(project)) {
+      Repository permissionAwareRepo =
+          PermissionAwareRepositoryManager.wrap(repo, newFilter(project, user));
+      assertThat(names(permissionAwareRepo.getRefDatabase().getRefsByPrefix("refs/heads/mas")))
+          .containsExactly("refs/heads/master");
+      assertThat(
+              names(
+                  permissionAwareRepo
+                      .getRefDatabase()
+                      .getRefsByPrefix("refs/heads/master", "refs/heads/", "refs/tags/branch")))
+          .containsExactly("refs/heads/master");
+
+      assertThat(
+              names(
+                  newFilter(project, admin)
+                      .filter(
+                          repo.getRefDatabase().getRefs(),
+                          repo,
+                          RefFilterOptions.builder()
+                              .setPrefixes(ImmutableList.of("refs/tags/"))
+                              .build())))
+          .containsExactly("refs/tags/master-tag", "refs/tags/branch-tag", "refs/tags/tree-tag");
+    }
+  }
+
+  private CacheStats refAdvertisementCacheStats() {
+    return caches.get("gerrit", "ref_advertisements").stats();
+  }
+
   private List<String> lsRemote(Project.NameKey p, TestAccount a) throws Exception {
     TestRepository<?> testRepository = cloneProject(p, a);
     try (Git git = testRepository.git()) {
@@ -29,11 +29,15 @@ import com.google.gerrit.acceptance.StandaloneSiteTest;
 import com.google.gerrit.acceptance.pgm.IndexUpgradeController.UpgradeAttempt;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.api.GerritApi;
 import com.google.gerrit.extensions.common.ChangeInput;
 import com.google.gerrit.index.IndexDefinition;
 import com.google.gerrit.launcher.GerritLauncher;
+import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.index.GerritIndexStatus;
+import com.google.gerrit.server.index.ReindexCheckpoint;
+import com.google.gerrit.server.index.change.ChangeIndex;
 import com.google.gerrit.server.index.change.ChangeIndexCollection;
 import com.google.gerrit.server.index.change.ChangeSchemaDefinitions;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
@@ -46,6 +50,8 @@ import java.util.Collection;
 import java.util.Set;
 import java.util.function.Consumer;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.util.FS;
 import org.junit.Test;
@@ -88,6 +94,57 @@ public abstract class AbstractReindexTests extends StandaloneSiteTest {
     }
   }
 
+  @Test
+  public void reindexChangesWithReuse() throws Exception {
+    setUpChange();
+    int changeNumber;
+    int otherChangeNumber;
+    int deletedChangeNumber;
+    try (ServerContext ctx = startServer()) {
+      GerritApi gApi = ctx.getInjector().getInstance(GerritApi.class);
+      changeNumber = gApi.changes().id(changeId).get()._number;
+      gApi.projects().create("reindex-other-project-test");
+      ChangeInput in = new ChangeInput("reindex-other-project-test", "master", "Other change");
+      in.newBranch = true;
+      otherChangeNumber = gApi.changes().create(in).info()._number;
+      deletedChangeNumber =
+          gApi.changes().create(new ChangeInput(project.get(), "master", "Deleted change")).info()
+              ._number;
+    }
+    // Records the fingerprints of all projects.
+    runGerrit("reindex", "--index", CHANGES, "-d", sitePaths.site_path.toString());
+
+    try (ServerContext ctx = startServer()) {
+      GerritApi gApi = ctx.getInjector().getInstance(GerritApi.class);
+      gApi.changes().id(changeId).topic("reuse");
+      // Remove documents behind the back of the index, so that it shows which ones are rewritten.
+      ChangeIndexCollection indexes = ctx.getInjector().getInstance(ChangeIndexCollection.class);
+      for (ChangeIndex i : indexes.getWriteIndexes()) {
+        i.delete(Change.id(changeNumber));
+        i.delete(Change.id(otherChangeNumber));
+      }
+      // Delete a change without updating the index.
+      try (Repository repo =
+          ctx.getInjector().getInstance(GitRepositoryManager.class).openRepository(project)) {
+        RefUpdate u = repo.updateRef(RefNames.changeMetaRef(Change.id(deletedChangeNumber)));
+        u.setForceUpdate(true);
+        assertThat(u.delete()).isEqualTo(RefUpdate.Result.FORCED);
+      }
+    }
+
+    runGerrit("reindex", "--index", CHANGES, "--reuse", "-d", sitePaths.site_path.toString());
+
+    try (ServerContext ctx = startServer()) {
+      Provider<InternalChangeQuery> queryProvider =
+          ctx.getInjector().getProvider(InternalChangeQuery.class);
+      // The project of the updated change was indexed again.
+      assertThat(queryProvider.get().byTopicOpen("reuse")).hasSize(1);
+      assertThat(queryProvider.get().byLegacyChangeId(Change.id(deletedChangeNumber))).isEmpty();
+      // The unchanged project was skipped, so its removed document was not written again.
+      assertThat(queryProvider.get().byLegacyChangeId(Change.id(otherChangeNumber))).isEmpty();
+    }
+  }
+
   @Test
   public void offlineReindexForChangesIsNotPossibleInSlaveMode() throws Exception {
     enableSlaveMode();
@@ -224,6 +281,47 @@ public abstract class AbstractReindexTests extends StandaloneSiteTest {
     }
   }
 
+  @Test
+  public void onlineUpgradeChangesSkipsSlicesRecordedInCheckpoint() throws Exception {
+    int prevVersion = ChangeSchemaDefinitions.INSTANCE.getPrevious().getVersion();
+    int currVersion = ChangeSchemaDefinitions.INSTANCE.getLatest().getVersion();
+
+    GerritIndexStatus status = new GerritIndexStatus(sitePaths);
+    status.setReady(CHANGES, currVersion, false);
+    status.setReady(CHANGES, prevVersion, true);
+    status.save();
+
+    setOnlineUpgradeConfig(false);
+    setUpChange();
+    String otherChangeId;
+    try (ServerContext ctx = startServer()) {
+      GerritApi gApi = ctx.getInjector().getInstance(GerritApi.class);
+      gApi.projects().create("reindex-other-project-test");
+      ChangeInput in = new ChangeInput("reindex-other-project-test", "master", "Other change");
+      in.newBranch = true;
+      otherChangeId = gApi.changes().create(in).info().changeId;
+    }
+    setOnlineUpgradeConfig(true);
+
+    // Pretend that an interrupted earlier upgrade indexed the only slice of the first project.
+    new ReindexCheckpoint(sitePaths, CHANGES, currVersion).markDone("0/1 " + project.get(), 1);
+
+    IndexUpgradeController u = new IndexUpgradeController(1);
+    try (ServerContext ctx = startServer(u.module())) {
+      u.runUpgrades();
+      assertThat(u.getSucceededAttempts())
+          .containsExactly(UpgradeAttempt.create(CHANGES, prevVersion, currVersion));
+      assertSearchVersion(ctx, currVersion);
+
+      // The recorded slice was skipped, so its change is missing from the new index version.
+      Provider<InternalChangeQuery> queryProvider =
+          ctx.getInjector().getProvider(InternalChangeQuery.class);
+      assertThat(queryProvider.get().byKey(Change.key(changeId))).isEmpty();
+      assertThat(queryProvider.get().byKey(Change.key(otherChangeId))).hasSize(1);
+    }
+    assertThat(new ReindexCheckpoint(sitePaths, CHANGES, currVersion).exists()).isFalse();
+  }
+
   protected static void createAllIndexes(Injector injector) {
     Collection<IndexDefinition<?, ?, ?>> indexDefs =
         injector.getInstance(Key.get(new TypeLiteral<Collection<IndexDefinition<?, ?, ?>>>() {}));
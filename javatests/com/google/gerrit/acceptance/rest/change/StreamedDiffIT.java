@@ -0,0 +1,61 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.rest.change;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.extensions.common.DiffInfo;
+import com.google.gson.Gson;
+import org.junit.Test;
+
+public class StreamedDiffIT extends AbstractDaemonTest {
+  private static final String FILE_NAME = "a.txt";
+
+  @Test
+  @GerritConfig(name = "change.diffStreamThreshold", value = "1")
+  public void streamedDiffEqualsDiffInfo() throws Exception {
+    PushOneCommit.Result r = createChange("Add file", FILE_NAME, "1\n2\n3\n4\n5\n");
+    amendChange(r.getChangeId(), "Modify file", FILE_NAME, "1\n2\nx\n4\n5\n6\n");
+
+    RestResponse resp = adminRestSession.get(diffUrl(r) + "?base=1");
+    resp.assertOK();
+    assertThat(resp.getHeader("Content-Length")).isNull();
+    DiffInfo streamed = newGson().fromJson(resp.getReader(), DiffInfo.class);
+
+    DiffInfo expected =
+        gApi.changes().id(r.getChangeId()).current().file(FILE_NAME).diff(/* base= */ "1");
+    Gson gson = newGson();
+    assertThat(streamed.content).hasSize(4);
+    assertThat(gson.toJsonTree(streamed)).isEqualTo(gson.toJsonTree(expected));
+  }
+
+  @Test
+  @GerritConfig(name = "change.diffStreamThreshold", value = "0")
+  public void diffNotStreamedIfDisabled() throws Exception {
+    PushOneCommit.Result r = createChange("Add file", FILE_NAME, "1\n2\n3\n");
+
+    RestResponse resp = adminRestSession.get(diffUrl(r));
+    resp.assertOK();
+    assertThat(resp.getHeader("Content-Length")).isNotNull();
+  }
+
+  private static String diffUrl(PushOneCommit.Result r) {
+    return "/changes/" + r.getChangeId() + "/revisions/current/files/" + FILE_NAME + "/diff";
+  }
+}
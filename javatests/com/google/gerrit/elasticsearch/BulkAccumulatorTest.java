@@ -0,0 +1,212 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.elasticsearch;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.elasticsearch.ElasticConfiguration.KEY_BULK_MAX_RETRIES;
+import static com.google.gerrit.elasticsearch.ElasticConfiguration.KEY_SERVER;
+import static com.google.gerrit.elasticsearch.ElasticConfiguration.SECTION_ELASTICSEARCH;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+public class BulkAccumulatorTest {
+  private static final String OK = "{\"index\":{\"status\":200}}";
+  private static final String TOO_MANY_REQUESTS =
+      "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}";
+  private static final String BAD_REQUEST =
+      "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}";
+
+  private final List<String> payloads = new ArrayList<>();
+  private final Deque<String> responses = new ArrayDeque<>();
+
+  @Test
+  public void actionIsSent() {
+    respond(OK);
+    newAccumulator(new Config()).execute("action\n");
+    assertThat(payloads).containsExactly("action\n");
+  }
+
+  @Test
+  public void overloadedActionIsRetried() {
+    respond(TOO_MANY_REQUESTS);
+    respond(OK);
+    newAccumulator(new Config()).execute("action\n");
+    assertThat(payloads).containsExactly("action\n", "action\n");
+  }
+
+  @Test
+  public void failedActionIsNotRetried() {
+    respond(BAD_REQUEST);
+    BulkAccumulator bulk = newAccumulator(new Config());
+    StorageException e = assertThrows(StorageException.class, () -> bulk.execute("action\n"));
+    assertThat(e).hasMessageThat().contains("mapper_parsing_exception");
+    assertThat(payloads).hasSize(1);
+  }
+
+  @Test
+  public void retriesAreLimited() {
+    Config cfg = new Config();
+    cfg.setInt(SECTION_ELASTICSEARCH, null, KEY_BULK_MAX_RETRIES, 1);
+    respond(TOO_MANY_REQUESTS);
+    respond(TOO_MANY_REQUESTS);
+    BulkAccumulator bulk = newAccumulator(cfg);
+    StorageException e = assertThrows(StorageException.class, () -> bulk.execute("action\n"));
+    assertThat(e).hasMessageThat().contains("429");
+    assertThat(payloads).hasSize(2);
+  }
+
+  @Test
+  public void failedRequestFailsAction() {
+    BulkAccumulator bulk =
+        new BulkAccumulator(
+            "test",
+            MoreExecutors.directExecutor(),
+            payload -> {
+              throw new StorageException("connection refused");
+            },
+            new ElasticIndexMetrics(new DisabledMetricMaker()),
+            newElasticConfig(new Config()));
+    StorageException e = assertThrows(StorageException.class, () -> bulk.execute("action\n"));
+    assertThat(e).hasMessageThat().isEqualTo("connection refused");
+  }
+
+  @Test
+  public void queuedActionIsSentOnClose() throws Exception {
+    respond(OK);
+    List<Runnable> tasks = new CopyOnWriteArrayList<>();
+    BulkAccumulator bulk = newAccumulator(new Config(), tasks::add);
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> write = writer.submit(() -> bulk.execute("action\n"));
+      while (tasks.isEmpty()) {
+        Thread.sleep(10);
+      }
+      // The executor never runs the task which would send the action.
+      bulk.close();
+      write.get(10, SECONDS);
+    } finally {
+      writer.shutdownNow();
+    }
+    assertThat(payloads).containsExactly("action\n");
+
+    StorageException e = assertThrows(StorageException.class, () -> bulk.execute("action\n"));
+    assertThat(e).hasMessageThat().contains("closed");
+  }
+
+  @Test
+  public void closeWaitsForSendInProgress() throws Exception {
+    CountDownLatch sending = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    List<String> sent = new CopyOnWriteArrayList<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    ExecutorService writers = Executors.newFixedThreadPool(3);
+    BulkAccumulator bulk =
+        new BulkAccumulator(
+            "test",
+            executor,
+            payload -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              try {
+                sending.countDown();
+                release.await();
+                sent.add(payload);
+                return "{\"items\":[" + OK + "]}";
+              } catch (InterruptedException e) {
+                throw new StorageException(e);
+              } finally {
+                inFlight.decrementAndGet();
+              }
+            },
+            new ElasticIndexMetrics(new DisabledMetricMaker()),
+            newElasticConfig(new Config()));
+    try {
+      Future<?> first = writers.submit(() -> bulk.execute("first\n"));
+      sending.await();
+      // Give the second action time to be queued, and close() time to run, while the executor is
+      // still sending the first one.
+      Future<?> second = writers.submit(() -> bulk.execute("second\n"));
+      Thread.sleep(100);
+      Future<?> close = writers.submit(bulk::close);
+      Thread.sleep(100);
+      assertThat(close.isDone()).isFalse();
+
+      release.countDown();
+      close.get(10, SECONDS);
+      first.get(10, SECONDS);
+      second.get(10, SECONDS);
+    } finally {
+      release.countDown();
+      writers.shutdownNow();
+      executor.shutdownNow();
+    }
+    assertThat(sent).containsExactly("first\n", "second\n").inOrder();
+    assertThat(maxInFlight.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void actionFailsIfExecutorWasShutDown() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    BulkAccumulator bulk = newAccumulator(new Config(), executor);
+    StorageException e = assertThrows(StorageException.class, () -> bulk.execute("action\n"));
+    assertThat(e).hasMessageThat().contains("closed");
+    assertThat(payloads).isEmpty();
+  }
+
+  private void respond(String... items) {
+    responses.add("{\"items\":[" + String.join(",", Arrays.asList(items)) + "]}");
+  }
+
+  private BulkAccumulator newAccumulator(Config cfg) {
+    return newAccumulator(cfg, MoreExecutors.directExecutor());
+  }
+
+  private BulkAccumulator newAccumulator(Config cfg, Executor executor) {
+    return new BulkAccumulator(
+        "test",
+        executor,
+        payload -> {
+          payloads.add(payload);
+          return responses.remove();
+        },
+        new ElasticIndexMetrics(new DisabledMetricMaker()),
+        newElasticConfig(cfg));
+  }
+
+  private static ElasticConfiguration newElasticConfig(Config cfg) {
+    cfg.setString(SECTION_ELASTICSEARCH, null, KEY_SERVER, "http://elastic:1234");
+    return new ElasticConfiguration(cfg);
+  }
+}
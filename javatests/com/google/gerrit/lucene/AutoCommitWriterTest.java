@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AutoCommitWriterTest {
+  private CountingWriter writer;
+
+  @Before
+  public void setUp() throws Exception {
+    writer = new CountingWriter();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    writer.close();
+  }
+
+  @Test
+  public void batchedWritesDontFlush() throws Exception {
+    writer.addDocumentDeferringFlush(doc("1"));
+    writer.addDocumentDeferringFlush(doc("2"));
+    writer.updateDocumentDeferringFlush(new Term("id", "2"), doc("2"));
+    writer.deleteDocumentsDeferringFlush(new Term("id", "1"));
+    assertThat(writer.flushes).isEqualTo(0);
+
+    writer.autoFlush();
+    assertThat(writer.flushes).isEqualTo(1);
+  }
+
+  @Test
+  public void singleWritesFlushOnce() throws Exception {
+    writer.addDocument(doc("1"));
+    assertThat(writer.flushes).isEqualTo(1);
+    writer.updateDocument(new Term("id", "1"), doc("1"));
+    assertThat(writer.flushes).isEqualTo(2);
+  }
+
+  private static Document doc(String id) {
+    Document doc = new Document();
+    doc.add(new StringField("id", id, Store.YES));
+    return doc;
+  }
+
+  private static class CountingWriter extends AutoCommitWriter {
+    int flushes;
+
+    CountingWriter() throws IOException {
+      super(
+          new RAMDirectory(),
+          new IndexWriterConfig(new StandardAnalyzer()),
+          /* autoCommit= */ true);
+    }
+
+    @Override
+    void manualFlush() throws IOException {
+      flushes++;
+      super.manualFlush();
+    }
+  }
+}
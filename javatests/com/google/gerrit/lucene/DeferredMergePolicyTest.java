@@ -0,0 +1,69 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+public class DeferredMergePolicyTest {
+  private static final int SEGMENTS = 20;
+
+  @Test
+  public void mergesAreDeferredUntilResumed() throws Exception {
+    Config cfg = new Config();
+    cfg.setBoolean("index", "test", "deferMerges", true);
+    GerritIndexWriterConfig writerConfig = new GerritIndexWriterConfig(cfg, "test");
+    DeferredMergePolicy mergePolicy = writerConfig.getDeferredMergePolicy();
+    assertThat(mergePolicy).isNotNull();
+    // Run merges in the thread which triggers them, so that they are done once it returns.
+    writerConfig.getLuceneConfig().setMergeScheduler(new SerialMergeScheduler());
+
+    try (Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, writerConfig.getLuceneConfig())) {
+      for (int i = 0; i < SEGMENTS; i++) {
+        Document doc = new Document();
+        doc.add(new StringField("id", Integer.toString(i), Store.YES));
+        writer.addDocument(doc);
+        // Every commit flushes the document into a new segment.
+        writer.commit();
+      }
+      assertThat(segmentCount(dir)).isEqualTo(SEGMENTS);
+
+      mergePolicy.resume();
+      writer.maybeMerge();
+      writer.commit();
+      assertThat(segmentCount(dir)).isLessThan(SEGMENTS);
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertThat(reader.numDocs()).isEqualTo(SEGMENTS);
+      }
+    }
+  }
+
+  private static int segmentCount(Directory dir) throws IOException {
+    return SegmentInfos.readLatestCommit(dir).size();
+  }
+}
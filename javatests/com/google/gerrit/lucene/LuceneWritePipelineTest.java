@@ -0,0 +1,154 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.server.index.change.ChangeSchemaDefinitions.NAME;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.index.change.ChangeSchemaDefinitions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LuceneWritePipelineTest {
+  private static final int MAX_WRITE_BATCH_SIZE = 10;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private RecordingMetrics metrics;
+  private ChangeSubIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("index", NAME, "maxWriteBatchSize", MAX_WRITE_BATCH_SIZE);
+    // Long enough for all writes of a test to be submitted before the first batch is applied.
+    cfg.setString("index", NAME, "writeBatchDelay", "1s");
+    cfg.setInt("index", NAME, "commitWithin", -1);
+    metrics = new RecordingMetrics();
+    index =
+        new ChangeSubIndex(
+            ChangeSchemaDefinitions.INSTANCE.getLatest(),
+            new SitePaths(temporaryFolder.newFolder().toPath()),
+            new RAMDirectory(),
+            "open",
+            ImmutableSet.of(),
+            new GerritIndexWriterConfig(cfg, NAME),
+            new SearcherFactory(),
+            metrics);
+  }
+
+  @After
+  public void tearDown() {
+    index.close();
+  }
+
+  @Test
+  public void writesAreAppliedInOneBatch() throws Exception {
+    List<ListenableFuture<?>> writes = new ArrayList<>();
+    for (int i = 0; i < MAX_WRITE_BATCH_SIZE; i++) {
+      writes.add(index.insert(doc(i)));
+    }
+    Futures.allAsList(writes).get();
+
+    assertThat(metrics.batches).containsExactly(MAX_WRITE_BATCH_SIZE);
+    assertThat(count(new MatchAllDocsQuery())).isEqualTo(MAX_WRITE_BATCH_SIZE);
+  }
+
+  @Test
+  public void batchesAreLimitedToMaxWriteBatchSize() throws Exception {
+    List<ListenableFuture<?>> writes = new ArrayList<>();
+    for (int i = 0; i < 2 * MAX_WRITE_BATCH_SIZE + 5; i++) {
+      writes.add(index.insert(doc(i)));
+    }
+    Futures.allAsList(writes).get();
+
+    assertThat(metrics.batches)
+        .containsExactly(MAX_WRITE_BATCH_SIZE, MAX_WRITE_BATCH_SIZE, 5)
+        .inOrder();
+  }
+
+  @Test
+  public void writeIsVisibleOnceItsFutureIsDone() throws Exception {
+    index.insert(doc(1)).get();
+    assertThat(count(idQuery(1))).isEqualTo(1);
+
+    Document replacement = doc(1);
+    replacement.add(new StringField("topic", "new", Store.YES));
+    index.replace(idTerm(1), replacement).get();
+    assertThat(count(idQuery(1))).isEqualTo(1);
+    assertThat(count(new TermQuery(new Term("topic", "new")))).isEqualTo(1);
+
+    index.delete(idTerm(1)).get();
+    assertThat(count(idQuery(1))).isEqualTo(0);
+  }
+
+  private int count(Query query) throws Exception {
+    IndexSearcher searcher = index.acquire();
+    try {
+      return searcher.count(query);
+    } finally {
+      index.release(searcher);
+    }
+  }
+
+  private static Document doc(int id) {
+    Document doc = new Document();
+    doc.add(new StringField("id", Integer.toString(id), Store.YES));
+    return doc;
+  }
+
+  private static Term idTerm(int id) {
+    return new Term("id", Integer.toString(id));
+  }
+
+  private static TermQuery idQuery(int id) {
+    return new TermQuery(idTerm(id));
+  }
+
+  private static class RecordingMetrics extends LuceneIndexMetrics {
+    final List<Integer> batches = new CopyOnWriteArrayList<>();
+
+    RecordingMetrics() {
+      super(new DisabledMetricMaker());
+    }
+
+    @Override
+    void recordBatch(String index, int writes) {
+      batches.add(writes);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.extensions.registration.PrivateInternals_DynamicMapImpl;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.cache.CacheBackend;
+import com.google.gerrit.server.cache.CacheDef;
+import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.cache.PersistentCacheDef;
+import com.google.gerrit.server.cache.serialize.CacheSerializer;
+import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import java.time.Duration;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class H2CacheFactoryTest {
+  private static final TypeLiteral<String> STRING = new TypeLiteral<String>() {};
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void unloadingPluginUnregistersItsCaches() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("cache", null, "directory", "cache");
+    DynamicMap<Cache<?, ?>> cacheMap =
+        Guice.createInjector(
+                new AbstractModule() {
+                  @Override
+                  protected void configure() {
+                    DynamicMap.mapOf(binder(), new TypeLiteral<Cache<?, ?>>() {});
+                  }
+                })
+            .getInstance(Key.get(new TypeLiteral<DynamicMap<Cache<?, ?>>>() {}));
+    WriteBehindMetrics writeBehindMetrics = new WriteBehindMetrics(new DisabledMetricMaker());
+    BloomFilterMetrics bloomFilterMetrics = new BloomFilterMetrics(new DisabledMetricMaker());
+    H2CacheFactory factory =
+        new H2CacheFactory(
+            new TestMemoryCacheFactory(),
+            cfg,
+            new SitePaths(temporaryFolder.getRoot().toPath()),
+            cacheMap,
+            writeBehindMetrics,
+            bloomFilterMetrics);
+
+    // Caches of plugins are named after the plugin, but exported under their own name.
+    Cache<String, String> cache =
+        factory.build(new TestCacheDef("plugin.cache"), CacheBackend.GUAVA);
+    assertThat(cache).isInstanceOf(H2CacheImpl.class);
+    ((PrivateInternals_DynamicMapImpl<Cache<?, ?>>) cacheMap).put("plugin", "cache", () -> cache);
+    assertThat(writeBehindMetrics.isRegistered("plugin.cache")).isTrue();
+    assertThat(bloomFilterMetrics.isRegistered("plugin.cache")).isTrue();
+
+    factory.onStop("plugin");
+    assertThat(writeBehindMetrics.isRegistered("plugin.cache")).isFalse();
+    assertThat(bloomFilterMetrics.isRegistered("plugin.cache")).isFalse();
+    factory.stop();
+  }
+
+  private static class TestMemoryCacheFactory implements MemoryCacheFactory {
+    @Override
+    public <K, V> Cache<K, V> build(CacheDef<K, V> def, CacheBackend backend) {
+      return CacheBuilder.newBuilder().build();
+    }
+
+    @Override
+    public <K, V> LoadingCache<K, V> build(
+        CacheDef<K, V> def, CacheLoader<K, V> loader, CacheBackend backend) {
+      return CacheBuilder.newBuilder().build(loader);
+    }
+  }
+
+  private static class TestCacheDef implements PersistentCacheDef<String, String> {
+    private final String name;
+
+    TestCacheDef(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String name() {
+      return name;
+    }
+
+    @Override
+    public String configKey() {
+      return name;
+    }
+
+    @Override
+    public TypeLiteral<String> keyType() {
+      return STRING;
+    }
+
+    @Override
+    public TypeLiteral<String> valueType() {
+      return STRING;
+    }
+
+    @Override
+    public long maximumWeight() {
+      return 1024;
+    }
+
+    @Override
+    public Duration expireAfterWrite() {
+      return null;
+    }
+
+    @Override
+    public Duration expireFromMemoryAfterAccess() {
+      return null;
+    }
+
+    @Override
+    public Duration refreshAfterWrite() {
+      return null;
+    }
+
+    @Override
+    public Weigher<String, String> weigher() {
+      return null;
+    }
+
+    @Override
+    public CacheLoader<String, String> loader() {
+      return null;
+    }
+
+    @Override
+    public long diskLimit() {
+      return 1 << 20;
+    }
+
+    @Override
+    public int version() {
+      return 1;
+    }
+
+    @Override
+    public CacheSerializer<String> keySerializer() {
+      return StringCacheSerializer.INSTANCE;
+    }
+
+    @Override
+    public CacheSerializer<String> valueSerializer() {
+      return StringCacheSerializer.INSTANCE;
+    }
+  }
+}
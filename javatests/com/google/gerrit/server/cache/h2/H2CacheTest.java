@@ -29,22 +29,37 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
+import com.google.gerrit.server.cache.PersistentCache.TierStats;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
 import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.inject.TypeLiteral;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class H2CacheTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private static final TypeLiteral<String> KEY_TYPE = new TypeLiteral<String>() {};
   private static final int DEFAULT_VERSION = 1234;
   private static int dbCnt;
@@ -55,7 +70,18 @@ public class H2CacheTest {
 
   private static H2CacheImpl<String, String> newH2CacheImpl(
       SqlStore<String, String> store, Cache<String, ValueHolder<String>> mem) {
-    return new H2CacheImpl<>(MoreExecutors.directExecutor(), store, KEY_TYPE, mem);
+    return new H2CacheImpl<>(
+        newWriteBehindQueue(store, MoreExecutors.directExecutor()), admitAll(), KEY_TYPE, mem);
+  }
+
+  private static MemoryTierPolicy<String, String> admitAll() {
+    return new MemoryTierPolicy<>(null, Long.MAX_VALUE);
+  }
+
+  private static WriteBehindQueue<String, String> newWriteBehindQueue(
+      SqlStore<String, String> store, Executor executor) {
+    return new WriteBehindQueue<>(
+        "test", executor, store, 100, 10, new WriteBehindMetrics(new DisabledMetricMaker()));
   }
 
   private static SqlStore<String, String> newStore(
@@ -71,7 +97,39 @@ public class H2CacheTest {
         version,
         1 << 20,
         expireAfterWrite,
-        refreshAfterWrite);
+        refreshAfterWrite,
+        null,
+        null);
+  }
+
+  private static SqlStore<String, String> newStoreWithBloomFilterFile(
+      int id, @Nullable Path bloomFilterFile) {
+    return new SqlStore<>(
+        "jdbc:h2:mem:Test_" + id + ";DB_CLOSE_DELAY=-1",
+        KEY_TYPE,
+        StringCacheSerializer.INSTANCE,
+        StringCacheSerializer.INSTANCE,
+        DEFAULT_VERSION,
+        1 << 20,
+        null,
+        null,
+        bloomFilterFile,
+        null);
+  }
+
+  private static SqlStore<String, String> newStoreWithBloomFilterExecutor(
+      int id, Executor bloomFilterExecutor) {
+    return new SqlStore<>(
+        "jdbc:h2:mem:Test_" + id + ";DB_CLOSE_DELAY=-1",
+        KEY_TYPE,
+        StringCacheSerializer.INSTANCE,
+        StringCacheSerializer.INSTANCE,
+        DEFAULT_VERSION,
+        1 << 20,
+        null,
+        null,
+        null,
+        bloomFilterExecutor);
   }
 
   @Test
@@ -218,7 +276,8 @@ public class H2CacheTest {
     // We wrap baseLoader just like H2CacheFactory is wrapping it. The wrapped version will call out
     // to the store for refreshing values.
     H2CacheImpl.Loader<String, String> wrappedLoader =
-        new H2CacheImpl.Loader<>(MoreExecutors.directExecutor(), store, baseLoader);
+        new H2CacheImpl.Loader<>(
+            newWriteBehindQueue(store, MoreExecutors.directExecutor()), admitAll(), baseLoader);
     // memCache is the in-memory variant of the cache. Its loader is wrappedLoader which will call
     // out to the store to save or delete cached values.
     LoadingCache<String, ValueHolder<String>> memCache =
@@ -249,6 +308,229 @@ public class H2CacheTest {
     assertThat(h2Cache.getIfPresent("foo")).isEqualTo("reload:foo");
   }
 
+  @Test
+  public void writeBehind_coalescesPendingWrites() {
+    SqlStore<String, String> store = newStore(nextDbId(), DEFAULT_VERSION, null, null);
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    H2CacheImpl<String, String> impl =
+        new H2CacheImpl<>(
+            newWriteBehindQueue(store, tasks::add), admitAll(), KEY_TYPE, disableMemCache());
+
+    impl.put("key", "val1");
+    impl.put("key", "val2");
+    impl.put("other", "val3");
+    assertWithMessage("not yet written").that(impl.getIfPresent("key")).isNull();
+
+    assertThat(tasks).hasSize(1);
+    tasks.remove().run();
+    assertThat(impl.getIfPresent("key")).isEqualTo("val2");
+    assertThat(impl.getIfPresent("other")).isEqualTo("val3");
+    assertThat(impl.diskStats().size()).isEqualTo(2);
+  }
+
+  @Test
+  public void writeBehind_invalidateCancelsPendingWrite() {
+    SqlStore<String, String> store = newStore(nextDbId(), DEFAULT_VERSION, null, null);
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    H2CacheImpl<String, String> impl =
+        new H2CacheImpl<>(
+            newWriteBehindQueue(store, tasks::add), admitAll(), KEY_TYPE, disableMemCache());
+
+    impl.put("key", "val");
+    impl.invalidate("key");
+    while (!tasks.isEmpty()) {
+      tasks.remove().run();
+    }
+    assertThat(impl.getIfPresent("key")).isNull();
+    assertThat(impl.diskStats().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void writeBehind_dropsNewKeysWhenFull() {
+    SqlStore<String, String> store = newStore(nextDbId(), DEFAULT_VERSION, null, null);
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    WriteBehindQueue<String, String> queue =
+        new WriteBehindQueue<>(
+            "test", tasks::add, store, 1, 10, new WriteBehindMetrics(new DisabledMetricMaker()));
+    H2CacheImpl<String, String> impl =
+        new H2CacheImpl<>(queue, admitAll(), KEY_TYPE, disableMemCache());
+
+    impl.put("key1", "val1");
+    impl.put("key2", "val2");
+    impl.put("key1", "val3");
+    assertThat(queue.depth()).isEqualTo(1);
+    tasks.remove().run();
+    assertThat(impl.getIfPresent("key1")).isEqualTo("val3");
+    assertThat(impl.getIfPresent("key2")).isNull();
+  }
+
+  @Test
+  public void bloomFilterSnapshotIsReusedAfterRestart() throws Exception {
+    int id = nextDbId();
+    Path bloomFilterFile = temporaryFolder.getRoot().toPath().resolve("test.bloom");
+    SqlStore<String, String> store = newStoreWithBloomFilterFile(id, bloomFilterFile);
+    store.open();
+    store.put("key", new ValueHolder<>("val", Instant.now()));
+    store.close();
+    assertThat(Files.exists(bloomFilterFile)).isTrue();
+
+    store = newStoreWithBloomFilterFile(id, bloomFilterFile);
+    store.open();
+    assertWithMessage("snapshot is consumed").that(Files.exists(bloomFilterFile)).isFalse();
+    assertThat(store.mightContain("key")).isTrue();
+    assertThat(store.getIfPresent("key").value).isEqualTo("val");
+    store.close();
+  }
+
+  @Test
+  public void staleBloomFilterSnapshotIsRebuilt() throws Exception {
+    int id = nextDbId();
+    Path bloomFilterFile = temporaryFolder.getRoot().toPath().resolve("test.bloom");
+    SqlStore<String, String> store = newStoreWithBloomFilterFile(id, bloomFilterFile);
+    store.open();
+    store.put("key1", new ValueHolder<>("val1", Instant.now()));
+    store.close();
+
+    // Modify the database behind the back of the snapshot.
+    SqlStore<String, String> other = newStoreWithBloomFilterFile(id, null);
+    other.put("key2", new ValueHolder<>("val2", Instant.now()));
+
+    store = newStoreWithBloomFilterFile(id, bloomFilterFile);
+    store.open();
+    assertThat(store.mightContain("key1")).isTrue();
+    assertThat(store.mightContain("key2")).isTrue();
+    store.close();
+  }
+
+  @Test
+  public void bloomFilterIsBuiltInBackground() throws Exception {
+    int id = nextDbId();
+    newStoreWithBloomFilterFile(id, null).put("key1", new ValueHolder<>("val1", Instant.now()));
+
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    SqlStore<String, String> store = newStoreWithBloomFilterExecutor(id, tasks::add);
+    store.open();
+    assertThat(tasks).hasSize(1);
+    assertWithMessage("no BloomFilter yet").that(store.mightContain("missing")).isTrue();
+    assertWithMessage("rebuild already pending").that(tasks).hasSize(1);
+
+    // Written before the scan, so the rebuild finds it in the database.
+    store.put("key2", new ValueHolder<>("val2", Instant.now()));
+    tasks.remove().run();
+    store.put("key3", new ValueHolder<>("val3", Instant.now()));
+
+    assertThat(store.mightContain("key1")).isTrue();
+    assertThat(store.mightContain("key2")).isTrue();
+    assertThat(store.mightContain("key3")).isTrue();
+    assertThat(store.mightContain("missing")).isFalse();
+    store.close();
+  }
+
+  @Test
+  public void keysWrittenDuringBackgroundBuildAreInBloomFilter() throws Exception {
+    int id = nextDbId();
+    SqlStore<String, String> prefill = newStoreWithBloomFilterFile(id, null);
+    for (int i = 0; i < 1000; i++) {
+      prefill.put("old" + i, new ValueHolder<>("val", Instant.now()));
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    SqlStore<String, String> store = newStoreWithBloomFilterExecutor(id, executor);
+    Thread writer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 1000; i++) {
+                store.put("new" + i, new ValueHolder<>("val", Instant.now()));
+              }
+            });
+    writer.start();
+    store.open();
+    writer.join();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+    for (int i = 0; i < 1000; i++) {
+      assertWithMessage("old" + i).that(store.mightContain("old" + i)).isTrue();
+      assertWithMessage("new" + i).that(store.mightContain("new" + i)).isTrue();
+    }
+    store.close();
+  }
+
+  @Test
+  public void tiers_diskHitIsPromotedToMemory() {
+    Cache<String, ValueHolder<String>> mem = CacheBuilder.newBuilder().recordStats().build();
+    H2CacheImpl<String, String> impl =
+        newH2CacheImpl(newStore(nextDbId(), DEFAULT_VERSION, null, null), mem);
+    impl.put("key", "val");
+    mem.invalidate("key");
+
+    assertThat(impl.getIfPresent("key")).isEqualTo("val");
+    assertWithMessage("promoted").that(mem.getIfPresent("key")).isNotNull();
+    assertThat(impl.getIfPresent("missing")).isNull();
+
+    TierStats stats = impl.tierStats();
+    assertThat(stats.promotionCount()).isEqualTo(1);
+    assertThat(stats.admissionRejectedCount()).isEqualTo(0);
+    assertThat(stats.diskHitCount()).isEqualTo(1);
+    assertThat(stats.diskRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void tiers_largeValueIsNotAdmittedToMemory() {
+    Cache<String, ValueHolder<String>> mem = CacheBuilder.newBuilder().recordStats().build();
+    SqlStore<String, String> store = newStore(nextDbId(), DEFAULT_VERSION, null, null);
+    H2CacheImpl<String, String> impl =
+        new H2CacheImpl<>(
+            newWriteBehindQueue(store, MoreExecutors.directExecutor()),
+            new MemoryTierPolicy<String, String>((k, v) -> v.length(), 5),
+            KEY_TYPE,
+            mem);
+    store.put("small", new ValueHolder<>("val", Instant.now()));
+    store.put("large", new ValueHolder<>("large value", Instant.now()));
+
+    assertThat(impl.getIfPresent("small")).isEqualTo("val");
+    assertThat(impl.getIfPresent("large")).isEqualTo("large value");
+    assertWithMessage("small value in memory").that(mem.getIfPresent("small")).isNotNull();
+    assertWithMessage("large value in memory").that(mem.getIfPresent("large")).isNull();
+    assertWithMessage("large value on disk").that(impl.getIfPresent("large")).isNotNull();
+
+    TierStats stats = impl.tierStats();
+    assertThat(stats.promotionCount()).isEqualTo(1);
+    assertThat(stats.admissionRejectedCount()).isEqualTo(2);
+    assertThat(stats.diskHitCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void tiers_rejectedValueIsNotPutIntoMemoryAndNotDemoted() throws Exception {
+    MemoryTierPolicy<String, String> tier =
+        new MemoryTierPolicy<String, String>((k, v) -> v.length(), 5);
+    Cache<String, ValueHolder<String>> mem =
+        CacheBuilder.newBuilder()
+            .maximumWeight(100)
+            .weigher(tier.<ValueHolder<String>>memoryWeigher(h -> h.value))
+            .recordStats()
+            .build();
+    H2CacheImpl<String, String> impl =
+        new H2CacheImpl<>(
+            newWriteBehindQueue(
+                newStore(nextDbId(), DEFAULT_VERSION, null, null),
+                MoreExecutors.directExecutor()),
+            tier,
+            KEY_TYPE,
+            mem);
+    impl.put("put", "val");
+    impl.put("put", "large value");
+    assertWithMessage("rejected put in memory").that(mem.getIfPresent("put")).isNull();
+
+    // A loaded value enters the in-memory cache, which evicts it right away.
+    assertThat(impl.get("loaded", () -> "large value")).isEqualTo("large value");
+    assertWithMessage("rejected load in memory").that(mem.getIfPresent("loaded")).isNull();
+
+    TierStats stats = impl.tierStats();
+    assertThat(stats.admissionRejectedCount()).isEqualTo(2);
+    assertThat(stats.demotionCount()).isEqualTo(0);
+  }
+
   @SuppressWarnings("unchecked")
   private static void resetLoaderAndAnswerLoadAndRefreshCalls(CacheLoader<String, String> loader)
       throws Exception {
@@ -0,0 +1,169 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mem;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.server.cache.CacheBackend;
+import com.google.gerrit.server.cache.CacheDef;
+import com.google.gerrit.server.cache.ForwardingRemovalListener;
+import com.google.inject.TypeLiteral;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+public class DefaultMemoryCacheFactoryTest {
+  private static final String CACHE = "test";
+  private static final int CACHE_SIZE = 500;
+
+  @Test
+  public void backendDefaultsToDeclaredBackend() {
+    DefaultMemoryCacheFactory factory = newFactory(new Config());
+    assertThat(factory.backend(new TestDef(CACHE_SIZE), CacheBackend.CAFFEINE))
+        .isEqualTo(CacheBackend.CAFFEINE);
+    assertThat(factory.backend(new TestDef(CACHE_SIZE), CacheBackend.GUAVA))
+        .isEqualTo(CacheBackend.GUAVA);
+  }
+
+  @Test
+  public void backendCanBeConfiguredPerCache() {
+    Config cfg = new Config();
+    cfg.setString("cache", CACHE, "backend", "guava");
+    cfg.setString("cache", "other", "backend", "caffeine");
+    DefaultMemoryCacheFactory factory = newFactory(cfg);
+    assertThat(factory.backend(new TestDef(CACHE_SIZE), CacheBackend.CAFFEINE))
+        .isEqualTo(CacheBackend.GUAVA);
+  }
+
+  @Test
+  public void invalidBackendFallsBackToDeclaredBackend() {
+    Config cfg = new Config();
+    cfg.setString("cache", CACHE, "backend", "lru");
+    DefaultMemoryCacheFactory factory = newFactory(cfg);
+    assertThat(factory.backend(new TestDef(CACHE_SIZE), CacheBackend.CAFFEINE))
+        .isEqualTo(CacheBackend.CAFFEINE);
+  }
+
+  /**
+   * Replays an access trace of a small hot set which is interrupted by scans over many keys which
+   * are accessed only once, like the accounts cache sees it during reindexing.
+   */
+  @Test
+  public void caffeineKeepsHotEntriesDuringScans() throws Exception {
+    List<String> trace = scanHeavyTrace();
+    double guava = replay(CacheBackend.GUAVA, trace);
+    double caffeine = replay(CacheBackend.CAFFEINE, trace);
+    assertWithMessage("hit ratio of Caffeine (%s) vs. Guava (%s)", caffeine, guava)
+        .that(caffeine)
+        .isGreaterThan(guava);
+  }
+
+  private static List<String> scanHeavyTrace() {
+    Random random = new Random(42);
+    List<String> trace = new ArrayList<>();
+    int scanned = 0;
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 2000; i++) {
+        trace.add("hot" + random.nextInt(CACHE_SIZE / 2));
+      }
+      for (int i = 0; i < 2 * CACHE_SIZE; i++) {
+        trace.add("cold" + scanned++);
+      }
+    }
+    return trace;
+  }
+
+  private static double replay(CacheBackend backend, List<String> trace) throws Exception {
+    Cache<String, String> cache =
+        newFactory(new Config()).build(new TestDef(CACHE_SIZE), backend);
+    for (String key : trace) {
+      cache.get(key, () -> key);
+      // Run pending evictions right away, so that the result does not depend on timing.
+      cache.cleanUp();
+    }
+    return cache.stats().hitRate();
+  }
+
+  private static DefaultMemoryCacheFactory newFactory(Config cfg) {
+    ForwardingRemovalListener<?, ?> listener = mock(ForwardingRemovalListener.class);
+    return new DefaultMemoryCacheFactory(cfg, name -> listener);
+  }
+
+  private static class TestDef implements CacheDef<String, String> {
+    private final long maximumWeight;
+
+    TestDef(long maximumWeight) {
+      this.maximumWeight = maximumWeight;
+    }
+
+    @Override
+    public String name() {
+      return CACHE;
+    }
+
+    @Override
+    public String configKey() {
+      return CACHE;
+    }
+
+    @Override
+    public TypeLiteral<String> keyType() {
+      return TypeLiteral.get(String.class);
+    }
+
+    @Override
+    public TypeLiteral<String> valueType() {
+      return TypeLiteral.get(String.class);
+    }
+
+    @Override
+    public long maximumWeight() {
+      return maximumWeight;
+    }
+
+    @Override
+    public Duration expireAfterWrite() {
+      return null;
+    }
+
+    @Override
+    public Duration expireFromMemoryAfterAccess() {
+      return null;
+    }
+
+    @Override
+    public Duration refreshAfterWrite() {
+      return null;
+    }
+
+    @Override
+    public Weigher<String, String> weigher() {
+      return null;
+    }
+
+    @Override
+    public CacheLoader<String, String> loader() {
+      return null;
+    }
+  }
+}
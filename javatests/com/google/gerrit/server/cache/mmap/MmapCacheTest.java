@@ -0,0 +1,217 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.mmap;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.server.cache.MemoryTierPolicy;
+import com.google.gerrit.server.cache.mmap.MmapCacheImpl.ValueHolder;
+import com.google.gerrit.server.cache.serialize.StringCacheSerializer;
+import com.google.inject.TypeLiteral;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MmapCacheTest {
+  private static final TypeLiteral<String> KEY_TYPE = new TypeLiteral<String>() {};
+  private static final int DEFAULT_VERSION = 1234;
+  private static final int SEGMENT_SIZE = 4096;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SegmentStore<String, String> newStore(Path dir, int version, long maxSize) {
+    return new SegmentStore<>(
+        dir,
+        StringCacheSerializer.INSTANCE,
+        StringCacheSerializer.INSTANCE,
+        version,
+        maxSize,
+        SEGMENT_SIZE,
+        0.5,
+        null,
+        null);
+  }
+
+  private static MmapCacheImpl<String, String> newCache(
+      SegmentStore<String, String> store, Cache<String, ValueHolder<String>> mem) {
+    return new MmapCacheImpl<>(
+        MoreExecutors.directExecutor(),
+        store,
+        new MemoryTierPolicy<>(null, Long.MAX_VALUE),
+        KEY_TYPE,
+        mem);
+  }
+
+  @Test
+  public void get() throws Exception {
+    Cache<String, ValueHolder<String>> mem = CacheBuilder.newBuilder().build();
+    MmapCacheImpl<String, String> impl =
+        newCache(newStore(temporaryFolder.newFolder().toPath(), DEFAULT_VERSION, 1 << 20), mem);
+
+    assertThat(impl.getIfPresent("foo")).isNull();
+
+    AtomicBoolean called = new AtomicBoolean();
+    assertThat(
+            impl.get(
+                "foo",
+                () -> {
+                  called.set(true);
+                  return "bar";
+                }))
+        .isEqualTo("bar");
+    assertWithMessage("Callable was called").that(called.get()).isTrue();
+    assertWithMessage("in-memory value").that(impl.getIfPresent("foo")).isEqualTo("bar");
+    mem.invalidate("foo");
+    assertWithMessage("persistent value").that(impl.getIfPresent("foo")).isEqualTo("bar");
+
+    called.set(false);
+    assertWithMessage("cached value")
+        .that(
+            impl.get(
+                "foo",
+                () -> {
+                  called.set(true);
+                  return "baz";
+                }))
+        .isEqualTo("bar");
+    assertWithMessage("Callable was called").that(called.get()).isFalse();
+  }
+
+  @Test
+  public void valuesSurviveReopen() throws Exception {
+    Path dir = temporaryFolder.newFolder().toPath();
+    MmapCacheImpl<String, String> impl =
+        newCache(newStore(dir, DEFAULT_VERSION, 1 << 20), disableMemCache());
+    impl.put("key1", "val1");
+    impl.put("key2", "val2");
+    impl.put("key1", "val3");
+    impl.invalidate("key2");
+    impl.stop();
+
+    impl = newCache(newStore(dir, DEFAULT_VERSION, 1 << 20), disableMemCache());
+    assertThat(impl.getIfPresent("key1")).isEqualTo("val3");
+    assertThat(impl.getIfPresent("key2")).isNull();
+    assertThat(impl.diskStats().size()).isEqualTo(1);
+    assertThat(impl.diskStats().space()).isEqualTo(8);
+  }
+
+  @Test
+  public void version() throws Exception {
+    Path dir = temporaryFolder.newFolder().toPath();
+    MmapCacheImpl<String, String> oldImpl =
+        newCache(newStore(dir, DEFAULT_VERSION, 1 << 20), disableMemCache());
+    oldImpl.put("key", "val");
+    assertThat(oldImpl.getIfPresent("key")).isEqualTo("val");
+    assertThat(oldImpl.diskStats().space()).isEqualTo(6);
+    assertThat(oldImpl.diskStats().hitCount()).isEqualTo(1);
+    oldImpl.stop();
+
+    MmapCacheImpl<String, String> newImpl =
+        newCache(newStore(dir, DEFAULT_VERSION + 1, 1 << 20), disableMemCache());
+    assertThat(newImpl.diskStats().space()).isEqualTo(0);
+    assertThat(newImpl.getIfPresent("key")).isNull();
+    assertThat(newImpl.diskStats().requestCount()).isEqualTo(1);
+
+    newImpl.put("key", "val2");
+    assertThat(newImpl.getIfPresent("key")).isEqualTo("val2");
+    assertThat(newImpl.diskStats().space()).isEqualTo(7);
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    MmapCacheImpl<String, String> impl =
+        newCache(
+            newStore(temporaryFolder.newFolder().toPath(), DEFAULT_VERSION, 1 << 20),
+            disableMemCache());
+    impl.put("key1", "val1");
+    impl.put("key2", "val2");
+    impl.invalidateAll();
+    assertThat(impl.getIfPresent("key1")).isNull();
+    assertThat(impl.getIfPresent("key2")).isNull();
+    assertThat(impl.diskStats().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void compactionReclaimsOverwrittenRecords() throws Exception {
+    Path dir = temporaryFolder.newFolder().toPath();
+    SegmentStore<String, String> store = newStore(dir, DEFAULT_VERSION, 1 << 20);
+    MmapCacheImpl<String, String> impl = newCache(store, disableMemCache());
+    String big = Strings.repeat("x", 1000);
+    for (int i = 0; i < 20; i++) {
+      impl.put("key", big + i);
+    }
+    int before = segmentCount(dir);
+    assertThat(before).isGreaterThan(1);
+
+    store.compact(disableMemCache());
+    assertThat(segmentCount(dir)).isLessThan(before);
+    assertThat(impl.getIfPresent("key")).isEqualTo(big + 19);
+    impl.stop();
+
+    impl = newCache(newStore(dir, DEFAULT_VERSION, 1 << 20), disableMemCache());
+    assertThat(impl.getIfPresent("key")).isEqualTo(big + 19);
+  }
+
+  @Test
+  public void compactionEvictsColdEntriesBeyondDiskLimit() throws Exception {
+    Path dir = temporaryFolder.newFolder().toPath();
+    SegmentStore<String, String> store = newStore(dir, DEFAULT_VERSION, 3 * SEGMENT_SIZE);
+    Cache<String, ValueHolder<String>> mem = CacheBuilder.newBuilder().build();
+    MmapCacheImpl<String, String> impl = newCache(store, disableMemCache());
+    String big = Strings.repeat("x", 1000);
+    // Write to the store directly, MmapCacheImpl.put() would already compact while over the limit.
+    for (int i = 0; i < 20; i++) {
+      store.put("key" + i, new ValueHolder<>(big, Instant.now()));
+    }
+    mem.put("key0", new ValueHolder<>(big, Instant.now()));
+
+    store.compact(mem);
+    assertThat(store.overLimit()).isFalse();
+    assertWithMessage("hot entry").that(impl.getIfPresent("key0")).isEqualTo(big);
+    assertWithMessage("cold entry").that(impl.getIfPresent("key1")).isNull();
+    assertWithMessage("recent entry").that(impl.getIfPresent("key19")).isEqualTo(big);
+  }
+
+  @Test
+  public void largeValueGetsItsOwnSegment() {
+    MmapCacheImpl<String, String> impl =
+        newCache(
+            newStore(temporaryFolder.getRoot().toPath().resolve("c"), DEFAULT_VERSION, 1 << 20),
+            disableMemCache());
+    String huge = Strings.repeat("y", 3 * SEGMENT_SIZE);
+    impl.put("key", huge);
+    assertThat(impl.getIfPresent("key")).isEqualTo(huge);
+  }
+
+  private static int segmentCount(Path dir) throws Exception {
+    try (Stream<Path> s = Files.list(dir)) {
+      return (int) s.count();
+    }
+  }
+
+  private static <K, V> Cache<K, ValueHolder<V>> disableMemCache() {
+    return CacheBuilder.newBuilder().maximumSize(0).build();
+  }
+}
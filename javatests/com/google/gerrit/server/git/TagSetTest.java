@@ -20,6 +20,8 @@ import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static com.google.gerrit.proto.testing.SerializedClassSubject.assertThatSerializedClass;
 import static com.google.gerrit.server.cache.testing.CacheSerializerTestUtil.byteString;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Streams;
@@ -38,8 +40,18 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Test;
 
 public class TagSetTest {
@@ -106,6 +118,53 @@ public class TagSetTest {
     assertEqual(tagSet, TagSet.fromProto(proto));
   }
 
+  @Test
+  public void buildFromBitmapsMatchesWalk() throws Exception {
+    InMemoryRepository repo = new InMemoryRepository(new DfsRepositoryDescription("project"));
+    TestRepository<InMemoryRepository> tr = new TestRepository<>(repo);
+    RevCommit a = tr.commit().create();
+    RevCommit b = tr.commit().parent(a).create();
+    RevCommit c = tr.commit().parent(a).create();
+    tr.update("refs/heads/master", b);
+    tr.update("refs/heads/stable", c);
+    tr.update("refs/heads/stable-copy", c);
+    tr.update("refs/tags/v1", tr.tag("v1", a));
+    tr.update("refs/tags/v2", tr.tag("v2", b));
+    tr.update("refs/tags/v3", c);
+    tr.update("refs/tags/tree", tr.tree());
+
+    TagSet walked = new TagSet(Project.nameKey("project"));
+    walked.build(repo, null, null);
+
+    new DfsGarbageCollector(repo).pack(null);
+    try (ObjectReader reader = repo.newObjectReader()) {
+      assertThat(reader.getBitmapIndex()).isNotNull();
+    }
+    TagSet fromBitmaps = new TagSet(Project.nameKey("project"));
+    fromBitmaps.build(repo, null, null);
+
+    assertEqual(fromBitmaps, walked);
+  }
+
+  @Test
+  public void rewoundBranchUpdatesReachableTags() throws Exception {
+    InMemoryRepository repo = new InMemoryRepository(new DfsRepositoryDescription("project"));
+    TestRepository<InMemoryRepository> tr = new TestRepository<>(repo);
+    RevCommit a = tr.commit().create();
+    RevCommit b = tr.commit().parent(a).create();
+    RevCommit c = tr.commit().parent(a).create();
+    tr.update("refs/heads/master", b);
+    tr.update("refs/tags/v1", b);
+    tr.update("refs/tags/v2", c);
+
+    TagCache cache = new TagCache(CacheBuilder.newBuilder().build(), null);
+    TagSetHolder holder = cache.get(Project.nameKey("project"));
+    assertThat(reachableTags(cache, holder, repo)).containsExactly("refs/tags/v1");
+
+    tr.update("refs/heads/master", c);
+    assertThat(reachableTags(cache, holder, repo)).containsExactly("refs/tags/v2");
+  }
+
   @Test
   public void tagSetFields() {
     assertThatSerializedClass(TagSet.class)
@@ -182,6 +241,19 @@ public class TagSetTest {
         .collect(ImmutableSortedSet.toImmutableSortedSet(Comparator.naturalOrder()));
   }
 
+  private static ImmutableList<String> reachableTags(
+      TagCache cache, TagSetHolder holder, Repository repo) throws Exception {
+    RefDatabase refDb = repo.getRefDatabase();
+    TagMatcher m = holder.matcher(cache, repo, refDb.getRefsByPrefix(Constants.R_HEADS));
+    ImmutableList.Builder<String> reachable = ImmutableList.builder();
+    for (Ref tag : refDb.getRefsByPrefix(Constants.R_TAGS)) {
+      if (m.isReachable(tag)) {
+        reachable.add(tag.getName());
+      }
+    }
+    return reachable.build();
+  }
+
   private BitSet newBitSet(int... bits) {
     BitSet result = new BitSet();
     Arrays.stream(bits).forEach(result::set);
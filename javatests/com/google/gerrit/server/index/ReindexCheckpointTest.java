@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+
+import com.google.gerrit.server.config.SitePaths;
+import java.nio.file.Files;
+import java.util.OptionalInt;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReindexCheckpointTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SitePaths sitePaths;
+
+  @Before
+  public void setUp() throws Exception {
+    sitePaths = new SitePaths(temporaryFolder.newFolder().toPath());
+    Files.createDirectories(sitePaths.index_dir);
+  }
+
+  @Test
+  public void recordedPartsAreLoadedAfterRestart() throws Exception {
+    ReindexCheckpoint checkpoint = new ReindexCheckpoint(sitePaths, "changes", 71);
+    assertThat(checkpoint.exists()).isFalse();
+    checkpoint.markDone("0/2 foo bar", 10);
+    checkpoint.markDone("1/1 baz", 5);
+
+    ReindexCheckpoint resumed = new ReindexCheckpoint(sitePaths, "changes", 71);
+    assertThat(resumed.exists()).isTrue();
+    resumed.load();
+    assertThat(resumed.doneCount("0/2 foo bar")).isEqualTo(OptionalInt.of(10));
+    assertThat(resumed.doneCount("1/1 baz")).isEqualTo(OptionalInt.of(5));
+    assertThat(resumed.doneCount("1/2 foo bar")).isEqualTo(OptionalInt.empty());
+    assertThat(resumed.getDoneCount()).isEqualTo(15);
+  }
+
+  @Test
+  public void checkpointsArePerIndexVersion() throws Exception {
+    new ReindexCheckpoint(sitePaths, "changes", 71).markDone("0/1 foo", 1);
+    assertThat(new ReindexCheckpoint(sitePaths, "changes", 72).exists()).isFalse();
+    assertThat(new ReindexCheckpoint(sitePaths, "accounts", 71).exists()).isFalse();
+  }
+
+  @Test
+  public void partiallyWrittenLineIsIgnored() throws Exception {
+    ReindexCheckpoint checkpoint = new ReindexCheckpoint(sitePaths, "changes", 71);
+    checkpoint.markDone("0/1 foo", 3);
+    Files.write(
+        sitePaths.index_dir.resolve("reindex_changes_0071.checkpoint"),
+        "1".getBytes(UTF_8),
+        APPEND);
+
+    ReindexCheckpoint resumed = new ReindexCheckpoint(sitePaths, "changes", 71);
+    resumed.load();
+    assertThat(resumed.getDoneCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void deleteRemovesRecordedParts() throws Exception {
+    ReindexCheckpoint checkpoint = new ReindexCheckpoint(sitePaths, "changes", 71);
+    checkpoint.markDone("0/1 foo", 3);
+    checkpoint.delete();
+    assertThat(checkpoint.exists()).isFalse();
+    assertThat(checkpoint.doneCount("0/1 foo")).isEqualTo(OptionalInt.empty());
+    assertThat(checkpoint.getDoneCount()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.server.config.SitePaths;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReindexFingerprintsTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SitePaths sitePaths;
+
+  @Before
+  public void setUp() throws Exception {
+    sitePaths = new SitePaths(temporaryFolder.newFolder().toPath());
+    Files.createDirectories(sitePaths.index_dir);
+  }
+
+  @Test
+  public void noFingerprintsStored() throws Exception {
+    assertThat(new ReindexFingerprints(sitePaths, "changes", 71).load()).isEmpty();
+  }
+
+  @Test
+  public void savedFingerprintsAreLoaded() throws Exception {
+    ImmutableMap<String, String> fingerprints =
+        ImmutableMap.of("foo", "1234", "foo bar/baz", "abcd");
+    new ReindexFingerprints(sitePaths, "changes", 71).save(fingerprints);
+
+    assertThat(new ReindexFingerprints(sitePaths, "changes", 71).load())
+        .containsExactlyEntriesIn(fingerprints);
+    assertThat(new ReindexFingerprints(sitePaths, "changes", 72).load()).isEmpty();
+  }
+
+  @Test
+  public void saveReplacesFingerprints() throws Exception {
+    ReindexFingerprints store = new ReindexFingerprints(sitePaths, "changes", 71);
+    store.save(ImmutableMap.of("foo", "1234", "bar", "5678"));
+    store.save(ImmutableMap.of("foo", "abcd"));
+    assertThat(store.load()).containsExactly("foo", "abcd");
+  }
+
+  @Test
+  public void deleteRemovesFingerprints() throws Exception {
+    ReindexFingerprints store = new ReindexFingerprints(sitePaths, "changes", 71);
+    store.save(ImmutableMap.of("foo", "1234"));
+    store.delete();
+    assertThat(store.load()).isEmpty();
+  }
+}
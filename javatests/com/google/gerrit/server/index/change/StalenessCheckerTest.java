@@ -16,11 +16,13 @@ package com.google.gerrit.server.index.change;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.server.index.change.StalenessChecker.refsAreStale;
+import static com.google.gerrit.server.index.change.StalenessChecker.staleChanges;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.gerrit.entities.Change;
@@ -311,6 +313,71 @@ public class StalenessCheckerTest {
         .isFalse();
   }
 
+  @Test
+  public void staleChangesChecksAllChangesOfAllProjects() throws Exception {
+    Change.Id c2 = Change.id(1235);
+    Change.Id c3 = Change.id(1236);
+    String ref1 = "refs/heads/foo";
+    ObjectId id1 = tr1.update(ref1, tr1.commit().message("commit 1"));
+    String ref2 = "refs/heads/bar";
+    ObjectId id2 = tr2.update(ref2, tr2.commit().message("commit 2"));
+    String ref3 = "refs/other/foo";
+    ObjectId id3 = tr1.update(ref3, tr1.commit().message("commit 3"));
+
+    assertThat(
+            staleChanges(
+                repoManager,
+                ImmutableMap.of(
+                    C,
+                    ImmutableSetMultimap.of(
+                        P1, RefState.create(ref1, id1.name()),
+                        P2, RefState.create(ref2, id2.name())),
+                    c2,
+                    ImmutableSetMultimap.of(P2, RefState.create(ref2, SHA1)),
+                    c3,
+                    ImmutableSetMultimap.of(P1, RefState.create(ref1, id1.name()))),
+                ImmutableMap.of(
+                    C,
+                    ImmutableListMultimap.of(),
+                    c2,
+                    ImmutableListMultimap.of(),
+                    c3,
+                    ImmutableListMultimap.of(P1, RefStatePattern.create("refs/*/foo")))))
+        .containsExactly(c2, c3);
+
+    assertThat(
+            staleChanges(
+                repoManager,
+                ImmutableMap.of(
+                    c3,
+                    ImmutableSetMultimap.of(
+                        P1, RefState.create(ref1, id1.name()),
+                        P1, RefState.create(ref3, id3.name()))),
+                ImmutableMap.of(
+                    c3, ImmutableListMultimap.of(P1, RefStatePattern.create("refs/*/foo")))))
+        .isEmpty();
+  }
+
+  @Test
+  public void staleChangesTreatsMissingRefAsZeroId() throws Exception {
+    assertThat(
+            staleChanges(
+                repoManager,
+                ImmutableMap.of(
+                    C, ImmutableSetMultimap.of(P1, RefState.create("refs/heads/missing", SHA1))),
+                ImmutableMap.of()))
+        .containsExactly(C);
+    assertThat(
+            staleChanges(
+                repoManager,
+                ImmutableMap.of(
+                    C,
+                    ImmutableSetMultimap.of(
+                        P1, RefState.create("refs/heads/missing", ObjectId.zeroId()))),
+                ImmutableMap.of()))
+        .isEmpty();
+  }
+
   private static Iterable<byte[]> byteArrays(String... strs) {
     return Stream.of(strs).map(s -> s != null ? s.getBytes(UTF_8) : null).collect(toList());
   }
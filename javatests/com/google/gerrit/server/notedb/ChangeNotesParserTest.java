@@ -15,11 +15,21 @@
 package com.google.gerrit.server.notedb;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static com.google.gerrit.server.notedb.ReviewerStateInternal.REVIEWER;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.LabelId;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.entities.SubmissionId;
 import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
 import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.gerrit.testing.TestChanges;
+import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
 import org.eclipse.jgit.junit.TestRepository;
@@ -582,6 +592,112 @@ public class ChangeNotesParserTest extends AbstractChangeNotesTest {
     assertParseFails("Update change\n\nPatch-set: 1\nCurrent: blah");
   }
 
+  @Test
+  public void parseIncrementallyMatchesFullParse() throws Exception {
+    Change c = newChange();
+    List<ObjectId> tips = new ArrayList<>();
+    tips.add(metaTip(c));
+
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putReviewer(otherUserId, REVIEWER);
+    update.setTopic("topic");
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, otherUser);
+    update.putApproval(LabelId.CODE_REVIEW, (short) 1);
+    update.setChangeMessage("Looks good");
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, changeOwner);
+    update.setWorkInProgress(true);
+    update.setHashtags(ImmutableSet.of("tag"));
+    update.commit();
+    tips.add(metaTip(c));
+
+    TestChanges.incrementPatchSet(c);
+    update = newUpdate(c, changeOwner);
+    update.setCommit(rw, tr.commit().message("PS2").create());
+    update.setPsDescription("Second try");
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, changeOwner);
+    update.setWorkInProgress(false);
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, otherUser);
+    update.putApproval(LabelId.CODE_REVIEW, (short) 2);
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, changeOwner);
+    update.merge(
+        new SubmissionId(c),
+        ImmutableList.of(
+            submitRecord("OK", null, submitLabel(LabelId.CODE_REVIEW, "OK", otherUserId))));
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, otherUser);
+    update.putApproval(LabelId.VERIFIED, (short) 1);
+    update.commit();
+    tips.add(metaTip(c));
+
+    update = newUpdate(c, changeOwner);
+    update.removeReviewer(otherUserId);
+    update.commit();
+    tips.add(metaTip(c));
+
+    for (int i = 1; i < tips.size(); i++) {
+      ChangeNotesState expected = newParser(c, tips.get(i)).parseAll();
+      for (int j = 0; j < i; j++) {
+        ChangeNotesState base = newParser(c, tips.get(j)).parseAll();
+        assertWithMessage("state at update %s applied on state at update %s", i, j)
+            .that(newParser(c, tips.get(i)).parseIncrementally(base))
+            .isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void parseIncrementallyFallsBackForDeletedPatchSet() throws Exception {
+    Change c = newChange();
+    TestChanges.incrementPatchSet(c);
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.setCommit(rw, tr.commit().message("PS2").create());
+    update.commit();
+    ChangeNotesState base = newParser(c, metaTip(c)).parseAll();
+
+    update = newUpdate(c, changeOwner);
+    update.setPatchSetState(PatchSetState.DELETED);
+    update.commit();
+
+    assertThat(newParser(c, metaTip(c)).parseIncrementally(base)).isNull();
+  }
+
+  @Test
+  public void parseIncrementallyFallsBackForReaddedReviewer() throws Exception {
+    Change c = newChange();
+    ChangeUpdate update = newUpdate(c, otherUser);
+    update.putApproval(LabelId.CODE_REVIEW, (short) 1);
+    update.commit();
+    update = newUpdate(c, changeOwner);
+    update.removeReviewer(otherUserId);
+    update.commit();
+    ChangeNotesState base = newParser(c, metaTip(c)).parseAll();
+    assertThat(base.approvals()).isEmpty();
+
+    update = newUpdate(c, changeOwner);
+    update.putReviewer(otherUserId, REVIEWER);
+    update.commit();
+
+    assertThat(newParser(c, metaTip(c)).parseIncrementally(base)).isNull();
+    assertThat(newParser(c, metaTip(c)).parseAll().approvals()).hasSize(1);
+  }
+
   private RevCommit writeCommit(String body) throws Exception {
     ChangeNoteUtil noteUtil = injector.getInstance(ChangeNoteUtil.class);
     return writeCommit(
@@ -637,6 +753,16 @@ public class ChangeNotesParserTest extends AbstractChangeNotesTest {
     assertThrows(ConfigInvalidException.class, () -> newParser(commit).parseAll());
   }
 
+  private ObjectId metaTip(Change c) throws Exception {
+    return repo.exactRef(RefNames.changeMetaRef(c.getId())).getObjectId();
+  }
+
+  private ChangeNotesParser newParser(Change c, ObjectId tip) {
+    walk.reset();
+    ChangeNoteJson changeNoteJson = injector.getInstance(ChangeNoteJson.class);
+    return new ChangeNotesParser(c.getId(), tip, walk, changeNoteJson, args.metrics);
+  }
+
   private ChangeNotesParser newParser(ObjectId tip) throws Exception {
     walk.reset();
     ChangeNoteJson changeNoteJson = injector.getInstance(ChangeNoteJson.class);
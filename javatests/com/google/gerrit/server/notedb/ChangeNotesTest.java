@@ -29,13 +29,16 @@ import static java.util.Comparator.comparing;
 import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.Address;
 import com.google.gerrit.entities.AttentionSetUpdate;
@@ -61,12 +64,16 @@ import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.gerrit.server.validators.ValidationException;
 import com.google.gerrit.testing.TestChanges;
 import com.google.inject.Inject;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -3362,6 +3369,59 @@ public class ChangeNotesTest extends AbstractChangeNotesTest {
     assertThat(newNotes(c).getChange().currentPatchSetId().get()).isEqualTo(2);
   }
 
+  @Test
+  public void createAllLoadsNotesOfManyChanges() throws Exception {
+    Change c1 = newChange();
+    Change c2 = newChange();
+    ChangeUpdate update = newUpdate(c2, changeOwner);
+    update.setTopic("topic");
+    update.commit();
+    Change.Id missing = Change.id(c2.getId().get() + 1000);
+
+    ImmutableMap<Change.Id, ChangeNotes> notes =
+        injector
+            .getInstance(ChangeNotes.Factory.class)
+            .createAll(
+                ImmutableListMultimap.of(
+                    project, c1.getId(), project, c2.getId(), project, missing));
+
+    assertThat(notes.keySet()).containsExactly(c1.getId(), c2.getId());
+    assertThat(notes.get(c1.getId()).getMetaId()).isEqualTo(newNotes(c1).getMetaId());
+    assertThat(notes.get(c2.getId()).getMetaId()).isEqualTo(newNotes(c2).getMetaId());
+    assertThat(notes.get(c2.getId()).getChange().getTopic()).isEqualTo("topic");
+  }
+
+  @Test
+  public void cacheWarmerParsesUpdatedChanges() throws Exception {
+    Change c = newChange();
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.setTopic("topic");
+    update.commit();
+    ObjectId metaId = newNotes(c).getMetaId();
+
+    Cache<ChangeNotesCache.Key, ChangeNotesState> cache =
+        injector.getInstance(
+            Key.get(
+                new TypeLiteral<Cache<ChangeNotesCache.Key, ChangeNotesState>>() {},
+                Names.named(ChangeNotesCache.CACHE_NAME)));
+    cache.invalidateAll();
+
+    Config cfg = new Config();
+    cfg.setBoolean("notedb", "changes", "warmCacheOnUpdate", true);
+    ChangeNotesCacheWarmer warmer =
+        new ChangeNotesCacheWarmer(
+            cfg,
+            MoreExecutors.newDirectExecutorService(),
+            repoManager,
+            injector.getInstance(ChangeNotesCache.class));
+    warmer.warm(project, ImmutableMap.of(c.getId(), metaId));
+
+    ChangeNotesState state =
+        cache.getIfPresent(ChangeNotesCache.Key.create(project, c.getId(), metaId));
+    assertThat(state).isNotNull();
+    assertThat(state.columns().topic()).isEqualTo("topic");
+  }
+
   private String readNote(ChangeNotes notes, ObjectId noteId) throws Exception {
     ObjectId dataId = notes.revisionNoteMap.noteMap.getNote(noteId).getData();
     return new String(rw.getObjectReader().open(dataId, OBJ_BLOB).getCachedBytes(), UTF_8);
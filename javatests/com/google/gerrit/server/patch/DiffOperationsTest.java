@@ -15,11 +15,17 @@
 package com.google.gerrit.server.patch;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.patch.diff.ModifiedFilesCache;
+import com.google.gerrit.server.patch.filediff.FileDiffCache;
+import com.google.gerrit.server.patch.filediff.FileDiffCacheKey;
 import com.google.gerrit.server.patch.filediff.FileDiffOutput;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.gerrit.testing.InMemoryModule;
@@ -28,7 +34,12 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
@@ -37,6 +48,7 @@ import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -44,9 +56,13 @@ import org.junit.Test;
 public class DiffOperationsTest {
   @Inject private GitRepositoryManager repoManager;
   @Inject private DiffOperations diffOperations;
+  @Inject private ModifiedFilesCache modifiedFilesCache;
+  @Inject private FileDiffCache fileDiffCache;
+  @Inject private BaseCommitUtil baseCommitUtil;
 
   private static final Project.NameKey testProjectName = Project.nameKey("test-project");
   private Repository repo;
+  private ExecutorService loadExecutor;
 
   private final String fileName1 = "file_1.txt";
   private final String fileContent1 = "File content 1";
@@ -58,6 +74,12 @@ public class DiffOperationsTest {
     Injector injector = Guice.createInjector(new InMemoryModule());
     injector.injectMembers(this);
     repo = repoManager.createRepository(testProjectName);
+    loadExecutor = Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void tearDown() {
+    loadExecutor.shutdownNow();
   }
 
   @Test
@@ -80,6 +102,135 @@ public class DiffOperationsTest {
     assertThat(diffOutput.edits()).hasSize(1);
   }
 
+  @Test
+  public void listModifiedFilesOfLargeChange() throws Exception {
+    int fileCount = 2000;
+    ObjectId newCommitId = createLargeChange(fileCount);
+
+    Map<String, FileDiffOutput> modifiedFiles =
+        diffOperations.listModifiedFilesAgainstParent(
+            testProjectName, newCommitId, /* parentNum=*/ 0);
+
+    // All modified files and the commit message.
+    assertThat(modifiedFiles).hasSize(fileCount / 2 + 1);
+    for (int i = 0; i < fileCount; i += 2) {
+      FileDiffOutput diffOutput = modifiedFiles.get(String.format("file_%04d.txt", i));
+      assertThat(diffOutput).isNotNull();
+      assertThat(diffOutput.edits()).hasSize(1);
+    }
+  }
+
+  @Test
+  public void parallelLoadOfFileDiffsMatchesSerialLoad() throws Exception {
+    ObjectId newCommitId = createLargeChange(2000);
+    RecordingFileDiffCache parallelCache = new RecordingFileDiffCache(null);
+
+    Map<String, FileDiffOutput> parallel =
+        newDiffOperations(4, parallelCache)
+            .listModifiedFilesAgainstParent(testProjectName, newCommitId, /* parentNum=*/ 0);
+    Map<String, FileDiffOutput> serial =
+        newDiffOperations(1, fileDiffCache)
+            .listModifiedFilesAgainstParent(testProjectName, newCommitId, /* parentNum=*/ 0);
+
+    assertThat(parallel).containsExactlyEntriesIn(serial);
+    // More chunks than tasks were loaded and merged.
+    assertThat(parallelCache.chunks.get()).isGreaterThan(4);
+  }
+
+  @Test
+  public void parallelLoadOfFileDiffsFailsIfOneChunkFails() throws Exception {
+    ObjectId newCommitId = createLargeChange(2000);
+    RecordingFileDiffCache failingCache = new RecordingFileDiffCache("file_1000.txt");
+
+    DiffNotAvailableException thrown =
+        assertThrows(
+            DiffNotAvailableException.class,
+            () ->
+                newDiffOperations(4, failingCache)
+                    .listModifiedFilesAgainstParent(
+                        testProjectName, newCommitId, /* parentNum=*/ 0));
+    assertThat(thrown).hasMessageThat().contains("file_1000.txt");
+  }
+
+  @Test(timeout = 60000)
+  public void parallelLoadOfFileDiffsDoesNotWaitForHelpersWhichHaveNotStarted() throws Exception {
+    ObjectId newCommitId = createLargeChange(2000);
+    // The only thread of the executor is busy, so none of the helpers start before the calling
+    // thread has loaded all chunks.
+    ExecutorService busyExecutor = Executors.newSingleThreadExecutor();
+    CountDownLatch release = new CountDownLatch(1);
+    busyExecutor.execute(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    try {
+      Map<String, FileDiffOutput> modifiedFiles =
+          newDiffOperations(4, fileDiffCache, busyExecutor)
+              .listModifiedFilesAgainstParent(testProjectName, newCommitId, /* parentNum=*/ 0);
+      assertThat(modifiedFiles).hasSize(1001);
+    } finally {
+      release.countDown();
+      busyExecutor.shutdown();
+    }
+  }
+
+  private DiffOperations newDiffOperations(int loadParallelism, FileDiffCache cache) {
+    return newDiffOperations(loadParallelism, cache, loadExecutor);
+  }
+
+  private DiffOperations newDiffOperations(
+      int loadParallelism, FileDiffCache cache, ExecutorService executor) {
+    Config cfg = new Config();
+    cfg.setInt("cache", "diff", "loadParallelism", loadParallelism);
+    return new DiffOperationsImpl(
+        cfg, modifiedFilesCache, cache, baseCommitUtil, executor, new DisabledMetricMaker());
+  }
+
+  /** Creates a commit which modifies every other of {@code fileCount} files of its parent. */
+  private ObjectId createLargeChange(int fileCount) throws IOException {
+    ImmutableMap.Builder<String, String> oldFiles = ImmutableMap.builder();
+    ImmutableMap.Builder<String, String> newFiles = ImmutableMap.builder();
+    for (int i = 0; i < fileCount; i++) {
+      String fileName = String.format("file_%04d.txt", i);
+      String content = "line 1\nline 2\nline 3 of " + fileName + "\n";
+      oldFiles.put(fileName, content);
+      newFiles.put(fileName, i % 2 == 0 ? content + "new line\n" : content);
+    }
+    ObjectId oldCommitId = createCommit(repo, null, oldFiles.build());
+    return createCommit(repo, oldCommitId, newFiles.build());
+  }
+
+  /** Records how file diffs are loaded, and optionally fails to load the diff of one file. */
+  private class RecordingFileDiffCache implements FileDiffCache {
+    @Nullable private final String failingPath;
+    final AtomicInteger chunks = new AtomicInteger();
+
+    RecordingFileDiffCache(@Nullable String failingPath) {
+      this.failingPath = failingPath;
+    }
+
+    @Override
+    public FileDiffOutput get(FileDiffCacheKey key) throws DiffNotAvailableException {
+      return fileDiffCache.get(key);
+    }
+
+    @Override
+    public ImmutableMap<FileDiffCacheKey, FileDiffOutput> getAll(Iterable<FileDiffCacheKey> keys)
+        throws DiffNotAvailableException {
+      chunks.incrementAndGet();
+      for (FileDiffCacheKey key : keys) {
+        if (key.newFilePath().equals(failingPath)) {
+          throw new DiffNotAvailableException("Cannot load diff of " + failingPath);
+        }
+      }
+      return fileDiffCache.getAll(keys);
+    }
+  }
+
   private ObjectId createCommit(
       Repository repo, ObjectId parentCommit, ImmutableMap<String, String> fileNameToContent)
       throws IOException {
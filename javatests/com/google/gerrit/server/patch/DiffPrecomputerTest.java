@@ -0,0 +1,58 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.server.patch.DiffPrecomputer.hasMoreModifiedFilesThan;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiffPrecomputerTest {
+  private TestRepository<InMemoryRepository> tr;
+
+  @Before
+  public void setUp() throws Exception {
+    tr = new TestRepository<>(new InMemoryRepository(new DfsRepositoryDescription("repo")));
+  }
+
+  @Test
+  public void countsFilesAgainstFirstParent() throws Exception {
+    RevCommit parent = tr.commit().add("a", "1").add("b", "1").add("dir/c", "1").create();
+    RevCommit commit =
+        tr.commit()
+            .parent(parent)
+            .add("a", "2")
+            .rm("b")
+            .add("dir/c", "1")
+            .add("dir/d", "1")
+            .create();
+
+    assertThat(hasMoreModifiedFilesThan(tr.getRevWalk(), commit, 2)).isTrue();
+    assertThat(hasMoreModifiedFilesThan(tr.getRevWalk(), commit, 3)).isFalse();
+  }
+
+  @Test
+  public void countsAllFilesOfRootCommit() throws Exception {
+    RevCommit root = tr.commit().add("a", "1").add("dir/b", "1").create();
+
+    assertThat(hasMoreModifiedFilesThan(tr.getRevWalk(), root, 1)).isTrue();
+    assertThat(hasMoreModifiedFilesThan(tr.getRevWalk(), root, 2)).isFalse();
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch.gitfilediff;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl.DiffAlgorithm;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.patch.FileHeader;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GitFileDiffCacheLoaderTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("project");
+  private static final String FILE = "file.txt";
+
+  private InMemoryRepositoryManager repoManager;
+  private ObjectId oldTree;
+  private ObjectId newTree;
+
+  @Before
+  public void setUp() throws Exception {
+    repoManager = new InMemoryRepositoryManager();
+    try (TestRepository<InMemoryRepository> tr =
+        new TestRepository<>(repoManager.createRepository(PROJECT))) {
+      oldTree = tr.tree(tr.file(FILE, tr.blob("line 1\nline 2\nline 3\n")));
+      // Only adds whitespace, so ignoring whitespace yields no edits.
+      newTree = tr.tree(tr.file(FILE, tr.blob("line 1\nline 2  \nline 3\n")));
+    }
+  }
+
+  @Test
+  public void otherWhitespaceOptionsAreLoadedAfterTimeout() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("cache", "diff", "timeout", "10ms");
+    HoldingExecutor executor = new HoldingExecutor();
+    GitFileDiffCacheImpl.Loader loader =
+        new GitFileDiffCacheImpl.Loader(cfg, repoManager, executor);
+
+    // Both keys share one walk over the trees, but the computation of whichever key is loaded
+    // first times out and keeps running after the other one was loaded.
+    GitFileDiffCacheKey ignoreNone = newKey(Whitespace.IGNORE_NONE);
+    GitFileDiffCacheKey ignoreAll = newKey(Whitespace.IGNORE_ALL);
+    Map<GitFileDiffCacheKey, GitFileDiff> diffs =
+        loader.loadAll(ImmutableList.of(ignoreNone, ignoreAll));
+
+    assertThat(diffs).hasSize(2);
+    assertThat(executor.held).hasSize(1);
+    GitFileDiffCacheKey timedOut = diffs.get(ignoreNone).isNegative() ? ignoreNone : ignoreAll;
+    GitFileDiffCacheKey loaded = timedOut == ignoreNone ? ignoreAll : ignoreNone;
+    assertThat(diffs.get(timedOut).isNegative()).isTrue();
+    assertThat(diffs.get(loaded).isNegative()).isFalse();
+    assertThat(diffs.get(loaded).edits()).hasSize(loaded == ignoreNone ? 1 : 0);
+
+    // The abandoned computation doesn't depend on the reader of the loader, which is closed now.
+    Future<?> abandoned = executor.runHeld();
+    assertThat(abandoned.get()).isInstanceOf(FileHeader.class);
+  }
+
+  private GitFileDiffCacheKey newKey(Whitespace whitespace) {
+    return GitFileDiffCacheKey.builder()
+        .project(PROJECT)
+        .oldTree(oldTree)
+        .newTree(newTree)
+        .newFilePath(FILE)
+        .disableRenameDetection()
+        .diffAlgorithm(DiffAlgorithm.HISTOGRAM_WITH_FALLBACK_MYERS)
+        .whitespace(whitespace)
+        .useTimeout(true)
+        .build();
+  }
+
+  /** Holds the first task back, so that waiting for it times out, and runs all others directly. */
+  private static class HoldingExecutor extends AbstractExecutorService {
+    final List<Runnable> held = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable command) {
+      if (held.isEmpty()) {
+        held.add(command);
+      } else {
+        command.run();
+      }
+    }
+
+    Future<?> runHeld() {
+      Runnable task = held.get(0);
+      task.run();
+      return (Future<?>) task;
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
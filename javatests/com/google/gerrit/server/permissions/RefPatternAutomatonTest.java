@@ -0,0 +1,135 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.permissions;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.AccessSection;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.project.RefPatternMatcher;
+import com.google.gerrit.server.project.SectionMatcher;
+import java.util.BitSet;
+import org.junit.Test;
+
+/** Test for {@link RefPatternAutomaton} */
+public class RefPatternAutomatonTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("project");
+
+  @Test
+  public void matchesSameSectionsAsIndividualMatchers() {
+    ImmutableList<SectionMatcher> sections =
+        sections(
+            "refs/*",
+            "refs/heads/*",
+            "refs/heads/master",
+            "refs/heads/release/*",
+            "refs/heads/rel",
+            "^refs/heads/release/[0-9]+\\.[0-9]+",
+            "^refs/heads/(feature|fix)/.*",
+            "^refs/heads/.*-stable",
+            "^refs/heads/(?!secret).*",
+            "^refs/heads/ma[^x]ter",
+            "refs/heads/*");
+    ImmutableList<String> refs =
+        ImmutableList.of(
+            "refs/heads/master",
+            "refs/heads/maxter",
+            "refs/heads/release/1.0",
+            "refs/heads/release/1.x",
+            "refs/heads/rel",
+            "refs/heads/relx",
+            "refs/heads/feature/foo",
+            "refs/heads/fix/bar",
+            "refs/heads/foo-stable",
+            "refs/heads/secret-stable",
+            "refs/heads/ünïcode",
+            "refs/meta/config",
+            "refs/tags/v1.0",
+            "refs",
+            "");
+
+    RefPatternAutomaton automaton = RefPatternAutomaton.compile(sections);
+    // Match twice, so that the second pass uses the transitions remembered by the first one.
+    for (int pass = 0; pass < 2; pass++) {
+      for (String ref : refs) {
+        assertWithMessage(ref)
+            .that(automaton.match(ref, null))
+            .isEqualTo(expectedMatches(sections, ref));
+      }
+    }
+  }
+
+  @Test
+  public void matchesSectionsWithoutRegularExpressions() {
+    ImmutableList<SectionMatcher> sections = sections("refs/heads/*", "refs/heads/master");
+    RefPatternAutomaton automaton = RefPatternAutomaton.compile(sections);
+
+    assertThat(automaton.match("refs/heads/master", null)).isEqualTo(bits(0, 1));
+    assertThat(automaton.match("refs/heads/main", null)).isEqualTo(bits(0));
+    assertThat(automaton.match("refs/heads/", null)).isEqualTo(bits(0));
+    assertThat(automaton.match("refs/meta/config", null)).isEqualTo(bits());
+  }
+
+  @Test
+  public void syntaxWithSameSemantics() {
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/.*")).isTrue();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/(a|b)+/[0-9a-z_]?")).isTrue();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/v1\\.0")).isTrue();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/[.*+]")).isTrue();
+  }
+
+  @Test
+  public void syntaxWithDifferentSemantics() {
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/\\d+")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/.*?")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/.*+")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/(?:a|b)")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/[^a]")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/[a[b]]")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/a{2}")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/a$")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/a&b")).isFalse();
+    assertThat(RefPatternAutomaton.hasSameSemantics("refs/heads/[a")).isFalse();
+  }
+
+  private static ImmutableList<SectionMatcher> sections(String... patterns) {
+    ImmutableList.Builder<SectionMatcher> sections = ImmutableList.builder();
+    for (String p : patterns) {
+      sections.add(
+          new SectionMatcher(PROJECT, AccessSection.create(p), RefPatternMatcher.getMatcher(p)));
+    }
+    return sections.build();
+  }
+
+  private static BitSet expectedMatches(ImmutableList<SectionMatcher> sections, String ref) {
+    BitSet expected = new BitSet();
+    for (int i = 0; i < sections.size(); i++) {
+      if (sections.get(i).match(ref, null)) {
+        expected.set(i);
+      }
+    }
+    return expected;
+  }
+
+  private static BitSet bits(int... indexes) {
+    BitSet bits = new BitSet();
+    for (int i : indexes) {
+      bits.set(i);
+    }
+    return bits;
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.query.change;
 
+import com.google.gerrit.index.PaginationType;
 import com.google.gerrit.testing.ConfigSuite;
 import com.google.gerrit.testing.IndexConfig;
 import org.eclipse.jgit.lib.Config;
@@ -23,4 +24,11 @@ public class LuceneQueryChangesLatestIndexVersionTest extends LuceneQueryChanges
   public static Config defaultConfig() {
     return IndexConfig.createForLucene();
   }
+
+  @ConfigSuite.Config
+  public static Config searchAfterPaginationType() {
+    Config config = defaultConfig();
+    config.setEnum("index", null, "paginationType", PaginationType.SEARCH_AFTER);
+    return config;
+  }
 }
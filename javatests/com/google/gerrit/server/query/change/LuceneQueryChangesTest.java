@@ -17,8 +17,10 @@ package com.google.gerrit.server.query.change;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
+import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.server.account.AuthRequest;
 import com.google.gerrit.testing.InMemoryModule;
 import com.google.gerrit.testing.InMemoryRepositoryManager.Repo;
 import com.google.inject.Guice;
@@ -53,6 +55,32 @@ public abstract class LuceneQueryChangesTest extends AbstractQueryChangesTest {
     assertQuery("message:one two", change2);
   }
 
+  @Test
+  public void filterOutMoreThanOnePageOfResultsFromOpenAndClosedChanges() throws Exception {
+    TestRepository<Repo> repo = createProject("repo");
+    Change change1 = insert(repo, newChange(repo), userId);
+    Account.Id user2 =
+        accountManager.authenticate(AuthRequest.forUser("anotheruser")).getAccountId();
+    for (int i = 0; i < 5; i++) {
+      Change change = insert(repo, newChange(repo), user2);
+      if (i % 2 == 0) {
+        gApi.changes().id(change.getChangeId()).abandon();
+      }
+    }
+    Change change2 = insert(repo, newChange(repo), userId);
+    gApi.changes().id(change2.getChangeId()).abandon();
+    for (int i = 0; i < 5; i++) {
+      Change change = insert(repo, newChange(repo), user2);
+      if (i % 2 == 1) {
+        gApi.changes().id(change.getChangeId()).abandon();
+      }
+    }
+
+    assertQuery("ownerin:Administrators", change2, change1);
+    assertQuery("ownerin:Administrators limit:1", change2);
+    assertQuery("ownerin:Administrators limit:2", change2, change1);
+  }
+
   @Test
   @Override
   public void byOwnerInvalidQuery() throws Exception {